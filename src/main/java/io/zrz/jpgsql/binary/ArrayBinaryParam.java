@@ -3,6 +3,7 @@ package io.zrz.jpgsql.binary;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 
+import io.netty.buffer.ByteBuf;
 import io.zrz.jpgsql.client.opj.BinaryParamValue;
 import lombok.SneakyThrows;
 
@@ -56,6 +57,23 @@ class ArrayBinaryParam implements BinaryParamValue {
 
   }
 
+  @Override
+  public void writeTo(ByteBuf out) {
+    if (nelts == 0) {
+      out.writeInt(0); // Dimensions
+      out.writeInt(1); // options
+      out.writeInt(inner); // opd
+    }
+    else {
+      out.writeInt(1); // Dimensions
+      out.writeInt(1); // options, 1 == allow null
+      out.writeInt(inner); // inner type
+      out.writeInt(nelts); // number of elements
+      out.writeInt(1); // lower bound. always 1.
+      out.writeBytes(this.data);
+    }
+  }
+
   @Override
   public int getOid() {
     return oid;
@@ -23,6 +23,7 @@ public abstract class AbstractQueryExecutionBuilder<T> {
 
   private final List<Tuple> queries = new LinkedList<>();
   protected final PostgresQueryProcessor client;
+  private boolean readOnly;
 
   protected abstract T result(int i, Tuple tuple);
 
@@ -36,6 +37,15 @@ public abstract class AbstractQueryExecutionBuilder<T> {
 
   public void clear() {
     queries.clear();
+    readOnly = false;
+  }
+
+  /**
+   * true if the queries were started with {@link #beginReadOnly()}, so can be sent to a read replica.
+   */
+
+  public boolean isReadOnly() {
+    return this.readOnly;
   }
 
   public int size() {
@@ -47,6 +57,9 @@ public abstract class AbstractQueryExecutionBuilder<T> {
   }
 
   public T beginReadOnly() {
+    if (this.queries.isEmpty()) {
+      this.readOnly = true;
+    }
     return this.add("BEGIN READ ONLY");
   }
 
@@ -2,6 +2,17 @@ package io.zrz.jpgsql.client;
 
 import org.reactivestreams.Publisher;
 
+/**
+ * a series of statements run in order on the same connection, outside the scope of a transaction (although transactions
+ * may be started).
+ *
+ * an implementation may give the connection back to its pool between statements while no transaction is open. it keeps
+ * it for the rest of the session once a statement has left state on it which outlives the statement - a plain SET or
+ * RESET, LISTEN, PREPARE, a cursor WITH HOLD, LOAD, a temporary table, set_config() or a session level advisory lock -
+ * and doesn't let other work see that state afterwards. anything else which relies on session state should be done
+ * inside a transaction.
+ */
+
 public interface PgSession extends PostgresQueryProcessor, AutoCloseable {
 
   @Override
@@ -61,6 +61,13 @@ public class PostgresConnectionProperties {
   @Default
   private Duration idleTimeout = Duration.ofSeconds(60);
 
+  /**
+   * how long a pooled connection is used for before it is closed and replaced. only used by the netty pool.
+   */
+
+  @Default
+  private Duration maxLifetime = Duration.ofMinutes(30);
+
   /**
    * how long a connection tries to establish before timing out.
    */
@@ -72,7 +79,11 @@ public class PostgresConnectionProperties {
    * maximum number of connections.
    *
    * be aware that if the {@link org.postgresql} version of the PostgresClient is used and configured to use a thread
-   * for async emulation, then this will be equal to the number of threads created (urgh).
+   * for async emulation, then this will be equal to the number of threads created (urgh), unless
+   * {@link #isVirtualThreads()} is set.
+   *
+   * for the netty client this bounds everything it opens: connections shared by pipelined queries, and those held by
+   * sessions, COPY and notifications, together.
    *
    */
 
@@ -84,6 +95,8 @@ public class PostgresConnectionProperties {
    * 
    * this happens when no connections are available, and we're trying to connect.
    * 
+   * also how long a query can wait for a place in the queue once it is full, before being rejected.
+   * 
    * if set to zero, enqueing will be rejected and all enqueued queries will be rejected when there is no connection
    * available, with the exception of the first startup - which uses the connectTimeout instead.
    * 
@@ -101,6 +114,16 @@ public class PostgresConnectionProperties {
 
   private int queueDepth;
 
+  /**
+   * run the blocking work of the JDBC backed client on a new virtual thread per task rather than a pool of maxPoolSize
+   * platform threads. only on JDK 24+, otherwise ignored: the driver blocks inside synchronized methods, which on
+   * earlier releases pins each virtual thread to a carrier, so no more queries would run at once than there are
+   * carriers (about one per core).
+   */
+
+  @Default
+  private boolean virtualThreads = false;
+
   /**
    * if this connection is read only?
    */
@@ -120,6 +143,14 @@ public class PostgresConnectionProperties {
   @Default
   private String applicationName = "jpgsql";
 
+  /**
+   * the number of server-side prepared statements each connection keeps, keyed by SQL. only used by the netty client,
+   * the JDBC driver's statement cache is always disabled. zero to disable.
+   */
+
+  @Default
+  private int statementCacheSize = 256;
+
   // 0 == no batching
   @Default
   private int defaultRowFetchSize = 0;
@@ -1,11 +1,13 @@
 package io.zrz.jpgsql.client;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 
 import org.reactivestreams.Publisher;
 
 import com.google.common.io.ByteSource;
+import com.google.common.primitives.Ints;
 
 import io.netty.buffer.ByteBuf;
 import io.reactivex.Flowable;
@@ -80,6 +82,48 @@ public interface PostgresQueryProcessor {
 
   Publisher<QueryResult> submit(Query query, QueryParameters params);
 
+  /**
+   * submit a query which only reads, so may be run on a read replica rather than the primary. it must not rely on
+   * seeing its own (or anyone's very recent) writes.
+   *
+   * clients without replicas just run it as normal.
+   */
+
+  default Publisher<QueryResult> submitReadOnly(final Query query, final QueryParameters params) {
+    return this.submit(query, params);
+  }
+
+  /**
+   * submit a query which must complete within the timeout, counted from when it is subscribed to. this covers the time
+   * spent waiting for a connection as well as running it.
+   *
+   * once the deadline passes the returned {@link Publisher} fails with {@link QueryDeadlineExceededException}. a query
+   * still queued is dropped without being run, and a running one is cancelled on the server, so it stops using server
+   * resources rather than carrying on behind a retry.
+   */
+
+  default Publisher<QueryResult> submit(final Query query, final QueryParameters params, final Duration timeout) {
+    return PostgresUtils.deadline(this.submit(query, params), timeout);
+  }
+
+  /**
+   * execute a single statement once for each set of parameters, returning the update count of each.
+   *
+   * the clients run them all in a single transaction, so if any fails none are applied and the returned
+   * {@link Publisher} fails with the {@link ErrorResult} for that row. this default just submits them one after another,
+   * each in its own transaction.
+   */
+
+  default Publisher<int[]> executeBatch(final Query query, final List<QueryParameters> params) {
+    return Flowable.fromIterable(params)
+        .concatMap(row -> Flowable.fromPublisher(this.submit(query, row)))
+        .ofType(CommandStatus.class)
+        .map(CommandStatus::getUpdateCount)
+        .toList()
+        .map(Ints::toArray)
+        .toFlowable();
+  }
+
   /**
    * performs a copy.
    *
@@ -100,6 +144,15 @@ public interface PostgresQueryProcessor {
 
   Publisher<Long> copyTo(String sql, ByteSource source);
 
+  /**
+   * performs a COPY ... TO STDOUT, emitting the raw data as it arrives - for a binary COPY this can be turned into rows
+   * with {@link io.zrz.jpgsql.proto.client.PgBinaryCopyDecoder}.
+   *
+   * the subscriber owns each buffer, and must release it.
+   */
+
+  Publisher<ByteBuf> copyFrom(String sql);
+
   /**
    *
    * @param query
@@ -137,6 +190,16 @@ public interface PostgresQueryProcessor {
 
   Flowable<QueryResult> fetch(int batchSize, Tuple tuple);
 
+  /**
+   * a fetch which must complete within the timeout.
+   *
+   * @see #submit(Query, QueryParameters, Duration)
+   */
+
+  default Flowable<QueryResult> fetch(final int batchSize, final Tuple tuple, final Duration timeout) {
+    return PostgresUtils.deadline(this.fetch(batchSize, tuple), timeout);
+  }
+
   default Flowable<QueryResult> fetch(final int batchSize, final String sql) {
     return fetch(batchSize, Tuple.of(createQuery(sql), DefaultParametersList.emptyParameters()));
   }
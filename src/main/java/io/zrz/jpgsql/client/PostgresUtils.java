@@ -1,7 +1,9 @@
 package io.zrz.jpgsql.client;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
@@ -125,4 +127,15 @@ public class PostgresUtils {
     };
   }
 
+  /**
+   * fails with {@link QueryDeadlineExceededException} if the source hasn't completed within the timeout of being
+   * subscribed to. the source is cancelled, which cancels a running query on the server too.
+   */
+
+  public static <T> Flowable<T> deadline(final Publisher<T> source, final Duration timeout) {
+    return Flowable.fromPublisher(source)
+        .takeUntil(Flowable.timer(timeout.toNanos(), TimeUnit.NANOSECONDS)
+            .flatMap(x -> Flowable.<T>error(new QueryDeadlineExceededException(timeout))));
+  }
+
 }
@@ -0,0 +1,18 @@
+package io.zrz.jpgsql.client;
+
+import java.time.Duration;
+
+/**
+ * raised when a query submitted with a deadline has not completed in time. the query is cancelled, including on the
+ * server if it had started running.
+ */
+
+public class QueryDeadlineExceededException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public QueryDeadlineExceededException(final Duration timeout) {
+    super("query did not complete within " + timeout);
+  }
+
+}
@@ -18,11 +18,14 @@ public class QueryExecutionBuilder extends AbstractQueryExecutionBuilder<QueryEx
   }
 
   /**
-   * executes the statements.
+   * executes the statements. if started with {@link #beginReadOnly()} they may be run on a read replica.
    */
 
   public Publisher<QueryResult> execute() {
     final Tuple t = this.buildQuery();
+    if (this.isReadOnly()) {
+      return this.client.submitReadOnly(t.getQuery(), t.getParams());
+    }
     return this.client.submit(t.getQuery(), t.getParams());
   }
 
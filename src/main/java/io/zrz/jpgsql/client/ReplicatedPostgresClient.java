@@ -0,0 +1,280 @@
+package io.zrz.jpgsql.client;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.reactivestreams.Publisher;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+
+import io.netty.buffer.ByteBuf;
+import io.reactivex.Flowable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import io.zrz.jpgsql.client.AbstractQueryExecutionBuilder.Tuple;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * a primary plus a set of read replicas, each a separate {@link PostgresClient}.
+ *
+ * everything goes to the primary, except queries submitted with {@link #submitReadOnly(Query, QueryParameters)} (which
+ * includes a {@link QueryExecutionBuilder} started with beginReadOnly()). those go to the replica with the lowest
+ * latency, as long as it is no more than maxLag behind - or the primary if there isn't one.
+ *
+ * each replica is probed periodically, measuring the round trip time and how far replay is behind. a replica which
+ * falls more than maxLag behind, has lost its WAL receiver's connection to the primary (or fails the probe) is drained: no new queries are sent to it until it has caught up
+ * to within half of maxLag again. queries already running on it are left to finish.
+ */
+
+@Slf4j
+public class ReplicatedPostgresClient extends AbstractPostgresClient {
+
+  // replay lag in seconds. zero if everything received has been replayed, as the last replay time doesn't move while
+  // the primary is idle - but only if the WAL receiver is streaming, else nothing new is being received and it is
+  // infinitely behind: when there's no receiver, it isn't streaming, or it has heard nothing from the primary for
+  // longer than it would wait itself before giving up. a role without pg_read_all_stats only sees the receiver's pid.
+  private static final String LAG_QUERY = "SELECT CASE "
+      + "WHEN r.pid IS NULL OR r.status <> 'streaming' THEN 'Infinity'::float8 "
+      + "WHEN current_setting('wal_receiver_timeout') <> '0' "
+      + "AND now() - r.last_msg_receipt_time > current_setting('wal_receiver_timeout')::interval THEN 'Infinity'::float8 "
+      + "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0::float8 "
+      + "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp())::float8 END "
+      + "FROM (SELECT 1) one LEFT JOIN pg_stat_wal_receiver r ON true";
+
+  // weight of the newest sample in the latency average.
+  private static final double LATENCY_WEIGHT = 0.3;
+
+  /**
+   * what we know about a replica from the most recent probes.
+   */
+
+  public static final class Replica {
+
+    private final PostgresClient client;
+
+    private volatile boolean available;
+    private volatile double latencyNanos = Double.MAX_VALUE;
+    private volatile double lagSeconds = Double.MAX_VALUE;
+
+    private Replica(final PostgresClient client) {
+      this.client = client;
+    }
+
+    public PostgresClient client() {
+      return this.client;
+    }
+
+    /**
+     * if queries are being routed to it.
+     */
+
+    public boolean isAvailable() {
+      return this.available;
+    }
+
+    /**
+     * the average probe round trip.
+     */
+
+    public Duration latency() {
+      return this.latencyNanos == Double.MAX_VALUE ? null : Duration.ofNanos((long) this.latencyNanos);
+    }
+
+    /**
+     * how far behind the primary it was when last probed, in seconds.
+     */
+
+    public double lag() {
+      return this.lagSeconds;
+    }
+
+    @Override
+    public String toString() {
+      return "replica { available:" + this.available + " latency:" + this.latency() + " lag:" + this.lagSeconds + " }";
+    }
+
+  }
+
+  private final PostgresClient primary;
+  private final List<Replica> replicas;
+  private final double maxLagSeconds;
+  private final long probeTimeoutMillis;
+  private final Disposable probes;
+
+  public ReplicatedPostgresClient(final PostgresClient primary, final List<? extends PostgresClient> replicas) {
+    this(primary, replicas, Duration.ofSeconds(10), Duration.ofSeconds(5));
+  }
+
+  /**
+   * @param maxLag
+   *          how far behind the primary a replica can be while still being sent queries.
+   * @param probeInterval
+   *          how often each replica's latency and lag is measured.
+   */
+
+  public ReplicatedPostgresClient(final PostgresClient primary, final List<? extends PostgresClient> replicas, final Duration maxLag, final Duration probeInterval) {
+
+    Preconditions.checkArgument(!maxLag.isNegative() && !maxLag.isZero(), "maxLag must be positive");
+
+    this.primary = primary;
+    this.replicas = ImmutableList.copyOf(replicas.stream().map(Replica::new).collect(Collectors.toList()));
+    this.maxLagSeconds = maxLag.toNanos() / 1e9;
+    // a replica which doesn't answer before the next probe is due is as good as down.
+    this.probeTimeoutMillis = Math.max(probeInterval.toMillis(), 1000);
+
+    this.probes = Flowable.interval(0, probeInterval.toMillis(), TimeUnit.MILLISECONDS, Schedulers.computation())
+        .onBackpressureDrop()
+        .concatMap(tick -> Flowable.fromIterable(this.replicas)
+            .flatMap(this::probe, this.replicas.size() + 1), 1)
+        .subscribe();
+
+  }
+
+  public PostgresClient primary() {
+    return this.primary;
+  }
+
+  public List<Replica> replicas() {
+    return this.replicas;
+  }
+
+  /**
+   * the client read only queries are currently sent to: the available replica with the lowest latency, or the primary.
+   */
+
+  public PostgresClient reader() {
+
+    Replica best = null;
+
+    for (final Replica replica : this.replicas) {
+      if (replica.available && (best == null || replica.latencyNanos < best.latencyNanos)) {
+        best = replica;
+      }
+    }
+
+    return best == null ? this.primary : best.client;
+
+  }
+
+  /**
+   * measure a replica, and update if it should be routed to. never fails.
+   */
+
+  private Flowable<Object> probe(final Replica replica) {
+
+    final long start = System.nanoTime();
+
+    return Flowable.fromPublisher(replica.client.submit(LAG_QUERY))
+        .ofType(RowBuffer.class)
+        .filter(rows -> rows.count() > 0)
+        .take(1)
+        .timeout(this.probeTimeoutMillis, TimeUnit.MILLISECONDS)
+        .doOnNext(rows -> {
+
+          final long elapsed = System.nanoTime() - start;
+          final String lag = rows.strval(0, 0);
+
+          replica.lagSeconds = lag == null ? 0 : Double.parseDouble(lag);
+
+          replica.latencyNanos = replica.latencyNanos == Double.MAX_VALUE
+              ? elapsed
+              : (LATENCY_WEIGHT * elapsed) + ((1 - LATENCY_WEIGHT) * replica.latencyNanos);
+
+          if (replica.available && replica.lagSeconds > this.maxLagSeconds) {
+            log.warn("draining replica, {}s behind", replica.lagSeconds);
+            replica.available = false;
+          }
+          else if (!replica.available && replica.lagSeconds <= this.maxLagSeconds / 2) {
+            log.info("replica available, {}s behind", replica.lagSeconds);
+            replica.available = true;
+          }
+
+        })
+        .cast(Object.class)
+        .onErrorResumeNext(err -> {
+          if (replica.available) {
+            log.warn("draining replica, probe failed: {}", err.getMessage());
+          }
+          replica.available = false;
+          return Flowable.empty();
+        });
+
+  }
+
+  @Override
+  public Publisher<QueryResult> submitReadOnly(final Query query, final QueryParameters params) {
+    return this.reader().submit(query, params);
+  }
+
+  @Override
+  public Publisher<QueryResult> submit(final Query query, final QueryParameters params) {
+    return this.primary.submit(query, params);
+  }
+
+  @Override
+  public Flowable<QueryResult> fetch(final int batchSize, final Tuple tuple) {
+    return this.primary.fetch(batchSize, tuple);
+  }
+
+  @Override
+  public Publisher<int[]> executeBatch(final Query query, final List<QueryParameters> params) {
+    return this.primary.executeBatch(query, params);
+  }
+
+  @Override
+  public Publisher<Long> copyTo(final String sql, final Publisher<ByteBuf> upstream) {
+    return this.primary.copyTo(sql, upstream);
+  }
+
+  @Override
+  public Publisher<Long> copyTo(final String sql, final ByteSource source) {
+    return this.primary.copyTo(sql, source);
+  }
+
+  @Override
+  public Publisher<ByteBuf> copyFrom(final String sql) {
+    return this.primary.copyFrom(sql);
+  }
+
+  @Override
+  public PgSession openSession() {
+    return this.primary.openSession();
+  }
+
+  @Override
+  public TransactionalSession open() {
+    return this.primary.open();
+  }
+
+  @Override
+  public Publisher<NotifyMessage> notifications(final Collection<String> channels) {
+    return this.primary.notifications(channels);
+  }
+
+  @Override
+  public PostgresConnectionProperties config() {
+    return this.primary.config();
+  }
+
+  @Override
+  public PostgresClient client() {
+    return this;
+  }
+
+  /**
+   * stops probing, and closes the primary and all of the replicas.
+   */
+
+  @Override
+  public void close() {
+    this.probes.dispose();
+    this.replicas.forEach(r -> r.client.close());
+    this.primary.close();
+  }
+
+}
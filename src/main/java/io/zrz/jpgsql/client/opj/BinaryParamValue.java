@@ -1,9 +1,20 @@
 package io.zrz.jpgsql.client.opj;
 
+import io.netty.buffer.ByteBuf;
+
 public interface BinaryParamValue {
 
   byte[] toByteArray();
 
   int getOid();
 
+  /**
+   * write the binary value to the buffer, without a length prefix. implementations should override to avoid the
+   * intermediate array.
+   */
+
+  default void writeTo(final ByteBuf out) {
+    out.writeBytes(this.toByteArray());
+  }
+
 }
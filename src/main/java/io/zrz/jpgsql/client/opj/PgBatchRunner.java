@@ -0,0 +1,93 @@
+package io.zrz.jpgsql.client.opj;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import io.reactivex.SingleEmitter;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.client.PostgresqlCapacityExceededException;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.QueryParameters;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * submitted to the {@link PgConnectionPool} to run a statement for each of a list of parameters, inside a single
+ * transaction.
+ */
+
+@Slf4j
+class PgBatchRunner implements PgConnectionPool.Task {
+
+  private final SingleEmitter<int[]> emitter;
+  private final Query query;
+  private final List<QueryParameters> params;
+  private final AmbientContext ctx;
+  private final PgConnectionPool connections;
+
+  public PgBatchRunner(final Query query, final List<QueryParameters> params, final SingleEmitter<int[]> emitter, final AmbientContext ctx,
+      final PgConnectionPool connections) {
+    this.emitter = emitter;
+    this.query = query;
+    this.params = params;
+    this.ctx = ctx;
+    this.connections = connections;
+  }
+
+  @Override
+  public void run(final PgLocalConnection conn) {
+    this.ctx.wrap(() -> this.execute(conn)).run();
+  }
+
+  private void execute(final PgLocalConnection conn) {
+
+    if (this.emitter.isDisposed()) {
+      log.debug("batch cancelled while queued, not running");
+      this.connections.release(conn);
+      return;
+    }
+
+    final int[] counts;
+
+    try {
+
+      counts = conn.executeBatch(this.query, this.params);
+
+      conn.commit();
+
+    }
+    catch (final SQLException ex) {
+      // Any propagated SQLException results in the connection being closed.
+      this.connections.discard(conn);
+      this.emitter.tryOnError(new PostgresqlUnavailableException(ex));
+      return;
+    }
+    catch (final Throwable ex) {
+
+      // the first rows may have run, so the transaction needs aborting.
+      try {
+        log.debug("batch failed, rolling back");
+        conn.rollback();
+        this.connections.release(conn);
+      }
+      catch (final SQLException rex) {
+        this.connections.discard(conn);
+      }
+
+      this.emitter.tryOnError(ex instanceof ErrorResult ? ex : new PostgresqlUnavailableException(ex));
+      return;
+
+    }
+
+    this.connections.release(conn);
+
+    this.emitter.onSuccess(counts);
+
+  }
+
+  @Override
+  public void failed(final Throwable ex) {
+    this.emitter.tryOnError(ex instanceof PostgresqlCapacityExceededException ? ex : new PostgresqlUnavailableException(ex));
+  }
+
+}
@@ -0,0 +1,454 @@
+package io.zrz.jpgsql.client.opj;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.postgresql.jdbc.PgConnection;
+import org.postgresql.util.PSQLException;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import io.zrz.jpgsql.client.PostgresqlCapacityExceededException;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+import net.jodah.failsafe.Failsafe;
+import net.jodah.failsafe.RetryPolicy;
+
+/**
+ * the JDBC connections, kept separately from the threads which use them.
+ *
+ * a {@link Task} is only handed to a thread once there is a connection for it, so work waiting for a connection doesn't
+ * hold a thread, and a session can keep a connection between statements without holding one either. connections are
+ * opened on demand up to maxSize; after that tasks wait here in the order they were submitted, and are given
+ * connections as they are released.
+ *
+ * up to maxWaiting tasks are queued. past that a task may still wait up to maxStalledWait for a place, so a short burst
+ * is absorbed rather than rejected, and fails with {@link PostgresqlCapacityExceededException} if it doesn't get one.
+ * if the pool looks stalled - connections are being opened, but none has been opened or handed out for maxStalledWait
+ * (the connect timeout until the first connection is made) - new tasks which would have to wait fail straight away,
+ * as do the queued tasks which have waited that long.
+ */
+
+@Slf4j
+class PgConnectionPool {
+
+  /**
+   * work which needs a connection. it is run on one of the executor's threads, and must pass the connection back to
+   * {@link PgConnectionPool#release(PgLocalConnection)} or {@link PgConnectionPool#discard(PgLocalConnection)} once done
+   * with it - which needn't be before returning.
+   */
+
+  interface Task {
+
+    void run(PgLocalConnection conn);
+
+    /**
+     * a connection couldn't be opened for the task, or the pool closed while it was waiting.
+     */
+
+    void failed(Throwable ex);
+
+  }
+
+  // TODO: make configurable at runtime
+  private static final RetryPolicy RETRY_POLICY = new RetryPolicy()
+      .retryOn(PSQLException.class)
+      .withDelay(250, TimeUnit.MILLISECONDS)
+      .withBackoff(1, 5, TimeUnit.SECONDS)
+      .withJitter(0.25)
+      .withMaxDuration(30, TimeUnit.SECONDS);
+
+  private static final class Waiter {
+
+    final Task task;
+    final long queued = System.nanoTime();
+
+    Waiter(final Task task) {
+      this.task = task;
+    }
+
+  }
+
+  private final PgThreadPooledClient client;
+  private final Executor executor;
+  private final int maxSize;
+  private final int maxWaiting;
+  private final long maxStalledWaitNanos;
+  private final long connectTimeoutNanos;
+  private final Disposable sweeper;
+
+  // connected and not in use, most recently released first. guarded by this.
+  private final ArrayDeque<PgLocalConnection> idle = new ArrayDeque<>();
+
+  // tasks waiting for a connection, in order of arrival.
+  private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+
+  // tasks waiting for a place in the queue, for up to maxStalledWait.
+  private final ArrayDeque<Waiter> overflow = new ArrayDeque<>();
+
+  // connections open, or being opened.
+  private int open;
+  private int opening;
+  private boolean closed;
+
+  // when a connection was last opened or handed to a task.
+  private long progressed = System.nanoTime();
+  private boolean connected;
+
+  // tasks which had to wait, and for how long in total.
+  private long waited;
+  private long waitedNanos;
+
+  PgConnectionPool(final PgThreadPooledClient client, final Executor executor, final int maxSize, final int maxWaiting, final Duration maxStalledWait,
+      final Duration connectTimeout) {
+
+    this.client = client;
+    this.executor = executor;
+    this.maxSize = maxSize;
+    this.maxWaiting = maxWaiting;
+    this.maxStalledWaitNanos = maxStalledWait.toNanos();
+    this.connectTimeoutNanos = connectTimeout.toNanos();
+
+    final long period = Math.max(10, Math.min(1000, maxStalledWait.toMillis() == 0 ? 100 : maxStalledWait.toMillis() / 4));
+
+    this.sweeper = Schedulers.computation().schedulePeriodicallyDirect(this::sweep, period, period, TimeUnit.MILLISECONDS);
+
+  }
+
+  /**
+   * run the task once there is a connection for it. throws {@link PostgresqlCapacityExceededException} if too many tasks
+   * are already waiting.
+   */
+
+  void submit(final Task task) {
+
+    final PgLocalConnection conn;
+
+    synchronized (this) {
+
+      if (this.closed) {
+        throw new PostgresqlUnavailableException("pool is closed");
+      }
+
+      if (!this.idle.isEmpty()) {
+        conn = this.idle.pop();
+        this.progressed = System.nanoTime();
+      }
+      else if (this.open < this.maxSize) {
+        // opened on the thread which runs the task.
+        conn = null;
+        this.open++;
+        this.opening++;
+      }
+      else if (this.stalled(System.nanoTime())) {
+        log.warn("rejecting work, no progress for {}", Duration.ofNanos(System.nanoTime() - this.progressed));
+        throw new PostgresqlCapacityExceededException();
+      }
+      else if (this.waiting.size() < this.maxWaiting) {
+        this.waiting.add(new Waiter(task));
+        return;
+      }
+      else if (this.maxStalledWaitNanos > 0) {
+        this.overflow.add(new Waiter(task));
+        return;
+      }
+      else {
+        throw new PostgresqlCapacityExceededException();
+      }
+
+    }
+
+    this.dispatch(task, conn);
+
+  }
+
+  /**
+   * stop a task waiting for a connection. false if it wasn't waiting, as it has already been handed to a thread.
+   */
+
+  synchronized boolean cancel(final Task task) {
+    return this.waiting.removeIf(w -> w.task == task) || this.overflow.removeIf(w -> w.task == task);
+  }
+
+  /**
+   * the number of tasks waiting for a connection.
+   */
+
+  synchronized int pending() {
+    return this.waiting.size() + this.overflow.size();
+  }
+
+  /**
+   * the average time tasks which had to wait for a connection waited.
+   */
+
+  synchronized Duration averageWait() {
+    return this.waited == 0 ? Duration.ZERO : Duration.ofNanos(this.waitedNanos / this.waited);
+  }
+
+  /**
+   * return a connection, which is handed straight to the next waiting task if there is one.
+   */
+
+  void release(final PgLocalConnection conn) {
+
+    final Task next;
+
+    synchronized (this) {
+
+      if (this.closed) {
+        this.open--;
+        next = null;
+      }
+      else {
+        next = this.next();
+        if (next == null) {
+          this.idle.push(conn);
+          return;
+        }
+        this.progressed = System.nanoTime();
+      }
+
+    }
+
+    if (next == null) {
+      this.close(conn);
+    }
+    else {
+      this.dispatch(next, conn);
+    }
+
+  }
+
+  /**
+   * close a connection which can't be reused, making room for another.
+   */
+
+  void discard(final PgLocalConnection conn) {
+    this.close(conn);
+    this.vacate();
+  }
+
+  /**
+   * open a connection outside of the pool, e.g for a LISTEN which needs one for as long as it runs. blocks until
+   * connected. close it with {@link #close(PgLocalConnection)}.
+   */
+
+  PgLocalConnection connect() {
+
+    log.debug("opening new connection");
+
+    // this may throw.
+    final PgConnection raw = Failsafe.with(RETRY_POLICY)
+        .onFailedAttempt(e -> log.warn("connection failed, retying {}", e.getMessage()))
+        .get(() -> this.client.createConnection());
+
+    final PgLocalConnection conn = new PgLocalConnection(this.client, raw);
+
+    if (this.client.getListener() != null) {
+      this.client.getListener().connectionCreated(conn);
+    }
+
+    return conn;
+
+  }
+
+  void close(final PgLocalConnection conn) {
+    log.debug("closing connection");
+    if (this.client.getListener() != null) {
+      this.client.getListener().connectionClosed(conn);
+    }
+    conn.close();
+  }
+
+  /**
+   * close the idle connections, and fail the waiting tasks. connections in use are closed as they are released.
+   */
+
+  void close() {
+
+    final List<PgLocalConnection> conns;
+    final List<Waiter> tasks = new ArrayList<>();
+
+    this.sweeper.dispose();
+
+    synchronized (this) {
+      this.closed = true;
+      this.open -= this.idle.size();
+      conns = new ArrayList<>(this.idle);
+      tasks.addAll(this.waiting);
+      tasks.addAll(this.overflow);
+      this.idle.clear();
+      this.waiting.clear();
+      this.overflow.clear();
+    }
+
+    conns.forEach(this::close);
+    tasks.forEach(w -> w.task.failed(new PostgresqlUnavailableException("pool is closed")));
+
+  }
+
+  /**
+   * a connection has gone: let the next waiting task (if any) open one in its place.
+   */
+
+  private void vacate() {
+
+    final Task next;
+
+    synchronized (this) {
+      next = this.closed ? null : this.next();
+      if (next == null) {
+        this.open--;
+        return;
+      }
+      this.opening++;
+    }
+
+    this.dispatch(next, null);
+
+  }
+
+  /**
+   * the next task to give a connection to, moving the first task waiting for a place into the queue. must hold the
+   * lock.
+   */
+
+  private Task next() {
+
+    final Waiter next = this.waiting.isEmpty() ? this.overflow.poll() : this.waiting.poll();
+
+    if (next == null) {
+      return null;
+    }
+
+    if (!this.overflow.isEmpty() && this.waiting.size() < this.maxWaiting) {
+      this.waiting.add(this.overflow.poll());
+    }
+
+    this.waited++;
+    this.waitedNanos += System.nanoTime() - next.queued;
+
+    return next.task;
+
+  }
+
+  /**
+   * if there are tasks waiting while connections are being opened, but nothing has happened for a while. must hold the
+   * lock.
+   */
+
+  private boolean stalled(final long now) {
+    final long limit = this.connected ? this.maxStalledWaitNanos : this.connectTimeoutNanos;
+    return this.opening > 0 && (!this.waiting.isEmpty() || !this.overflow.isEmpty()) && now - this.progressed > limit;
+  }
+
+  /**
+   * fail the tasks which have waited too long for a place in the queue, or for a connection from a stalled pool.
+   */
+
+  private void sweep() {
+
+    final List<Task> expired = new ArrayList<>();
+
+    synchronized (this) {
+
+      final long now = System.nanoTime();
+
+      if (this.stalled(now)) {
+        final long limit = this.connected ? this.maxStalledWaitNanos : this.connectTimeoutNanos;
+        expire(this.waiting, now - limit, expired);
+        expire(this.overflow, now - limit, expired);
+      }
+
+      expire(this.overflow, now - this.maxStalledWaitNanos, expired);
+
+      while (!this.overflow.isEmpty() && this.waiting.size() < this.maxWaiting) {
+        this.waiting.add(this.overflow.poll());
+      }
+
+    }
+
+    if (!expired.isEmpty()) {
+      log.warn("rejecting {} tasks which waited too long for a connection", expired.size());
+      expired.forEach(task -> task.failed(new PostgresqlCapacityExceededException()));
+    }
+
+  }
+
+  /**
+   * remove the waiters queued before the given time.
+   */
+
+  private static void expire(final ArrayDeque<Waiter> queue, final long before, final List<Task> expired) {
+    for (final Iterator<Waiter> it = queue.iterator(); it.hasNext();) {
+      final Waiter w = it.next();
+      if (w.queued - before > 0) {
+        // in order of arrival, so the rest are newer.
+        break;
+      }
+      it.remove();
+      expired.add(w.task);
+    }
+  }
+
+  private void dispatch(final Task task, final PgLocalConnection conn) {
+
+    try {
+      this.executor.execute(() -> this.run(task, conn));
+    }
+    catch (final RejectedExecutionException ex) {
+      // only once shut down.
+      if (conn == null) {
+        synchronized (this) {
+          this.opening--;
+        }
+        this.vacate();
+      }
+      else {
+        this.release(conn);
+      }
+      task.failed(ex);
+    }
+
+  }
+
+  private void run(final Task task, final PgLocalConnection conn) {
+
+    if (conn != null) {
+      task.run(conn);
+      return;
+    }
+
+    final PgLocalConnection created;
+
+    try {
+      created = this.connect();
+    }
+    catch (final Throwable ex) {
+      log.warn("failed to open connection: {}", ex.getMessage());
+      synchronized (this) {
+        this.opening--;
+      }
+      this.vacate();
+      task.failed(ex);
+      return;
+    }
+
+    synchronized (this) {
+      this.opening--;
+      this.connected = true;
+      this.progressed = System.nanoTime();
+    }
+
+    task.run(created);
+
+  }
+
+}
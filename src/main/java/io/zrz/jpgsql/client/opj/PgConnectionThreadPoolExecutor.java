@@ -4,7 +4,6 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -16,13 +15,13 @@ import io.zrz.jpgsql.client.PostgresqlCapacityExceededException;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * responsible for keeping the pool of connections open.
+ * the threads work runs on. they don't own connections: the {@link PgConnectionPool} hands a connection to each task
+ * it runs here, so a task only reaches this executor once it can make progress.
  */
 
 @Slf4j
-public class PgConnectionThreadPoolExecutor extends ThreadPoolExecutor implements ThreadFactory, RejectedExecutionHandler, UncaughtExceptionHandler {
+public class PgConnectionThreadPoolExecutor extends ThreadPoolExecutor implements RejectedExecutionHandler, UncaughtExceptionHandler {
 
-  private final PgThreadPooledClient pool;
   private final LinkedTransferQueue<Runnable> pendingQueue = new LinkedTransferQueue<>();
   private final AtomicInteger pendingCount = new AtomicInteger(0);
   private PostgresConnectionProperties config;
@@ -37,14 +36,11 @@ public class PgConnectionThreadPoolExecutor extends ThreadPoolExecutor implement
         new ArrayBlockingQueue<>(config.getMaxPoolSize() + config.getQueueDepth(), true));
 
     this.setThreadFactory(new ThreadFactoryBuilder()
-        .setThreadFactory(this)
         .setDaemon(true)
         .setUncaughtExceptionHandler(this)
         .setNameFormat("psql-%d-" + Integer.toHexString(this.hashCode()))
         .build());
 
-    this.pool = pool;
-
     super.setRejectedExecutionHandler(this);
 
     // if (config.getMinIdle() > 0) {
@@ -87,12 +83,6 @@ public class PgConnectionThreadPoolExecutor extends ThreadPoolExecutor implement
     super.afterExecute(r, t);
   }
 
-  @Override
-  public Thread newThread(final Runnable r) {
-    log.debug("starting new thread");
-    return new PgConnectionThread(this.pool, r);
-  }
-
   @Override
   public void uncaughtException(Thread t, Throwable e) {
     log.error("error in group {}, failed with uncaught exception", t.getThreadGroup().getName(), e);
@@ -0,0 +1,147 @@
+package io.zrz.jpgsql.client.opj;
+
+import java.sql.SQLException;
+
+import org.postgresql.copy.CopyOut;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.FlowableEmitter;
+import io.zrz.jpgsql.client.PostgresqlCapacityExceededException;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * a COPY ... TO STDOUT, each chunk the driver reads emitted as a buffer. the next chunk is only read once the subscriber
+ * has requested it.
+ *
+ * submitted to the {@link PgConnectionPool} on its own, or run by a session with the session's connection.
+ */
+
+@Slf4j
+class PgCopyOutRunner implements PgConnectionPool.Task {
+
+  private final String sql;
+  private final FlowableEmitter<ByteBuf> emitter;
+  private final PgDemand<ByteBuf> demand;
+  private final AmbientContext ctx;
+  private final PgConnectionPool connections;
+
+  /**
+   * for a session to {@link #copy(PgLocalConnection)} with its own connection.
+   */
+
+  PgCopyOutRunner(final String sql, final FlowableEmitter<ByteBuf> emitter, final PgDemand<ByteBuf> demand) {
+    this(sql, emitter, demand, null, null);
+  }
+
+  PgCopyOutRunner(final String sql, final FlowableEmitter<ByteBuf> emitter, final PgDemand<ByteBuf> demand, final AmbientContext ctx,
+      final PgConnectionPool connections) {
+    this.sql = sql;
+    this.emitter = emitter;
+    this.demand = demand;
+    this.ctx = ctx;
+    this.connections = connections;
+  }
+
+  @Override
+  public void run(final PgLocalConnection conn) {
+    this.ctx.wrap(() -> this.execute(conn)).run();
+  }
+
+  private void execute(final PgLocalConnection conn) {
+
+    this.copy(conn);
+
+    try {
+      if (conn.getConnection().isClosed()) {
+        this.connections.discard(conn);
+      }
+      else {
+        this.connections.release(conn);
+      }
+    }
+    catch (final SQLException ex) {
+      this.connections.discard(conn);
+    }
+
+  }
+
+  /**
+   * run the copy on the connection, which is left for the caller to give back. errors are passed to the subscriber; a
+   * failed copy leaves any open transaction failed. if the subscriber goes away part way through the copy is cancelled.
+   */
+
+  void copy(final PgLocalConnection conn) {
+
+    if (this.emitter.isCancelled()) {
+      log.debug("copy cancelled while queued, not running");
+      return;
+    }
+
+    CopyOut copy = null;
+
+    try {
+
+      log.debug("starting COPY {}", this.sql);
+
+      copy = conn.getConnection().getCopyAPI().copyOut(this.sql);
+
+      byte[] chunk;
+
+      while (true) {
+
+        if (this.emitter.requested() <= 0) {
+          this.demand.await(this.emitter);
+        }
+
+        if (this.emitter.isCancelled() || (chunk = copy.readFromCopy()) == null) {
+          break;
+        }
+
+        this.emitter.onNext(Unpooled.wrappedBuffer(chunk));
+
+      }
+
+      if (!copy.isActive()) {
+        log.debug("COPY complete, rows = {}", copy.getHandledRowCount());
+        this.emitter.onComplete();
+      }
+
+    }
+    catch (final SQLException ex) {
+      log.debug("Error performing COPY", ex);
+      this.emitter.tryOnError(ex);
+    }
+    catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      this.emitter.tryOnError(ex);
+    }
+    finally {
+      if (copy != null && copy.isActive()) {
+        log.debug("cancelling COPY");
+        try {
+          copy.cancelCopy();
+        }
+        catch (final SQLException ex) {
+          log.warn("failed to cancel COPY: {}", ex.getMessage());
+        }
+      }
+    }
+
+  }
+
+  /**
+   * fail it without running, e.g as the session it was submitted to has finished.
+   */
+
+  void abort(final Throwable ex) {
+    this.emitter.tryOnError(ex);
+  }
+
+  @Override
+  public void failed(final Throwable ex) {
+    this.emitter.tryOnError(ex instanceof PostgresqlCapacityExceededException ? ex : new PostgresqlUnavailableException(ex));
+  }
+
+}
@@ -0,0 +1,114 @@
+package io.zrz.jpgsql.client.opj;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.reactivex.FlowableEmitter;
+import io.reactivex.FlowableOperator;
+
+/**
+ * tells the producer behind a {@link FlowableEmitter} when the subscriber requests more or cancels.
+ *
+ * the emitter only exposes the outstanding demand, with no way to find out when it changes. lifted straight after
+ * Flowable.create, this sees each request after it has been added to the emitter, so a producer which finds no demand
+ * can wait on it (or register a listener) rather than polling.
+ *
+ * a new instance is needed for each subscription.
+ */
+
+public final class PgDemand<T> implements FlowableOperator<T, T> {
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = this.lock.newCondition();
+  private volatile Runnable listener;
+
+  /**
+   * called (on the requesting thread) each time the subscriber requests more, or cancels.
+   */
+
+  public void onRequest(final Runnable listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * block until the emitter has outstanding demand, or has been cancelled.
+   */
+
+  public void await(final FlowableEmitter<?> emitter) throws InterruptedException {
+    this.lock.lock();
+    try {
+      while (emitter.requested() <= 0 && !emitter.isCancelled()) {
+        this.changed.await();
+      }
+    }
+    finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void signal() {
+
+    this.lock.lock();
+
+    try {
+      this.changed.signalAll();
+    }
+    finally {
+      this.lock.unlock();
+    }
+
+    final Runnable listener = this.listener;
+
+    if (listener != null) {
+      listener.run();
+    }
+
+  }
+
+  @Override
+  public Subscriber<? super T> apply(final Subscriber<? super T> downstream) {
+
+    return new Subscriber<T>() {
+
+      @Override
+      public void onSubscribe(final Subscription s) {
+        downstream.onSubscribe(new Subscription() {
+
+          @Override
+          public void request(final long n) {
+            s.request(n);
+            signal();
+          }
+
+          @Override
+          public void cancel() {
+            s.cancel();
+            signal();
+          }
+
+        });
+      }
+
+      @Override
+      public void onNext(final T t) {
+        downstream.onNext(t);
+      }
+
+      @Override
+      public void onError(final Throwable t) {
+        downstream.onError(t);
+      }
+
+      @Override
+      public void onComplete() {
+        downstream.onComplete();
+      }
+
+    };
+
+  }
+
+}
@@ -1,13 +1,20 @@
 package io.zrz.jpgsql.client.opj;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -16,9 +23,12 @@ import org.postgresql.core.NativeQuery;
 import org.postgresql.core.Oid;
 import org.postgresql.core.ParameterList;
 import org.postgresql.core.QueryExecutor;
+import org.postgresql.core.ResultHandlerBase;
 import org.postgresql.core.TransactionState;
 import org.postgresql.jdbc.PgArray;
 import org.postgresql.jdbc.PgConnection;
+import org.postgresql.util.PGobject;
+import org.postgresql.util.PSQLException;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -74,6 +84,10 @@ class PgLocalConnection implements PgRawConnection {
 
   private final PgThreadPooledClient pool;
 
+  // the emitter of the query currently being executed, guarded by itself so a late cancel can't hit the next query.
+  private final Object cancelLock = new Object();
+  private FlowableEmitter<?> running;
+
   /**
    *
    * @param pool
@@ -159,6 +173,23 @@ class PgLocalConnection implements PgRawConnection {
 
   void execute(final Query query, final QueryParameters params, final FlowableEmitter<QueryResult> emitter, final int fetchSize, int flags)
       throws SQLException {
+    this.execute(query, params, emitter, null, fetchSize, flags);
+  }
+
+  /**
+   * @param demand
+   *          signals when the subscriber wants more, so a cursor is only fetched from once there is demand. if null the
+   *          whole result is fetched without waiting.
+   */
+
+  void execute(
+      final Query query,
+      final QueryParameters params,
+      final FlowableEmitter<QueryResult> emitter,
+      final PgDemand<QueryResult> demand,
+      final int fetchSize,
+      int flags)
+      throws SQLException {
 
     log.debug("executing {}, params {}", query, params);
 
@@ -169,83 +200,7 @@ class PgLocalConnection implements PgRawConnection {
 
     final org.postgresql.core.Query pgquery = this.cache.getUnchecked(query);
 
-    final ParameterList pl;
-
-    if (params != null && params.count() > 0) {
-
-      pl = pgquery.createParameterList();
-
-      for (int i = 1; i <= params.count(); ++i) {
-
-        final int oid = params.getOid(i);
-
-        final Object val = params.getValue(i);
-
-        if (val == null) {
-          pl.setNull(i, oid);
-          continue;
-        }
-        else if (val instanceof BinaryParamValue) {
-          final BinaryParamValue b = (BinaryParamValue) val;
-          pl.setBinaryParameter(i, b.toByteArray(), b.getOid());
-          continue;
-        }
-
-        switch (oid) {
-          case Oid.INT4:
-            pl.setIntParameter(i, (int) params.getValue(i));
-            break;
-          case Oid.INT4_ARRAY: {
-            final int[] vals = (int[]) params.getValue(i);
-            final String res = Arrays.stream(vals).mapToObj(x -> Integer.toString(x)).collect(Collectors.joining(","));
-            pl.setStringParameter(i, "{" + res + "}", oid);
-            break;
-          }
-          case Oid.INT8:
-            pl.setBinaryParameter(i, Longs.toByteArray((long) params.getValue(i)), Oid.INT8);
-            break;
-          case Oid.UUID:
-            pl.setBinaryParameter(i, (byte[]) params.getValue(i), oid);
-            break;
-          case Oid.BYTEA: {
-            final byte[] bytes = (byte[]) params.getValue(i);
-            pl.setBytea(i, bytes, 0, bytes.length);
-            break;
-          }
-          case Oid.TEXT:
-          case Oid.JSON:
-          case Oid.VARCHAR:
-            pl.setStringParameter(i, (String) params.getValue(i), oid);
-            break;
-          case Oid.JSONB_ARRAY:
-          case Oid.TEXT_ARRAY:
-          case Oid.VARCHAR_ARRAY: {
-            final StringBuilder sb = new StringBuilder();
-            sb.append("{");
-            int pi = 0;
-            for (final String str : (String[]) params.getValue(i)) {
-              if (pi++ > 0) {
-                sb.append(",");
-              }
-              PgArray.escapeArrayElement(sb, str);
-            }
-            sb.append("}");
-            final String strval = sb.toString();
-            pl.setStringParameter(i, strval, oid);
-            break;
-          }
-          default:
-            throw new AssertionError(String.format("Don't know how to map param with OID %d", oid));
-        }
-
-      }
-
-    }
-    else {
-
-      pl = null;
-
-    }
+    final ParameterList pl = this.parameters(pgquery, params);
 
     // int flags = 0;
 
@@ -274,25 +229,27 @@ class PgLocalConnection implements PgRawConnection {
 
       final int fetchRows = fetchSize > 0 ? fetchSize : 0;
 
-      final PgObservableResultHandler handler = new PgObservableResultHandler(query, emitter, fetchSize);
+      // the query is no longer running once the handler terminates the emitter, which runs the cancellable too.
+      final PgObservableResultHandler handler = new PgObservableResultHandler(query, emitter, fetchSize, () -> this.finished(emitter));
+
+      synchronized (this.cancelLock) {
+        this.running = emitter;
+      }
+
+      emitter.setCancellable(() -> this.cancel(emitter));
 
       this.exec.execute(pgquery, pl, handler, 0, fetchRows, flags);
 
-      fetch: while (handler.cursor != null) {
+      while (handler.cursor != null) {
 
-        while (handler.cursor != null && emitter.requested() <= 0 && !emitter.isCancelled()) {
+        if (demand != null && emitter.requested() <= 0) {
+          log.debug("waiting for slow consumer");
           try {
-            // urgh ... fugly.
-            Thread.sleep(10);
-            log.debug("sleeping, slow consumer");
+            demand.await(emitter);
           }
           catch (final InterruptedException e) {
             throw new RuntimeException(e);
           }
-          if (emitter.isCancelled()) {
-            handler.cursor.close();
-            break fetch;
-          }
         }
 
         if (emitter.isCancelled()) {
@@ -312,7 +269,9 @@ class PgLocalConnection implements PgRawConnection {
 
     }
     finally {
-      // any cleanup?
+      synchronized (this.cancelLock) {
+        this.running = null;
+      }
     }
 
     // final long stop = System.nanoTime();
@@ -334,6 +293,436 @@ class PgLocalConnection implements PgRawConnection {
 
   }
 
+  /**
+   * execute a single statement once for each set of parameters, returning the update count of each.
+   *
+   * the rows are added to a driver {@link PreparedStatement} batch, which sends them pipelined - a Bind/Execute for each
+   * and a Sync every so often - rather than waiting for each row to complete before sending the next. a BEGIN is sent
+   * with the first, the caller is responsible for the COMMIT or ROLLBACK.
+   *
+   * the driver can't bind a {@link BinaryParamValue} without a text form, so a batch which has any is run a row at a
+   * time instead, reusing the parsed query.
+   *
+   * @throws ErrorResult
+   *           if a row fails, with the index of the row as the statement id.
+   */
+
+  int[] executeBatch(final Query query, final List<QueryParameters> params) throws SQLException {
+
+    log.debug("executing batch of {} for {}", params.size(), query);
+
+    if (params.stream().anyMatch(PgLocalConnection::hasBinary)) {
+      return this.executeRows(query, params);
+    }
+
+    final JdbcSql sql = JdbcSql.of(query.getSubqueries().get(0).sql());
+
+    try (PreparedStatement stmt = this.conn.prepareStatement(sql.sql)) {
+
+      for (final QueryParameters row : params) {
+        this.bind(stmt, sql, row);
+        stmt.addBatch();
+      }
+
+      return stmt.executeBatch();
+
+    }
+    catch (final BatchUpdateException ex) {
+
+      final SQLException cause = ex.getNextException();
+
+      if (!(cause instanceof PSQLException) || ((PSQLException) cause).getServerErrorMessage() == null) {
+        throw ex;
+      }
+
+      // the counts stop at, or mark, the row which failed.
+      final int[] counts = ex.getUpdateCounts();
+      int row = 0;
+      while (row < counts.length && counts[row] != Statement.EXECUTE_FAILED) {
+        ++row;
+      }
+
+      final PSQLException pex = (PSQLException) cause;
+      throw new ErrorResult(query, row, pex.getMessage(), pex.getSQLState(), pex.getServerErrorMessage(), pex);
+
+    }
+
+  }
+
+  /**
+   * run the batch a row at a time.
+   */
+
+  private int[] executeRows(final Query query, final List<QueryParameters> params) throws SQLException {
+
+    final org.postgresql.core.Query pgquery = this.cache.getUnchecked(query);
+
+    final int[] counts = new int[params.size()];
+
+    for (int row = 0; row < counts.length; ++row) {
+
+      final int index = row;
+
+      final ResultHandlerBase handler = new ResultHandlerBase() {
+
+        @Override
+        public void handleCommandStatus(final String status, final int updateCount, final long insertOID) {
+          counts[index] = updateCount;
+        }
+
+      };
+
+      this.exec.execute(pgquery, this.parameters(pgquery, params.get(row)), handler, 0, 0, QueryExecutor.QUERY_NO_RESULTS);
+
+      try {
+        handler.handleCompletion();
+      }
+      catch (final PSQLException ex) {
+        if (ex.getServerErrorMessage() == null) {
+          throw ex;
+        }
+        throw new ErrorResult(query, row, ex.getMessage(), ex.getSQLState(), ex.getServerErrorMessage(), ex);
+      }
+
+    }
+
+    return counts;
+
+  }
+
+  private static boolean hasBinary(final QueryParameters params) {
+    if (params == null) {
+      return false;
+    }
+    for (int i = 1; i <= params.count(); ++i) {
+      if (params.getValue(i) instanceof BinaryParamValue) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * set the parameters on the statement, each with the same type as {@link #parameters} would give it. the types
+   * passed as text are set as a {@link PGobject} named after the OID, which the driver sends with that OID.
+   */
+
+  private void bind(final PreparedStatement stmt, final JdbcSql sql, final QueryParameters params) throws SQLException {
+
+    for (int p = 1; p <= sql.params.length; ++p) {
+
+      final int i = sql.params[p - 1];
+
+      final int oid = params.getOid(i);
+
+      final Object val = params.getValue(i);
+
+      switch (val == null ? Oid.UNSPECIFIED : oid) {
+        case Oid.UNSPECIFIED:
+          if (oid == Oid.UNSPECIFIED) {
+            stmt.setNull(p, Types.OTHER);
+          }
+          else {
+            stmt.setObject(p, this.typed(oid, null));
+          }
+          break;
+        case Oid.INT4:
+          stmt.setInt(p, (int) val);
+          break;
+        case Oid.INT4_ARRAY: {
+          final String res = Arrays.stream((int[]) val).mapToObj(x -> Integer.toString(x)).collect(Collectors.joining(","));
+          stmt.setObject(p, this.typed(oid, "{" + res + "}"));
+          break;
+        }
+        case Oid.INT8:
+          stmt.setLong(p, (long) val);
+          break;
+        case Oid.UUID: {
+          final ByteBuffer bytes = ByteBuffer.wrap((byte[]) val);
+          stmt.setObject(p, new UUID(bytes.getLong(), bytes.getLong()));
+          break;
+        }
+        case Oid.BYTEA:
+          stmt.setBytes(p, (byte[]) val);
+          break;
+        case Oid.TEXT:
+        case Oid.JSON:
+        case Oid.VARCHAR:
+          stmt.setObject(p, this.typed(oid, (String) val));
+          break;
+        case Oid.JSONB_ARRAY:
+        case Oid.TEXT_ARRAY:
+        case Oid.VARCHAR_ARRAY: {
+          final StringBuilder sb = new StringBuilder();
+          sb.append("{");
+          int pi = 0;
+          for (final String str : (String[]) val) {
+            if (pi++ > 0) {
+              sb.append(",");
+            }
+            PgArray.escapeArrayElement(sb, str);
+          }
+          sb.append("}");
+          stmt.setObject(p, this.typed(oid, sb.toString()));
+          break;
+        }
+        default:
+          throw new AssertionError(String.format("Don't know how to map param with OID %d", oid));
+      }
+
+    }
+
+  }
+
+  private PGobject typed(final int oid, final String value) throws SQLException {
+    final PGobject obj = new PGobject();
+    obj.setType(this.conn.getTypeInfo().getPGType(oid));
+    obj.setValue(value);
+    return obj;
+  }
+
+  /**
+   * the SQL of a statement rewritten for {@link PreparedStatement}: each $n becomes a ?, and a literal ? (e.g the jsonb
+   * operator) is escaped as ??. as a $n may be used more than once or out of order, params holds the parameter number
+   * each ? is bound from.
+   */
+
+  static final class JdbcSql {
+
+    final String sql;
+    final int[] params;
+
+    private JdbcSql(final String sql, final int[] params) {
+      this.sql = sql;
+      this.params = params;
+    }
+
+    static JdbcSql of(final String sql) {
+
+      final StringBuilder out = new StringBuilder(sql.length());
+      final List<Integer> params = new ArrayList<>();
+
+      final int len = sql.length();
+      int i = 0;
+
+      while (i < len) {
+
+        final char c = sql.charAt(i);
+
+        if (c == '\'' || c == '"') {
+          // a string or quoted identifier, a doubled quote is part of it. E'' strings may escape the quote too.
+          final boolean escapes = c == '\'' && i > 0 && (sql.charAt(i - 1) == 'E' || sql.charAt(i - 1) == 'e')
+              && (i == 1 || !Character.isJavaIdentifierPart(sql.charAt(i - 2)));
+          int end = i + 1;
+          while (end < len) {
+            final char e = sql.charAt(end);
+            if (escapes && e == '\\') {
+              end += 2;
+              continue;
+            }
+            if (e == c) {
+              if (end + 1 < len && sql.charAt(end + 1) == c) {
+                end += 2;
+                continue;
+              }
+              break;
+            }
+            ++end;
+          }
+          end = Math.min(end + 1, len);
+          out.append(sql, i, end);
+          i = end;
+        }
+        else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-') {
+          int end = sql.indexOf('\n', i);
+          end = end < 0 ? len : end;
+          out.append(sql, i, end);
+          i = end;
+        }
+        else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*') {
+          // block comments nest.
+          int depth = 0;
+          int end = i;
+          do {
+            if (sql.startsWith("/*", end)) {
+              ++depth;
+              end += 2;
+            }
+            else if (sql.startsWith("*/", end)) {
+              --depth;
+              end += 2;
+            }
+            else {
+              ++end;
+            }
+          }
+          while (depth > 0 && end < len);
+          end = Math.min(end, len);
+          out.append(sql, i, end);
+          i = end;
+        }
+        else if (c == '$' && i > 0 && Character.isJavaIdentifierPart(sql.charAt(i - 1))) {
+          // part of an identifier, e.g a$1.
+          out.append(c);
+          ++i;
+        }
+        else if (c == '$' && i + 1 < len && Character.isDigit(sql.charAt(i + 1))) {
+          int end = i + 1;
+          while (end < len && Character.isDigit(sql.charAt(end))) {
+            ++end;
+          }
+          params.add(Integer.parseInt(sql.substring(i + 1, end)));
+          out.append('?');
+          i = end;
+        }
+        else if (c == '$') {
+          // a dollar quoted string, $$ or $tag$.
+          int tag = i + 1;
+          while (tag < len && sql.charAt(tag) != '$' && Character.isJavaIdentifierPart(sql.charAt(tag))) {
+            ++tag;
+          }
+          if (tag < len && sql.charAt(tag) == '$') {
+            final String delim = sql.substring(i, tag + 1);
+            final int close = sql.indexOf(delim, tag + 1);
+            final int end = close < 0 ? len : close + delim.length();
+            out.append(sql, i, end);
+            i = end;
+          }
+          else {
+            out.append(c);
+            ++i;
+          }
+        }
+        else if (c == '?') {
+          out.append("??");
+          ++i;
+        }
+        else {
+          out.append(c);
+          ++i;
+        }
+
+      }
+
+      return new JdbcSql(out.toString(), Ints.toArray(params));
+
+    }
+
+  }
+
+  /**
+   * map the parameters to the JDBC representation, or null if there are none.
+   */
+
+  private ParameterList parameters(final org.postgresql.core.Query pgquery, final QueryParameters params) throws SQLException {
+
+    if (params == null || params.count() == 0) {
+      return null;
+    }
+
+    final ParameterList pl = pgquery.createParameterList();
+
+    for (int i = 1; i <= params.count(); ++i) {
+
+      final int oid = params.getOid(i);
+
+      final Object val = params.getValue(i);
+
+      if (val == null) {
+        pl.setNull(i, oid);
+        continue;
+      }
+      else if (val instanceof BinaryParamValue) {
+        final BinaryParamValue b = (BinaryParamValue) val;
+        pl.setBinaryParameter(i, b.toByteArray(), b.getOid());
+        continue;
+      }
+
+      switch (oid) {
+        case Oid.INT4:
+          pl.setIntParameter(i, (int) params.getValue(i));
+          break;
+        case Oid.INT4_ARRAY: {
+          final int[] vals = (int[]) params.getValue(i);
+          final String res = Arrays.stream(vals).mapToObj(x -> Integer.toString(x)).collect(Collectors.joining(","));
+          pl.setStringParameter(i, "{" + res + "}", oid);
+          break;
+        }
+        case Oid.INT8:
+          pl.setBinaryParameter(i, Longs.toByteArray((long) params.getValue(i)), Oid.INT8);
+          break;
+        case Oid.UUID:
+          pl.setBinaryParameter(i, (byte[]) params.getValue(i), oid);
+          break;
+        case Oid.BYTEA: {
+          final byte[] bytes = (byte[]) params.getValue(i);
+          pl.setBytea(i, bytes, 0, bytes.length);
+          break;
+        }
+        case Oid.TEXT:
+        case Oid.JSON:
+        case Oid.VARCHAR:
+          pl.setStringParameter(i, (String) params.getValue(i), oid);
+          break;
+        case Oid.JSONB_ARRAY:
+        case Oid.TEXT_ARRAY:
+        case Oid.VARCHAR_ARRAY: {
+          final StringBuilder sb = new StringBuilder();
+          sb.append("{");
+          int pi = 0;
+          for (final String str : (String[]) params.getValue(i)) {
+            if (pi++ > 0) {
+              sb.append(",");
+            }
+            PgArray.escapeArrayElement(sb, str);
+          }
+          sb.append("}");
+          final String strval = sb.toString();
+          pl.setStringParameter(i, strval, oid);
+          break;
+        }
+        default:
+          throw new AssertionError(String.format("Don't know how to map param with OID %d", oid));
+      }
+
+    }
+
+    return pl;
+
+  }
+
+  /**
+   * the query has completed, so there is nothing left to cancel.
+   */
+
+  private void finished(final FlowableEmitter<?> emitter) {
+    synchronized (this.cancelLock) {
+      if (this.running == emitter) {
+        this.running = null;
+      }
+    }
+  }
+
+  /**
+   * the subscriber has gone away (or timed out), so ask the backend to stop running the query rather than leaving it to
+   * use up the server. only sent if the query is still the one executing.
+   */
+
+  private void cancel(final FlowableEmitter<?> emitter) {
+    synchronized (this.cancelLock) {
+      if (this.running != emitter) {
+        return;
+      }
+      try {
+        log.debug("cancelling query");
+        this.exec.sendQueryCancel();
+      }
+      catch (final SQLException ex) {
+        log.warn("failed to cancel query: {}", ex.getMessage());
+      }
+    }
+  }
+
   private void copy(final CopyQuery query, final FlowableEmitter<QueryResult> emitter, final int flags) {
 
     try {
@@ -41,10 +41,19 @@ public class PgObservableResultHandler extends ResultHandlerBase {
 
   private int fetchSize;
 
+  // run before the emitter is terminated, as terminating it also runs its cancellable.
+  private final Runnable terminating;
+
   PgObservableResultHandler(final Query query, final FlowableEmitter<QueryResult> emitter, final int fetchSize) {
+    this(query, emitter, fetchSize, () -> {
+    });
+  }
+
+  PgObservableResultHandler(final Query query, final FlowableEmitter<QueryResult> emitter, final int fetchSize, final Runnable terminating) {
     this.fetchSize = fetchSize == 0 ? BATCH_SIZE : fetchSize;
     this.emitter = emitter;
     this.query = Objects.requireNonNull(query);
+    this.terminating = terminating;
   }
 
   @Override
@@ -107,8 +116,9 @@ public class PgObservableResultHandler extends ResultHandlerBase {
       return;
     }
     log.debug("finished Query (over {} statements). errors: {}", this.statementId, this.getException());
+    this.terminating.run();
     if (this.getException() != null) {
-      this.emitter.onError(this.getException());
+      this.emitter.tryOnError(this.getException());
     }
     else {
       this.emitter.onComplete();
@@ -160,7 +170,9 @@ public class PgObservableResultHandler extends ResultHandlerBase {
         error.getCause());
 
     log.trace("SQL error received ({}: {}", error.getClass(), res);
-    this.emitter.onError(res);
+    this.terminating.run();
+    // the subscriber may have cancelled, which is what caused the error.
+    this.emitter.tryOnError(res);
     if (this.cursor != null) {
       this.cursor.close();
       this.cursor = null;
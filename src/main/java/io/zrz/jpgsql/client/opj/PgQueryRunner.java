@@ -3,6 +3,7 @@ package io.zrz.jpgsql.client.opj;
 import java.sql.SQLException;
 
 import io.reactivex.FlowableEmitter;
+import io.zrz.jpgsql.client.PostgresqlCapacityExceededException;
 import io.zrz.jpgsql.client.PostgresqlUnavailableException;
 import io.zrz.jpgsql.client.Query;
 import io.zrz.jpgsql.client.QueryParameters;
@@ -10,24 +11,30 @@ import io.zrz.jpgsql.client.QueryResult;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * dispatched in the {@link PgConnectionThreadPoolExecutor} to send and receive the results of a *single* query, running
- * atomically inside a txn block.
+ * submitted to the {@link PgConnectionPool} to send and receive the results of a *single* query, running atomically
+ * inside a txn block.
  */
 
 @Slf4j
-class PgQueryRunner implements Runnable {
+class PgQueryRunner implements PgConnectionPool.Task {
 
   private final FlowableEmitter<QueryResult> emitter;
+  private final PgDemand<QueryResult> demand;
   private final Query query;
   private final QueryParameters params;
+  private final AmbientContext ctx;
+  private final PgConnectionPool connections;
   private int fetchSize;
 
-  public PgQueryRunner(final Query query, final QueryParameters params, final FlowableEmitter<QueryResult> emitter, final AmbientContext ctx,
-      final int fetchSize) {
+  public PgQueryRunner(final Query query, final QueryParameters params, final FlowableEmitter<QueryResult> emitter, final PgDemand<QueryResult> demand,
+      final AmbientContext ctx, final int fetchSize, final PgConnectionPool connections) {
     this.emitter = emitter;
+    this.demand = demand;
     this.query = query;
     this.params = params;
+    this.ctx = ctx;
     this.fetchSize = fetchSize;
+    this.connections = connections;
   }
 
   /**
@@ -36,11 +43,11 @@ class PgQueryRunner implements Runnable {
    * @throws SQLException
    */
 
-  private void run(final PgLocalConnection conn) throws SQLException {
+  private void execute(final PgLocalConnection conn) throws SQLException {
 
     try {
 
-      conn.execute(this.query, this.params, this.emitter, fetchSize, fetchSize == 0 ? PgLocalConnection.SuppressBegin : 0);
+      conn.execute(this.query, this.params, this.emitter, this.demand, fetchSize, fetchSize == 0 ? PgLocalConnection.SuppressBegin : 0);
 
     }
     finally {
@@ -65,25 +72,48 @@ class PgQueryRunner implements Runnable {
   }
 
   @Override
-  public void run() {
+  public void run(final PgLocalConnection conn) {
+    this.ctx.wrap(() -> this.process(conn)).run();
+  }
 
-    try {
+  /**
+   * the connection is returned before the result is signalled, so it's free for whatever the subscriber does next.
+   */
 
-      this.run(PgConnectionThread.connection());
+  private void process(final PgLocalConnection conn) {
 
-      this.emitter.onComplete();
+    if (this.emitter.isCancelled()) {
+      log.debug("query cancelled while queued, not running");
+      this.connections.release(conn);
+      return;
+    }
 
+    try {
+      this.execute(conn);
     }
     catch (final SQLException ex) {
       // Any propagated SQLException results in the connection being closed.
       ex.printStackTrace();
-      PgConnectionThread.close();
+      this.connections.discard(conn);
       this.emitter.onError(new PostgresqlUnavailableException(ex));
+      return;
     }
     catch (final Throwable ex) {
       ex.printStackTrace();
+      this.connections.release(conn);
       this.emitter.onError(new PostgresqlUnavailableException(ex));
+      return;
     }
+
+    this.connections.release(conn);
+
+    this.emitter.onComplete();
+
+  }
+
+  @Override
+  public void failed(final Throwable ex) {
+    this.emitter.tryOnError(ex instanceof PostgresqlCapacityExceededException ? ex : new PostgresqlUnavailableException(ex));
   }
 
 }
@@ -58,6 +58,13 @@ public class PgResultDecoder {
           return Double.toString(ByteConverter.float4(bs, 0));
         case Oid.FLOAT8:
           return Double.toString(ByteConverter.float8(bs, 0));
+        case Oid.TEXT:
+        case Oid.VARCHAR:
+        case Oid.BPCHAR:
+        case Oid.NAME:
+        case Oid.JSON:
+          // the binary form is the same as the text one.
+          return new String(bs, StandardCharsets.UTF_8);
         default:
           throw new AssertionError(String.format("Can't convert binary field with OID %d to string", oid));
       }
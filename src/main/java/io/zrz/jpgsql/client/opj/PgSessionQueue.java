@@ -0,0 +1,254 @@
+package io.zrz.jpgsql.client.opj;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.postgresql.core.TransactionState;
+
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * runs the work submitted to a session one item at a time, in order, on the client's threads.
+ *
+ * a thread is only used while there is work to run. the connection is held between items only while the session
+ * needs it (e.g it is in a transaction), otherwise it goes back to the pool once the queue is empty, and the next item
+ * waits for a connection like any other query. a connection the session has left state on is closed rather than going
+ * back to the pool.
+ */
+
+@Slf4j
+abstract class PgSessionQueue<W> implements PgConnectionPool.Task {
+
+  private final PgConnectionPool connections;
+  private final Executor executor;
+  private final ConcurrentLinkedQueue<W> queue = new ConcurrentLinkedQueue<>();
+
+  // the number of times work has been added since the last drain finished.
+  private final AtomicInteger wip = new AtomicInteger();
+
+  // held between drains, while retain() says so.
+  private volatile PgLocalConnection conn;
+
+  // passed from one drain to the next.
+  private int missed;
+
+  private volatile boolean finished;
+
+  PgSessionQueue(final PgThreadPooledClient client) {
+    this.connections = client.connections();
+    this.executor = client.executor();
+  }
+
+  /**
+   * run the work with the session's connection.
+   *
+   * @return false once the session has finished, after which the connection is returned and anything still queued is
+   *         rejected.
+   */
+
+  protected abstract boolean process(PgLocalConnection conn, W work) throws Exception;
+
+  /**
+   * if the connection needs to be kept once there's nothing left to run, e.g because a transaction is open on it.
+   */
+
+  protected abstract boolean retain(PgLocalConnection conn);
+
+  /**
+   * if the session may have left state on the connection which outlives a transaction (settings, temporary tables,
+   * advisory locks ...), so it can't be used for other work.
+   */
+
+  protected boolean dirty() {
+    return false;
+  }
+
+  /**
+   * fail work which won't be run, as the session has finished.
+   */
+
+  protected abstract void reject(W work);
+
+  /**
+   * the session failed, either with an error from processing or as a connection couldn't be had for it.
+   */
+
+  protected abstract void abort(Throwable ex);
+
+  /**
+   * called once, when the session finishes for any reason.
+   */
+
+  protected void terminated() {
+  }
+
+  /**
+   * add work to run after everything already added.
+   */
+
+  final void enqueue(final W work) {
+    this.queue.add(work);
+    if (this.wip.getAndIncrement() == 0) {
+      this.missed = 1;
+      this.dispatch();
+    }
+  }
+
+  /**
+   * if there's nothing waiting to run after the current item.
+   */
+
+  final boolean idle() {
+    return this.queue.isEmpty();
+  }
+
+  final boolean finished() {
+    return this.finished;
+  }
+
+  private void dispatch() {
+
+    final PgLocalConnection held = this.conn;
+
+    try {
+
+      if (held != null || this.finished) {
+        this.executor.execute(() -> this.drain(held));
+      }
+      else {
+        this.connections.submit(this);
+      }
+
+    }
+    catch (final RejectedExecutionException ex) {
+      this.failed(new PostgresqlUnavailableException(ex));
+    }
+    catch (final RuntimeException ex) {
+      this.failed(ex);
+    }
+
+  }
+
+  @Override
+  public final void run(final PgLocalConnection conn) {
+    this.drain(conn);
+  }
+
+  /**
+   * no connection could be had.
+   */
+
+  @Override
+  public final void failed(final Throwable ex) {
+    this.finish(ex);
+    this.drain(null);
+  }
+
+  private void drain(PgLocalConnection conn) {
+
+    int missed = this.missed;
+
+    while (true) {
+
+      W work;
+
+      while ((work = this.queue.poll()) != null) {
+
+        if (this.finished) {
+          this.reject(work);
+          continue;
+        }
+
+        try {
+          if (!this.process(conn, work)) {
+            this.finish(null);
+          }
+        }
+        catch (final SQLException ex) {
+          // Any propagated SQLException results in the connection being closed.
+          log.warn("connection failed: {}", ex.getMessage(), ex);
+          this.connections.discard(conn);
+          conn = null;
+          this.finish(new PostgresqlUnavailableException(ex));
+        }
+        catch (final Exception ex) {
+          log.warn("session failed: {}", ex.getMessage(), ex);
+          this.finish(ex);
+        }
+
+      }
+
+      if (conn != null && (this.finished || !this.retain(conn))) {
+        this.giveBack(conn);
+        conn = null;
+      }
+
+      this.conn = conn;
+
+      missed = this.wip.addAndGet(-missed);
+
+      if (missed == 0) {
+        return;
+      }
+
+      if (conn == null && !this.finished) {
+        // more arrived after the connection was returned, so it waits for one again.
+        this.missed = missed;
+        this.dispatch();
+        return;
+      }
+
+    }
+
+  }
+
+  private void finish(final Throwable ex) {
+
+    if (this.finished) {
+      return;
+    }
+
+    this.finished = true;
+
+    if (ex != null) {
+      this.abort(ex);
+    }
+
+    this.terminated();
+
+  }
+
+  /**
+   * return the connection to the pool, if it's in a state to be reused.
+   */
+
+  private void giveBack(final PgLocalConnection conn) {
+
+    if (this.dirty()) {
+      // a new one is set up from scratch, which is simpler and safer than trying to undo it all.
+      log.debug("closing connection with session state rather than returning it");
+      this.connections.discard(conn);
+      return;
+    }
+
+    if (conn.transactionState() == TransactionState.IDLE) {
+      this.connections.release(conn);
+      return;
+    }
+
+    try {
+      log.debug("rolling back before returning connection");
+      conn.rollback();
+      this.connections.release(conn);
+    }
+    catch (final SQLException ex) {
+      this.connections.discard(conn);
+    }
+
+  }
+
+}
@@ -2,15 +2,14 @@ package io.zrz.jpgsql.client.opj;
 
 import java.io.InputStream;
 import java.sql.SQLException;
-import java.time.Duration;
-import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.postgresql.copy.CopyIn;
+import org.postgresql.core.TransactionState;
 import org.postgresql.jdbc.PgConnection;
 import org.reactivestreams.Publisher;
 
@@ -22,6 +21,7 @@ import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
 import io.reactivex.FlowableEmitter;
 import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.processors.UnicastProcessor;
 import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.SingleSubject;
@@ -30,7 +30,6 @@ import io.zrz.jpgsql.client.CommandStatus;
 import io.zrz.jpgsql.client.NotifyMessage;
 import io.zrz.jpgsql.client.PgSession;
 import io.zrz.jpgsql.client.PostgresClient;
-import io.zrz.jpgsql.client.PostgresqlUnavailableException;
 import io.zrz.jpgsql.client.Query;
 import io.zrz.jpgsql.client.QueryParameters;
 import io.zrz.jpgsql.client.QueryResult;
@@ -41,31 +40,51 @@ import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * a single seized connection, outside the scope of a transaction (although transactions may be started).
+ * a series of statements on the same connection, outside the scope of a transaction (although transactions may be
+ * started).
+ *
+ * the connection is only held between statements while a transaction is open, otherwise it goes back to the pool and
+ * the next statement gets one from there. once a statement leaves state on the connection which outlives it (see
+ * {@link #SESSION_STATE}) the connection is kept for the rest of the session, and closed rather than returned to the
+ * pool at the end so none of it is seen by other work.
  */
 
 @Slf4j
-class PgSingleSession implements Runnable, PgSession {
+class PgSingleSession extends PgSessionQueue<PgSingleSession.Work> implements PgSession {
 
   @Value
-  private static class Work {
+  static class Work {
     private Query query;
     private QueryParameters params;
     private FlowableEmitter<QueryResult> emitter;
     private Object source;
   }
 
-  private static final Duration LOOP_WAIT = Duration.ofSeconds(1);
-  private static final Duration MAX_IDLE = Duration.ofSeconds(5);
+  // checks for notifications while listening.
+  private static final Work POLL = new Work(null, null, null, null);
+
+  private static final long POLL_INTERVAL_MILLIS = 100;
+
+  // statements which change the session rather than a transaction: plain SET and RESET, LISTEN, PREPARE, cursors WITH
+  // HOLD, LOAD, temporary tables, set_config() and session level advisory locks.
+  private static final Pattern SESSION_STATE = Pattern.compile(
+      "^\\s*(SET\\b(?!\\s+(LOCAL|TRANSACTION|CONSTRAINTS)\\b)|RESET\\b|(UN)?LISTEN\\b|PREPARE\\b|DECLARE\\b|LOAD\\b"
+          + "|CREATE\\s+((GLOBAL|LOCAL)\\s+)?TEMP(ORARY)?\\b)|\\bset_config\\s*\\(|\\bpg_(try_)?advisory_lock",
+      Pattern.CASE_INSENSITIVE);
 
   private final SingleSubject<SessionTxnState> txnstate = SingleSubject.create();
-  private final LinkedTransferQueue<Work> workqueue = new LinkedTransferQueue<>();
 
   // if we are accepting work still
-  private boolean accepting = true;
+  private volatile boolean accepting = true;
   private final PgThreadPooledClient pool;
 
+  private Disposable poller;
+
+  // the connection has state from SESSION_STATE statements, so is kept.
+  private volatile boolean pinned;
+
   PgSingleSession(PgThreadPooledClient pool) {
+    super(pool);
     this.pool = pool;
   }
 
@@ -79,7 +98,7 @@ class PgSingleSession implements Runnable, PgSession {
     final Flowable<QueryResult> flowable = Flowable.create(emitter -> {
 
       log.debug("added work item: {}", query);
-      this.workqueue.add(new Work(query, params, emitter, null));
+      this.enqueue(new Work(query, params, emitter, null));
 
     }, BackpressureStrategy.BUFFER);
 
@@ -104,7 +123,7 @@ class PgSingleSession implements Runnable, PgSession {
     final Flowable<QueryResult> flowable = Flowable.create(emitter -> {
 
       log.debug("starting COPY");
-      this.workqueue.add(new Work(this.createQuery(sql), null, emitter, data));
+      this.enqueue(new Work(this.createQuery(sql), null, emitter, data));
 
     }, BackpressureStrategy.BUFFER);
 
@@ -120,6 +139,33 @@ class PgSingleSession implements Runnable, PgSession {
 
   }
 
+  /**
+   * runs in turn with the session's statements, so sees its transaction (and snapshot) if one is open.
+   */
+
+  @Override
+  public Flowable<ByteBuf> copyFrom(String sql) {
+
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+
+    return Flowable.defer(() -> {
+
+      final PgDemand<ByteBuf> demand = new PgDemand<>();
+
+      return Flowable.<ByteBuf>create(emitter -> {
+
+        log.debug("starting COPY");
+        this.enqueue(new Work(this.createQuery(sql), null, null, new PgCopyOutRunner(sql, emitter, demand)));
+
+      }, BackpressureStrategy.BUFFER).lift(demand);
+
+    })
+        .observeOn(Schedulers.io(), true);
+
+  }
+
   @Override
   public Publisher<Long> copyTo(String sql, ByteSource source) {
 
@@ -132,7 +178,7 @@ class PgSingleSession implements Runnable, PgSession {
     final Flowable<QueryResult> flowable = Flowable.create(emitter -> {
 
       log.debug("starting COPY");
-      this.workqueue.add(new Work(this.createQuery(sql), null, emitter, source));
+      this.enqueue(new Work(this.createQuery(sql), null, emitter, source));
 
     }, BackpressureStrategy.BUFFER);
 
@@ -148,148 +194,161 @@ class PgSingleSession implements Runnable, PgSession {
   }
 
   /*
-   * run in the thread with the connection any exception propogated from here will dispatch an onError on the txnstate.
+   * run on a pool thread with the session's connection. any exception propogated from here will dispatch an onError on
+   * the txnstate.
    */
 
-  private void run(PgLocalConnection conn) throws SQLException, InterruptedException {
-
-    log.debug("starting session");
-
-    conn.getConnection().setAutoCommit(false);
+  @Override
+  protected boolean process(PgLocalConnection conn, Work work) throws SQLException {
 
-    Instant startidle = Instant.now();
+    if (work == POLL) {
+      pollIfNeeded(conn, 1);
+      return true;
+    }
 
-    while (true) {
+    pollIfNeeded(conn, 1);
 
-      final Work work = this.workqueue.poll(100, TimeUnit.MILLISECONDS);
+    if (work.getQuery() == null && work.getEmitter() == null) {
 
-      if (work != null) {
+      log.debug("single session finished");
 
-        pollIfNeeded(conn, 1);
+      switch (conn.transactionState()) {
+        case IDLE:
+          return false;
+        case FAILED:
+        case OPEN:
+        default:
+          log.warn("rolling back");
+          conn.rollback();
+          return false;
+      }
 
-        if (work.getQuery() == null && work.getEmitter() == null) {
+    }
+    else if (work.getSource() instanceof PgCopyOutRunner) {
 
-          log.debug("single session finished");
+      ((PgCopyOutRunner) work.getSource()).copy(conn);
 
-          switch (conn.transactionState()) {
-            case IDLE:
-              return;
-            case FAILED:
-              log.warn("rolling back");
-              conn.rollback();
-              return;
-            case OPEN:
-              log.warn("rolling back");
-              conn.rollback();
-              return;
-          }
+      pollIfNeeded(conn, -1);
 
-          return;
+    }
+    else if (work.getEmitter() == null) {
 
-        }
-        else if (work.getEmitter() == null) {
+      log.debug("no emitter - rolling back, work was {}", work);
+      conn.rollback();
+      return false;
 
-          log.debug("no emitter - rolling back, work was {}", work);
-          conn.rollback();
-          return;
+    }
+    else if (work.getSource() != null) {
 
-        }
-        else if (work.getSource() != null) {
+      String sql = work.getQuery().statement(0).sql();
 
-          String sql = work.getQuery().statement(0).sql();
+      log.info("starting {}", sql);
 
-          log.info("starting {}", sql);
+      try {
 
-          try {
+        long value = processCopy(conn.getConnection(), sql, work.getSource())
+            .blockingGet();
 
-            long value = processCopy(conn.getConnection(), sql, work.getSource())
-                .blockingGet();
+        log.info("copy completed {}", value);
 
-            log.info("copy completed {}", value);
+        work.emitter.onNext(new CommandStatus(0, "COPY", Ints.checkedCast(value), 0));
 
-            work.emitter.onNext(new CommandStatus(0, "COPY", Ints.checkedCast(value), 0));
+        work.emitter.onComplete();
 
-            work.emitter.onComplete();
+        pollIfNeeded(conn, -1);
 
-            pollIfNeeded(conn, -1);
+      }
+      catch (Throwable t) {
 
-          }
-          catch (Throwable t) {
+        log.warn("copy error: {}", t.getMessage(), t);
+        conn.rollback();
+        this.accepting = false;
+        work.emitter.onError(t);
+        return false;
 
-            log.warn("copy error: {}", t.getMessage(), t);
-            conn.rollback();
-            this.accepting = false;
-            work.emitter.onError(t);
+      }
+      finally {
 
-          }
-          finally {
+        log.debug("copy finished");
 
-            log.debug("copy finished");
+      }
 
-          }
+    }
+    else {
 
-        }
-        else {
+      log.debug("processing work item {}", work);
 
-          log.debug("processing work item {}", work);
+      if (!this.pinned && work.getQuery().getSubqueries().stream().anyMatch(q -> SESSION_STATE.matcher(q.sql()).find())) {
+        log.debug("keeping connection for session state from {}", work.getQuery());
+        this.pinned = true;
+      }
 
-          startidle = null;
+      conn.execute(work.getQuery(), work.getParams(), work.getEmitter(), 0, PgLocalConnection.SuppressBegin);
 
-          conn.execute(work.getQuery(), work.getParams(), work.getEmitter(), 0, PgLocalConnection.SuppressBegin);
+      log.debug("query completed");
 
-          log.debug("query completed");
+      pollIfNeeded(conn, -1);
 
-          pollIfNeeded(conn, -1);
+    }
 
+    switch (conn.transactionState()) {
+      case FAILED:
+        log.trace("txn state now {}", conn.transactionState());
+        this.accepting = false;
+        this.txnstate.onSuccess(SessionTxnState.Error);
+        return false;
+      case OPEN:
+        log.trace("txn state now {}", conn.transactionState());
+        if (!this.accepting && this.idle()) {
+          // rollback - which will terminate us.
+          log.info("rolling back");
+          conn.rollback();
         }
+        // still going ..
+        return true;
+      case IDLE:
+      default:
+        return true;
+    }
 
-        startidle = Instant.now();
-
-      }
-      else {
+  }
 
-        // idle ...
-        pollIfNeeded(conn, 1);
+  /*
+   * keep the connection while a transaction is open on it, or it has session state (including channels listened to).
+   */
 
-      }
+  @Override
+  protected boolean retain(PgLocalConnection conn) {
+    return this.pinned || conn.transactionState() != TransactionState.IDLE || !this.listeners.isEmpty();
+  }
 
-      switch (conn.transactionState()) {
-        case IDLE:
-          // this.accepting = false;
-          // this.txnstate.onSuccess(SessionTxnState.Closed);
-          // if (!this.workqueue.isEmpty()) {
-          // log.warn("work queue is not empty after session completed");
-          // this.workqueue.forEach(e -> {
-          // if (e.emitter != null)
-          // e.emitter.onError(new IllegalStateException("Session has already completed (in IDLE)"));
-          // });
-          // }
-          break;
-        case FAILED:
-          log.trace("txn state now {}", conn.transactionState());
-          this.accepting = false;
-          this.txnstate.onSuccess(SessionTxnState.Error);
-          if (!this.workqueue.isEmpty()) {
-            log.warn("work queue is not empty after session completed");
-            this.workqueue.forEach(e -> {
-              if (e.emitter != null)
-                e.emitter.onError(new IllegalStateException("Session has already completed (in FAILED) for " + e.getQuery()));
-            });
-          }
-          return;
-        case OPEN:
-          log.trace("txn state now {}", conn.transactionState());
-          if (!this.accepting && this.workqueue.isEmpty()) {
-            // rollback - which will terminate us.
-            log.info("rolling back");
-            conn.rollback();
-          }
-          // still going ..
-          break;
-      }
+  @Override
+  protected boolean dirty() {
+    return this.pinned || !this.listeners.isEmpty();
+  }
 
+  @Override
+  protected void reject(Work work) {
+    if (work.emitter != null) {
+      work.emitter.onError(new IllegalStateException("Session has already completed for " + work.getQuery()));
+    }
+    else if (work.source instanceof PgCopyOutRunner) {
+      ((PgCopyOutRunner) work.source).abort(new IllegalStateException("Session has already completed for " + work.getQuery()));
     }
+  }
 
+  @Override
+  protected void abort(Throwable ex) {
+    this.accepting = false;
+    this.txnstate.onError(ex);
+  }
+
+  @Override
+  protected synchronized void terminated() {
+    this.accepting = false;
+    if (this.poller != null) {
+      this.poller.dispose();
+    }
   }
 
   private void pollIfNeeded(PgLocalConnection conn, int i) {
@@ -343,17 +402,30 @@ class PgSingleSession implements Runnable, PgSession {
 
     copy.writeToCopy(PgThreadPooledClient.BINARY_PREAMBLE, 0, PgThreadPooledClient.BINARY_PREAMBLE.length);
 
+    // only used for buffers which aren't backed by an array.
+    byte[] scratch = new byte[1024 * 64];
+
     return Flowable.fromPublisher((Publisher<ByteBuf>) source)
 
         .doOnNext(buf -> {
 
-          while (buf.isReadable()) {
-            byte[] out = new byte[buf.readableBytes()];
-            buf.readBytes(out);
-            copy.writeToCopy(out, 0, out.length);
-          }
+          try {
 
-          buf.release();
+            if (buf.hasArray()) {
+              copy.writeToCopy(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+            }
+            else {
+              while (buf.isReadable()) {
+                int len = Math.min(scratch.length, buf.readableBytes());
+                buf.readBytes(scratch, 0, len);
+                copy.writeToCopy(scratch, 0, len);
+              }
+            }
+
+          }
+          finally {
+            buf.release();
+          }
 
         })
         .ignoreElements()
@@ -371,31 +443,6 @@ class PgSingleSession implements Runnable, PgSession {
 
   }
 
-  /*
-   * called when the job is allocated - runs in the thread.
-   */
-
-  @Override
-  public void run() {
-    log.trace("running query");
-    try {
-      this.run(PgConnectionThread.connection());
-    }
-    catch (final SQLException ex) {
-      // Any propagated SQLException results in the connection being closed.
-      log.warn("connection failed: {}", ex.getMessage(), ex);
-      this.accepting = false;
-      PgConnectionThread.close();
-      this.txnstate.onError(new PostgresqlUnavailableException(ex));
-    }
-    catch (final Exception ex) {
-      log.warn("connection failed: {}", ex.getMessage(), ex);
-      this.accepting = false;
-      // TODO: release the transaction, but don't close the connection.
-      this.txnstate.onError(ex);
-    }
-  }
-
   /*
    * rollback the transaction if there is one.
    */
@@ -405,12 +452,12 @@ class PgSingleSession implements Runnable, PgSession {
     // Preconditions.checkState(this.accepting, "session is no longer active");
     // if (accepting) {
     // this.accepting = false;
-    // this.workqueue.add(new Work(this.pool.createQuery("ROLLBACK"), null, null, null));
+    // this.enqueue(new Work(this.pool.createQuery("ROLLBACK"), null, null, null));
     // }
 
     log.debug("closing single session");
     this.accepting = false;
-    this.workqueue.add(new Work(null, null, null, null));
+    this.enqueue(new Work(null, null, null, null));
 
   }
 
@@ -442,6 +489,7 @@ class PgSingleSession implements Runnable, PgSession {
   public Publisher<NotifyMessage> listen(String channel) {
     UnicastProcessor<NotifyMessage> listener = UnicastProcessor.create();
     this.listeners.put(channel, listener);
+    this.startPolling();
     Flowable.fromPublisher(this.submit(SqlWriters.listen(channel)))
         .subscribe(msg -> {
           log.debug("subscribed to {}", channel);
@@ -455,6 +503,21 @@ class PgSingleSession implements Runnable, PgSession {
 
   private Map<String, UnicastProcessor<NotifyMessage>> listeners = new HashMap<>();
 
+  /*
+   * the connection is kept while listening, but nothing runs on it unless there's work - so check it for notifications
+   * now and then.
+   */
+
+  private synchronized void startPolling() {
+    if (this.poller == null && !this.finished()) {
+      this.poller = Schedulers.computation().schedulePeriodicallyDirect(() -> {
+        if (this.idle()) {
+          this.enqueue(POLL);
+        }
+      }, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
   @Override
   public PostgresClient client() {
     return pool;
@@ -1,7 +1,11 @@
 package io.zrz.jpgsql.client.opj;
 
+import java.time.Duration;
 import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.postgresql.PGProperty;
@@ -39,14 +43,20 @@ import net.jodah.failsafe.RetryPolicy;
 
 /**
  * the primary run thread never block on DB io. Instead, we expose a Connection-like API that only deals with prepared
- * statements. the connections are run on background threads. we leverage the caching thread pools to avoid doing much
- * ourselves.
+ * statements. the connections are used from background threads, but aren't tied to them: a thread is given a
+ * connection from the {@link PgConnectionPool} for each unit of work, so idle sessions don't hold threads.
+ *
+ * the threads are a fixed pool of maxPoolSize platform threads, or with
+ * {@link PostgresConnectionProperties#isVirtualThreads()} on JDK 24+, a virtual thread per unit of work. the LISTEN
+ * loop is always on its own platform thread, as it blocks for as long as it runs.
  */
 
 @Slf4j
 public class PgThreadPooledClient extends AbstractPostgresClient implements PostgresClient, AutoCloseable {
 
-  private final PgConnectionThreadPoolExecutor pool;
+  private final ExecutorService pool;
+
+  private final PgConnectionPool connections;
 
   @Getter
   private final PostgresConnectionProperties config;
@@ -154,8 +164,48 @@ public class PgThreadPooledClient extends AbstractPostgresClient implements Post
 
     log.debug("connparm {}", config);
 
-    this.pool = new PgConnectionThreadPoolExecutor(this, config);
+    if (config.isVirtualThreads() && VirtualThreads.isAvailable()) {
+      this.pool = VirtualThreads.newExecutor("psql-" + Integer.toHexString(this.hashCode()) + "-");
+    }
+    else {
+      if (config.isVirtualThreads()) {
+        log.warn("virtual threads are not used on {} (needs JDK 24+), using a thread pool", System.getProperty("java.version"));
+      }
+      this.pool = new PgConnectionThreadPoolExecutor(this, config);
+    }
+
+    this.connections = new PgConnectionPool(
+        this,
+        this.pool,
+        config.getMaxPoolSize(),
+        config.getMaxPoolSize() + config.getQueueDepth(),
+        config.getMaxStalledWait(),
+        config.getConnectTimeout());
+
+  }
+
+  /**
+   * the number of queries and sessions waiting for a connection.
+   */
+
+  public int pending() {
+    return this.connections.pending();
+  }
+
+  /**
+   * the average time queries and sessions which had to wait for a connection waited.
+   */
+
+  public Duration averageQueueTime() {
+    return this.connections.averageWait();
+  }
 
+  PgConnectionPool connections() {
+    return this.connections;
+  }
+
+  Executor executor() {
+    return this.pool;
   }
 
   String getUsername() {
@@ -230,16 +280,26 @@ public class PgThreadPooledClient extends AbstractPostgresClient implements Post
     final AmbientContext ctx = AmbientContext.capture();
     Preconditions.checkState(!pool.isShutdown(), query.toString());
 
-    final Flowable<QueryResult> res = Flowable.create(emitter -> {
-      try {
-        final PgQueryRunner runner = new PgQueryRunner(query, params, emitter, ctx, fetchSize);
-        this.pool.execute(ctx.wrap(runner));
-      }
-      catch (final Throwable ex) {
-        log.warn("failed to dispatch work", ex.getMessage());
-        emitter.onError(ex);
-      }
-    }, BackpressureStrategy.BUFFER);
+    final Flowable<QueryResult> res = Flowable.defer(() -> {
+
+      // lets a cursor wait for the subscriber to request more rows rather than polling.
+      final PgDemand<QueryResult> demand = new PgDemand<>();
+
+      return Flowable.<QueryResult>create(emitter -> {
+        try {
+          final PgQueryRunner runner = new PgQueryRunner(query, params, emitter, demand, ctx, fetchSize, this.connections);
+          // if cancelled (e.g, by a deadline) while still waiting for a connection then free up the slot. replaced once
+          // running.
+          emitter.setCancellable(() -> this.connections.cancel(runner));
+          this.connections.submit(runner);
+        }
+        catch (final Throwable ex) {
+          log.warn("failed to dispatch work", ex.getMessage());
+          emitter.onError(ex);
+        }
+      }, BackpressureStrategy.BUFFER).lift(demand);
+
+    });
 
     // map so we have the stacktrace from caller, not nested.
     // StackTraceElement[] trace = Thread.currentThread().getStackTrace();
@@ -264,6 +324,46 @@ public class PgThreadPooledClient extends AbstractPostgresClient implements Post
 
   }
 
+  /**
+   * runs the statement for each set of parameters on a single pooled connection, in one transaction.
+   */
+
+  @Override
+  public Flowable<int[]> executeBatch(final Query query, final List<QueryParameters> params) {
+
+    final AmbientContext ctx = AmbientContext.capture();
+    Preconditions.checkState(!pool.isShutdown(), query.toString());
+    Preconditions.checkArgument(query.getSubqueries().size() == 1, "batches must be a single statement");
+
+    if (params.isEmpty()) {
+      return Flowable.just(new int[0]);
+    }
+
+    final PostgresQueryException trace = new PostgresQueryException(query);
+
+    return Single.<int[]>create(emitter -> {
+      try {
+        final PgBatchRunner runner = new PgBatchRunner(query, params, emitter, ctx, this.connections);
+        emitter.setCancellable(() -> this.connections.cancel(runner));
+        this.connections.submit(runner);
+      }
+      catch (final Throwable ex) {
+        log.warn("failed to dispatch work", ex.getMessage());
+        emitter.onError(ex);
+      }
+    })
+        .onErrorResumeNext(err -> {
+          trace.initCause(err);
+          if (err instanceof ErrorResult) {
+            trace.setErrorResult((ErrorResult) err);
+          }
+          return Single.error(trace);
+        })
+        .observeOn(Schedulers.computation())
+        .toFlowable();
+
+  }
+
   @Override
   public Flowable<QueryResult> fetch(final int fetchSize, final Tuple tuple) {
     return submit(tuple.getQuery(), tuple.getParams(), fetchSize);
@@ -288,32 +388,24 @@ public class PgThreadPooledClient extends AbstractPostgresClient implements Post
     return this.submit(query, qp);
   }
 
+  /**
+   * the session takes a connection when its first statement runs, and keeps it until the transaction ends.
+   */
+
   @Override
   public PgTransactionalSession open() {
     log.debug("opening transactional session");
-    final PgTransactionalSession runner = new PgTransactionalSession(this);
-    try {
-      this.pool.execute(runner);
-    }
-    catch (final Exception ex) {
-      log.warn("failed to open session", ex);
-      runner.failed(ex);
-    }
-    return runner;
+    return new PgTransactionalSession(this);
   }
 
+  /**
+   * the session only has a connection while it's running a statement, or has a transaction open or channels listened to.
+   */
+
   @Override
   public PgSingleSession openSession() {
     log.debug("opening single session");
-    final PgSingleSession runner = new PgSingleSession(this);
-    try {
-      this.pool.execute(runner);
-    }
-    catch (final Exception ex) {
-      log.warn("failed to open session", ex);
-      runner.failed(ex);
-    }
-    return runner;
+    return new PgSingleSession(this);
   }
 
   public static PgThreadPooledClient create(final PostgresConnectionProperties config, final Listener listener) {
@@ -345,26 +437,31 @@ public class PgThreadPooledClient extends AbstractPostgresClient implements Post
   @Override
   public Flowable<NotifyMessage> notifications(final Collection<String> channels) {
     return Flowable.create(emitter -> {
-      final PgConnectionThread thd = new PgConnectionThread(this, () -> {
+      // has its own connection and thread for as long as it runs, outside of the pool.
+      final Runnable listen = () -> {
         try {
-          final PgLocalConnection conn = PgConnectionThread.connection();
+          final PgLocalConnection conn = this.connections.connect();
           try {
             conn.notifications(channels, emitter);
           }
           finally {
-            conn.close();
+            this.connections.close(conn);
           }
         }
         catch (final Throwable th) {
           emitter.onError(th);
         }
-      });
+      };
+      // a platform thread even in virtual mode: the driver waits for notifications inside a monitor.
+      final Thread thd = new Thread(listen, "psql-notify");
+      thd.setDaemon(true);
       thd.start();
       log.info("started notify thread");
     }, BackpressureStrategy.BUFFER);
   }
 
   public void shutdown() {
+    this.connections.close();
     this.pool.shutdownNow();
   }
 
@@ -437,6 +534,38 @@ public class PgThreadPooledClient extends AbstractPostgresClient implements Post
 
   }
 
+  /**
+   * copy from a connection taken from the pool once subscribed. each chunk the driver reads is wrapped in a buffer, the
+   * next only read once the subscriber has requested it.
+   */
+
+  @Override
+  public Flowable<ByteBuf> copyFrom(final String sql) {
+
+    final AmbientContext ctx = AmbientContext.capture();
+
+    return Flowable.defer(() -> {
+
+      final PgDemand<ByteBuf> demand = new PgDemand<>();
+
+      return Flowable.<ByteBuf>create(emitter -> {
+        try {
+          final PgCopyOutRunner runner = new PgCopyOutRunner(sql, emitter, demand, ctx, this.connections);
+          emitter.setCancellable(() -> this.connections.cancel(runner));
+          this.connections.submit(runner);
+        }
+        catch (final Throwable ex) {
+          log.warn("failed to dispatch work", ex.getMessage());
+          emitter.onError(ex);
+        }
+      }, BackpressureStrategy.BUFFER).lift(demand);
+
+    })
+        // hand off so a slow consumer doesn't hold the pool thread, it already waits for demand.
+        .observeOn(Schedulers.computation(), true);
+
+  }
+
   @Override
   public PostgresConnectionProperties config() {
     return config;
@@ -2,12 +2,11 @@ package io.zrz.jpgsql.client.opj;
 
 import java.sql.SQLException;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
 
+import org.postgresql.core.TransactionState;
 import org.reactivestreams.Publisher;
 
 import com.google.common.io.ByteSource;
@@ -16,11 +15,11 @@ import io.netty.buffer.ByteBuf;
 import io.reactivex.BackpressureStrategy;
 import io.reactivex.Flowable;
 import io.reactivex.FlowableEmitter;
+import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subjects.SingleSubject;
 import io.zrz.jpgsql.client.AbstractQueryExecutionBuilder.Tuple;
 import io.zrz.jpgsql.client.PostgresClient;
-import io.zrz.jpgsql.client.PostgresqlUnavailableException;
 import io.zrz.jpgsql.client.Query;
 import io.zrz.jpgsql.client.QueryParameters;
 import io.zrz.jpgsql.client.QueryResult;
@@ -32,30 +31,48 @@ import lombok.extern.slf4j.Slf4j;
 
 /**
  * a seized connection for a consumer who is performing multiple operations on a txn.
+ *
+ * the connection is held from the first statement until the transaction ends, but a thread only while a statement is
+ * running.
  */
 
 @Slf4j
-class PgTransactionalSession implements TransactionalSession, Runnable {
+class PgTransactionalSession extends PgSessionQueue<PgTransactionalSession.Work> implements TransactionalSession {
 
   @Value
-  private static class Work {
+  static class Work {
     private Query query;
     private QueryParameters params;
     private FlowableEmitter<QueryResult> emitter;
+    private PgCopyOutRunner copyOut;
   }
 
+  // checks how long the transaction has been idle.
+  private static final Work IDLE_CHECK = new Work(null, null, null, null);
+
   private static final Duration LOOP_WAIT = Duration.ofSeconds(1);
   private static final Duration MAX_IDLE = Duration.ofSeconds(5);
 
   private final SingleSubject<SessionTxnState> txnstate = SingleSubject.create();
-  private final LinkedTransferQueue<Work> workqueue = new LinkedTransferQueue<>();
 
   // if we are accepting work still
-  private boolean accepting = true;
+  private volatile boolean accepting = true;
   private final PgThreadPooledClient pool;
 
+  // when the last statement finished.
+  private volatile long startidle = System.nanoTime();
+
+  private final Disposable idleTimer;
+
   PgTransactionalSession(PgThreadPooledClient pool) {
+    super(pool);
     this.pool = pool;
+    this.idleTimer = Schedulers.computation().schedulePeriodicallyDirect(() -> {
+      // only once it's overdue, so an unused session doesn't take a connection just to check.
+      if (this.idle() && System.nanoTime() - this.startidle > MAX_IDLE.toNanos()) {
+        this.enqueue(IDLE_CHECK);
+      }
+    }, LOOP_WAIT.toNanos(), LOOP_WAIT.toNanos(), TimeUnit.NANOSECONDS);
   }
 
   /*
@@ -89,7 +106,7 @@ class PgTransactionalSession implements TransactionalSession, Runnable {
 
       log.debug("added work item: {}", query);
 
-      this.workqueue.add(new Work(query, params, emitter));
+      this.enqueue(new Work(query, params, emitter, null));
 
     }, BackpressureStrategy.BUFFER);
 
@@ -106,117 +123,132 @@ class PgTransactionalSession implements TransactionalSession, Runnable {
     throw new IllegalArgumentException();
   }
 
-  /*
-   * run in the thread with the connection any exception propogated from here will dispatch an onError on the txnstate.
-   */
-
-  private void run(PgLocalConnection conn) throws SQLException, InterruptedException {
+  @Override
+  public Flowable<ByteBuf> copyFrom(String sql) {
 
-    log.debug("starting txn");
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
 
-    Instant startidle = Instant.now();
+    return Flowable.defer(() -> {
 
-    while (true) {
+      final PgDemand<ByteBuf> demand = new PgDemand<>();
 
-      final Work work = this.workqueue.poll(LOOP_WAIT.toNanos(), TimeUnit.NANOSECONDS);
+      return Flowable.<ByteBuf>create(emitter -> {
 
-      if (work != null) {
+        log.debug("added COPY: {}", sql);
+        this.enqueue(new Work(null, null, null, new PgCopyOutRunner(sql, emitter, demand)));
 
-        if (work.getEmitter() == null) {
+      }, BackpressureStrategy.BUFFER).lift(demand);
 
-          log.debug("no emitter - rolling back, work was {}", work);
-          conn.rollback();
+    })
+        .observeOn(Schedulers.computation(), true);
 
-        }
-        else {
+  }
 
-          log.info("processing work item {}", work);
-          startidle = null;
-          conn.execute(work.getQuery(), work.getParams(), work.getEmitter());
+  /*
+   * run on a pool thread with the session's connection. any exception propogated from here will dispatch an onError on
+   * the txnstate.
+   */
 
-        }
-        startidle = Instant.now();
+  @Override
+  protected boolean process(PgLocalConnection conn, Work work) throws SQLException {
 
-      }
-      else {
+    if (work == IDLE_CHECK) {
 
-        final Duration idle = Duration.between(startidle, Instant.now());
+      final Duration idle = Duration.ofNanos(System.nanoTime() - this.startidle);
 
-        if (idle.compareTo(MAX_IDLE) > 0) {
-          log.warn("aborting transaction due to {} idle", idle);
-          this.accepting = false;
+      if (idle.compareTo(MAX_IDLE) > 0) {
+        log.warn("aborting transaction due to {} idle", idle);
+        this.accepting = false;
+        if (conn.transactionState() != TransactionState.IDLE) {
           conn.rollback();
-          this.txnstate.onError(new TransactionalSessionDeadlineExceededException());
-          return;
         }
+        this.txnstate.onError(new TransactionalSessionDeadlineExceededException());
+        return false;
+      }
 
-        log.warn("idle {} loops in open transaction", Duration.between(startidle, Instant.now()));
+      return true;
 
-      }
+    }
 
-      log.debug("txn state now {}", conn.transactionState());
-
-      switch (conn.transactionState()) {
-        case IDLE:
-          this.accepting = false;
-          this.txnstate.onSuccess(SessionTxnState.Closed);
-          if (!this.workqueue.isEmpty()) {
-            log.warn("work queue is not empty after session completed");
-            this.workqueue.forEach(e -> {
-              if (e.emitter != null)
-                e.emitter.onError(new IllegalStateException("Session has already completed (in IDLE)"));
-            });
-          }
-          return;
-        case FAILED:
-          this.accepting = false;
-          this.txnstate.onSuccess(SessionTxnState.Error);
-          if (!this.workqueue.isEmpty()) {
-            log.warn("work queue is not empty after session completed");
-            this.workqueue.forEach(e -> {
-              if (e.emitter != null)
-                e.emitter.onError(new IllegalStateException("Session has already completed (in FAILED) for " + e.getQuery()));
-            });
-          }
-          return;
-        case OPEN:
-          if (!this.accepting && this.workqueue.isEmpty()) {
-            // rollback - which will terminate us.
-            conn.rollback();
-          }
-          // still going ..
-          break;
-      }
+    if (work.getCopyOut() != null) {
+
+      work.getCopyOut().copy(conn);
 
     }
+    else if (work.getEmitter() == null) {
+
+      log.debug("no emitter - rolling back, work was {}", work);
+      conn.rollback();
+
+    }
+    else {
+
+      log.info("processing work item {}", work);
+      conn.execute(work.getQuery(), work.getParams(), work.getEmitter());
+
+    }
+
+    this.startidle = System.nanoTime();
+
+    log.debug("txn state now {}", conn.transactionState());
+
+    if (conn.transactionState() == TransactionState.OPEN && !this.accepting && this.idle()) {
+      // rollback - which will terminate us.
+      conn.rollback();
+    }
+
+    switch (conn.transactionState()) {
+      case IDLE:
+        this.accepting = false;
+        this.txnstate.onSuccess(SessionTxnState.Closed);
+        return false;
+      case FAILED:
+        this.accepting = false;
+        this.txnstate.onSuccess(SessionTxnState.Error);
+        return false;
+      case OPEN:
+      default:
+        // still going ..
+        return true;
+    }
 
   }
 
   /*
-   * called when the job is allocated - runs in the thread.
+   * the transaction is open from the first statement until we finish.
    */
 
   @Override
-  public void run() {
-    log.trace("running query");
-    try {
-      this.run(PgConnectionThread.connection());
-    }
-    catch (final SQLException ex) {
-      // Any propagated SQLException results in the connection being closed.
-      log.warn("connection failed: {}", ex.getMessage(), ex);
-      this.accepting = false;
-      PgConnectionThread.close();
-      this.txnstate.onError(new PostgresqlUnavailableException(ex));
+  protected boolean retain(PgLocalConnection conn) {
+    return conn.transactionState() != TransactionState.IDLE;
+  }
+
+  @Override
+  protected void reject(Work work) {
+    if (work.emitter != null) {
+      log.warn("work queue is not empty after session completed");
+      work.emitter.onError(new IllegalStateException("Session has already completed for " + work.getQuery()));
     }
-    catch (final Exception ex) {
-      log.warn("connection failed: {}", ex.getMessage(), ex);
-      this.accepting = false;
-      // TODO: release the transaction, but don't close the connection.
-      this.txnstate.onError(ex);
+    else if (work.copyOut != null) {
+      log.warn("work queue is not empty after session completed");
+      work.copyOut.abort(new IllegalStateException("Session has already completed"));
     }
   }
 
+  @Override
+  protected void abort(Throwable ex) {
+    this.accepting = false;
+    this.txnstate.onError(ex);
+  }
+
+  @Override
+  protected void terminated() {
+    this.accepting = false;
+    this.idleTimer.dispose();
+  }
+
   /*
    * rollback the transaction if there is one.
    */
@@ -226,7 +258,7 @@ class PgTransactionalSession implements TransactionalSession, Runnable {
     // Preconditions.checkState(this.accepting, "session is no longer active");
     if (accepting) {
       this.accepting = false;
-      this.workqueue.add(new Work(this.pool.createQuery("ROLLBACK"), null, null));
+      this.enqueue(new Work(this.pool.createQuery("ROLLBACK"), null, null, null));
     }
   }
 
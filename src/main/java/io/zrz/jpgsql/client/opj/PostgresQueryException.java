@@ -13,7 +13,7 @@ public class PostgresQueryException extends RuntimeException {
   private ErrorResult serverError;
   private Query query;
 
-  PostgresQueryException(final Query query) {
+  public PostgresQueryException(final Query query) {
     this.query = query;
   }
 
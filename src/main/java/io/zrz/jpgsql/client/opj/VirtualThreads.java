@@ -0,0 +1,114 @@
+package io.zrz.jpgsql.client.opj;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * virtual threads, looked up reflectively so the library still builds for and runs on Java 8.
+ *
+ * only used from JDK 24. the driver does all its socket IO inside synchronized methods, and before JDK 24 (JEP 491)
+ * blocking while holding a monitor pins the virtual thread to its carrier - so each query in flight would hold one of
+ * the (roughly one per core) carriers, capping concurrency well below the connection pool size. from JDK 24 blocking
+ * JDBC IO parks the virtual thread and frees the carrier, so queries in flight are only limited by the connections.
+ */
+
+@Slf4j
+final class VirtualThreads {
+
+  // the first release where a virtual thread blocked in a monitor releases its carrier.
+  private static final int UNPINNED_SINCE = 24;
+
+  // Thread.ofVirtual(), or null if the runtime doesn't have them (or is too old to use them).
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+  private static final Method NEW_EXECUTOR;
+
+  static {
+
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    Method newExecutor = null;
+
+    try {
+      final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+      newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      // preview in JDK 19/20: throws unless enabled.
+      ofVirtual.invoke(null);
+      if (feature() < UNPINNED_SINCE) {
+        log.debug("not using virtual threads before JDK {}, the driver's IO would pin their carriers", UNPINNED_SINCE);
+        ofVirtual = null;
+      }
+    }
+    catch (final ReflectiveOperationException | LinkageError ex) {
+      log.debug("virtual threads are not available: {}", ex.toString());
+      ofVirtual = null;
+    }
+
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+    NEW_EXECUTOR = newExecutor;
+
+  }
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * if the runtime has virtual threads which don't pin their carrier while the driver blocks in a monitor.
+   */
+
+  static boolean isAvailable() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * the major java version, e.g 8 or 24.
+   */
+
+  private static int feature() {
+    final String spec = System.getProperty("java.specification.version", "1.8");
+    try {
+      return Integer.parseInt(spec.startsWith("1.") ? spec.substring(2) : spec);
+    }
+    catch (final NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  /**
+   * creates virtual threads named with the prefix and a counter.
+   */
+
+  static ThreadFactory factory(final String prefix) {
+    try {
+      return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L));
+    }
+    catch (final ReflectiveOperationException ex) {
+      throw new IllegalStateException("virtual threads are not available", ex);
+    }
+  }
+
+  /**
+   * an executor which starts a new virtual thread for each task.
+   */
+
+  static ExecutorService newExecutor(final String prefix) {
+    try {
+      return (ExecutorService) NEW_EXECUTOR.invoke(null, factory(prefix));
+    }
+    catch (final ReflectiveOperationException ex) {
+      throw new IllegalStateException("virtual threads are not available", ex);
+    }
+  }
+
+}
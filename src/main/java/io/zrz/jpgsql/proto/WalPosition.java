@@ -11,7 +11,16 @@ public class WalPosition
 
   public String toString()
   {
-    return String.format("%s/%s", Long.toHexString(index), Long.toHexString(sequence));
+    return Long.toHexString(index) + "/" + Long.toHexString(sequence);
+  }
+
+  /**
+   * format an LSN without allocating a position for it.
+   */
+
+  public static String toString(long lsn)
+  {
+    return Long.toHexString(lsn >>> 32) + "/" + Long.toHexString(lsn & 0xFFFFFFFFL);
   }
 
   public static WalPosition of(long timeline, long bytes)
@@ -19,6 +28,24 @@ public class WalPosition
     return new WalPosition(timeline, bytes);
   }
 
+  /**
+   * the position from an LSN, as sent in the replication protocol.
+   */
+
+  public static WalPosition fromLsn(long lsn)
+  {
+    return of(lsn >>> 32, lsn & 0xFFFFFFFFL);
+  }
+
+  /**
+   * the position as a single 64 bit LSN.
+   */
+
+  public long toLsn()
+  {
+    return (index << 32) | sequence;
+  }
+
   public static WalPosition fromString(String string)
   {
     int idx = string.indexOf('/');
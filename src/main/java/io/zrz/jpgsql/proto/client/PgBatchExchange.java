@@ -0,0 +1,242 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.postgresql.util.ServerErrorMessage;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.reactivex.SingleEmitter;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.QueryParameters;
+import io.zrz.jpgsql.client.SimpleQuery;
+import io.zrz.jpgsql.proto.wire.Bind;
+import io.zrz.jpgsql.proto.wire.Close;
+import io.zrz.jpgsql.proto.wire.CloseComplete;
+import io.zrz.jpgsql.proto.wire.CommandComplete;
+import io.zrz.jpgsql.proto.wire.CopyFail;
+import io.zrz.jpgsql.proto.wire.CopyInResponse;
+import io.zrz.jpgsql.proto.wire.EmptyQueryResponse;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
+import io.zrz.jpgsql.proto.wire.Execute;
+import io.zrz.jpgsql.proto.wire.Parse;
+import io.zrz.jpgsql.proto.wire.ParseComplete;
+import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
+import io.zrz.jpgsql.proto.wire.Sync;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * executes a single statement once for each set of parameters, emitting the update count of each.
+ *
+ * the statement is parsed once (or not at all if it is already in the {@link PgStatementCache}), followed by a
+ * Bind/Execute for each row and a single Sync - so the whole batch is one round trip, and runs in a single implicit
+ * transaction. after an error the backend skips everything up to the Sync, so none of the rows are applied. any rows
+ * the statement returns are discarded.
+ */
+
+@Slf4j
+final class PgBatchExchange extends PgExchange {
+
+  // invalid_sql_statement_name, e.g after a DEALLOCATE.
+  private static final String INVALID_STATEMENT = "26000";
+
+  // feature_not_supported, which is what "cached plan must not change result type" is raised as.
+  private static final String CACHED_PLAN = "0A000";
+
+  private final Query query;
+  private final SimpleQuery statement;
+  private final List<QueryParameters> params;
+  private final PgStatementCache cache;
+  private final SingleEmitter<int[]> emitter;
+  private final int[] counts;
+
+  // statement Closes written, waiting for their CloseComplete.
+  private final ArrayDeque<String> closes = new ArrayDeque<>();
+
+  private PgStatementCache.Entry entry;
+  private int row;
+  private ErrorResult error;
+  private boolean done;
+
+  PgBatchExchange(final Query query, final List<QueryParameters> params, final PgStatementCache cache, final SingleEmitter<int[]> emitter) {
+    this.query = query;
+    this.statement = query.getSubqueries().get(0);
+    this.params = params;
+    this.cache = cache;
+    this.emitter = emitter;
+    this.counts = new int[params.size()];
+  }
+
+  @Override
+  void start(final ChannelHandlerContext ctx) {
+
+    if (this.emitter.isDisposed()) {
+      this.sync(ctx);
+      return;
+    }
+
+    this.emitter.setCancellable(() -> ctx.executor().execute(() -> {
+      if (!this.done) {
+        this.cancelQuery();
+      }
+    }));
+
+    final List<PostgreSQLPacket> packets = new ArrayList<>();
+
+    try {
+      this.statements(packets);
+    }
+    catch (final Exception | AssertionError ex) {
+      // nothing has been written yet, so just need a Sync to get our ReadyForQuery.
+      log.warn("failed to encode batch {}: {}", this.query, ex.getMessage());
+      this.abandon();
+      this.error = ErrorResult.internal(ex);
+      this.sync(ctx);
+      return;
+    }
+
+    packets.forEach(ctx::write);
+
+    this.sync(ctx);
+
+  }
+
+  @Override
+  void onMessage(final ChannelHandlerContext ctx, final PostgreSQLPacket msg) {
+
+    if (msg instanceof ParseComplete) {
+      if (this.entry != null && !this.entry.prepared) {
+        this.cache.prepared(this.entry);
+      }
+    }
+    else if (msg instanceof CloseComplete) {
+      this.closes.poll();
+    }
+    else if (msg instanceof CommandComplete) {
+      this.counts[this.row++] = ((CommandComplete) msg).getUpdateCount();
+    }
+    else if (msg instanceof EmptyQueryResponse) {
+      this.counts[this.row++] = 0;
+    }
+    else if (msg instanceof ErrorResponse) {
+      final ServerErrorMessage sem = ((ErrorResponse) msg).toServerErrorMessage();
+      this.error = new ErrorResult(this.query, this.row, sem.toString(), sem.getSQLState(), sem, null);
+      if (this.entry != null && (INVALID_STATEMENT.equals(sem.getSQLState()) || CACHED_PLAN.equals(sem.getSQLState()))) {
+        // the statement has gone away, or changed its result type under us. next time we parse it again.
+        this.cache.invalidate(this.entry);
+      }
+      this.abandon();
+    }
+    else if (msg instanceof CopyInResponse) {
+      ctx.writeAndFlush(new CopyFail("COPY FROM STDIN is not supported in executeBatch(), use copyTo()"));
+    }
+    else {
+      log.trace("ignoring {}", msg);
+    }
+
+  }
+
+  @Override
+  void onReady(final TransactionStatus status) {
+    this.done = true;
+    if (this.error != null) {
+      this.emitter.tryOnError(this.error);
+    }
+    else {
+      this.emitter.onSuccess(this.counts);
+    }
+  }
+
+  @Override
+  void onFailure(final Throwable cause) {
+    this.done = true;
+    this.emitter.tryOnError(cause);
+  }
+
+  private void sync(final ChannelHandlerContext ctx) {
+    ctx.writeAndFlush(new Sync());
+    this.seal();
+  }
+
+  /**
+   * the backend will skip the rest of the batch. if we asked it to parse the statement it never was, and any Closes not
+   * yet acknowledged need sending again.
+   */
+
+  private void abandon() {
+
+    if (this.entry != null && !this.entry.prepared) {
+      this.cache.invalidate(this.entry);
+    }
+
+    String name;
+
+    while ((name = this.closes.poll()) != null) {
+      this.cache.closeLater(name);
+    }
+
+  }
+
+  /**
+   * the Parse (if needed) and a Bind/Execute for each row. the parameter types are taken from the first row which has
+   * one set for each position, so rows with a NULL still share the statement.
+   */
+
+  private void statements(final List<PostgreSQLPacket> packets) {
+
+    final int count = this.statement.parameterCount();
+
+    final List<PgParameters> rows = new ArrayList<>(this.params.size());
+
+    final Integer[] oids = new Integer[count];
+
+    for (final QueryParameters row : this.params) {
+
+      final PgParameters bound = new PgParameters(row, 0, count);
+
+      final List<Integer> types = bound.oids();
+
+      for (int i = 0; i < count; ++i) {
+        final int oid = types.get(i);
+        if (oids[i] == null || oids[i] == 0) {
+          oids[i] = oid;
+        }
+        else if (oid != 0 && oid != oids[i]) {
+          throw new IllegalArgumentException(String.format("param %d is OID %d in row %d, but %d in an earlier row", i + 1, oid, rows.size(), oids[i]));
+        }
+      }
+
+      rows.add(bound);
+
+    }
+
+    final List<Integer> types = count == 0 ? Collections.emptyList() : Arrays.asList(oids);
+
+    String closing;
+
+    while ((closing = this.cache.pollClosing()) != null) {
+      packets.add(Close.statement(closing));
+      this.closes.add(closing);
+    }
+
+    this.entry = this.cache.acquire(this.statement.sql(), types);
+
+    final String name = this.entry == null ? "" : this.entry.name;
+
+    if (this.entry == null || !this.entry.prepared) {
+      packets.add(new Parse(name, this.statement.sql(), types));
+    }
+
+    for (final PgParameters bound : rows) {
+      packets.add(new Bind("", name, bound, Collections.emptyList()));
+      packets.add(new Execute("", 0));
+    }
+
+  }
+
+}
@@ -0,0 +1,255 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.postgresql.core.Field;
+import org.reactivestreams.Publisher;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+import io.zrz.jpgsql.client.RowBuffer;
+import io.zrz.jpgsql.client.opj.PgResultMeta;
+import io.zrz.jpgsql.client.opj.PgThreadPooledClient;
+import io.zrz.jpgsql.proto.netty.ProtoUtils;
+import io.zrz.jpgsql.proto.wire.DataRow;
+
+/**
+ * turns the output of a COPY ... TO STDOUT (FORMAT binary) into batches of rows, the same as a query returns.
+ *
+ * each binary COPY tuple has exactly the layout of a DataRow payload, so the tuples are packed into a
+ * {@link PgRowBuffer} as-is, and nothing is decoded until a value is asked for. the stream must start with the
+ * {@link PgThreadPooledClient#BINARY_PREAMBLE} header and end with the trailer, tuples may be split across buffers.
+ *
+ * the COPY output doesn't describe the columns, so the caller provides them - see {@link #fields(List, int[])}.
+ */
+
+public final class PgBinaryCopyDecoder {
+
+  // "PGCOPY\n\377\r\n\0"
+  private static final int SIGNATURE_LENGTH = 11;
+
+  // flags bit 16: each tuple has an OID column.
+  private static final int FLAG_OIDS = 1 << 16;
+
+  private final PgResultMeta fields;
+  private final int batchSize;
+
+  // unconsumed bytes carried over from the previous buffer.
+  private final ByteBuf pending = Unpooled.buffer(0);
+
+  private PgRowBuffer.Builder batch;
+  private boolean header;
+  private boolean done;
+
+  private PgBinaryCopyDecoder(final PgResultMeta fields, final int batchSize) {
+    this.fields = fields;
+    this.batchSize = batchSize;
+    this.batch = new PgRowBuffer.Builder(null, 0, fields);
+  }
+
+  /**
+   * decode the binary COPY data, emitting a batch each time batchSize rows have been read, and the remainder (marked as
+   * the last) once the trailer is seen. each input buffer is released once it has been consumed.
+   */
+
+  public static Flowable<RowBuffer> decode(final Publisher<ByteBuf> data, final PgResultMeta fields, final int batchSize) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    return Flowable.defer(() -> {
+      final PgBinaryCopyDecoder decoder = new PgBinaryCopyDecoder(fields, batchSize);
+      return Flowable.fromPublisher(data)
+          .concatMapIterable(decoder::feed)
+          .concatWith(Flowable.defer(() -> Flowable.fromIterable(decoder.finish())))
+          .doFinally(decoder.pending::release);
+    });
+  }
+
+  /**
+   * describe the columns of a binary COPY, with the type OID of each.
+   */
+
+  public static PgResultMeta fields(final List<String> names, final int[] oids) {
+    Preconditions.checkArgument(names.size() == oids.length, "need a type for each column");
+    final Field[] fields = new Field[oids.length];
+    for (int i = 0; i < fields.length; ++i) {
+      fields[i] = new Field(names.get(i), oids[i]);
+      fields[i].setFormat(Field.BINARY_FORMAT);
+    }
+    return new PgResultMeta(fields);
+  }
+
+  private List<RowBuffer> feed(final ByteBuf buf) {
+
+    try {
+
+      if (this.done) {
+        if (buf.isReadable()) {
+          throw new IllegalStateException("data after binary COPY trailer");
+        }
+        return Collections.emptyList();
+      }
+
+      final ByteBuf in;
+
+      if (this.pending.isReadable()) {
+        this.pending.writeBytes(buf);
+        in = this.pending;
+      }
+      else {
+        in = buf;
+      }
+
+      final List<RowBuffer> out = this.parse(in);
+
+      if (in != this.pending) {
+        this.pending.writeBytes(in);
+      }
+
+      this.pending.discardReadBytes();
+
+      return out;
+
+    }
+    finally {
+      buf.release();
+    }
+
+  }
+
+  private List<RowBuffer> finish() {
+    if (!this.done) {
+      throw new IllegalStateException("binary COPY data ended without a trailer");
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * consume as many complete tuples as there are, leaving any partial one unread.
+   */
+
+  private List<RowBuffer> parse(final ByteBuf in) {
+
+    if (!this.header && !this.header(in)) {
+      return Collections.emptyList();
+    }
+
+    List<RowBuffer> out = Collections.emptyList();
+
+    while (!this.done) {
+
+      final int len = tupleLength(in);
+
+      if (len == 0) {
+        break;
+      }
+
+      final ByteBuf tuple = in.readSlice(len);
+
+      if (tuple.getShort(tuple.readerIndex()) == -1) {
+        this.done = true;
+        out = add(out, this.batch.build(true));
+        break;
+      }
+
+      if (tuple.getUnsignedShort(tuple.readerIndex()) != this.fields.count()) {
+        throw new IllegalStateException(String.format("expected %d columns, got %d", this.fields.count(), tuple.getUnsignedShort(tuple.readerIndex())));
+      }
+
+      this.batch.add(new DataRow(tuple, ProtoUtils.parseDataRow(tuple)));
+
+      if (this.batch.rows() >= this.batchSize) {
+        out = add(out, this.batch.build(false));
+        this.batch = new PgRowBuffer.Builder(null, 0, this.fields);
+      }
+
+    }
+
+    return out;
+
+  }
+
+  private static List<RowBuffer> add(List<RowBuffer> out, final RowBuffer batch) {
+    if (out.isEmpty()) {
+      out = new ArrayList<>(2);
+    }
+    out.add(batch);
+    return out;
+  }
+
+  /**
+   * check and skip the file header, if all of it has arrived.
+   */
+
+  private boolean header(final ByteBuf in) {
+
+    if (in.readableBytes() < SIGNATURE_LENGTH + 8) {
+      return false;
+    }
+
+    final int start = in.readerIndex();
+
+    final int extension = in.getInt(start + SIGNATURE_LENGTH + 4);
+
+    if (in.readableBytes() < SIGNATURE_LENGTH + 8 + extension) {
+      return false;
+    }
+
+    for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+      if (in.getByte(start + i) != PgThreadPooledClient.BINARY_PREAMBLE[i]) {
+        throw new IllegalStateException("not binary COPY data, bad signature");
+      }
+    }
+
+    if ((in.getInt(start + SIGNATURE_LENGTH) & FLAG_OIDS) != 0) {
+      throw new IllegalStateException("binary COPY with OIDs is not supported");
+    }
+
+    in.skipBytes(SIGNATURE_LENGTH + 8 + extension);
+
+    this.header = true;
+
+    return true;
+
+  }
+
+  /**
+   * the length of the tuple at the reader index (the trailer is a tuple of 2 bytes), or 0 if not all of it has arrived.
+   */
+
+  private static int tupleLength(final ByteBuf in) {
+
+    final int start = in.readerIndex();
+    final int end = in.writerIndex();
+
+    if (end - start < 2) {
+      return 0;
+    }
+
+    final int cols = in.getShort(start);
+
+    if (cols == -1) {
+      return 2;
+    }
+
+    int pos = start + 2;
+
+    for (int i = 0; i < cols; ++i) {
+      if (end - pos < 4) {
+        return 0;
+      }
+      final int len = in.getInt(pos);
+      pos += 4 + Math.max(len, 0);
+      if (pos > end) {
+        return 0;
+      }
+    }
+
+    return pos - start;
+
+  }
+
+}
@@ -1,8 +1,14 @@
 package io.zrz.jpgsql.proto.client;
 
+import java.net.SocketAddress;
 import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -11,54 +17,87 @@ import javax.net.ssl.SSLEngine;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.google.common.primitives.Ints;
+
 import io.netty.bootstrap.Bootstrap;
-import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
-import io.netty.util.concurrent.ScheduledFuture;
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.reactivex.subjects.CompletableSubject;
+import io.reactivex.subjects.SingleSubject;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
 import io.zrz.jpgsql.proto.AbstractConnection;
+import io.zrz.jpgsql.proto.netty.NettyTransport;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLClientNegotiation;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLClientTlsNegotiation;
+import io.zrz.jpgsql.proto.netty.handler.PostgreSQLDecoder;
+import io.zrz.jpgsql.proto.netty.handler.PostgreSQLEncoder;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLHandshakeCompleteEvent;
-import io.zrz.jpgsql.proto.wire.Bind;
-import io.zrz.jpgsql.proto.wire.CommandComplete;
-import io.zrz.jpgsql.proto.wire.CopyData;
-import io.zrz.jpgsql.proto.wire.Execute;
-import io.zrz.jpgsql.proto.wire.Parse;
+import io.zrz.jpgsql.proto.wire.BackendKeyData;
+import io.zrz.jpgsql.proto.wire.CancelRequest;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
+import io.zrz.jpgsql.proto.wire.NotificationResponse;
+import io.zrz.jpgsql.proto.wire.ParameterStatus;
 import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
-import io.zrz.jpgsql.proto.wire.Sync;
+import io.zrz.jpgsql.proto.wire.ReadyForQuery;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * A single TCP connection to a postgresql backend.
  *
- * The connection handles some basic state needed for protocol synchronization, but doesn't include any logic for
- * quering, etc.
+ * The connection handles the state needed for protocol synchronization. Submitted {@link PgExchange}s are pipelined:
+ * each is written as soon as the one before it has written its Sync, without waiting for the response. As the backend
+ * processes messages in order, responses are routed to the exchanges in FIFO order, each one completing with its
+ * ReadyForQuery. It doesn't include any logic for building queries or mapping results, that lives in the exchanges.
  *
- * the external API takes commands from a flowable, and emits the results on a seperate flowable.
+ * All protocol state is only touched from the channel's event loop.
  *
  * @author theo
  *
  */
 
 @Slf4j
-public class PgConnection extends AbstractConnection {
+public class PgConnection extends AbstractConnection implements AutoCloseable {
 
   private static final String DEFAULT_USERNAME = System.getProperty("user.name", "postgres");
 
-  private EventLoopGroup group;
-  private ChannelFuture connectFuture;
-  private HashMap<String, String> params = new HashMap<>();
-  private String password;
+  private final EventLoopGroup group;
+  private final HashMap<String, String> params = new HashMap<>();
+  private final String password;
+  private final boolean ssl;
+  private final int connectTimeoutMillis;
+
+  private final SingleSubject<PgConnection> connected = SingleSubject.create();
+  private final CompletableSubject closed = CompletableSubject.create();
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final Handler handler = new Handler();
+  private final PgStatementCache statements;
+
+  private volatile Channel channel;
+  private volatile SocketAddress address;
+
+  @Getter
+  private volatile TransactionStatus transactionStatus = TransactionStatus.Idle;
+
+  @Getter
+  private volatile BackendKeyData backendKey;
+
+  @Getter
+  private volatile Map<String, String> serverParameters = Collections.emptyMap();
+
+  private volatile Consumer<NotificationResponse> notificationListener;
 
   PgConnection(final PgConnectionBuilder b) {
 
@@ -66,6 +105,12 @@ public class PgConnection extends AbstractConnection {
 
     this.password = b.password;
 
+    this.ssl = b.ssl;
+
+    this.connectTimeoutMillis = Ints.saturatedCast(b.connectTimeout.toMillis());
+
+    this.statements = new PgStatementCache(b.statementCacheSize);
+
     if (b.username == null) {
       params.put("user", DEFAULT_USERNAME);
     }
@@ -80,157 +125,292 @@ public class PgConnection extends AbstractConnection {
       params.put("database", b.database);
     }
 
+    if (b.applicationName != null) {
+      params.put("application_name", b.applicationName);
+    }
+
     params.put("client_encoding", "UTF-8");
 
   }
 
-  private static enum HandlerState {
-    Waiting,
-    Identifying,
-    Creating,
-    Starting
+  /**
+   * emits this connection once the startup handshake has completed, or fails if it could not be established.
+   */
+
+  public Single<PgConnection> connected() {
+    return this.connected;
   }
 
-  private HandlerState state = HandlerState.Waiting;
+  /**
+   * completes once the connection has been closed, for whatever reason.
+   */
+
+  public Completable closed() {
+    return this.closed;
+  }
 
   /**
-   * handler which dispatches events from the netty thread to the user thread.
+   * the number of exchanges which have been submitted but not yet seen their ReadyForQuery, including those pipelined
+   * behind others.
    */
 
-  private final class Handler extends SimpleChannelInboundHandler<PostgreSQLPacket> {
+  public int outstanding() {
+    return this.outstanding.get();
+  }
 
-    private long outputWrittenLsn;
-    private ChannelHandlerContext ctx;
-    private ScheduledFuture<?> future;
+  /**
+   * the named prepared statements created on this connection, and their hit/miss/eviction counts.
+   */
 
-    // note that any packets which contain byte buffers are NOT retained after we return, so need to copy if needed.
+  public PgStatementCache statementCache() {
+    return this.statements;
+  }
 
-    @Override
-    protected void channelRead0(final ChannelHandlerContext ctx, final PostgreSQLPacket msg) throws Exception {
+  /**
+   * true if the connection is established and the channel is still open.
+   */
 
-      log.debug("got message: {}", msg);
+  public boolean isActive() {
+    final Channel ch = this.channel;
+    return this.connected.hasValue() && ch != null && ch.isActive();
+  }
 
-      if (msg instanceof CommandComplete) {
-        if (state != HandlerState.Identifying) {
-          this.nextStage();
-        }
-      }
-      else if (msg instanceof CopyData) {
+  /**
+   * true once the connection has failed to establish, or has been closed.
+   */
 
-        final ByteBuf copydata = ((CopyData) msg).getData();
+  public boolean isClosed() {
+    return this.closed.hasComplete() || this.connected.hasThrowable();
+  }
 
-        final byte type = copydata.readByte();
+  /**
+   * set the consumer of asynchronous NOTIFY messages received on this connection. called on the event loop.
+   */
 
-        switch (type) {
+  public void notificationListener(final Consumer<NotificationResponse> listener) {
+    this.notificationListener = listener;
+  }
 
-          case 'w': // data
-            final long startingPoint = copydata.readLong();
-            final long currentEnd = copydata.readLong();
-            final long txtime = copydata.readLong();
-            log.debug("DATA: {}, {}, {}", startingPoint, currentEnd, txtime);
-            break;
+  /**
+   * queue an exchange for execution. it will be written once the connection is established and all previously
+   * submitted exchanges have been sealed.
+   */
 
-          case 'k': // keepalive
-            this.processKeepalive(copydata);
-            log.debug("KEEPALIVE");
-            break;
+  void submit(final PgExchange exchange) {
+    this.outstanding.incrementAndGet();
+    this.connected.subscribe(
+        conn -> conn.channel.eventLoop().execute(() -> this.handler.enqueue(exchange)),
+        err -> {
+          this.outstanding.decrementAndGet();
+          exchange.onFailure(err);
+        });
+  }
 
-          default:
-            log.warn("Unknown type: '{}'", type);
-            break;
+  /**
+   * ask the backend to cancel whatever it is currently running, by sending a CancelRequest over a separate connection.
+   * the server doesn't reply, if it lands then the running statement fails with SQLSTATE 57014.
+   */
 
-        }
+  public void cancel() {
+    this.cancel(() -> {
+    });
+  }
+
+  /**
+   * @param handled
+   *          run (on an arbitrary thread) once the server has dealt with the cancel and closed the connection it came in
+   *          on, or it couldn't be sent.
+   */
+
+  private void cancel(final Runnable handled) {
+
+    final BackendKeyData key = this.backendKey;
+    final SocketAddress address = this.address;
 
+    if (key == null || address == null) {
+      handled.run();
+      return;
+    }
+
+    log.debug("cancelling backend {}", key.getProcessId());
+
+    final Bootstrap b = new Bootstrap()
+        .group(this.group)
+        .channel(NettyTransport.channelType(this.group, address))
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, this.connectTimeoutMillis)
+        .handler(new PostgreSQLEncoder());
+
+    b.connect(address).addListener((final ChannelFuture f) -> {
+      if (f.isSuccess()) {
+        final Channel ch = f.channel();
+        // the server closes it once the backend has been signalled. don't wait forever if it doesn't.
+        ch.closeFuture().addListener(closed -> handled.run());
+        ch.writeAndFlush(new CancelRequest(key.getProcessId(), key.getSecret())).addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        ch.eventLoop().schedule(() -> ch.close(), this.connectTimeoutMillis, TimeUnit.MILLISECONDS);
       }
       else {
-        System.err.println(msg);
+        log.warn("failed to send cancel request: {}", f.cause().getMessage());
+        handled.run();
       }
+    });
 
+  }
+
+  /**
+   * close the underlying channel. any exchanges not yet completed will fail.
+   */
+
+  @Override
+  public void close() {
+    final Channel ch = this.channel;
+    if (ch != null) {
+      ch.close();
     }
+  }
 
-    /**
-     * The previous command completed, do the next thing.
-     */
+  /**
+   * routes packets from the netty thread to the exchange at the head of the in-flight queue.
+   */
 
-    private void nextStage() {
+  private final class Handler extends SimpleChannelInboundHandler<PostgreSQLPacket> {
 
-      log.debug("Executing next stage in {}", state);
+    // submitted, but not yet written.
+    private final ArrayDeque<PgExchange> pending = new ArrayDeque<>();
 
-      switch (state) {
-        case Waiting:
-          state = HandlerState.Identifying;
-          sendIdentify();
-          break;
+    // written, waiting for their ReadyForQuery. responses arrive in this order.
+    private final ArrayDeque<PgExchange> inflight = new ArrayDeque<>();
 
-        case Identifying:
+    private ChannelHandlerContext ctx;
+    private boolean closed;
+    private boolean draining;
 
-        case Creating:
-          state = HandlerState.Starting;
-          // sendStart();
-          break;
+    // the exchange we've sent a CancelRequest for, until its ReadyForQuery.
+    private PgExchange cancelling;
 
-        case Starting:
-          // hmmp, that's odd...
-          throw new RuntimeException("Unexpected next stage for state");
+    // CancelRequests the server hasn't dealt with yet. nothing more is written while there are any.
+    private int cancels;
 
-      }
+    // note that any packets which contain byte buffers are NOT retained after we return, so need to copy if needed.
 
+    void enqueue(final PgExchange exchange) {
+      if (this.closed) {
+        outstanding.decrementAndGet();
+        exchange.onFailure(new PostgresqlUnavailableException("connection closed"));
+        return;
+      }
+      this.pending.add(exchange);
+      this.drain();
     }
 
-    void sendIdentify() {
-      ctx.write(new Parse("test", "SELECT NOW()"));
-      ctx.write(new Bind("target", "test"));
-      ctx.write(new Execute("target", 0));
-      ctx.write(new Execute("target", 0));
-      ctx.write(new Execute("target", 0));
-      ctx.writeAndFlush(new Sync());
-    }
+    /**
+     * write as many pending exchanges as we can. an exchange can be written once the one before it has sealed.
+     */
 
-    private void processKeepalive(final ByteBuf ptr) {
+    private void drain() {
 
-      final long currentEnd = ptr.readLong();
-      final long serverTimeMicros = ptr.readLong();
+      if (this.draining) {
+        // an exchange sealed while being started, the loop below will pick up the next one.
+        return;
+      }
+
+      this.draining = true;
 
-      this.outputWrittenLsn = currentEnd;
+      boolean written = false;
 
-      final byte reply = ptr.readByte();
+      while (!this.closed && this.cancels == 0 && !this.pending.isEmpty()) {
 
-      log.info(String.format("Current Time: %s, Server Time: %s, Reply? %s",
-          Long.toHexString(currentEnd),
-          Long.toString(serverTimeMicros),
-          Boolean.toString(reply != 0)));
+        final PgExchange last = this.inflight.peekLast();
 
-      if (reply == 1) {
-        this.sendKeepalive();
+        if (last != null && !last.isSealed()) {
+          break;
+        }
+
+        final PgExchange next = this.pending.poll();
+        this.inflight.add(next);
+        next.onSealed(this::drain);
+        next.canceller(() -> this.cancel(next));
+        next.start(this.ctx);
+        written = true;
+
+      }
+
+      this.draining = false;
+
+      if (written) {
+        this.ctx.flush();
       }
 
     }
 
     /**
-     * While in CopyBoth mode, we need to send periodic keepalives.
+     * the backend cancels whatever it happens to be running when the CancelRequest arrives, so we only send one for the
+     * exchange at the head of the queue. it could still arrive after that has finished and hit one of the exchanges
+     * written behind it - which then fails with the backend's own error, while the others complete as normal. nothing
+     * else is written until the server has dealt with the cancel, so it can't land on anything written after.
      */
 
-    private void sendKeepalive() {
+    private void cancel(final PgExchange exchange) {
+
+      if (this.closed || this.inflight.peek() != exchange || this.cancelling == exchange) {
+        log.debug("not cancelling, exchange isn't running");
+        return;
+      }
+
+      this.cancelling = exchange;
+      this.cancels++;
 
-      final long position = this.outputWrittenLsn;
+      PgConnection.this.cancel(() -> this.ctx.executor().execute(() -> {
+        this.cancels--;
+        this.drain();
+      }));
 
-      log.debug("Sending Keepalive position={}", Long.toHexString(position));
+    }
 
-      // send feedback
-      final ByteBuf xkp = this.ctx.alloc().buffer();
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final PostgreSQLPacket msg) throws Exception {
 
-      xkp.writeByte('r');
-      xkp.writeLong(position);
-      xkp.writeLong(position);
-      xkp.writeLong(0);
-      xkp.writeLong(System.currentTimeMillis() * 1000); // micros since epoch
-      xkp.writeByte(0);
+      log.trace("got message: {}", msg);
 
-      final ByteBuf xcd = this.ctx.alloc().buffer();
-      xcd.writeByte('d');
-      xcd.writeInt(xkp.readableBytes() + 4);
-      xcd.writeBytes(xkp);
-      ctx.writeAndFlush(xcd);
+      if (msg instanceof NotificationResponse) {
+        final Consumer<NotificationResponse> listener = notificationListener;
+        if (listener != null) {
+          listener.accept((NotificationResponse) msg);
+        }
+      }
+      else if (msg instanceof ParameterStatus) {
+        final Map<String, String> updated = new HashMap<>(serverParameters);
+        updated.put(((ParameterStatus) msg).getKey(), ((ParameterStatus) msg).getValue());
+        serverParameters = Collections.unmodifiableMap(updated);
+      }
+      else if (msg instanceof ReadyForQuery) {
+        transactionStatus = ((ReadyForQuery) msg).getStatus();
+        final PgExchange completed = this.inflight.poll();
+        if (completed != null) {
+          outstanding.decrementAndGet();
+          completed.onReady(transactionStatus);
+          if (completed == this.cancelling) {
+            this.cancelling = null;
+          }
+        }
+        else {
+          log.warn("ReadyForQuery with no exchange in flight");
+        }
+        this.drain();
+      }
+      else if (!this.inflight.isEmpty()) {
+        this.inflight.peek().onMessage(ctx, msg);
+      }
+      else if (msg instanceof ErrorResponse) {
+        final String message = ((ErrorResponse) msg).toServerErrorMessage().toString();
+        log.warn("connection error: {}", message);
+        if (!connected.hasValue()) {
+          connected.onError(new PostgresqlUnavailableException(message));
+        }
+        ctx.close();
+      }
+      else {
+        log.warn("unexpected message with no active exchange: {}", msg);
+      }
 
     }
 
@@ -238,34 +418,69 @@ public class PgConnection extends AbstractConnection {
     public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
 
       if (evt instanceof PostgreSQLHandshakeCompleteEvent) {
+        final PostgreSQLHandshakeCompleteEvent e = (PostgreSQLHandshakeCompleteEvent) evt;
         this.ctx = ctx;
+        backendKey = e.getBackendKey();
+        serverParameters = Collections.unmodifiableMap(new HashMap<>(e.getParameters()));
         // no need to leave it laying around.
         ctx.channel().pipeline().remove(PostgreSQLClientNegotiation.class);
-        nextStage();
+        connected.onSuccess(PgConnection.this);
       }
 
+      super.userEventTriggered(ctx, evt);
+
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+      final PgExchange last = this.inflight.peekLast();
+      if (last != null && !last.isSealed()) {
+        last.onWritabilityChanged(ctx);
+      }
+      super.channelWritabilityChanged(ctx);
     }
 
     @Override
-    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
-      this.future = ctx.executor().scheduleWithFixedDelay(this::sendKeepalive, 5, 5, TimeUnit.SECONDS);
-      super.channelActive(ctx);
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) throws Exception {
+      log.warn("connection failed: {}", cause.getMessage(), cause);
+      this.failAll(cause);
+      ctx.close();
     }
 
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
-      if (this.future != null) {
-        this.future.cancel(true);
-      }
+      log.debug("connection closed");
+      this.failAll(new PostgresqlUnavailableException("connection closed"));
+      PgConnection.this.closed.onComplete();
       super.channelInactive(ctx);
     }
 
+    private void failAll(final Throwable cause) {
+
+      this.closed = true;
+
+      if (!connected.hasValue() && !connected.hasThrowable()) {
+        connected.onError(new PostgresqlUnavailableException(cause));
+      }
+
+      PgExchange next;
+
+      while ((next = this.inflight.poll()) != null) {
+        outstanding.decrementAndGet();
+        next.onFailure(cause);
+      }
+
+      while ((next = this.pending.poll()) != null) {
+        outstanding.decrementAndGet();
+        next.onFailure(cause);
+      }
+
+    }
+
   }
 
   @SneakyThrows
-  void connect(final String host, final int port) {
-
-    final Bootstrap b = new Bootstrap();
+  private SSLEngine createSslEngine() {
 
     final TrustManagerFactory tmFactory = InsecureTrustManagerFactory.INSTANCE;
     // TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
@@ -293,21 +508,58 @@ public class PgConnection extends AbstractConnection {
     sslEngine.setEnabledCipherSuites(sslEngine.getSupportedCipherSuites());
     sslEngine.setEnableSessionCreation(true);
 
+    return sslEngine;
+
+  }
+
+  void connect(final String host, final int port) {
+
+    final SocketAddress address = NettyTransport.address(host, port);
+
+    this.address = address;
+
+    // the server never offers TLS over a unix socket, so don't bother asking.
+    final boolean local = NettyTransport.isDomainSocket(host);
+
+    final Bootstrap b = new Bootstrap();
+
     b.group(group)
-        .channel(NioSocketChannel.class)
-        .option(ChannelOption.TCP_NODELAY, true)
-        .handler(new ChannelInitializer<SocketChannel>() {
+        .channel(NettyTransport.channelType(group, address))
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+        .handler(new ChannelInitializer<Channel>() {
           @Override
-          public void initChannel(final SocketChannel ch) throws Exception {
+          public void initChannel(final Channel ch) throws Exception {
 
             final ChannelPipeline p = ch.pipeline();
-            p.addLast(new PostgreSQLClientTlsNegotiation(sslEngine, PgConnection.this.params, new Handler(), password));
+
+            if (ssl && !local) {
+              p.addLast(new PostgreSQLClientTlsNegotiation(createSslEngine(), PgConnection.this.params, handler, password));
+            }
+            else {
+              p.addLast(new PostgreSQLDecoder());
+              p.addLast(new PostgreSQLEncoder());
+              p.addLast(new PostgreSQLClientNegotiation(PgConnection.this.params, password));
+              p.addLast(handler);
+            }
 
           }
         });
 
+    if (!local) {
+      b.option(ChannelOption.TCP_NODELAY, true);
+    }
+
     // attempt to connect.
-    this.connectFuture = b.connect(host, port);
+    final ChannelFuture connectFuture = b.connect(address);
+
+    this.channel = connectFuture.channel();
+
+    connectFuture.addListener(f -> {
+      if (!f.isSuccess() && !this.connected.hasThrowable()) {
+        log.warn("failed to connect to {}:{}: {}", host, port, f.cause().getMessage());
+        this.connected.onError(new PostgresqlUnavailableException(f.cause()));
+      }
+    });
 
   }
 
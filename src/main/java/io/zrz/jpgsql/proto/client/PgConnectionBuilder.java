@@ -1,22 +1,35 @@
 package io.zrz.jpgsql.proto.client;
 
+import java.time.Duration;
+
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.zrz.jpgsql.proto.netty.NettyTransport;
 
 public class PgConnectionBuilder {
 
-  private static final EventLoopGroup DEFAULT_EVENT_LOOP_GROUP = new NioEventLoopGroup();
-
-  EventLoopGroup group = DEFAULT_EVENT_LOOP_GROUP;
+  EventLoopGroup group = NettyTransport.nioGroup();
   String username;
   String database;
   String password;
+  String applicationName;
+  boolean ssl = true;
+  Duration connectTimeout = Duration.ofSeconds(5);
+  int statementCacheSize = 256;
 
   public PgConnectionBuilder group(EventLoopGroup group) {
     this.group = group;
     return this;
   }
 
+  /**
+   * use the shared native epoll event loop group instead of NIO. needed to connect over a unix socket, linux only.
+   */
+
+  public PgConnectionBuilder epoll() {
+    this.group = NettyTransport.epollGroup();
+    return this;
+  }
+
   public PgConnectionBuilder username(String username) {
     this.username = username;
     return this;
@@ -32,6 +45,41 @@ public class PgConnectionBuilder {
     return this;
   }
 
+  public PgConnectionBuilder applicationName(String applicationName) {
+    this.applicationName = applicationName;
+    return this;
+  }
+
+  /**
+   * if we should attempt to negotiate TLS before startup. defaults to true, falls back to plain text if the server
+   * refuses.
+   */
+
+  public PgConnectionBuilder ssl(boolean ssl) {
+    this.ssl = ssl;
+    return this;
+  }
+
+  public PgConnectionBuilder connectTimeout(Duration connectTimeout) {
+    this.connectTimeout = connectTimeout;
+    return this;
+  }
+
+  /**
+   * the number of named prepared statements each connection keeps open on the backend. zero disables caching, so every
+   * query is parsed as the unnamed statement.
+   */
+
+  public PgConnectionBuilder statementCacheSize(int statementCacheSize) {
+    this.statementCacheSize = statementCacheSize;
+    return this;
+  }
+
+  /**
+   * @param host
+   *          the hostname, or (as with libpq) a directory starting with '/' containing the server's unix socket.
+   */
+
   public PgConnection newConnection(String host, int port) {
     PgConnection conn = new PgConnection(this);
     conn.connect(host, port);
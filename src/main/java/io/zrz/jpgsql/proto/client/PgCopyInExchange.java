@@ -0,0 +1,186 @@
+package io.zrz.jpgsql.proto.client;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.reactivex.SingleEmitter;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.proto.wire.CommandComplete;
+import io.zrz.jpgsql.proto.wire.CopyData;
+import io.zrz.jpgsql.proto.wire.CopyDone;
+import io.zrz.jpgsql.proto.wire.CopyFail;
+import io.zrz.jpgsql.proto.wire.CopyInResponse;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
+import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
+import io.zrz.jpgsql.proto.wire.Query;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * performs a COPY ... FROM STDIN, streaming the upstream buffers to the backend as CopyData.
+ *
+ * the upstream is only subscribed once the backend has sent CopyInResponse. each buffer is sent as the payload of a
+ * CopyData frame without being copied, and released once written. more is only requested from upstream while the
+ * channel is writable, so a fast producer can't fill the heap faster than the network drains it.
+ *
+ * emits the number of rows copied. nothing is pipelined behind the copy until it has sent CopyDone or CopyFail.
+ */
+
+@Slf4j
+final class PgCopyInExchange extends PgExchange implements Subscriber<ByteBuf> {
+
+  // how many buffers we ask upstream for at a time.
+  private static final int PREFETCH = 8;
+
+  private final String sql;
+  private final Publisher<ByteBuf> upstream;
+  private final byte[] preamble;
+  private final SingleEmitter<Long> emitter;
+
+  private ChannelHandlerContext ctx;
+  private volatile Subscription subscription;
+  private boolean copying;
+  private long requested;
+  private long rows;
+  private Throwable error;
+
+  /**
+   * @param preamble
+   *          written before the first upstream buffer, or null.
+   */
+
+  PgCopyInExchange(final String sql, final Publisher<ByteBuf> upstream, final byte[] preamble, final SingleEmitter<Long> emitter) {
+    this.sql = sql;
+    this.upstream = upstream;
+    this.preamble = preamble;
+    this.emitter = emitter;
+  }
+
+  @Override
+  void start(final ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+    ctx.write(new Query(this.sql));
+  }
+
+  @Override
+  void onMessage(final ChannelHandlerContext ctx, final PostgreSQLPacket msg) {
+
+    if (msg instanceof CopyInResponse && this.emitter.isDisposed()) {
+      // the subscriber went away before the backend was ready.
+      ctx.writeAndFlush(new CopyFail("cancelled"));
+    }
+    else if (msg instanceof CopyInResponse) {
+      this.copying = true;
+      if (this.preamble != null) {
+        ctx.write(new CopyData(Unpooled.wrappedBuffer(this.preamble)));
+      }
+      this.upstream.subscribe(this);
+    }
+    else if (msg instanceof CommandComplete) {
+      this.rows = ((CommandComplete) msg).getUpdateCount();
+    }
+    else if (msg instanceof ErrorResponse) {
+      // the backend has left copy mode, and ignores any CopyData still on the way.
+      this.copying = false;
+      this.seal();
+      this.cancel();
+      this.error = new ErrorResult(null, 0, ((ErrorResponse) msg).toServerErrorMessage().toString(), null,
+          ((ErrorResponse) msg).toServerErrorMessage(), null);
+    }
+    else {
+      log.trace("ignoring {}", msg);
+    }
+
+  }
+
+  @Override
+  void onReady(final TransactionStatus status) {
+    this.seal();
+    if (this.error != null) {
+      this.emitter.tryOnError(this.error);
+    }
+    else {
+      this.emitter.onSuccess(this.rows);
+    }
+  }
+
+  @Override
+  void onFailure(final Throwable cause) {
+    this.cancel();
+    this.emitter.tryOnError(cause);
+  }
+
+  @Override
+  void onWritabilityChanged(final ChannelHandlerContext ctx) {
+    this.request();
+  }
+
+  /**
+   * ask upstream for another batch once the last one has arrived, as long as the channel can take it. called on the
+   * event loop.
+   */
+
+  private void request() {
+    final Subscription s = this.subscription;
+    if (s != null && this.copying && this.requested == 0 && this.ctx.channel().isWritable()) {
+      this.requested = PREFETCH;
+      s.request(PREFETCH);
+    }
+  }
+
+  private void cancel() {
+    final Subscription s = this.subscription;
+    if (s != null) {
+      s.cancel();
+    }
+  }
+
+  // -- upstream, may be called from any thread.
+
+  @Override
+  public void onSubscribe(final Subscription s) {
+    this.subscription = s;
+    this.ctx.executor().execute(this::request);
+  }
+
+  @Override
+  public void onNext(final ByteBuf buf) {
+    this.ctx.executor().execute(() -> {
+      this.requested--;
+      if (this.copying) {
+        this.ctx.writeAndFlush(new CopyData(buf));
+        this.request();
+      }
+      else {
+        buf.release();
+      }
+    });
+  }
+
+  @Override
+  public void onError(final Throwable t) {
+    this.ctx.executor().execute(() -> {
+      if (this.copying) {
+        this.copying = false;
+        this.ctx.writeAndFlush(new CopyFail(String.valueOf(t.getMessage())));
+        this.seal();
+      }
+    });
+  }
+
+  @Override
+  public void onComplete() {
+    this.ctx.executor().execute(() -> {
+      if (this.copying) {
+        this.copying = false;
+        this.ctx.writeAndFlush(new CopyDone());
+        this.seal();
+      }
+    });
+  }
+
+}
@@ -0,0 +1,180 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.util.ArrayDeque;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.reactivex.FlowableEmitter;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.proto.wire.CopyData;
+import io.zrz.jpgsql.proto.wire.CopyInResponse;
+import io.zrz.jpgsql.proto.wire.CopyFail;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
+import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
+import io.zrz.jpgsql.proto.wire.Query;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * performs a COPY ... TO STDOUT, emitting the payload of each CopyData as it arrives.
+ *
+ * each emitted buffer is a retained slice of the inbound buffer, so is not copied - the subscriber must release it.
+ * while the subscriber has no outstanding demand we stop reading from the channel, so the backend is held up by TCP
+ * flow control rather than the rows piling up in our heap. the few which arrive after that are held here rather than
+ * in the emitter, which would drop them without releasing them if the subscriber went away. if it does, they are
+ * released and the backend is asked to cancel the copy, and anything still arriving is dropped.
+ *
+ * the emitter must be created with {@link io.reactivex.BackpressureStrategy#MISSING}, as it is only given what has been
+ * requested.
+ */
+
+@Slf4j
+final class PgCopyOutExchange extends PgExchange {
+
+  private final String sql;
+  private final FlowableEmitter<ByteBuf> emitter;
+
+  private ErrorResult error;
+
+  // set once started, used to resume when the subscriber requests more.
+  private volatile ChannelHandlerContext ctx;
+
+  // we turned off autoRead on the channel as the subscriber has no outstanding demand.
+  private boolean paused;
+
+  // we've asked the backend to abandon the copy, or it has finished anyway.
+  private boolean cancelled;
+
+  // received but not yet requested.
+  private final ArrayDeque<ByteBuf> queued = new ArrayDeque<>();
+
+  // the backend has finished, so we complete once the queue has been drained.
+  private boolean done;
+
+  PgCopyOutExchange(final String sql, final FlowableEmitter<ByteBuf> emitter) {
+    this.sql = sql;
+    this.emitter = emitter;
+  }
+
+  @Override
+  void start(final ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+    ctx.write(new Query(this.sql));
+    // the backend doesn't read anything we send while copying out, so whatever follows can be written straight away.
+    this.seal();
+  }
+
+  @Override
+  void onMessage(final ChannelHandlerContext ctx, final PostgreSQLPacket msg) {
+
+    if (msg instanceof CopyData) {
+      if (this.emitter.isCancelled()) {
+        this.discard();
+        return;
+      }
+      this.queued.add(((CopyData) msg).content().retainedSlice());
+      this.drain();
+      if (!this.paused && !this.queued.isEmpty()) {
+        this.paused = true;
+        ctx.channel().config().setAutoRead(false);
+      }
+    }
+    else if (msg instanceof ErrorResponse) {
+      this.error = new ErrorResult(null, 0, ((ErrorResponse) msg).toServerErrorMessage().toString(), null,
+          ((ErrorResponse) msg).toServerErrorMessage(), null);
+    }
+    else if (msg instanceof CopyInResponse) {
+      ctx.writeAndFlush(new CopyFail("COPY FROM STDIN is not supported in copyFrom(), use copyTo()"));
+    }
+    else {
+      log.trace("ignoring {}", msg);
+    }
+
+  }
+
+  @Override
+  void onReady(final TransactionStatus status) {
+    this.cancelled = true;
+    this.done = true;
+    this.unpause();
+    this.drain();
+  }
+
+  @Override
+  void onFailure(final Throwable cause) {
+    this.discard();
+    this.emitter.tryOnError(cause);
+  }
+
+  /**
+   * the subscriber has requested more, or cancelled. may be called from any thread.
+   */
+
+  void requested() {
+    final ChannelHandlerContext ctx = this.ctx;
+    if (ctx != null) {
+      ctx.executor().execute(this::resume);
+    }
+  }
+
+  private void resume() {
+
+    if (this.emitter.requested() <= 0 && !this.emitter.isCancelled()) {
+      return;
+    }
+
+    if (this.emitter.isCancelled()) {
+      this.discard();
+      if (!this.cancelled) {
+        this.cancelled = true;
+        this.cancelQuery();
+      }
+    }
+
+    this.drain();
+
+    if (this.queued.isEmpty()) {
+      this.unpause();
+    }
+
+  }
+
+  /**
+   * emit as much of the queue as has been requested, then complete if the backend has finished.
+   */
+
+  private void drain() {
+
+    while (!this.queued.isEmpty() && this.emitter.requested() > 0 && !this.emitter.isCancelled()) {
+      this.emitter.onNext(this.queued.poll());
+    }
+
+    if (this.emitter.isCancelled()) {
+      this.discard();
+    }
+    else if (this.done && this.queued.isEmpty()) {
+      if (this.error != null) {
+        this.emitter.tryOnError(this.error);
+      }
+      else {
+        this.emitter.onComplete();
+      }
+    }
+
+  }
+
+  private void discard() {
+    ByteBuf buf;
+    while ((buf = this.queued.poll()) != null) {
+      buf.release();
+    }
+  }
+
+  private void unpause() {
+    if (this.paused) {
+      this.paused = false;
+      this.ctx.channel().config().setAutoRead(true);
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+package io.zrz.jpgsql.proto.client;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+
+/**
+ * a single request/response interaction with the backend, terminated by a ReadyForQuery.
+ *
+ * exchanges are pipelined: once an exchange is sealed (it has written the Sync or simple Query which will produce its
+ * ReadyForQuery), the next exchange on the connection may write its frames straight after, without waiting for the
+ * response.
+ *
+ * all methods are called on the connection's event loop.
+ */
+
+abstract class PgExchange {
+
+  private boolean sealed;
+  private Runnable onSealed;
+  private Runnable canceller;
+
+  /**
+   * write the frames for this exchange. the connection flushes once this returns.
+   */
+
+  abstract void start(ChannelHandlerContext ctx);
+
+  /**
+   * a backend message belonging to this exchange. any {@link io.netty.buffer.ByteBuf} content is released after this
+   * returns, so must be retained if needed.
+   */
+
+  abstract void onMessage(ChannelHandlerContext ctx, PostgreSQLPacket msg);
+
+  /**
+   * the ReadyForQuery for this exchange was received. no more messages will be delivered.
+   */
+
+  abstract void onReady(TransactionStatus status);
+
+  /**
+   * the connection failed before the exchange completed.
+   */
+
+  abstract void onFailure(Throwable cause);
+
+  /**
+   * the channel's writability changed while this exchange was the last one written. an exchange streaming data to the
+   * backend uses this to stop pulling from upstream while the outbound buffer is full.
+   */
+
+  void onWritabilityChanged(final ChannelHandlerContext ctx) {
+  }
+
+  /**
+   * called by the implementation once it has written the last frame it will send before its ReadyForQuery. an exchange
+   * must not seal while the backend could still be in a state where frames from the next exchange would be
+   * misinterpreted (e.g, COPY IN).
+   */
+
+  final void seal() {
+    if (!this.sealed) {
+      this.sealed = true;
+      if (this.onSealed != null) {
+        this.onSealed.run();
+      }
+    }
+  }
+
+  final boolean isSealed() {
+    return this.sealed;
+  }
+
+  /**
+   * set by the connection to continue writing pipelined exchanges.
+   */
+
+  final void onSealed(final Runnable onSealed) {
+    this.onSealed = onSealed;
+  }
+
+  /**
+   * ask the backend to stop running this exchange. the connection only sends a CancelRequest if this exchange is at the
+   * head of those in flight, as the cancel applies to whatever the backend happens to be running when it arrives. if it
+   * lands the exchange sees an ErrorResponse (57014) and completes as normal. if it arrives too late it may hit the
+   * exchange behind instead, which then fails with that error rather than a made up one.
+   */
+
+  final void cancelQuery() {
+    if (this.canceller != null) {
+      this.canceller.run();
+    }
+  }
+
+  /**
+   * set by the connection when the exchange is started.
+   */
+
+  final void canceller(final Runnable canceller) {
+    this.canceller = canceller;
+  }
+
+}
@@ -0,0 +1,426 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+import org.postgresql.core.Notification;
+import org.reactivestreams.Publisher;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteSource;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoopGroup;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+import io.zrz.jpgsql.client.AbstractPostgresClient;
+import io.zrz.jpgsql.client.AbstractQueryExecutionBuilder.Tuple;
+import io.zrz.jpgsql.client.CombinedQuery;
+import io.zrz.jpgsql.client.CommandStatus;
+import io.zrz.jpgsql.client.CopyQuery;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.client.NotifyMessage;
+import io.zrz.jpgsql.client.PostgresClient;
+import io.zrz.jpgsql.client.PostgresConnectionProperties;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.QueryParameters;
+import io.zrz.jpgsql.client.QueryResult;
+import io.zrz.jpgsql.client.SimpleQuery;
+import io.zrz.jpgsql.client.opj.PgDemand;
+import io.zrz.jpgsql.client.opj.PgThreadPooledClient;
+import io.zrz.jpgsql.client.opj.PostgresQueryException;
+import io.zrz.jpgsql.proto.netty.NettyTransport;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import io.zrz.sqlwriter.SqlWriters;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * a {@link PostgresClient} which runs entirely on the netty event loop - no threads are parked waiting on the network.
+ *
+ * every connection comes from a single {@link PgPool}, so no more than {@link PostgresConnectionProperties#getMaxPoolSize()}
+ * are ever open in total. queries are spread over connections shared from the pool, taking another from it while the
+ * shared ones are all busy, and pipelined on the least busy one once the pool is used up. sessions, COPY and
+ * notifications need a connection to themselves, which they acquire from the same pool and give back once they are
+ * done - so while they hold connections, there are fewer to share queries over.
+ *
+ */
+
+@Slf4j
+public class PgNettyClient extends AbstractPostgresClient implements PostgresClient, AutoCloseable {
+
+  private static final int COPY_CHUNK_SIZE = 1024 * 64;
+
+  // DISCARD ALL, less the DEALLOCATE ALL which would drop the statements in the connection's cache.
+  private static final List<String> RESET = Arrays.asList(
+      "CLOSE ALL",
+      "SET SESSION AUTHORIZATION DEFAULT",
+      "RESET ALL",
+      "UNLISTEN *",
+      "SELECT pg_advisory_unlock_all()",
+      "DISCARD PLANS",
+      "DISCARD TEMP",
+      "DISCARD SEQUENCES");
+
+  @Getter
+  private final PostgresConnectionProperties config;
+
+  private final PgConnectionBuilder builder;
+  private final PgPool pool;
+  private volatile boolean closed;
+
+  PgNettyClient(PostgresConnectionProperties config, final EventLoopGroup group) {
+
+    if (config == null) {
+      config = PostgresConnectionProperties.builder().build();
+    }
+
+    this.config = config;
+
+    final String hostname = config.getHostname() == null ? "localhost" : config.getHostname();
+
+    this.builder = new PgConnectionBuilder()
+        .username(config.getUsername())
+        .password(config.getPassword())
+        .database(config.getDbname())
+        .applicationName(config.getApplicationName())
+        .ssl(config.isSsl())
+        .connectTimeout(config.getConnectTimeout())
+        .statementCacheSize(config.getStatementCacheSize());
+
+    if (group != null) {
+      this.builder.group(group);
+    }
+    else if (NettyTransport.isDomainSocket(hostname)) {
+      // a unix socket needs the native transport.
+      this.builder.epoll();
+    }
+
+    this.pool = PgPool.create(this.builder, config);
+
+  }
+
+  public static PgNettyClient create(final PostgresConnectionProperties config, final EventLoopGroup group) {
+    return new PgNettyClient(config, group);
+  }
+
+  public static PgNettyClient create(final PostgresConnectionProperties config) {
+    return create(config, null);
+  }
+
+  public static PgNettyClient create(final String hostname, final String dbname) {
+    return create(PostgresConnectionProperties.builder()
+        .hostname(hostname)
+        .dbname(dbname)
+        .build());
+  }
+
+  /**
+   * a connection for exclusive use, which must be given back with {@link #release(PgConnection)}.
+   */
+
+  Single<PgConnection> acquire() {
+    return this.pool.acquire();
+  }
+
+  /**
+   * give back a connection which a session or LISTEN has had to itself. anything left open is rolled back, and whatever
+   * else they may have changed on it (settings, LISTENs, advisory locks, temporary tables ...) is reset first so it
+   * doesn't leak into whoever has it next. the connection is closed instead if that fails.
+   */
+
+  void release(final PgConnection conn) {
+
+    conn.notificationListener(null);
+
+    if (!conn.isActive()) {
+      this.pool.release(conn);
+      return;
+    }
+
+    final List<SimpleQuery> reset = new ArrayList<>();
+
+    if (conn.getTransactionStatus() != TransactionStatus.Idle) {
+      reset.add(new SimpleQuery("ROLLBACK"));
+    }
+
+    RESET.forEach(sql -> reset.add(new SimpleQuery(sql)));
+
+    execute(conn, new CombinedQuery(reset), null, 0)
+        .ignoreElements()
+        .subscribe(
+            () -> this.pool.release(conn),
+            err -> {
+              log.warn("failed to reset connection: {}", err.getMessage());
+              conn.close();
+              this.pool.release(conn);
+            });
+
+  }
+
+  /**
+   * runs on a connection shared from the pool, giving it back once done.
+   */
+
+  private <T> Flowable<T> shared(final Function<PgConnection, Flowable<T>> work) {
+    Preconditions.checkState(!this.closed, "client is closed");
+    return this.pool.share().flatMapPublisher(conn -> work.apply(conn).doFinally(() -> this.pool.unshare(conn)));
+  }
+
+  @Override
+  public Flowable<QueryResult> submit(final Query query, final QueryParameters params) {
+    return submit(query, params, 0);
+  }
+
+  public Flowable<QueryResult> submit(final Query query, final QueryParameters params, final int fetchSize) {
+    if (query instanceof CopyQuery) {
+      return wrap(query, this.pool.acquire()
+          .flatMapPublisher(conn -> copy(conn, (CopyQuery) query).doFinally(() -> this.pool.release(conn))));
+    }
+    return wrap(query, this.shared(conn -> execute(conn, query, params, fetchSize)));
+  }
+
+  /**
+   * sends the whole batch in a single round trip on one of the shared connections.
+   */
+
+  @Override
+  public Flowable<int[]> executeBatch(final Query query, final List<QueryParameters> params) {
+    return wrap(query, this.shared(conn -> batch(conn, query, params)));
+  }
+
+  @Override
+  public Flowable<QueryResult> fetch(final int fetchSize, final Tuple tuple) {
+    return submit(tuple.getQuery(), tuple.getParams(), fetchSize);
+  }
+
+  @Override
+  public Flowable<QueryResult> submit(final Query query) {
+    return this.submit(query, null);
+  }
+
+  @Override
+  public Flowable<QueryResult> submit(final String sql) {
+    return this.submit(this.createQuery(sql));
+  }
+
+  @Override
+  public Flowable<QueryResult> submit(final String sql, final Object... params) {
+    final Query query = this.createQuery(sql, params.length);
+    final QueryParameters qp = query.createParameters();
+    qp.setFrom(params);
+    return this.submit(query, qp);
+  }
+
+  /**
+   * run a query on the given connection. nothing is sent until subscribed. results are only read from the connection
+   * while the subscriber has outstanding demand.
+   */
+
+  static Flowable<QueryResult> execute(final PgConnection conn, final Query query, final QueryParameters params, final int fetchSize) {
+    return Flowable.defer(() -> {
+      final PgDemand<QueryResult> demand = new PgDemand<>();
+      return Flowable.<QueryResult>create(emitter -> {
+        final PgQueryExchange exchange = new PgQueryExchange(query, params, fetchSize, conn.statementCache(), emitter);
+        demand.onRequest(exchange::requested);
+        conn.submit(exchange);
+      }, BackpressureStrategy.BUFFER).lift(demand);
+    });
+  }
+
+  /**
+   * run a single statement once for each set of parameters on the given connection, emitting the update counts. nothing
+   * is sent until subscribed.
+   */
+
+  static Flowable<int[]> batch(final PgConnection conn, final Query query, final List<QueryParameters> params) {
+    Preconditions.checkArgument(query.getSubqueries().size() == 1, "batches must be a single statement");
+    if (params.isEmpty()) {
+      return Flowable.just(new int[0]);
+    }
+    return Single.<int[]>create(emitter -> conn.submit(new PgBatchExchange(query, params, conn.statementCache(), emitter))).toFlowable();
+  }
+
+  /**
+   * run a {@link CopyQuery} on the given connection, emitting a single {@link CommandStatus}.
+   */
+
+  static Flowable<QueryResult> copy(final PgConnection conn, final CopyQuery query) {
+    return copyIn(conn, query.command(), chunks(query::data), null)
+        .map(rows -> (QueryResult) new CommandStatus(0, "COPY", (int) (long) rows, 0))
+        .toFlowable();
+  }
+
+  /**
+   * perform a COPY FROM STDIN on the given connection. nothing is sent until subscribed.
+   */
+
+  static Single<Long> copyIn(final PgConnection conn, final String sql, final Publisher<ByteBuf> upstream, final byte[] preamble) {
+    return Single.create(emitter -> conn.submit(new PgCopyInExchange(sql, upstream, preamble, emitter)));
+  }
+
+  /**
+   * perform a COPY TO STDOUT on the given connection. nothing is sent until subscribed. data is only read from the
+   * connection while the subscriber has outstanding demand.
+   */
+
+  static Flowable<ByteBuf> copyOut(final PgConnection conn, final String sql) {
+    return Flowable.defer(() -> {
+      final PgDemand<ByteBuf> demand = new PgDemand<>();
+      return Flowable.<ByteBuf>create(emitter -> {
+        final PgCopyOutExchange exchange = new PgCopyOutExchange(sql, emitter);
+        demand.onRequest(exchange::requested);
+        conn.submit(exchange);
+      }, BackpressureStrategy.MISSING).lift(demand);
+    });
+  }
+
+  /**
+   * reads the stream in chunks, each emitted as a buffer. reads happen on the io scheduler, never the event loop.
+   */
+
+  static Flowable<ByteBuf> chunks(final Callable<InputStream> source) {
+    return Flowable.using(
+        source,
+        in -> Flowable.<ByteBuf>generate(emitter -> {
+          final byte[] chunk = new byte[COPY_CHUNK_SIZE];
+          final int len = in.read(chunk);
+          if (len == -1) {
+            emitter.onComplete();
+          }
+          else {
+            emitter.onNext(Unpooled.wrappedBuffer(chunk, 0, len));
+          }
+        }),
+        InputStream::close)
+        .subscribeOn(Schedulers.io());
+  }
+
+  /**
+   * map so we have the stacktrace from caller, not nested. results are always delivered on the computation scheduler
+   * so slow consumers never run on the event loop.
+   */
+
+  static <T> Flowable<T> wrap(final Query query, final Flowable<T> res) {
+
+    final PostgresQueryException trace = new PostgresQueryException(query);
+
+    return res
+        .onErrorResumeNext(err -> {
+
+          trace.initCause(err);
+
+          if (err instanceof ErrorResult) {
+            trace.setErrorResult((ErrorResult) err);
+          }
+
+          return Flowable.error(trace);
+
+        })
+        .rebatchRequests(8)
+        .observeOn(Schedulers.computation(), true);
+
+  }
+
+  @Override
+  public PgNettyTransactionalSession open() {
+    log.debug("opening transactional session");
+    return new PgNettyTransactionalSession(this, this.acquire());
+  }
+
+  @Override
+  public PgNettySession openSession() {
+    log.debug("opening single session");
+    return new PgNettySession(this, this.acquire());
+  }
+
+  /**
+   * Takes a connection from the pool which monitors for NOTIFY messages. It is given back when the subscription is
+   * cancelled.
+   */
+
+  @Override
+  public Flowable<NotifyMessage> notifications(final Collection<String> channels) {
+
+    final Query listen = new CombinedQuery(
+        channels.stream()
+            .map(channel -> new SimpleQuery(SqlWriters.listen(channel).asString()))
+            .collect(Collectors.toList()));
+
+    return this.pool.acquire().flatMapPublisher(conn -> Flowable.<NotifyMessage>create(emitter -> {
+
+      final Disposable closed = conn.closed()
+          .subscribe(() -> emitter.tryOnError(new PostgresqlUnavailableException("notification connection closed")));
+
+      emitter.setCancellable(() -> {
+        closed.dispose();
+        this.release(conn);
+      });
+
+      conn.notificationListener(n -> emitter.onNext(new NotifyMessage(new Notification(n.getChannel(), n.getProcessId(), n.getPayload()))));
+
+      execute(conn, listen, null, 0)
+          .subscribe(
+              res -> log.debug("listen: {}", res),
+              emitter::tryOnError,
+              () -> log.info("started notify connection"));
+
+    }, BackpressureStrategy.BUFFER));
+
+  }
+
+  /**
+   * take a connection from the pool and copy to it. the upstream buffers are expected to be binary COPY tuples, the
+   * preamble is written for you.
+   */
+
+  @Override
+  public Flowable<Long> copyTo(final String sql, final Publisher<ByteBuf> data) {
+    return this.pool.acquire()
+        .flatMap(conn -> copyIn(conn, sql, data, PgThreadPooledClient.BINARY_PREAMBLE).doFinally(() -> this.pool.release(conn)))
+        .toFlowable();
+  }
+
+  /**
+   * take a connection from the pool and copy from it.
+   */
+
+  @Override
+  public Flowable<ByteBuf> copyFrom(final String sql) {
+    return this.pool.acquire()
+        .flatMapPublisher(conn -> copyOut(conn, sql).doFinally(() -> this.pool.release(conn)));
+  }
+
+  @Override
+  public Flowable<Long> copyTo(final String sql, final ByteSource source) {
+    return copyTo(sql, chunks(source::openBufferedStream));
+  }
+
+  @Override
+  public PostgresConnectionProperties config() {
+    return this.config;
+  }
+
+  @Override
+  public PostgresClient client() {
+    return this;
+  }
+
+  @Override
+  public void close() {
+    this.closed = true;
+    this.pool.close();
+  }
+
+}
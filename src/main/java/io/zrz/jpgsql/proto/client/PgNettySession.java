@@ -0,0 +1,163 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.postgresql.core.Notification;
+import org.reactivestreams.Publisher;
+
+import com.google.common.io.ByteSource;
+
+import io.netty.buffer.ByteBuf;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.processors.UnicastProcessor;
+import io.zrz.jpgsql.client.AbstractQueryExecutionBuilder.Tuple;
+import io.zrz.jpgsql.client.NotifyMessage;
+import io.zrz.jpgsql.client.PgSession;
+import io.zrz.jpgsql.client.PostgresClient;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.QueryParameters;
+import io.zrz.jpgsql.client.QueryResult;
+import io.zrz.jpgsql.client.opj.PgThreadPooledClient;
+import io.zrz.jpgsql.proto.wire.NotificationResponse;
+import io.zrz.sqlwriter.SqlWriters;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * a single connection taken from the pool, outside the scope of a transaction (although transactions may be started).
+ * it is reset and given back when the session is closed.
+ */
+
+@Slf4j
+public class PgNettySession implements PgSession {
+
+  private final PgNettyClient client;
+  private final Single<PgConnection> conn;
+  private final Map<String, UnicastProcessor<NotifyMessage>> listeners = new ConcurrentHashMap<>();
+
+  // if we are accepting work still
+  private volatile boolean accepting = true;
+
+  PgNettySession(final PgNettyClient client, final Single<PgConnection> acquire) {
+    this.client = client;
+    this.conn = acquire
+        .doOnSuccess(conn -> conn.notificationListener(this::notification))
+        .cache();
+    // start waiting for it now, rather than on the first query.
+    this.conn.subscribe(conn -> log.debug("acquired connection"), err -> log.warn("failed to acquire connection: {}", err.getMessage()));
+  }
+
+  private void checkAccepting() {
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+  }
+
+  @Override
+  public Flowable<QueryResult> submit(final Query query, final QueryParameters params) {
+    this.checkAccepting();
+    return PgNettyClient.wrap(query, this.conn.flatMapPublisher(conn -> PgNettyClient.execute(conn, query, params, 0)));
+  }
+
+  @Override
+  public Flowable<QueryResult> fetch(final int batchSize, final Tuple tuple) {
+    this.checkAccepting();
+    return PgNettyClient.wrap(tuple.getQuery(),
+        this.conn.flatMapPublisher(conn -> PgNettyClient.execute(conn, tuple.getQuery(), tuple.getParams(), batchSize)));
+  }
+
+  @Override
+  public Flowable<int[]> executeBatch(final Query query, final List<QueryParameters> params) {
+    this.checkAccepting();
+    return PgNettyClient.wrap(query, this.conn.flatMapPublisher(conn -> PgNettyClient.batch(conn, query, params)));
+  }
+
+  @Override
+  public Flowable<Long> copyTo(final String sql, final Publisher<ByteBuf> data) {
+    log.debug("starting COPY TO: {}", sql);
+    this.checkAccepting();
+    return this.conn.flatMap(conn -> PgNettyClient.copyIn(conn, sql, data, PgThreadPooledClient.BINARY_PREAMBLE)).toFlowable();
+  }
+
+  @Override
+  public Flowable<ByteBuf> copyFrom(final String sql) {
+    this.checkAccepting();
+    return this.conn.flatMapPublisher(conn -> PgNettyClient.copyOut(conn, sql));
+  }
+
+  @Override
+  public Flowable<Long> copyTo(final String sql, final ByteSource source) {
+    return this.copyTo(sql, PgNettyClient.chunks(source::openBufferedStream));
+  }
+
+  @Override
+  public Publisher<NotifyMessage> listen(final String channel) {
+    final UnicastProcessor<NotifyMessage> listener = UnicastProcessor.create();
+    this.listeners.put(channel, listener);
+    Flowable.fromPublisher(this.submit(SqlWriters.listen(channel)))
+        .subscribe(msg -> {
+          log.debug("subscribed to {}", channel);
+        }, err -> {
+          log.warn("notification error: {}", err);
+          final UnicastProcessor<NotifyMessage> ch = this.listeners.remove(channel);
+          ch.onError(err);
+        });
+    return listener;
+  }
+
+  private void notification(final NotificationResponse n) {
+
+    final UnicastProcessor<NotifyMessage> p = this.listeners.get(n.getChannel());
+
+    if (p == null) {
+      log.warn("notification for unknown channel {}", n.getChannel());
+      return;
+    }
+
+    log.debug("got notification for {}", n.getChannel());
+
+    p.onNext(new NotifyMessage(new Notification(n.getChannel(), n.getProcessId(), n.getPayload())));
+
+  }
+
+  /*
+   * rollback the transaction if there is one, and give the connection back.
+   */
+
+  @Override
+  public void close() {
+
+    log.debug("closing single session");
+
+    if (!this.accepting) {
+      return;
+    }
+
+    this.accepting = false;
+
+    this.listeners.values().forEach(UnicastProcessor::onComplete);
+    this.listeners.clear();
+
+    // the reset rolls back anything left open.
+    this.conn.subscribe(this.client::release, err -> log.debug("closed without a connection"));
+
+  }
+
+  @Override
+  public Query createQuery(final String sql, final int paramcount) {
+    return this.client.createQuery(sql, paramcount);
+  }
+
+  @Override
+  public Query createQuery(final List<Query> combine) {
+    return this.client.createQuery(combine);
+  }
+
+  @Override
+  public PostgresClient client() {
+    return this.client;
+  }
+
+}
@@ -0,0 +1,246 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.reactivestreams.Publisher;
+
+import com.google.common.io.ByteSource;
+
+import io.netty.buffer.ByteBuf;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.SingleSubject;
+import io.zrz.jpgsql.client.AbstractQueryExecutionBuilder.Tuple;
+import io.zrz.jpgsql.client.PostgresClient;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.QueryParameters;
+import io.zrz.jpgsql.client.QueryResult;
+import io.zrz.jpgsql.client.SessionTxnState;
+import io.zrz.jpgsql.client.TransactionalSession;
+import io.zrz.jpgsql.client.TransactionalSessionDeadlineExceededException;
+import io.zrz.jpgsql.client.opj.PgThreadPooledClient;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * a connection taken from the pool for a consumer who is performing multiple operations on a txn.
+ *
+ * the transaction is started when the session is opened, and the session completes once the backend reports the
+ * connection idle (commit or rollback) or failed. the connection is given back at that point.
+ */
+
+@Slf4j
+public class PgNettyTransactionalSession implements TransactionalSession {
+
+  private static final Duration MAX_IDLE = Duration.ofSeconds(5);
+
+  private final SingleSubject<SessionTxnState> txnstate = SingleSubject.create();
+  private final PgNettyClient client;
+  private final Single<PgConnection> conn;
+
+  // set once the pool has handed it over.
+  private volatile PgConnection acquired;
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  // if we are accepting work still
+  private volatile boolean accepting = true;
+  private volatile Disposable idle;
+
+  PgNettyTransactionalSession(final PgNettyClient client, final Single<PgConnection> acquire) {
+    this.client = client;
+    this.conn = acquire
+        .doOnSuccess(conn -> this.acquired = conn)
+        .cache();
+    log.debug("starting txn");
+    this.run(client.createQuery("BEGIN"), null, 0)
+        .subscribe(res -> log.trace("begin: {}", res), this::failed);
+  }
+
+  /*
+   * provide the handle for observing our state.
+   */
+
+  @Override
+  public CompletableFuture<SessionTxnState> txnstate() {
+    final CompletableFuture<SessionTxnState> future = new CompletableFuture<>();
+    this.txnstate
+        .doOnError(future::completeExceptionally)
+        .subscribe(future::complete);
+    return future;
+  }
+
+  @Override
+  public Flowable<QueryResult> submit(final Query query, final QueryParameters params) {
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+    return PgNettyClient.wrap(query, this.run(query, params, 0));
+  }
+
+  @Override
+  public Flowable<QueryResult> fetch(final int batchSize, final Tuple tuple) {
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+    return PgNettyClient.wrap(tuple.getQuery(), this.run(tuple.getQuery(), tuple.getParams(), batchSize));
+  }
+
+  @Override
+  public Flowable<int[]> executeBatch(final Query query, final List<QueryParameters> params) {
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+    return PgNettyClient.wrap(query, this.conn.flatMapPublisher(conn -> PgNettyClient.batch(conn, query, params))
+        .doOnSubscribe(s -> this.cancelIdle())
+        .doFinally(this::completed));
+  }
+
+  @Override
+  public Flowable<Long> copyTo(final String sql, final Publisher<ByteBuf> data) {
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+    return this.conn.flatMap(conn -> PgNettyClient.copyIn(conn, sql, data, PgThreadPooledClient.BINARY_PREAMBLE))
+        .doOnSubscribe(d -> this.cancelIdle())
+        .doFinally(this::completed)
+        .toFlowable();
+  }
+
+  @Override
+  public Flowable<ByteBuf> copyFrom(final String sql) {
+    if (!this.accepting) {
+      throw new IllegalStateException(String.format("This session is no longer active"));
+    }
+    return this.conn.flatMapPublisher(conn -> PgNettyClient.copyOut(conn, sql))
+        .doOnSubscribe(s -> this.cancelIdle())
+        .doFinally(this::completed);
+  }
+
+  @Override
+  public Flowable<Long> copyTo(final String sql, final ByteSource source) {
+    return this.copyTo(sql, PgNettyClient.chunks(source::openBufferedStream));
+  }
+
+  /**
+   * executes on the connection, checking the transaction state reported by the backend once it completes.
+   */
+
+  private Flowable<QueryResult> run(final Query query, final QueryParameters params, final int fetchSize) {
+    return this.conn.flatMapPublisher(conn -> PgNettyClient.execute(conn, query, params, fetchSize))
+        .doOnSubscribe(s -> this.cancelIdle())
+        .doFinally(this::completed);
+  }
+
+  private void cancelIdle() {
+    final Disposable d = this.idle;
+    if (d != null) {
+      d.dispose();
+    }
+  }
+
+  /**
+   * called after each round trip.
+   */
+
+  private void completed() {
+
+    if (this.txnstate.hasValue() || this.txnstate.hasThrowable()) {
+      return;
+    }
+
+    final PgConnection conn = this.acquired;
+
+    if (conn == null || !conn.isActive()) {
+      this.failed(new PostgresqlUnavailableException("connection closed"));
+      return;
+    }
+
+    log.debug("txn state now {}", conn.getTransactionStatus());
+
+    switch (conn.getTransactionStatus()) {
+      case Idle:
+        this.accepting = false;
+        this.txnstate.onSuccess(SessionTxnState.Closed);
+        this.giveBack();
+        break;
+      case Error:
+        this.accepting = false;
+        this.txnstate.onSuccess(SessionTxnState.Error);
+        this.giveBack();
+        break;
+      case Transaction:
+        if (conn.outstanding() == 0) {
+          this.cancelIdle();
+          this.idle = Completable.timer(MAX_IDLE.toMillis(), TimeUnit.MILLISECONDS).subscribe(this::expired);
+        }
+        break;
+    }
+
+  }
+
+  private void expired() {
+    if (this.acquired.outstanding() > 0 || this.txnstate.hasValue() || this.txnstate.hasThrowable()) {
+      return;
+    }
+    log.warn("aborting transaction due to {} idle", MAX_IDLE);
+    this.accepting = false;
+    this.txnstate.onError(new TransactionalSessionDeadlineExceededException());
+    this.giveBack();
+  }
+
+  /**
+   * give the connection back, which rolls back anything left open. only done once, after which it may belong to
+   * someone else.
+   */
+
+  private void giveBack() {
+    if (this.released.compareAndSet(false, true)) {
+      this.conn.subscribe(this.client::release, err -> log.debug("no connection to roll back"));
+    }
+  }
+
+  /*
+   * rollback the transaction if there is one.
+   */
+
+  @Override
+  public void close() {
+    if (this.accepting) {
+      this.accepting = false;
+      this.run(this.client.createQuery("ROLLBACK"), null, 0)
+          .subscribe(res -> log.debug("rollback: {}", res), err -> log.warn("rollback failed: {}", err.getMessage()));
+    }
+  }
+
+  private void failed(final Throwable ex) {
+    log.warn("session failed: {}", ex.getMessage());
+    this.accepting = false;
+    this.cancelIdle();
+    if (!this.txnstate.hasValue() && !this.txnstate.hasThrowable()) {
+      this.txnstate.onError(ex);
+    }
+    this.giveBack();
+  }
+
+  @Override
+  public Query createQuery(final String sql, final int paramcount) {
+    return this.client.createQuery(sql, paramcount);
+  }
+
+  @Override
+  public Query createQuery(final List<Query> combine) {
+    return this.client.createQuery(combine);
+  }
+
+  @Override
+  public PostgresClient client() {
+    return this.client;
+  }
+
+}
@@ -0,0 +1,227 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.postgresql.core.Oid;
+
+import com.google.common.primitives.Ints;
+
+import io.netty.buffer.ByteBuf;
+import io.zrz.jpgsql.client.QueryParameters;
+import io.zrz.jpgsql.client.opj.BinaryParamValue;
+import io.zrz.jpgsql.proto.wire.BindParameters;
+
+/**
+ * the parameters of a single statement, encoded in binary format straight into the outbound buffer when the Bind is
+ * written.
+ *
+ * the types are checked when created, so that an unsupported parameter fails the query before anything is written
+ * rather than in the encoder.
+ */
+
+final class PgParameters implements BindParameters {
+
+  // not in the version of the driver we use.
+  private static final int JSONB = 3802;
+
+  private final QueryParameters params;
+  private final int offset;
+  private final int[] oids;
+
+  /**
+   * @param offset
+   *          the number of parameters before the first one belonging to this statement.
+   */
+
+  PgParameters(final QueryParameters params, final int offset, final int count) {
+
+    this.params = params;
+    this.offset = offset;
+    this.oids = new int[count];
+
+    for (int i = 0; i < count; ++i) {
+      final Object val = params.getValue(offset + i + 1);
+      if (val instanceof BinaryParamValue) {
+        this.oids[i] = ((BinaryParamValue) val).getOid();
+      }
+      else {
+        this.oids[i] = params.getOid(offset + i + 1);
+        if (val != null) {
+          check(this.oids[i], val);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * the parameter types, for the Parse.
+   */
+
+  List<Integer> oids() {
+    return Ints.asList(this.oids);
+  }
+
+  @Override
+  public int count() {
+    return this.oids.length;
+  }
+
+  @Override
+  public void write(final int index, final ByteBuf out) {
+
+    final Object val = this.params.getValue(this.offset + index + 1);
+
+    if (val == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    final int pos = out.writerIndex();
+
+    out.writeInt(0); // update in a bit
+
+    if (val instanceof BinaryParamValue) {
+      ((BinaryParamValue) val).writeTo(out);
+    }
+    else {
+      switch (this.oids[index]) {
+        case Oid.INT4:
+          out.writeInt((int) val);
+          break;
+        case Oid.INT8:
+          out.writeLong((long) val);
+          break;
+        case Oid.INT4_ARRAY:
+          writeIntArray((int[]) val, out);
+          break;
+        case Oid.UUID:
+        case Oid.BYTEA:
+          out.writeBytes((byte[]) val);
+          break;
+        case Oid.TEXT:
+        case Oid.JSON:
+        case Oid.VARCHAR:
+          out.writeCharSequence((String) val, StandardCharsets.UTF_8);
+          break;
+        case Oid.TEXT_ARRAY:
+          writeTextArray((String[]) val, Oid.TEXT, false, out);
+          break;
+        case Oid.VARCHAR_ARRAY:
+          writeTextArray((String[]) val, Oid.VARCHAR, false, out);
+          break;
+        case Oid.JSONB_ARRAY:
+          writeTextArray((String[]) val, JSONB, true, out);
+          break;
+        default:
+          throw new AssertionError(this.oids[index]);
+      }
+    }
+
+    out.setInt(pos, out.writerIndex() - pos - 4);
+
+  }
+
+  private static void check(final int oid, final Object val) {
+
+    final Class<?> expected;
+
+    switch (oid) {
+      case Oid.INT4:
+        expected = Integer.class;
+        break;
+      case Oid.INT8:
+        expected = Long.class;
+        break;
+      case Oid.INT4_ARRAY:
+        expected = int[].class;
+        break;
+      case Oid.UUID:
+      case Oid.BYTEA:
+        expected = byte[].class;
+        break;
+      case Oid.TEXT:
+      case Oid.JSON:
+      case Oid.VARCHAR:
+        expected = String.class;
+        break;
+      case Oid.JSONB_ARRAY:
+      case Oid.TEXT_ARRAY:
+      case Oid.VARCHAR_ARRAY:
+        expected = String[].class;
+        break;
+      default:
+        throw new AssertionError(String.format("Don't know how to map param with OID %d", oid));
+    }
+
+    if (!expected.isInstance(val)) {
+      throw new IllegalArgumentException(String.format("expected %s for param with OID %d, got %s", expected.getSimpleName(), oid, val.getClass()));
+    }
+
+  }
+
+  /**
+   * array_recv format: dimensions, has nulls, element type, then the size and lower bound of each dimension, followed
+   * by the length prefixed elements.
+   */
+
+  private static void writeIntArray(final int[] vals, final ByteBuf out) {
+
+    if (vals.length == 0) {
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeInt(Oid.INT4);
+      return;
+    }
+
+    out.writeInt(1);
+    out.writeInt(0);
+    out.writeInt(Oid.INT4);
+    out.writeInt(vals.length);
+    out.writeInt(1);
+
+    for (final int val : vals) {
+      out.writeInt(4);
+      out.writeInt(val);
+    }
+
+  }
+
+  private static void writeTextArray(final String[] vals, final int elementOid, final boolean jsonb, final ByteBuf out) {
+
+    boolean nulls = false;
+
+    for (final String val : vals) {
+      nulls |= val == null;
+    }
+
+    out.writeInt(vals.length == 0 ? 0 : 1);
+    out.writeInt(nulls ? 1 : 0);
+    out.writeInt(elementOid);
+
+    if (vals.length == 0) {
+      return;
+    }
+
+    out.writeInt(vals.length);
+    out.writeInt(1);
+
+    for (final String val : vals) {
+      if (val == null) {
+        out.writeInt(-1);
+        continue;
+      }
+      final int pos = out.writerIndex();
+      out.writeInt(0);
+      if (jsonb) {
+        // jsonb binary format version.
+        out.writeByte(1);
+      }
+      out.writeCharSequence(val, StandardCharsets.UTF_8);
+      out.setInt(pos, out.writerIndex() - pos - 4);
+    }
+
+  }
+
+}
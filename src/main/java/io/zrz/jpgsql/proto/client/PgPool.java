@@ -1,20 +1,664 @@
 package io.zrz.jpgsql.proto.client;
 
-import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import io.netty.bootstrap.Bootstrap;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.pool.SimpleChannelPool;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import com.google.common.base.Preconditions;
 
-public class PgPool {
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.zrz.jpgsql.client.PostgresConnectionProperties;
+import io.zrz.jpgsql.client.PostgresqlCapacityExceededException;
+import io.zrz.jpgsql.client.PostgresqlUnavailableException;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import lombok.extern.slf4j.Slf4j;
 
-  SimpleChannelPool pool;
-  final Bootstrap cb = new Bootstrap();
+/**
+ * a bounded pool of authenticated {@link PgConnection}s, each held exclusively between {@link #acquire()} and
+ * {@link #release(PgConnection)}, or shared by pipelining between {@link #share()} and {@link #unshare(PgConnection)}.
+ *
+ * at least minIdle connections are kept open and ready, and never more than maxSize - exclusive and shared together -
+ * are open (or opening) at once. an acquire which can't be satisfied waits for a connection to be released or opened,
+ * failing with {@link PostgresqlCapacityExceededException} after the acquire timeout. a share only waits like this when
+ * nothing is being shared yet, otherwise it pipelines on the least busy shared connection once no more can be opened.
+ * a shared connection goes back to the pool once nobody is using it and nothing is in flight on it.
+ *
+ * connections are checked when they are released rather than on each checkout, which would cost a round trip: any
+ * which have been closed, are part way through an exchange, are left in a transaction, or are past their maximum
+ * lifetime are closed rather than going back in the pool. idle connections are closed after the idle timeout (down to
+ * minIdle) by a periodic sweep on the event loop, which also opens new ones to make up minIdle.
+ */
 
-  public PgPool(EventLoopGroup group) {
-    cb.group(group).channel(NioSocketChannel.class);
-    this.pool = new SimpleChannelPool(cb.remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 5432)), new PgChannelPoolHandler());
+@Slf4j
+public class PgPool implements AutoCloseable {
+
+  /**
+   * a connection which is open, or being opened.
+   */
+
+  private static final class Pooled {
+
+    final PgConnection conn;
+    final long created = System.nanoTime();
+    long released = this.created;
+
+    // the number of callers using this as a shared connection, or -1 if it isn't shared.
+    int shares = -1;
+
+    Pooled(final PgConnection conn) {
+      this.conn = conn;
+    }
+
+  }
+
+  /**
+   * an acquire waiting for a connection. exactly one of handing over a connection, timing out or the subscriber going
+   * away wins.
+   */
+
+  private static final class Waiter {
+
+    final SingleEmitter<PgConnection> emitter;
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Waiter(final SingleEmitter<PgConnection> emitter) {
+      this.emitter = emitter;
+    }
+
+  }
+
+  private final PgConnectionBuilder builder;
+  private final String host;
+  private final int port;
+  private final int minIdle;
+  private final int maxSize;
+  private final long acquireTimeoutNanos;
+  private final long idleTimeoutNanos;
+  private final long maxLifetimeNanos;
+  private final EventExecutor executor;
+
+  // every connection which is open or opening, guarded by this.
+  private final Map<PgConnection, Pooled> all = new IdentityHashMap<>();
+
+  // connected and not in use, most recently released last.
+  private final ArrayDeque<Pooled> idle = new ArrayDeque<>();
+
+  // acquires waiting for a connection, in order of arrival.
+  private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+
+  // taken out of the pool to be shared, until nobody is using them and they have nothing in flight.
+  private final List<Pooled> shared = new ArrayList<>();
+
+  private final ScheduledFuture<?> sweeper;
+  private int opening;
+  private boolean closed;
+
+  private PgPool(final Builder b) {
+
+    Preconditions.checkArgument(b.maxSize > 0, "maxSize must be positive");
+    Preconditions.checkArgument(b.minIdle <= b.maxSize, "minIdle must not be larger than maxSize");
+
+    this.builder = b.connections;
+    this.host = b.host;
+    this.port = b.port;
+    this.minIdle = b.minIdle;
+    this.maxSize = b.maxSize;
+    this.acquireTimeoutNanos = b.acquireTimeout.toNanos();
+    this.idleTimeoutNanos = b.idleTimeout.toNanos();
+    this.maxLifetimeNanos = b.maxLifetime.toNanos();
+    this.executor = b.connections.group.next();
+
+    final long period = Math.max(1000, Math.min(b.idleTimeout.toMillis(), b.maxLifetime.toMillis()) / 2);
+
+    this.sweeper = this.executor.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+
+    synchronized (this) {
+      this.fill();
+    }
+
+  }
+
+  /**
+   * the pool sizes and timeouts from the client configuration. connections are opened with the given builder.
+   */
+
+  public static PgPool create(final PgConnectionBuilder connections, final PostgresConnectionProperties config) {
+    return builder(
+        connections,
+        config.getHostname() == null ? "localhost" : config.getHostname(),
+        config.getPort() == 0 ? 5432 : config.getPort())
+            .minIdle(config.getMinIdle())
+            .maxSize(config.getMaxPoolSize())
+            .idleTimeout(config.getIdleTimeout())
+            .maxLifetime(config.getMaxLifetime())
+            .acquireTimeout(config.getConnectTimeout())
+            .build();
+  }
+
+  public static Builder builder(final PgConnectionBuilder connections, final String host, final int port) {
+    return new Builder(connections, host, port);
+  }
+
+  /**
+   * a connection for exclusive use, which must be passed back to {@link #release(PgConnection)} once done with. nothing
+   * happens until subscribed. if the subscriber goes away before the connection is handed over then it is returned to
+   * the pool.
+   */
+
+  public Single<PgConnection> acquire() {
+    return Single.create(emitter -> {
+
+      final Waiter waiter = new Waiter(emitter);
+
+      final Pooled ready;
+
+      synchronized (this) {
+
+        if (this.closed) {
+          emitter.onError(new PostgresqlUnavailableException("pool is closed"));
+          return;
+        }
+
+        ready = this.poll();
+
+        if (ready == null) {
+
+          this.waiting.add(waiter);
+
+          final ScheduledFuture<?> timeout = this.executor.schedule(() -> this.timeout(waiter), this.acquireTimeoutNanos, TimeUnit.NANOSECONDS);
+
+          emitter.setCancellable(() -> {
+            timeout.cancel(false);
+            if (waiter.done.compareAndSet(false, true)) {
+              synchronized (this) {
+                this.waiting.remove(waiter);
+              }
+            }
+          });
+
+          if (this.opening < this.waiting.size() && this.all.size() < this.maxSize) {
+            this.open(false);
+          }
+
+          return;
+
+        }
+
+      }
+
+      this.handover(ready, waiter);
+
+    });
+  }
+
+  /**
+   * a connection to pipeline queries on alongside other callers, which must be passed back to
+   * {@link #unshare(PgConnection)} once done with. this is the least busy shared connection, unless they are all in use
+   * and another can be taken from the pool. only waits (as {@link #acquire()} does) when nothing is shared and the pool
+   * is exhausted.
+   */
+
+  public Single<PgConnection> share() {
+    return Single.defer(() -> {
+
+      synchronized (this) {
+
+        if (this.closed) {
+          return Single.error(new PostgresqlUnavailableException("pool is closed"));
+        }
+
+        final long now = System.nanoTime();
+
+        Pooled best = null;
+
+        // one past its lifetime gets nothing new, so it can be closed once the callers still using it are done.
+        for (final Pooled pooled : this.shared) {
+          if (!pooled.conn.isClosed() && now - pooled.created < this.maxLifetimeNanos && (best == null || pooled.shares < best.shares)) {
+            best = pooled;
+          }
+        }
+
+        if (best == null || best.shares > 0) {
+
+          Pooled next = this.poll();
+
+          if (next == null && this.all.size() < this.maxSize) {
+            next = this.open(true);
+          }
+
+          if (next != null) {
+            this.shared.add(next);
+            next.shares = 0;
+            best = next;
+          }
+
+        }
+
+        if (best != null) {
+          best.shares++;
+          return Single.just(best.conn);
+        }
+
+      }
+
+      // nothing being shared and nothing left in the pool.
+      return this.acquire().map(conn -> {
+        synchronized (this) {
+          final Pooled pooled = this.all.get(conn);
+          if (pooled != null) {
+            this.shared.add(pooled);
+            pooled.shares = 1;
+          }
+        }
+        return conn;
+      });
+
+    });
+  }
+
+  /**
+   * stop using a connection from {@link #share()}. once nobody is using it, it goes back to the pool as soon as nothing
+   * is in flight on it: straight away if possible, else on the next sweep.
+   */
+
+  public void unshare(final PgConnection conn) {
+
+    synchronized (this) {
+      final Pooled pooled = this.all.get(conn);
+      if (pooled == null || pooled.shares <= 0) {
+        return;
+      }
+      if (--pooled.shares > 0 || conn.outstanding() > 0) {
+        return;
+      }
+      this.shared.remove(pooled);
+      pooled.shares = -1;
+    }
+
+    this.release(conn);
+
+  }
+
+  /**
+   * return a connection to the pool. it is closed instead if it isn't in a state to be reused.
+   */
+
+  public void release(final PgConnection conn) {
+
+    final Pooled pooled;
+
+    synchronized (this) {
+      pooled = this.all.get(conn);
+      if (pooled != null && this.idle.contains(pooled)) {
+        log.warn("connection released twice");
+        return;
+      }
+    }
+
+    if (pooled == null) {
+      // not ours, or already discarded.
+      conn.close();
+      return;
+    }
+
+    if (!this.reusable(pooled)) {
+      log.debug("discarding released connection (active={}, outstanding={}, txn={})", conn.isActive(), conn.outstanding(), conn.getTransactionStatus());
+      this.discard(pooled);
+      return;
+    }
+
+    pooled.released = System.nanoTime();
+
+    this.offer(pooled);
+
+  }
+
+  /**
+   * the number of connections open or being opened.
+   */
+
+  public synchronized int size() {
+    return this.all.size();
+  }
+
+  /**
+   * the number of connections being shared.
+   */
+
+  public synchronized int shared() {
+    return this.shared.size();
+  }
+
+  /**
+   * the number of open connections not currently in use.
+   */
+
+  public synchronized int idle() {
+    return this.idle.size();
+  }
+
+  /**
+   * the number of acquires waiting for a connection.
+   */
+
+  public synchronized int pending() {
+    return this.waiting.size();
+  }
+
+  @Override
+  public void close() {
+
+    final List<Pooled> open;
+    final List<Waiter> waiters;
+
+    synchronized (this) {
+      this.closed = true;
+      open = new ArrayList<>(this.all.values());
+      waiters = new ArrayList<>(this.waiting);
+      this.all.clear();
+      this.idle.clear();
+      this.shared.clear();
+      this.waiting.clear();
+    }
+
+    this.sweeper.cancel(false);
+
+    waiters.stream()
+        .filter(w -> w.done.compareAndSet(false, true))
+        .forEach(w -> w.emitter.tryOnError(new PostgresqlUnavailableException("pool is closed")));
+    open.forEach(p -> p.conn.close());
+
+  }
+
+  @Override
+  public String toString() {
+    return "pool { size:" + this.size() + " idle:" + this.idle() + " shared:" + this.shared() + " pending:" + this.pending() + " }";
+  }
+
+  private boolean reusable(final Pooled pooled) {
+    final PgConnection conn = pooled.conn;
+    return conn.isActive()
+        && conn.outstanding() == 0
+        && conn.getTransactionStatus() == TransactionStatus.Idle
+        && System.nanoTime() - pooled.created < this.maxLifetimeNanos;
+  }
+
+  /**
+   * the most recently used idle connection, skipping any which have closed while idle.
+   */
+
+  private Pooled poll() {
+    Pooled pooled;
+    while ((pooled = this.idle.pollLast()) != null) {
+      if (pooled.conn.isActive()) {
+        return pooled;
+      }
+      this.all.remove(pooled.conn);
+    }
+    return null;
+  }
+
+  /**
+   * give a connection to the longest waiting acquire, or put it back in the idle set.
+   */
+
+  private void offer(final Pooled pooled) {
+
+    final Waiter waiter;
+
+    synchronized (this) {
+
+      if (this.closed) {
+        this.all.remove(pooled.conn);
+        pooled.conn.close();
+        return;
+      }
+
+      waiter = this.waiting.poll();
+
+      if (waiter == null) {
+        this.idle.add(pooled);
+        return;
+      }
+
+    }
+
+    this.handover(pooled, waiter);
+
+  }
+
+  private void handover(final Pooled pooled, final Waiter waiter) {
+    if (!waiter.done.compareAndSet(false, true)) {
+      // timed out or went away, pass it on to the next.
+      this.offer(pooled);
+      return;
+    }
+    if (waiter.emitter.isDisposed()) {
+      // went away without the cancellable seeing it (e.g before it had to wait), onSuccess would drop it on the floor.
+      this.offer(pooled);
+      return;
+    }
+    // also cancels the timeout.
+    waiter.emitter.onSuccess(pooled.conn);
+  }
+
+  private void timeout(final Waiter waiter) {
+    if (waiter.done.compareAndSet(false, true)) {
+      synchronized (this) {
+        this.waiting.remove(waiter);
+      }
+      waiter.emitter.tryOnError(new PostgresqlCapacityExceededException());
+    }
+  }
+
+  /**
+   * close a connection and forget about it, opening a replacement if someone is waiting.
+   */
+
+  private void discard(final Pooled pooled) {
+    pooled.conn.close();
+    synchronized (this) {
+      this.all.remove(pooled.conn);
+      if (!this.closed && this.opening < this.waiting.size()) {
+        this.open(false);
+      }
+    }
+  }
+
+  /**
+   * start opening a new connection. unless it is to be shared, it is offered to the pool once connected. a shared one
+   * can be used straight away: anything sent on it is queued until it has connected. called with the lock held.
+   */
+
+  private Pooled open(final boolean share) {
+
+    final PgConnection conn = this.builder.newConnection(this.host, this.port);
+
+    final Pooled pooled = new Pooled(conn);
+
+    this.all.put(conn, pooled);
+    this.opening++;
+
+    log.debug("opening {} pooled connection ({} open)", share ? "shared" : "idle", this.all.size());
+
+    conn.connected().subscribe(
+        c -> {
+          synchronized (this) {
+            this.opening--;
+          }
+          if (!share) {
+            this.offer(pooled);
+          }
+        },
+        err -> {
+          log.warn("failed to open pooled connection: {}", err.getMessage());
+          final Waiter waiter;
+          synchronized (this) {
+            this.opening--;
+            this.all.remove(conn);
+            // fail the acquire which caused this to be opened rather than leaving it to time out.
+            waiter = this.opening < this.waiting.size() ? this.waiting.poll() : null;
+          }
+          if (waiter != null && waiter.done.compareAndSet(false, true)) {
+            waiter.emitter.tryOnError(new PostgresqlUnavailableException(err));
+          }
+        });
+
+    conn.closed().subscribe(() -> {
+      synchronized (this) {
+        if (this.all.remove(conn) != null) {
+          this.idle.remove(pooled);
+          this.shared.remove(pooled);
+        }
+      }
+    });
+
+    return pooled;
+
+  }
+
+  /**
+   * open connections until there are minIdle idle (or opening), without going over maxSize. called with the lock held.
+   */
+
+  private void fill() {
+    while (!this.closed && this.idle.size() + this.opening < this.minIdle && this.all.size() < this.maxSize) {
+      this.open(false);
+    }
+  }
+
+  /**
+   * take back shared connections which nobody is using once they have nothing in flight, close connections which have
+   * been idle too long (keeping minIdle) or are past their lifetime, then top up to minIdle.
+   */
+
+  private void sweep() {
+
+    final List<Pooled> expired = new ArrayList<>();
+    final List<Pooled> unshared = new ArrayList<>();
+
+    synchronized (this) {
+
+      if (this.closed) {
+        return;
+      }
+
+      final Iterator<Pooled> sit = this.shared.iterator();
+
+      while (sit.hasNext()) {
+        final Pooled pooled = sit.next();
+        if (pooled.shares == 0 && pooled.conn.outstanding() == 0) {
+          sit.remove();
+          pooled.shares = -1;
+          unshared.add(pooled);
+        }
+      }
+
+      final long now = System.nanoTime();
+
+      int keep = this.idle.size();
+
+      // oldest released first.
+      final Iterator<Pooled> it = this.idle.iterator();
+
+      while (it.hasNext()) {
+        final Pooled pooled = it.next();
+        final boolean stale = now - pooled.released >= this.idleTimeoutNanos && keep > this.minIdle;
+        if (stale || now - pooled.created >= this.maxLifetimeNanos || !pooled.conn.isActive()) {
+          it.remove();
+          this.all.remove(pooled.conn);
+          expired.add(pooled);
+          keep--;
+        }
+      }
+
+      this.fill();
+
+    }
+
+    if (!expired.isEmpty()) {
+      log.debug("closing {} idle connections", expired.size());
+      expired.forEach(p -> p.conn.close());
+    }
+
+    unshared.forEach(p -> this.release(p.conn));
+
+  }
+
+  public static final class Builder {
+
+    private final PgConnectionBuilder connections;
+    private final String host;
+    private final int port;
+    private int minIdle = 0;
+    private int maxSize = 10;
+    private Duration acquireTimeout = Duration.ofSeconds(10);
+    private Duration idleTimeout = Duration.ofSeconds(60);
+    private Duration maxLifetime = Duration.ofMinutes(30);
+
+    private Builder(final PgConnectionBuilder connections, final String host, final int port) {
+      this.connections = connections;
+      this.host = host;
+      this.port = port;
+    }
+
+    /**
+     * the number of idle connections to keep open, ready to be acquired. they are opened as soon as the pool is built.
+     */
+
+    public Builder minIdle(final int minIdle) {
+      this.minIdle = minIdle;
+      return this;
+    }
+
+    /**
+     * the maximum number of connections open (or opening) at once.
+     */
+
+    public Builder maxSize(final int maxSize) {
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * how long an acquire waits for a connection before failing.
+     */
+
+    public Builder acquireTimeout(final Duration acquireTimeout) {
+      this.acquireTimeout = acquireTimeout;
+      return this;
+    }
+
+    /**
+     * how long a connection can sit unused in the pool before it is closed.
+     */
+
+    public Builder idleTimeout(final Duration idleTimeout) {
+      this.idleTimeout = idleTimeout;
+      return this;
+    }
+
+    /**
+     * connections older than this are closed once released, rather than being reused.
+     */
+
+    public Builder maxLifetime(final Duration maxLifetime) {
+      this.maxLifetime = maxLifetime;
+      return this;
+    }
+
+    public PgPool build() {
+      return new PgPool(this);
+    }
 
   }
 
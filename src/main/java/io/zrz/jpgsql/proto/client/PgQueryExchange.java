@@ -0,0 +1,488 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.postgresql.core.Field;
+import org.postgresql.util.ServerErrorMessage;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.reactivex.FlowableEmitter;
+import io.zrz.jpgsql.client.CommandStatus;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.QueryParameters;
+import io.zrz.jpgsql.client.QueryResult;
+import io.zrz.jpgsql.client.SimpleQuery;
+import io.zrz.jpgsql.client.WarningResult;
+import io.zrz.jpgsql.client.opj.PgResultMeta;
+import io.zrz.jpgsql.proto.wire.Bind;
+import io.zrz.jpgsql.proto.wire.BindComplete;
+import io.zrz.jpgsql.proto.wire.Close;
+import io.zrz.jpgsql.proto.wire.CloseComplete;
+import io.zrz.jpgsql.proto.wire.CommandComplete;
+import io.zrz.jpgsql.proto.wire.CopyFail;
+import io.zrz.jpgsql.proto.wire.CopyInResponse;
+import io.zrz.jpgsql.proto.wire.DataRow;
+import io.zrz.jpgsql.proto.wire.Describe;
+import io.zrz.jpgsql.proto.wire.EmptyQueryResponse;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
+import io.zrz.jpgsql.proto.wire.Execute;
+import io.zrz.jpgsql.proto.wire.Flush;
+import io.zrz.jpgsql.proto.wire.NoData;
+import io.zrz.jpgsql.proto.wire.NoticeResponse;
+import io.zrz.jpgsql.proto.wire.Parse;
+import io.zrz.jpgsql.proto.wire.ParseComplete;
+import io.zrz.jpgsql.proto.wire.PortalSuspended;
+import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
+import io.zrz.jpgsql.proto.wire.RowDescription;
+import io.zrz.jpgsql.proto.wire.Sync;
+import io.zrz.jpgsql.proto.wire.TransactionStatus;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * executes a {@link Query} using the extended protocol, and converts the responses to the same {@link QueryResult}
+ * stream the JDBC implementation provides.
+ *
+ * each statement is sent as a Parse/Bind/Describe/Execute. statements are parsed into a named statement kept in the
+ * connection's {@link PgStatementCache}, so repeats only need the Bind/Execute - the result description is cached
+ * along with it. without a fetch size all statements are written up front followed by a single Sync, so they run in a
+ * single implicit transaction. with a fetch size the statements are written one at a time, and the portal is resumed
+ * after each PortalSuspended until it completes.
+ *
+ * results follow the subscriber's demand: when it has none left we stop reading from the channel (or leave the portal
+ * suspended), and carry on as soon as it requests more.
+ *
+ */
+
+@Slf4j
+final class PgQueryExchange extends PgExchange {
+
+  private static final int BATCH_SIZE = 8192;
+
+  // invalid_sql_statement_name, e.g after a DEALLOCATE.
+  private static final String INVALID_STATEMENT = "26000";
+
+  // feature_not_supported, which is what "cached plan must not change result type" is raised as.
+  private static final String CACHED_PLAN = "0A000";
+
+  private final Query query;
+  private final QueryParameters params;
+  private final FlowableEmitter<QueryResult> emitter;
+  private final int fetchSize;
+  private final List<SimpleQuery> statements;
+  private final PgStatementCache cache;
+
+  // the cached statement used for each statement index, and if we asked for its description.
+  private final PgStatementCache.Entry[] entries;
+  private final boolean[] describing;
+
+  // statement Closes written, waiting for their CloseComplete.
+  private final ArrayDeque<String> closes = new ArrayDeque<>();
+
+  private int statementId = 0;
+  private PgResultMeta meta;
+  private PgRowBuffer.Builder rows;
+  private ErrorResult error;
+  private boolean synced;
+
+  // set once started, used to resume when the subscriber requests more.
+  private volatile ChannelHandlerContext ctx;
+
+  // we turned off autoRead on the channel as the subscriber has no outstanding demand.
+  private boolean paused;
+
+  // in fetch mode, the portal is suspended and we are waiting for demand before executing it again.
+  private boolean suspended;
+
+  // we've asked the backend to abandon the query, or it has finished anyway.
+  private boolean cancelled;
+
+  // a COPY would put the backend into copy mode, where frames pipelined behind us would break the copy and be
+  // discarded up to their Sync. so we don't let anything follow until our ReadyForQuery.
+  private final boolean copy;
+
+  PgQueryExchange(
+      final Query query,
+      final QueryParameters params,
+      final int fetchSize,
+      final PgStatementCache cache,
+      final FlowableEmitter<QueryResult> emitter) {
+    this.query = query;
+    this.params = params;
+    this.fetchSize = fetchSize;
+    this.cache = cache;
+    this.emitter = emitter;
+    this.statements = query.getSubqueries();
+    this.entries = new PgStatementCache.Entry[this.statements.size()];
+    this.describing = new boolean[this.statements.size()];
+    this.copy = this.statements.stream().anyMatch(stmt -> stmt.sql().trim().regionMatches(true, 0, "COPY", 0, 4));
+  }
+
+  @Override
+  void start(final ChannelHandlerContext ctx) {
+
+    this.ctx = ctx;
+
+    if (this.emitter.isCancelled()) {
+      this.sync(ctx);
+      return;
+    }
+
+    final List<PostgreSQLPacket> packets = new ArrayList<>();
+
+    try {
+
+      if (this.fetchSize > 0) {
+        this.statement(packets, 0, this.fetchSize);
+        packets.add(new Flush());
+      }
+      else {
+        for (int i = 0; i < this.statements.size(); ++i) {
+          this.statement(packets, i, 0);
+        }
+      }
+
+    }
+    catch (final Exception | AssertionError ex) {
+      // nothing has been written yet, so just need a Sync to get our ReadyForQuery.
+      log.warn("failed to encode query {}: {}", this.query, ex.getMessage());
+      this.abandon(0);
+      this.error = ErrorResult.internal(ex);
+      this.sync(ctx);
+      return;
+    }
+
+    packets.forEach(ctx::write);
+
+    if (this.fetchSize == 0) {
+      this.sync(ctx);
+    }
+
+  }
+
+  @Override
+  void onMessage(final ChannelHandlerContext ctx, final PostgreSQLPacket msg) {
+
+    if (msg instanceof ParseComplete) {
+      final PgStatementCache.Entry entry = this.entries[this.statementId];
+      if (entry != null && !entry.prepared) {
+        this.cache.prepared(entry);
+      }
+    }
+    else if (msg instanceof BindComplete) {
+      final PgStatementCache.Entry entry = this.entries[this.statementId];
+      if (entry != null && !this.describing[this.statementId]) {
+        // no Describe was sent, so no RowDescription/NoData will arrive.
+        this.meta = entry.meta;
+        if (this.meta != null) {
+          this.rows = new PgRowBuffer.Builder(this.query, this.statementId, this.meta);
+        }
+      }
+    }
+    else if (msg instanceof RowDescription) {
+      this.meta = meta((RowDescription) msg);
+      this.rows = new PgRowBuffer.Builder(this.query, this.statementId, this.meta);
+      this.described(this.meta);
+    }
+    else if (msg instanceof NoData) {
+      this.meta = null;
+      this.described(null);
+    }
+    else if (msg instanceof CloseComplete) {
+      this.closes.poll();
+    }
+    else if (msg instanceof DataRow) {
+      this.rows.add((DataRow) msg);
+      if (this.rows.rows() >= BATCH_SIZE) {
+        this.emitRows(false);
+      }
+    }
+    else if (msg instanceof PortalSuspended) {
+      this.emitRows(false);
+      if (this.emitter.isCancelled()) {
+        this.sync(ctx);
+      }
+      else if (this.emitter.requested() <= 0) {
+        // the backend sits idle with the portal open until there is demand for more.
+        this.suspended = true;
+      }
+      else {
+        this.fetch(ctx);
+      }
+    }
+    else if (msg instanceof CommandComplete) {
+      final CommandComplete cc = (CommandComplete) msg;
+      if (this.meta != null) {
+        this.emitRows(true);
+      }
+      else {
+        this.emit(new CommandStatus(this.statementId, cc.getCommandTag(), cc.getUpdateCount(), cc.getInsertOid()));
+      }
+      this.completed(ctx);
+    }
+    else if (msg instanceof EmptyQueryResponse) {
+      this.emit(new CommandStatus(this.statementId, "", 0, 0));
+      this.completed(ctx);
+    }
+    else if (msg instanceof NoticeResponse) {
+      this.emit(new WarningResult(this.statementId, ((NoticeResponse) msg).toServerErrorMessage()));
+    }
+    else if (msg instanceof ErrorResponse) {
+      final ServerErrorMessage sem = ((ErrorResponse) msg).toServerErrorMessage();
+      final Query statement = this.statementId < this.statements.size() ? this.query.statement(this.statementId) : this.query;
+      this.error = new ErrorResult(statement, this.statementId, sem.toString(), sem.getSQLState(), sem, null);
+      this.rows = null;
+      final PgStatementCache.Entry entry = this.statementId < this.entries.length ? this.entries[this.statementId] : null;
+      if (entry != null && (INVALID_STATEMENT.equals(sem.getSQLState()) || CACHED_PLAN.equals(sem.getSQLState()))) {
+        // the statement has gone away, or changed its result type under us. next time we parse it again.
+        this.cache.invalidate(entry);
+      }
+      this.abandon(this.statementId);
+      this.sync(ctx);
+    }
+    else if (msg instanceof CopyInResponse) {
+      ctx.writeAndFlush(new CopyFail("COPY FROM STDIN is not supported in submit(), use copyTo()"));
+    }
+    else {
+      log.trace("ignoring {}", msg);
+    }
+
+  }
+
+  @Override
+  void onReady(final TransactionStatus status) {
+    this.cancelled = true;
+    this.seal();
+    this.unpause();
+    if (this.error != null) {
+      this.emitter.tryOnError(this.error);
+    }
+    else {
+      this.emitter.onComplete();
+    }
+  }
+
+  @Override
+  void onFailure(final Throwable cause) {
+    this.emitter.tryOnError(cause);
+  }
+
+  /**
+   * the subscriber has requested more, or cancelled. may be called from any thread.
+   */
+
+  void requested() {
+    final ChannelHandlerContext ctx = this.ctx;
+    if (ctx != null) {
+      ctx.executor().execute(this::resume);
+    }
+  }
+
+  private void resume() {
+
+    if (this.emitter.requested() <= 0 && !this.emitter.isCancelled()) {
+      return;
+    }
+
+    this.unpause();
+
+    if (this.emitter.isCancelled() && !this.suspended && !this.cancelled) {
+      // the subscriber has gone away, there's no point in the backend carrying on.
+      this.cancelled = true;
+      this.cancelQuery();
+    }
+
+    if (this.suspended) {
+      this.suspended = false;
+      if (this.emitter.isCancelled()) {
+        this.sync(this.ctx);
+      }
+      else {
+        this.fetch(this.ctx);
+      }
+    }
+
+  }
+
+  private void fetch(final ChannelHandlerContext ctx) {
+    ctx.write(new Execute("", this.fetchSize));
+    ctx.writeAndFlush(new Flush());
+  }
+
+  /**
+   * emit a result, and stop reading from the socket if the subscriber has no more demand. without a fetch size the
+   * backend keeps sending, so the rows back up in the socket buffers rather than our heap. with one we just don't
+   * resume the portal until asked.
+   */
+
+  private void emit(final QueryResult result) {
+    this.emitter.onNext(result);
+    if (this.fetchSize == 0 && !this.paused && this.emitter.requested() <= 0 && !this.emitter.isCancelled()) {
+      this.paused = true;
+      this.ctx.channel().config().setAutoRead(false);
+    }
+  }
+
+  private void unpause() {
+    if (this.paused) {
+      this.paused = false;
+      // also triggers a read.
+      this.ctx.channel().config().setAutoRead(true);
+    }
+  }
+
+  /**
+   * the current statement has finished. in fetch mode we send the next one (or the Sync) only now, as the unnamed
+   * portal is destroyed by the next Bind.
+   */
+
+  private void completed(final ChannelHandlerContext ctx) {
+
+    this.statementId++;
+    this.meta = null;
+    this.rows = null;
+
+    if (this.fetchSize == 0 || this.synced) {
+      return;
+    }
+
+    if (this.statementId < this.statements.size() && !this.emitter.isCancelled()) {
+      final List<PostgreSQLPacket> packets = new ArrayList<>();
+      try {
+        this.statement(packets, this.statementId, this.fetchSize);
+      }
+      catch (final Exception | AssertionError ex) {
+        this.abandon(this.statementId);
+        this.error = ErrorResult.internal(ex);
+        this.sync(ctx);
+        return;
+      }
+      packets.forEach(ctx::write);
+      ctx.writeAndFlush(new Flush());
+    }
+    else {
+      this.sync(ctx);
+    }
+
+  }
+
+  private void sync(final ChannelHandlerContext ctx) {
+    if (!this.synced) {
+      this.synced = true;
+      ctx.writeAndFlush(new Sync());
+      if (!this.copy) {
+        this.seal();
+      }
+    }
+  }
+
+  /**
+   * record the result description against the cached statement, so the Describe can be skipped next time.
+   */
+
+  private void described(final PgResultMeta meta) {
+    final PgStatementCache.Entry entry = this.entries[this.statementId];
+    if (entry != null && !entry.described) {
+      entry.meta = meta;
+      entry.described = true;
+    }
+  }
+
+  /**
+   * the backend will skip everything from the given statement onwards. any statements we asked it to parse never
+   * were, and any Closes not yet acknowledged need sending again.
+   */
+
+  private void abandon(final int from) {
+
+    for (int i = from; i < this.entries.length; ++i) {
+      final PgStatementCache.Entry entry = this.entries[i];
+      if (entry != null && !entry.prepared) {
+        this.cache.invalidate(entry);
+      }
+    }
+
+    String name;
+
+    while ((name = this.closes.poll()) != null) {
+      this.cache.closeLater(name);
+    }
+
+  }
+
+  private void emitRows(final boolean done) {
+    final PgRowBuffer.Builder batch = this.rows;
+    this.rows = new PgRowBuffer.Builder(this.query, this.statementId, this.meta);
+    if (done || batch.rows() > 0) {
+      this.emit(batch.build(done));
+    }
+  }
+
+  /**
+   * the frames for a single statement, with the parameters which belong to it.
+   */
+
+  private void statement(final List<PostgreSQLPacket> packets, final int index, final int maxRows) {
+
+    final SimpleQuery stmt = this.statements.get(index);
+
+    int offset = 0;
+
+    for (int i = 0; i < index; ++i) {
+      offset += this.statements.get(i).parameterCount();
+    }
+
+    final int count = stmt.parameterCount();
+
+    final PgParameters bound = new PgParameters(this.params, offset, count);
+    final List<Integer> oids = bound.oids();
+
+    String closing;
+
+    while ((closing = this.cache.pollClosing()) != null) {
+      packets.add(Close.statement(closing));
+      this.closes.add(closing);
+    }
+
+    final PgStatementCache.Entry entry = this.cache.acquire(stmt.sql(), oids);
+
+    this.entries[index] = entry;
+
+    if (entry == null) {
+      packets.add(new Parse("", stmt.sql(), oids));
+      packets.add(new Bind("", "", bound, Collections.emptyList()));
+    }
+    else {
+      if (!entry.prepared) {
+        packets.add(new Parse(entry.name, stmt.sql(), oids));
+      }
+      packets.add(new Bind("", entry.name, bound, Collections.emptyList()));
+    }
+
+    if (entry == null || !entry.described) {
+      packets.add(Describe.portal(""));
+      this.describing[index] = true;
+    }
+
+    packets.add(new Execute("", maxRows));
+
+  }
+
+  /**
+   * convert the wire description to the same metadata the JDBC driver provides.
+   */
+
+  static PgResultMeta meta(final RowDescription desc) {
+    final Field[] fields = new Field[desc.getRows().size()];
+    for (int i = 0; i < fields.length; ++i) {
+      final RowDescription.Entry e = desc.getRows().get(i);
+      fields[i] = new Field(e.getName(), e.getTypeOid(), e.getTypeLength(), e.getTypeModifier(), e.getTableOid(), e.getColumn());
+      fields[i].setFormat(e.getFormat());
+    }
+    return new PgResultMeta(fields);
+  }
+
+}
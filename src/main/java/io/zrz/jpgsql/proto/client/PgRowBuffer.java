@@ -0,0 +1,351 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.postgresql.core.Field;
+import org.postgresql.util.PGbytea;
+
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Ints;
+
+import io.netty.buffer.ByteBuf;
+import io.zrz.jpgsql.client.PgResultRow;
+import io.zrz.jpgsql.client.Query;
+import io.zrz.jpgsql.client.ResultField;
+import io.zrz.jpgsql.client.ResultRow;
+import io.zrz.jpgsql.client.RowBuffer;
+import io.zrz.jpgsql.client.opj.PgResultDecoder;
+import io.zrz.jpgsql.client.opj.PgResultField;
+import io.zrz.jpgsql.client.opj.PgResultMeta;
+import io.zrz.jpgsql.proto.wire.DataRow;
+import lombok.SneakyThrows;
+
+/**
+ * a batch of rows received over the netty connection.
+ *
+ * the raw row payloads are packed back to back in a single array, with an index of the offset and length of each
+ * column. nothing is decoded until a value is asked for, and only that column is touched.
+ */
+
+public final class PgRowBuffer implements RowBuffer {
+
+  private final Query query;
+  private final int statementId;
+  private final PgResultMeta fields;
+  private final byte[] data;
+  private final int[] index;
+  private final int count;
+  private final boolean done;
+
+  private PgRowBuffer(final Builder b, final boolean done) {
+    this.query = b.query;
+    this.statementId = b.statementId;
+    this.fields = b.fields;
+    this.data = b.data;
+    this.index = b.index;
+    this.count = b.rows;
+    this.done = done;
+  }
+
+  /**
+   * collects DataRow payloads into a single array. the DataRow is not retained.
+   */
+
+  static final class Builder {
+
+    private final Query query;
+    private final int statementId;
+    private final PgResultMeta fields;
+    private final int width;
+
+    private byte[] data = new byte[1024];
+    private int size;
+    private int[] index;
+    private int rows;
+
+    Builder(final Query query, final int statementId, final PgResultMeta fields) {
+      this.query = query;
+      this.statementId = statementId;
+      this.fields = fields;
+      this.width = fields == null ? 0 : fields.count();
+      this.index = new int[this.width * 2 * 16];
+    }
+
+    void add(final DataRow row) {
+
+      final ByteBuf content = row.content();
+      final int len = content.readableBytes();
+
+      if (this.size + len > this.data.length) {
+        this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.size + len));
+      }
+
+      if ((this.rows + 1) * this.width * 2 > this.index.length) {
+        this.index = Arrays.copyOf(this.index, this.index.length * 2 + this.width * 2);
+      }
+
+      content.getBytes(content.readerIndex(), this.data, this.size, len);
+
+      final int pos = this.rows * this.width * 2;
+
+      for (int col = 0; col < this.width; ++col) {
+        this.index[pos + (col * 2)] = this.size + (row.offset(col) - content.readerIndex());
+        this.index[pos + (col * 2) + 1] = row.length(col);
+      }
+
+      this.size += len;
+      this.rows++;
+
+    }
+
+    int rows() {
+      return this.rows;
+    }
+
+    PgRowBuffer build(final boolean done) {
+      return new PgRowBuffer(this, done);
+    }
+
+  }
+
+  private int offset(final int row, final int col) {
+    return this.index[(((row * this.fields.count()) + col) * 2)];
+  }
+
+  private int length(final int row, final int col) {
+    if (row < 0 || row >= this.count) {
+      throw new IndexOutOfBoundsException(Integer.toString(row));
+    }
+    return this.index[(((row * this.fields.count()) + col) * 2) + 1];
+  }
+
+  private boolean isText(final int col) {
+    return this.fields.field(col).format() == Field.TEXT_FORMAT;
+  }
+
+  /**
+   * parses a text integer directly from the payload.
+   */
+
+  private long parseLong(final int row, final int col, final int len) {
+
+    int pos = this.offset(row, col);
+    final int end = pos + len;
+
+    boolean negative = false;
+
+    if (pos < end && (this.data[pos] == '-' || this.data[pos] == '+')) {
+      negative = this.data[pos] == '-';
+      pos++;
+    }
+
+    if (pos == end) {
+      throw new NumberFormatException("empty value");
+    }
+
+    long value = 0;
+
+    for (; pos < end; ++pos) {
+      final int digit = this.data[pos] - '0';
+      if (digit < 0 || digit > 9) {
+        // something fancier, let the decoder deal with it.
+        return PgResultDecoder.toLong(this.fields.field(col), this.bytes(row, col));
+      }
+      value = (value * 10) + digit;
+    }
+
+    return negative ? -value : value;
+
+  }
+
+  @Override
+  public Query query() {
+    return this.query;
+  }
+
+  @Override
+  public int count() {
+    return this.count;
+  }
+
+  @Override
+  public boolean maybeMore() {
+    return !this.done;
+  }
+
+  @Override
+  public ResultField field(final int index) {
+    return this.fields.field(index);
+  }
+
+  @Override
+  public PgResultMeta meta() {
+    return this.fields;
+  }
+
+  @Override
+  public int fields() {
+    return this.fields == null ? 0 : this.fields.count();
+  }
+
+  @Override
+  public int statementId() {
+    return this.statementId;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("rowbuffer { count:").append(this.count()).append(" ");
+    sb.append("more:").append(this.maybeMore() ? "maybe" : "no").append(" ");
+    sb.append("fields: ").append(this.fields);
+    sb.append(" }");
+    return sb.toString();
+  }
+
+  @Override
+  public byte[] bytes(final int row, final int col) {
+    final int len = this.length(row, col);
+    if (len == -1) {
+      return null;
+    }
+    final int off = this.offset(row, col);
+    return Arrays.copyOfRange(this.data, off, off + len);
+  }
+
+  @Override
+  public String strval(final int row, final int col) {
+    final int len = this.length(row, col);
+    if (len == -1) {
+      return null;
+    }
+    if (this.isText(col)) {
+      return new String(this.data, this.offset(row, col), len, StandardCharsets.UTF_8);
+    }
+    return PgResultDecoder.toString(this.fields.field(col), this.bytes(row, col));
+  }
+
+  @Override
+  public int intval(final int row, final int col) {
+    return Ints.checkedCast(this.longval(row, col));
+  }
+
+  @Override
+  public int intval(final int row, final int col, final int defaultValue) {
+    if (this.length(row, col) == -1) {
+      return defaultValue;
+    }
+    return this.intval(row, col);
+  }
+
+  @Override
+  public long longval(final int row, final int col) {
+    final int len = this.length(row, col);
+    if (len == -1) {
+      throw new NullPointerException();
+    }
+    if (this.isText(col)) {
+      return this.parseLong(row, col, len);
+    }
+    return PgResultDecoder.toLong(this.fields.field(col), this.bytes(row, col));
+  }
+
+  @Override
+  public long longval(final int row, final int col, final long defaultValue) {
+    if (this.length(row, col) == -1) {
+      return defaultValue;
+    }
+    return this.longval(row, col);
+  }
+
+  @Override
+  public BigDecimal decimal(final int row, final int col) {
+    final byte[] val = this.bytes(row, col);
+    if (val == null) {
+      return null;
+    }
+    return PgResultDecoder.toBigDecimal(this.fields.field(col), val);
+  }
+
+  @Override
+  public Instant instant(final int row, final int col) {
+    final byte[] val = this.bytes(row, col);
+    if (val == null) {
+      return null;
+    }
+    return PgResultDecoder.toInstant(this.fields.field(col), val);
+  }
+
+  @Override
+  public boolean boolval(final int row, final int col) {
+    final int len = this.length(row, col);
+    if (len == -1) {
+      throw new NullPointerException();
+    }
+    if (this.isText(col)) {
+      return this.data[this.offset(row, col)] == 't';
+    }
+    return PgResultDecoder.toBoolean(this.fields.field(col), this.bytes(row, col));
+  }
+
+  @Override
+  public ResultRow row(final int offset) {
+    return new PgResultRow(this, offset);
+  }
+
+  @SneakyThrows
+  @Override
+  public byte[] bytea(final int row, final int col) {
+    final byte[] raw = this.bytes(row, col);
+    if (raw != null && this.isText(col)) {
+      return PGbytea.toBytes(raw);
+    }
+    return raw;
+  }
+
+  @Override
+  public ResultField field(final String label) {
+    return this.fields.field(label);
+  }
+
+  @Override
+  public int[] int2vector(final int row, final int col) {
+
+    final PgResultField field = this.fields.field(col);
+
+    switch (field.format()) {
+      case Field.TEXT_FORMAT:
+        return Splitter.on(' ').splitToList(this.strval(row, col)).stream().mapToInt(x -> Integer.parseInt(x)).toArray();
+    }
+
+    throw new IllegalArgumentException();
+
+  }
+
+  @Override
+  public Collection<String> textArray(final int row, final int col) {
+
+    if (this.length(row, col) == -1) {
+      return null;
+    }
+
+    final PgResultField field = this.fields.field(col);
+
+    switch (field.format()) {
+      case Field.TEXT_FORMAT: {
+        String value = this.strval(row, col);
+        value = value.substring(1, value.length() - 1);
+        return Splitter.on(",").splitToList(value);
+      }
+
+    }
+
+    throw new IllegalArgumentException();
+
+  }
+
+}
@@ -0,0 +1,193 @@
+package io.zrz.jpgsql.proto.client;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.zrz.jpgsql.client.opj.PgResultMeta;
+import lombok.Value;
+
+/**
+ * the named server-side prepared statements a single connection has created, keyed by the SQL and parameter types.
+ *
+ * once over capacity the least recently used statement is evicted, and its name queued to be sent as a Close by the
+ * next exchange which writes. an entry is only handed out for reuse once the backend has confirmed the Parse, so a
+ * failed Parse never leaves a statement behind which doesn't exist.
+ *
+ * the cache is only touched on the connection's event loop, the counters can be read from anywhere. statements
+ * removed behind our back (DISCARD ALL, DEALLOCATE) are not noticed.
+ */
+
+public final class PgStatementCache {
+
+  @Value
+  private static class Key {
+    private final String sql;
+    private final List<Integer> oids;
+  }
+
+  /**
+   * a named statement, along with the result description once we have seen it.
+   */
+
+  static final class Entry {
+
+    final String name;
+
+    // the backend has sent ParseComplete for it.
+    boolean prepared;
+
+    // no longer in the cache.
+    boolean removed;
+
+    // the result metadata is known, null meta means NoData.
+    boolean described;
+    PgResultMeta meta;
+
+    private Entry(final String name) {
+      this.name = name;
+    }
+
+  }
+
+  private final int capacity;
+  private final LinkedHashMap<Key, Entry> entries;
+  private final ArrayDeque<String> closing = new ArrayDeque<>();
+  private int sequence;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  PgStatementCache(final int capacity) {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * the statement to use for this SQL.
+   *
+   * @return a prepared entry which can be bound directly, a new unprepared entry which the caller must Parse, or null
+   *         if the unnamed statement should be used - either the cache is disabled, or the same statement is still
+   *         being parsed by an exchange ahead of us.
+   */
+
+  Entry acquire(final String sql, final List<Integer> oids) {
+
+    if (this.capacity <= 0) {
+      return null;
+    }
+
+    final Key key = new Key(sql, oids);
+
+    final Entry existing = this.entries.get(key);
+
+    if (existing != null) {
+      if (existing.prepared) {
+        this.hits.incrementAndGet();
+        return existing;
+      }
+      this.misses.incrementAndGet();
+      return null;
+    }
+
+    this.misses.incrementAndGet();
+
+    final Entry entry = new Entry("S_" + (++this.sequence));
+
+    this.entries.put(key, entry);
+
+    if (this.entries.size() > this.capacity) {
+      final Iterator<Entry> it = this.entries.values().iterator();
+      final Entry eldest = it.next();
+      it.remove();
+      this.evictions.incrementAndGet();
+      this.removed(eldest);
+    }
+
+    return entry;
+
+  }
+
+  /**
+   * remove an entry, e.g because the Parse failed or the backend refuses to use the plan. if it was prepared then it
+   * will be closed.
+   */
+
+  void invalidate(final Entry entry) {
+    if (this.entries.values().removeIf(e -> e == entry)) {
+      this.removed(entry);
+    }
+  }
+
+  /**
+   * the backend has confirmed the Parse for an entry. if it was evicted while the Parse was in flight then it is closed
+   * straight away.
+   */
+
+  void prepared(final Entry entry) {
+    entry.prepared = true;
+    if (entry.removed) {
+      this.closing.add(entry.name);
+    }
+  }
+
+  private void removed(final Entry entry) {
+    entry.removed = true;
+    if (entry.prepared) {
+      this.closing.add(entry.name);
+    }
+  }
+
+  /**
+   * statement names which need to be closed on the backend.
+   */
+
+  String pollClosing() {
+    return this.closing.poll();
+  }
+
+  /**
+   * a Close was skipped by the backend (it followed an error), so needs sending again.
+   */
+
+  void closeLater(final String name) {
+    this.closing.add(name);
+  }
+
+  /**
+   * executions which reused an existing statement.
+   */
+
+  public long hits() {
+    return this.hits.get();
+  }
+
+  /**
+   * executions which needed to parse the statement.
+   */
+
+  public long misses() {
+    return this.misses.get();
+  }
+
+  /**
+   * statements which have been pushed out of the cache to make room for others.
+   */
+
+  public long evictions() {
+    return this.evictions.get();
+  }
+
+  public int capacity() {
+    return this.capacity;
+  }
+
+  @Override
+  public String toString() {
+    return "statements { hits:" + this.hits() + " misses:" + this.misses() + " evictions:" + this.evictions() + " }";
+  }
+
+}
@@ -32,6 +32,22 @@ public enum MessageType {
 
   CloseComplete((byte) '3'),
 
+  NoData((byte) 'n'),
+
+  EmptyQueryResponse((byte) 'I'),
+
+  PortalSuspended((byte) 's'),
+
+  ParameterDescription((byte) 't'),
+
+  NotificationResponse((byte) 'A'),
+
+  CopyInResponse((byte) 'G'),
+
+  CopyOutResponse((byte) 'H'),
+
+  NegotiateProtocolVersion((byte) 'v'),
+
   ;
 
   private byte type;
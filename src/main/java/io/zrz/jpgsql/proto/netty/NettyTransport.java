@@ -0,0 +1,108 @@
+package io.zrz.jpgsql.proto.netty;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+
+/**
+ * picks the channel type to match the event loop group, and resolves where to connect.
+ *
+ * as with libpq, a host starting with '/' is the directory containing the server's unix socket, which is reached with
+ * the native epoll transport (linux only).
+ */
+
+public final class NettyTransport {
+
+  private NettyTransport() {
+  }
+
+  private static final class DefaultNioGroup {
+    private static final EventLoopGroup INSTANCE = new NioEventLoopGroup();
+  }
+
+  private static final class DefaultEpollGroup {
+    private static final EventLoopGroup INSTANCE = new EpollEventLoopGroup();
+  }
+
+  /**
+   * true if the native epoll transport can be used on this platform.
+   */
+
+  public static boolean isEpollAvailable() {
+    return Epoll.isAvailable();
+  }
+
+  /**
+   * the shared NIO event loop group, created on first use.
+   */
+
+  public static EventLoopGroup nioGroup() {
+    return DefaultNioGroup.INSTANCE;
+  }
+
+  /**
+   * the shared epoll event loop group, created on first use.
+   *
+   * @throws IllegalStateException
+   *           if epoll is not available.
+   */
+
+  public static EventLoopGroup epollGroup() {
+    if (!Epoll.isAvailable()) {
+      throw new IllegalStateException("native epoll transport is not available", Epoll.unavailabilityCause());
+    }
+    return DefaultEpollGroup.INSTANCE;
+  }
+
+  /**
+   * true if the host refers to a unix socket directory rather than a network host.
+   */
+
+  public static boolean isDomainSocket(final String host) {
+    return host != null && host.startsWith("/");
+  }
+
+  /**
+   * the address to connect to. for a unix socket this is the ".s.PGSQL.{port}" file in the given directory.
+   */
+
+  public static SocketAddress address(final String host, final int port) {
+    if (isDomainSocket(host)) {
+      return new DomainSocketAddress(new File(host, ".s.PGSQL." + port));
+    }
+    return InetSocketAddress.createUnresolved(host, port);
+  }
+
+  /**
+   * the channel type to use for the given address on the given group.
+   *
+   * @throws IllegalArgumentException
+   *           if a unix socket is requested on a group which isn't epoll.
+   */
+
+  public static Class<? extends Channel> channelType(final EventLoopGroup group, final SocketAddress address) {
+
+    final boolean epoll = group instanceof EpollEventLoopGroup;
+
+    if (address instanceof DomainSocketAddress) {
+      if (!epoll) {
+        throw new IllegalArgumentException("unix sockets need an epoll event loop group");
+      }
+      return EpollDomainSocketChannel.class;
+    }
+
+    return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+
+  }
+
+}
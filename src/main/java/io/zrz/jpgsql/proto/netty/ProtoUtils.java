@@ -6,16 +6,17 @@ import java.util.LinkedList;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufProcessor;
 import io.netty.util.ByteProcessor;
 import io.zrz.jpgsql.proto.wire.ErrorResponse;
 import io.zrz.jpgsql.proto.wire.NoticeResponse;
+import io.zrz.jpgsql.proto.wire.NotificationResponse;
 import io.zrz.jpgsql.proto.wire.RowDescription;
 
 public class ProtoUtils {
 
   public static final int PROTO_VERSION = 196608;
   public static final int SSL_MAGIC = 80877103;
+  public static final int CANCEL_REQUEST_CODE = 80877102;
 
   public static void addParam(final ByteBuf buf, final String key, final String value) {
     buf.writeBytes(key.getBytes(StandardCharsets.UTF_8));
@@ -32,34 +33,46 @@ public class ProtoUtils {
     return String.format("'%s'", value);
   }
 
+  /**
+   * read a NUL terminated string, consuming the terminator.
+   */
+
   public static String parseString(ByteBuf payload) {
-    final int pos = payload.forEachByte(ByteBufProcessor.FIND_NUL);
-    final byte[] posa = new byte[(pos - payload.readerIndex()) + 1];
-    payload.readBytes(posa);
-    return new String(posa, StandardCharsets.UTF_8);
+    final int pos = payload.forEachByte(ByteProcessor.FIND_NUL);
+    final String value = payload.toString(payload.readerIndex(), pos - payload.readerIndex(), StandardCharsets.UTF_8);
+    payload.readerIndex(pos + 1);
+    return value;
   }
 
   /**
-   *
+   * parse the fields of an ErrorResponse or NoticeResponse. each returned entry is the single byte field type followed
+   * by the value.
    */
 
-  public static ErrorResponse parseError(final ByteBuf payload) {
-
-    final int len = payload.readInt();
+  public static List<String> parseFields(final ByteBuf payload) {
 
     final List<String> messages = new LinkedList<>();
 
-    while (payload.readableBytes() > 0) {
-      final int pos = payload.forEachByte(ByteBufProcessor.FIND_NUL);
-      final byte[] posa = new byte[(pos - payload.readerIndex()) + 1];
-      payload.readBytes(posa);
-      messages.add(new String(posa));
+    while (payload.readableBytes() > 1) {
+      final char type = (char) payload.readByte();
+      if (type == 0) {
+        break;
+      }
+      messages.add(type + parseString(payload));
     }
 
-    return new ErrorResponse(messages);
+    return messages;
 
   }
 
+  /**
+   *
+   */
+
+  public static ErrorResponse parseError(final ByteBuf payload) {
+    return new ErrorResponse(parseFields(payload));
+  }
+
   public static List<RowDescription.Entry> parseRowDescription(final ByteBuf payload) {
 
     final int rows = payload.readShort();
@@ -68,16 +81,7 @@ public class ProtoUtils {
 
     for (int i = 0; i < rows; ++i) {
 
-      final int pos = payload.forEachByte(ByteBufProcessor.FIND_NUL);
-
-      final byte[] posa = new byte[(pos - payload.readerIndex())];
-
-      payload.readBytes(posa);
-
-      // the null char.
-      payload.readByte();
-
-      final String name = new String(posa, StandardCharsets.UTF_8);
+      final String name = parseString(payload);
 
       final int table = payload.readInt();
       final int col = payload.readShort();
@@ -87,18 +91,7 @@ public class ProtoUtils {
       final int typmod = payload.readInt();
       final int typfmt = payload.readShort();
 
-      descs.add(new RowDescription.Entry(name));
-
-      // System.err.println(String.format("name = %s, table = %d, col = %d, type = %d, len = %d, mod = %d, fmt = %d",
-      // name,
-      // table,
-      // col,
-      // type,
-      // typlen,
-      // typmod,
-      // typfmt
-      //
-      // ));
+      descs.add(new RowDescription.Entry(name, table, col, type, typlen, typmod, typfmt));
 
     }
 
@@ -106,34 +99,37 @@ public class ProtoUtils {
 
   }
 
-  public static List<String> parseDataRow(final ByteBuf payload) {
+  /**
+   * builds the column index for a DataRow without copying anything: pairs of (offset, length) relative to the current
+   * reader index, which is left unchanged.
+   */
 
-    final int rows = payload.readShort();
+  public static int[] parseDataRow(final ByteBuf payload) {
 
-    final ArrayList<String> results = new ArrayList<>(rows);
+    final int base = payload.readerIndex();
 
-    for (int i = 0; i < rows; ++i) {
+    final int cols = payload.getUnsignedShort(base);
 
-      final int len = payload.readInt();
+    final int[] index = new int[cols * 2];
 
-      if (len == -1) {
-        results.add(null);
-        // field is NULL.
-        continue;
-      }
-      else if (len == 0) {
-        results.add(null);
-        // empty length
-        continue;
-      }
+    int pos = base + 2;
+
+    for (int i = 0; i < cols; ++i) {
+
+      final int len = payload.getInt(pos);
+
+      pos += 4;
 
-      final byte[] data = new byte[len];
-      payload.readBytes(data);
-      results.add(new String(data));
+      index[i * 2] = pos - base;
+      index[(i * 2) + 1] = len;
+
+      if (len > 0) {
+        pos += len;
+      }
 
     }
 
-    return results;
+    return index;
 
   }
 
@@ -145,32 +141,14 @@ public class ProtoUtils {
    */
 
   public static NoticeResponse parseNotice(final ByteBuf payload) {
+    return new NoticeResponse(parseFields(payload));
+  }
 
-    final int len = payload.readInt();
-
-    final List<String> messages = new LinkedList<>();
-
-    while (payload.readableBytes() > 1) {
-
-      final byte type = payload.readByte();
-
-      final int pos = payload.forEachByte(ByteProcessor.FIND_NUL);
-
-      if (pos == -1) {
-        final byte[] posa = new byte[payload.readableBytes()];
-        payload.readBytes(posa);
-        messages.add(new String(posa));
-      }
-      else {
-        final byte[] posa = new byte[(pos - payload.readerIndex()) + 1];
-        payload.readBytes(posa);
-        messages.add(new String(posa));
-      }
-
-    }
-
-    return new NoticeResponse(messages);
-
+  public static NotificationResponse parseNotification(final ByteBuf payload) {
+    final int pid = payload.readInt();
+    final String channel = parseString(payload);
+    final String value = parseString(payload);
+    return new NotificationResponse(pid, channel, value);
   }
 
 }
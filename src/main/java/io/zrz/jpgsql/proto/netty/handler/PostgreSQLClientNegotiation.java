@@ -10,10 +10,12 @@ import com.google.common.hash.Hashing;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.ReferenceCountUtil;
 import io.zrz.jpgsql.proto.wire.AuthenticationMD5Password;
 import io.zrz.jpgsql.proto.wire.AuthenticationOk;
 import io.zrz.jpgsql.proto.wire.AuthenticationPacket;
 import io.zrz.jpgsql.proto.wire.BackendKeyData;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
 import io.zrz.jpgsql.proto.wire.ParameterStatus;
 import io.zrz.jpgsql.proto.wire.PasswordMessage;
 import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
@@ -45,7 +47,8 @@ public class PostgreSQLClientNegotiation extends SimpleChannelInboundHandler<Pos
     log.debug("msg: {}", msg);
 
     if (established) {
-      ctx.fireChannelRead(msg);
+      // SimpleChannelInboundHandler releases once we return, so hold a reference for the next handler.
+      ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
       return;
     }
 
@@ -96,6 +99,14 @@ public class PostgreSQLClientNegotiation extends SimpleChannelInboundHandler<Pos
 
       // err, crap.
       log.warn("authentication type {} not supported", msg);
+      ctx.fireExceptionCaught(new IllegalStateException("authentication type not supported: " + msg));
+
+    }
+    else if (msg instanceof ErrorResponse) {
+
+      // authentication or startup failure, let the connection handler deal with it.
+      log.warn("startup failed: {}", msg);
+      ctx.fireChannelRead(msg);
 
     }
     else {
@@ -13,14 +13,20 @@ import io.zrz.jpgsql.proto.wire.AuthenticationOk;
 import io.zrz.jpgsql.proto.wire.AuthenticationUnknown;
 import io.zrz.jpgsql.proto.wire.BackendKeyData;
 import io.zrz.jpgsql.proto.wire.BindComplete;
+import io.zrz.jpgsql.proto.wire.CloseComplete;
 import io.zrz.jpgsql.proto.wire.CommandComplete;
 import io.zrz.jpgsql.proto.wire.CopyBothResponse;
 import io.zrz.jpgsql.proto.wire.CopyBothResponse.Format;
 import io.zrz.jpgsql.proto.wire.CopyData;
 import io.zrz.jpgsql.proto.wire.CopyDone;
+import io.zrz.jpgsql.proto.wire.CopyInResponse;
+import io.zrz.jpgsql.proto.wire.CopyOutResponse;
 import io.zrz.jpgsql.proto.wire.DataRow;
+import io.zrz.jpgsql.proto.wire.EmptyQueryResponse;
+import io.zrz.jpgsql.proto.wire.NoData;
 import io.zrz.jpgsql.proto.wire.ParameterStatus;
 import io.zrz.jpgsql.proto.wire.ParseComplete;
+import io.zrz.jpgsql.proto.wire.PortalSuspended;
 import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
 import io.zrz.jpgsql.proto.wire.ReadyForQuery;
 import io.zrz.jpgsql.proto.wire.RowDescription;
@@ -52,7 +58,8 @@ public class PostgreSQLDecoder extends ByteToMessageDecoder {
 
       final MessageType mtype = MessageType.getType(type);
 
-      final ByteBuf payload = in.readSlice(len - 4).retain();
+      // only packets which hold on to the payload (CopyData, DataRow) retain it.
+      final ByteBuf payload = in.readSlice(len - 4);
 
       out.add(parse(mtype, payload));
 
@@ -100,6 +107,10 @@ public class PostgreSQLDecoder extends ByteToMessageDecoder {
         return new BindComplete();
       }
 
+      case CloseComplete: {
+        return new CloseComplete();
+      }
+
       case CommandComplete: {
         return new CommandComplete(ProtoUtils.parseString(payload));
       }
@@ -117,7 +128,33 @@ public class PostgreSQLDecoder extends ByteToMessageDecoder {
       }
 
       case DataRow: {
-        return new DataRow(ProtoUtils.parseDataRow(payload));
+        return new DataRow(payload.retain(), ProtoUtils.parseDataRow(payload));
+      }
+
+      case NoData: {
+        return new NoData();
+      }
+
+      case EmptyQueryResponse: {
+        return new EmptyQueryResponse();
+      }
+
+      case PortalSuspended: {
+        return new PortalSuspended();
+      }
+
+      case NotificationResponse: {
+        return ProtoUtils.parseNotification(payload);
+      }
+
+      case CopyInResponse: {
+        final Format format = parseCopyFormat(payload);
+        return new CopyInResponse(format, parseCopyColumns(payload));
+      }
+
+      case CopyOutResponse: {
+        final Format format = parseCopyFormat(payload);
+        return new CopyOutResponse(format, parseCopyColumns(payload));
       }
 
       case ErrorResponse: {
@@ -170,7 +207,32 @@ public class PostgreSQLDecoder extends ByteToMessageDecoder {
   }
 
   private static final CopyData parseCopyData(final ByteBuf buffer) {
-    return new CopyData(buffer);
+    return new CopyData(buffer.retain());
+  }
+
+  private static final Format parseCopyFormat(final ByteBuf cbp) {
+    switch (cbp.readByte()) {
+      case 0:
+        return Format.Text;
+      case 1:
+        return Format.Binary;
+      default:
+        return Format.Unknown;
+    }
+  }
+
+  private static final List<Integer> parseCopyColumns(final ByteBuf cbp) {
+
+    final int len = cbp.readShort();
+
+    final List<Integer> formats = new ArrayList<>(len);
+
+    for (int i = 0; i < len; ++i) {
+      formats.add((int) cbp.readShort());
+    }
+
+    return formats;
+
   }
 
   private static final CopyBothResponse parseCopyBothResponse(final ByteBuf cbp) {
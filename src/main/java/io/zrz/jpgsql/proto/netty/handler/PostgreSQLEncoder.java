@@ -4,6 +4,7 @@ import java.nio.charset.StandardCharsets;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.MessageToByteEncoder;
 import io.zrz.jpgsql.proto.netty.ProtoUtils;
 import io.zrz.jpgsql.proto.wire.AuthenticationMD5Password;
@@ -12,19 +13,31 @@ import io.zrz.jpgsql.proto.wire.AuthenticationUnknown;
 import io.zrz.jpgsql.proto.wire.BackendKeyData;
 import io.zrz.jpgsql.proto.wire.Bind;
 import io.zrz.jpgsql.proto.wire.BindComplete;
+import io.zrz.jpgsql.proto.wire.BindParameters;
+import io.zrz.jpgsql.proto.wire.CancelRequest;
+import io.zrz.jpgsql.proto.wire.Close;
+import io.zrz.jpgsql.proto.wire.CloseComplete;
 import io.zrz.jpgsql.proto.wire.CommandComplete;
 import io.zrz.jpgsql.proto.wire.CopyBothResponse;
 import io.zrz.jpgsql.proto.wire.CopyData;
 import io.zrz.jpgsql.proto.wire.CopyDone;
+import io.zrz.jpgsql.proto.wire.CopyFail;
+import io.zrz.jpgsql.proto.wire.CopyInResponse;
+import io.zrz.jpgsql.proto.wire.CopyOutResponse;
 import io.zrz.jpgsql.proto.wire.DataRow;
+import io.zrz.jpgsql.proto.wire.Describe;
+import io.zrz.jpgsql.proto.wire.EmptyQueryResponse;
 import io.zrz.jpgsql.proto.wire.ErrorResponse;
 import io.zrz.jpgsql.proto.wire.Execute;
 import io.zrz.jpgsql.proto.wire.Flush;
+import io.zrz.jpgsql.proto.wire.NoData;
 import io.zrz.jpgsql.proto.wire.NoticeResponse;
+import io.zrz.jpgsql.proto.wire.NotificationResponse;
 import io.zrz.jpgsql.proto.wire.ParameterStatus;
 import io.zrz.jpgsql.proto.wire.Parse;
 import io.zrz.jpgsql.proto.wire.ParseComplete;
 import io.zrz.jpgsql.proto.wire.PasswordMessage;
+import io.zrz.jpgsql.proto.wire.PortalSuspended;
 import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
 import io.zrz.jpgsql.proto.wire.PostgreSQLPacketVisitor;
 import io.zrz.jpgsql.proto.wire.Query;
@@ -41,6 +54,29 @@ import io.zrz.jpgsql.proto.wire.UnknownMessage;
 
 public class PostgreSQLEncoder extends MessageToByteEncoder<PostgreSQLPacket> {
 
+  /**
+   * CopyData is written as a small header buffer composed with the payload, rather than copying the payload into a new
+   * buffer. the frame takes ownership of the payload.
+   */
+
+  @Override
+  public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+
+    if (!(msg instanceof CopyData)) {
+      super.write(ctx, msg, promise);
+      return;
+    }
+
+    final ByteBuf data = ((CopyData) msg).content();
+
+    final ByteBuf header = ctx.alloc().buffer(5);
+    header.writeByte('d');
+    header.writeInt(data.readableBytes() + 4);
+
+    ctx.write(ctx.alloc().compositeBuffer(2).addComponents(true, header, data), promise);
+
+  }
+
   @Override
   protected void encode(final ChannelHandlerContext ctx, final PostgreSQLPacket msg, final ByteBuf out) throws Exception {
 
@@ -78,11 +114,87 @@ public class PostgreSQLEncoder extends MessageToByteEncoder<PostgreSQLPacket> {
 
       @Override
       public Void visitCopyData(final CopyData copyData) {
+        final ByteBuf data = copyData.getData();
+        out.writeByte('d');
+        out.writeInt(data.readableBytes() + 4);
+        out.writeBytes(data, data.readerIndex(), data.readableBytes());
         return null;
       }
 
       @Override
       public Void visitCopyDone(final CopyDone copyDone) {
+        out.writeByte('c');
+        out.writeInt(4);
+        return null;
+      }
+
+      @Override
+      public Void visitCopyFail(final CopyFail copyFail) {
+        out.writeByte('f');
+        final int pos = out.writerIndex();
+        out.writeInt(0); // update in a bit
+        out.writeBytes(copyFail.getMessage().getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+        out.setInt(pos, out.writerIndex() - pos);
+        return null;
+      }
+
+      @Override
+      public Void visitCopyInResponse(final CopyInResponse copyInResponse) {
+        return null;
+      }
+
+      @Override
+      public Void visitCopyOutResponse(final CopyOutResponse copyOutResponse) {
+        return null;
+      }
+
+      @Override
+      public Void visitClose(final Close close) {
+        out.writeByte('C');
+        final int pos = out.writerIndex();
+        out.writeInt(0); // update in a bit
+        out.writeByte(close.getType());
+        out.writeBytes(close.getName().getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+        out.setInt(pos, out.writerIndex() - pos);
+        return null;
+      }
+
+      @Override
+      public Void visitCloseComplete(final CloseComplete closeComplete) {
+        return null;
+      }
+
+      @Override
+      public Void visitDescribe(final Describe describe) {
+        out.writeByte('D');
+        final int pos = out.writerIndex();
+        out.writeInt(0); // update in a bit
+        out.writeByte(describe.getType());
+        out.writeBytes(describe.getName().getBytes(StandardCharsets.UTF_8));
+        out.writeByte(0);
+        out.setInt(pos, out.writerIndex() - pos);
+        return null;
+      }
+
+      @Override
+      public Void visitNoData(final NoData noData) {
+        return null;
+      }
+
+      @Override
+      public Void visitEmptyQueryResponse(final EmptyQueryResponse emptyQueryResponse) {
+        return null;
+      }
+
+      @Override
+      public Void visitPortalSuspended(final PortalSuspended portalSuspended) {
+        return null;
+      }
+
+      @Override
+      public Void visitNotificationResponse(final NotificationResponse notificationResponse) {
         return null;
       }
 
@@ -157,6 +269,15 @@ public class PostgreSQLEncoder extends MessageToByteEncoder<PostgreSQLPacket> {
         return null;
       }
 
+      @Override
+      public Void visitCancelRequest(final CancelRequest cancel) {
+        out.writeInt(16);
+        out.writeInt(ProtoUtils.CANCEL_REQUEST_CODE);
+        out.writeInt(cancel.getProcessId());
+        out.writeInt(cancel.getSecretKey());
+        return null;
+      }
+
       @Override
       public Void visitAuthenticationMD5Password(final AuthenticationMD5Password authenticationMD5Password) {
         // TODO Auto-generated method stub
@@ -244,36 +365,65 @@ public class PostgreSQLEncoder extends MessageToByteEncoder<PostgreSQLPacket> {
         // String
         // The name of the destination portal (an empty string selects the unnamed portal).
         //
-        out.writeBytes(bind.getDestinationPortal().getBytes(StandardCharsets.UTF_8));
+        out.writeCharSequence(bind.getDestinationPortal(), StandardCharsets.UTF_8);
         out.writeByte(0);
 
         // String
         // The name of the source prepared statement (an empty string selects the unnamed prepared statement).
-        out.writeBytes(bind.getSourcePreparedStatement().getBytes(StandardCharsets.UTF_8));
+        out.writeCharSequence(bind.getSourcePreparedStatement(), StandardCharsets.UTF_8);
         out.writeByte(0);
-        //
-        // Int16
-        // The number of parameter format codes that follow (denoted C below). This can be zero to indicate that there
-        // are no parameters or that the parameters all use the default format (text); or one, in which case the
-        // specified format code is applied to all parameters; or it can equal the actual number of parameters.
-        out.writeShort(0);
-        //
-        // Int16[C]
-        // The parameter format codes. Each must presently be zero (text) or one (binary).
-        //
-        // Int16
-        // The number of parameter values that follow (possibly zero). This must match the number of parameters needed
-        // by the query.
-        out.writeShort(0);
-        //
-        // Next, the following pair of fields appear for each parameter:
-        //
-        // Int32
-        // The length of the parameter value, in bytes (this count does not include itself). Can be zero. As a special
-        // case, -1 indicates a NULL parameter value. No value bytes follow in the NULL case.
-        //
-        // Byten
-        // The value of the parameter, in the format indicated by the associated format code. n is the above length.
+
+        final BindParameters params = bind.getParameters();
+
+        if (params != null) {
+          // a single format code applies to all of the parameters, which are all binary.
+          final int count = params.count();
+          out.writeShort(count == 0 ? 0 : 1);
+          if (count > 0) {
+            out.writeShort(1);
+          }
+          out.writeShort(count);
+          for (int i = 0; i < count; ++i) {
+            params.write(i, out);
+          }
+        }
+        else {
+          // Int16
+          // The number of parameter format codes that follow (denoted C below). This can be zero to indicate that there
+          // are no parameters or that the parameters all use the default format (text); or one, in which case the
+          // specified format code is applied to all parameters; or it can equal the actual number of parameters.
+          out.writeShort(bind.getParameterFormats().size());
+          //
+          // Int16[C]
+          // The parameter format codes. Each must presently be zero (text) or one (binary).
+          for (final int format : bind.getParameterFormats()) {
+            out.writeShort(format);
+          }
+          //
+          // Int16
+          // The number of parameter values that follow (possibly zero). This must match the number of parameters needed
+          // by the query.
+          out.writeShort(bind.getParameterValues().size());
+          //
+          // Next, the following pair of fields appear for each parameter:
+          //
+          // Int32
+          // The length of the parameter value, in bytes (this count does not include itself). Can be zero. As a special
+          // case, -1 indicates a NULL parameter value. No value bytes follow in the NULL case.
+          //
+          // Byten
+          // The value of the parameter, in the format indicated by the associated format code. n is the above length.
+          for (final byte[] value : bind.getParameterValues()) {
+            if (value == null) {
+              out.writeInt(-1);
+            }
+            else {
+              out.writeInt(value.length);
+              out.writeBytes(value);
+            }
+          }
+        }
+
         //
         // After the last parameter, the following fields appear:
         //
@@ -283,11 +433,13 @@ public class PostgreSQLEncoder extends MessageToByteEncoder<PostgreSQLPacket> {
         // result columns or that the result columns should all use the default format (text); or one, in which case the
         // specified format code is applied to all result columns (if any); or it can equal the actual number of result
         // columns of the query.
-        out.writeShort(1);
+        out.writeShort(bind.getResultFormats().size());
         //
         // Int16[R]
         // The result-column format codes. Each must presently be zero (text) or one (binary).
-        out.writeShort(1);
+        for (final int format : bind.getResultFormats()) {
+          out.writeShort(format);
+        }
 
         final int len = out.writerIndex() - pos;
         out.setInt(pos, len);
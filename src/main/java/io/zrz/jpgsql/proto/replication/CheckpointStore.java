@@ -0,0 +1,35 @@
+package io.zrz.jpgsql.proto.replication;
+
+/**
+ * keeps the position each replication slot has been consumed up to, so a new connection can resume from it.
+ *
+ * positions are LSNs as a long (see {@link io.zrz.jpgsql.proto.WalPosition#toLsn()}), 0 being none. saving is
+ * expected to be cheap and may not be durable straight away - the server is only told it can discard WAL up to the
+ * position which {@link #durable(String)} returns.
+ */
+
+public interface CheckpointStore extends AutoCloseable
+{
+
+  /**
+   * the last position saved for the slot, or 0.
+   */
+
+  long load(String slotId);
+
+  /**
+   * record the position for the slot. positions lower than the one already saved are ignored.
+   */
+
+  void save(String slotId, long lsn);
+
+  /**
+   * the highest position for the slot which will survive a crash, or 0.
+   */
+
+  long durable(String slotId);
+
+  @Override
+  void close();
+
+}
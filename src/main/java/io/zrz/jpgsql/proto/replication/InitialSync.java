@@ -0,0 +1,229 @@
+package io.zrz.jpgsql.proto.replication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import io.netty.buffer.ByteBuf;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.zrz.jpgsql.client.PgSession;
+import io.zrz.jpgsql.client.PostgresClient;
+import io.zrz.jpgsql.client.RowBuffer;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * copies tables as of a slot's exported snapshot, over several connections at once.
+ *
+ * each table is either copied whole, or split into a number of ranges of an integer key column (which must not be
+ * NULL, normally the primary key) using the lowest and highest values in the snapshot. each range is a separate binary
+ * COPY ... TO STDOUT on its own session, which imports the snapshot first - so every range sees exactly the same data,
+ * regardless of when it runs.
+ *
+ * pass to {@link ReplicationConnectionBuilder#initialSync(Function)}, so streaming starts where the copy ends.
+ */
+
+@Slf4j
+public final class InitialSync implements Function<SlotSnapshot, Completable>
+{
+
+  /**
+   * a table to copy.
+   */
+
+  @Value
+  public static class Table
+  {
+
+    // the table, as written in SQL.
+    private final String name;
+
+    // an integer column to split the table on, or null to copy it whole.
+    private final String key;
+
+    private final int partitions;
+
+    public static Table whole(String name)
+    {
+      return new Table(name, null, 1);
+    }
+
+    public static Table partitioned(String name, String key, int partitions)
+    {
+      Preconditions.checkArgument(partitions > 0, "partitions must be positive");
+      return new Table(name, key, partitions);
+    }
+
+  }
+
+  /**
+   * one range of a table. a null bound is unbounded.
+   */
+
+  @Value
+  public static class Chunk
+  {
+
+    private final Table table;
+
+    // inclusive.
+    private final Long lower;
+
+    // exclusive.
+    private final Long upper;
+
+    public String sql()
+    {
+
+      if (this.lower == null && this.upper == null) {
+        return "COPY " + this.table.name + " TO STDOUT (FORMAT binary)";
+      }
+
+      final StringBuilder sb = new StringBuilder();
+
+      sb.append("COPY (SELECT * FROM ").append(this.table.name).append(" WHERE ");
+
+      if (this.lower != null) {
+        sb.append(this.table.key).append(" >= ").append(this.lower);
+      }
+
+      if (this.lower != null && this.upper != null) {
+        sb.append(" AND ");
+      }
+
+      if (this.upper != null) {
+        sb.append(this.table.key).append(" < ").append(this.upper);
+      }
+
+      return sb.append(") TO STDOUT (FORMAT binary)").toString();
+
+    }
+
+  }
+
+  /**
+   * receives the binary COPY data of each chunk, possibly concurrently with others. each buffer must be released.
+   */
+
+  @FunctionalInterface
+  public interface Sink
+  {
+
+    Completable copy(Chunk chunk, Flowable<ByteBuf> data);
+
+  }
+
+  private final PostgresClient client;
+  private final int parallelism;
+  private final List<Table> tables;
+  private final Sink sink;
+
+  /**
+   * @param parallelism
+   *          the number of sessions to copy with at once.
+   */
+
+  public InitialSync(PostgresClient client, int parallelism, List<Table> tables, Sink sink)
+  {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    this.client = client;
+    this.parallelism = parallelism;
+    this.tables = ImmutableList.copyOf(tables);
+    this.sink = sink;
+  }
+
+  @Override
+  public Completable apply(SlotSnapshot snapshot)
+  {
+    return Flowable.fromIterable(this.tables)
+        .concatMap(table -> this.plan(snapshot, table))
+        .flatMapCompletable(chunk -> this.copy(snapshot, chunk), false, this.parallelism);
+  }
+
+  /**
+   * split the table into ranges of roughly the same width.
+   */
+
+  private Flowable<Chunk> plan(SlotSnapshot snapshot, Table table)
+  {
+
+    if (table.key == null || table.partitions == 1) {
+      return Flowable.just(new Chunk(table, null, null));
+    }
+
+    final String sql = "SELECT min(" + table.key + ")::bigint, max(" + table.key + ")::bigint FROM " + table.name;
+
+    return this.inSnapshot(snapshot, session -> Flowable.fromPublisher(session.submit(sql)))
+        .ofType(RowBuffer.class)
+        .filter(rows -> rows.count() > 0)
+        .take(1)
+        .concatMapIterable(rows -> {
+
+          final String min = rows.strval(0, 0);
+
+          if (min == null) {
+            // empty.
+            return Collections.singletonList(new Chunk(table, null, null));
+          }
+
+          return split(table, Long.parseLong(min), Long.parseLong(rows.strval(0, 1)));
+
+        });
+
+  }
+
+  private static List<Chunk> split(Table table, long min, long max)
+  {
+
+    // as a double so a range spanning most of the long space doesn't overflow.
+    final double width = (((double) max - min) + 1) / table.partitions;
+
+    final List<Chunk> chunks = new ArrayList<>(table.partitions);
+
+    Long lower = null;
+
+    for (int i = 1; i < table.partitions; ++i) {
+      final long upper = (long) (min + (width * i));
+      if (lower != null && upper <= lower) {
+        continue;
+      }
+      chunks.add(new Chunk(table, lower, upper));
+      lower = upper;
+    }
+
+    chunks.add(new Chunk(table, lower, null));
+
+    log.debug("copying {} in {} chunks", table.name, chunks.size());
+
+    return chunks;
+
+  }
+
+  private Completable copy(SlotSnapshot snapshot, Chunk chunk)
+  {
+    return this.inSnapshot(snapshot, session -> this.sink.copy(chunk, Flowable.fromPublisher(session.copyFrom(chunk.sql()))).toFlowable())
+        .ignoreElements();
+  }
+
+  /**
+   * run the work in a new session, in a read only transaction using the snapshot.
+   */
+
+  private <T> Flowable<T> inSnapshot(SlotSnapshot snapshot, Function<PgSession, Flowable<T>> work)
+  {
+    return Flowable.using(
+        this.client::openSession,
+        session -> Flowable.fromPublisher(session.submit("BEGIN ISOLATION LEVEL REPEATABLE READ, READ ONLY"))
+            .concatWith(session.submit("SET TRANSACTION SNAPSHOT '" + snapshot.getSnapshotName().replace("'", "''") + "'"))
+            .ignoreElements()
+            .andThen(work.apply(session))
+            .concatWith(Flowable.fromPublisher(session.submit("COMMIT")).ignoreElements().toFlowable()),
+        PgSession::close);
+  }
+
+}
@@ -0,0 +1,221 @@
+package io.zrz.jpgsql.proto.replication;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * a {@link CheckpointStore} keeping each slot's position in a small memory mapped file in a directory.
+ *
+ * saving a position is just a write to the mapping. the mappings are forced to disk periodically, so however many
+ * positions are saved in between there is one fsync per interval - a position becomes durable at most one interval
+ * after it was saved.
+ *
+ * each file holds two records, written alternately, each with a sequence number and check value. a write torn by a
+ * crash leaves the other record intact, and the newer valid one is used when loading.
+ */
+
+@Slf4j
+public class MappedCheckpointStore implements CheckpointStore
+{
+
+  private static final long MAGIC = 0x50474c534e434b50L;
+
+  // sequence, lsn, check.
+  private static final int RECORD_SIZE = 24;
+
+  private static final class Slot
+  {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private long sequence;
+    private volatile long saved;
+    private volatile long durable;
+
+    private Slot(final Path file) throws IOException
+    {
+
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, RECORD_SIZE * 2);
+
+      for (int i = 0; i < 2; ++i) {
+        final int offset = i * RECORD_SIZE;
+        final long seq = this.buffer.getLong(offset);
+        final long lsn = this.buffer.getLong(offset + 8);
+        if (this.buffer.getLong(offset + 16) == check(seq, lsn) && seq > this.sequence) {
+          this.sequence = seq;
+          this.saved = lsn;
+        }
+      }
+
+      this.durable = this.saved;
+
+    }
+
+    private synchronized void save(final long lsn)
+    {
+
+      if (lsn <= this.saved) {
+        return;
+      }
+
+      final long seq = ++this.sequence;
+      final int offset = (int) (seq & 1) * RECORD_SIZE;
+
+      this.buffer.putLong(offset, seq);
+      this.buffer.putLong(offset + 8, lsn);
+      this.buffer.putLong(offset + 16, check(seq, lsn));
+
+      this.saved = lsn;
+
+    }
+
+    private void sync()
+    {
+
+      final long lsn = this.saved;
+
+      if (lsn == this.durable) {
+        return;
+      }
+
+      // anything written to the mapping before we read saved is on disk once this returns.
+      this.buffer.force();
+
+      this.durable = lsn;
+
+    }
+
+  }
+
+  private final Path directory;
+  private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService syncer;
+
+  public MappedCheckpointStore(final Path directory)
+  {
+    this(directory, Duration.ofSeconds(1));
+  }
+
+  /**
+   * @param syncInterval
+   *          how often saved positions are forced to disk.
+   */
+
+  public MappedCheckpointStore(final Path directory, final Duration syncInterval)
+  {
+
+    try {
+      Files.createDirectories(directory);
+    }
+    catch (final IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+
+    this.directory = directory;
+
+    this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "checkpoint-sync");
+      t.setDaemon(true);
+      return t;
+    });
+
+    this.syncer.scheduleWithFixedDelay(this::sync, syncInterval.toMillis(), syncInterval.toMillis(), TimeUnit.MILLISECONDS);
+
+  }
+
+  @Override
+  public long load(final String slotId)
+  {
+    return this.slot(slotId).saved;
+  }
+
+  @Override
+  public void save(final String slotId, final long lsn)
+  {
+    this.slot(slotId).save(lsn);
+  }
+
+  @Override
+  public long durable(final String slotId)
+  {
+    return this.slot(slotId).durable;
+  }
+
+  /**
+   * force everything saved so far to disk now.
+   */
+
+  public void sync()
+  {
+    for (final Slot slot : this.slots.values()) {
+      try {
+        slot.sync();
+      }
+      catch (final RuntimeException ex) {
+        log.warn("failed to sync checkpoint", ex);
+      }
+    }
+  }
+
+  /**
+   * syncs anything outstanding, and stops.
+   */
+
+  @Override
+  public void close()
+  {
+
+    this.syncer.shutdown();
+
+    try {
+      this.syncer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (final InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    this.sync();
+
+    for (final Slot slot : this.slots.values()) {
+      try {
+        slot.channel.close();
+      }
+      catch (final IOException ex) {
+        log.warn("failed to close checkpoint", ex);
+      }
+    }
+
+  }
+
+  private Slot slot(final String slotId)
+  {
+    return this.slots.computeIfAbsent(slotId, id -> {
+      try {
+        return new Slot(this.directory.resolve(id + ".checkpoint"));
+      }
+      catch (final IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    });
+  }
+
+  private static long check(final long seq, final long lsn)
+  {
+    return MAGIC ^ (seq * 31) ^ lsn;
+  }
+
+}
@@ -1,9 +1,16 @@
 package io.zrz.jpgsql.proto.replication;
 
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
@@ -12,17 +19,24 @@ import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.ScheduledFuture;
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableEmitter;
+import io.zrz.jpgsql.client.ErrorResult;
+import io.zrz.jpgsql.client.opj.PgDemand;
 import io.zrz.jpgsql.proto.AbstractConnection;
 import io.zrz.jpgsql.proto.WalPosition;
+import io.zrz.jpgsql.proto.netty.NettyTransport;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLClientNegotiation;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLDecoder;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLEncoder;
 import io.zrz.jpgsql.proto.netty.handler.PostgreSQLHandshakeCompleteEvent;
 import io.zrz.jpgsql.proto.wire.CommandComplete;
 import io.zrz.jpgsql.proto.wire.CopyData;
+import io.zrz.jpgsql.proto.wire.DataRow;
+import io.zrz.jpgsql.proto.wire.ErrorResponse;
 import io.zrz.jpgsql.proto.wire.PostgreSQLPacket;
 import io.zrz.jpgsql.proto.wire.Query;
 import lombok.extern.slf4j.Slf4j;
@@ -34,6 +48,9 @@ import lombok.extern.slf4j.Slf4j;
  * 
  * If an error occurs, the connection is terminated.
  * 
+ * The WAL data is read with {@link #stream()}, and the position the consumer has durably processed reported back with
+ * {@link #acknowledge(long)} so the server can discard WAL before it.
+ * 
  * @author theo
  *
  */
@@ -49,6 +66,15 @@ public class ReplicationConnection extends AbstractConnection {
   private final String slotId;
   private WalPosition position;
   private String create;
+  private final Map<String, String> options;
+  private final Function<SlotSnapshot, Completable> initialSync;
+  private Handler handler;
+  private final CheckpointStore checkpoints;
+
+  private final ReplicationMetrics metrics = new ReplicationMetrics();
+
+  // the LSN the consumer has told us it has processed, reported to the server as flushed and applied.
+  private final AtomicLong acknowledged = new AtomicLong();
 
   ReplicationConnection(ReplicationConnectionBuilder b) {
 
@@ -60,6 +86,26 @@ public class ReplicationConnection extends AbstractConnection {
     this.slotId = b.slotId;
     this.position = b.position;
     this.create = b.create;
+    this.options = new LinkedHashMap<>(b.options);
+    this.initialSync = b.initialSync;
+
+    if (this.initialSync != null && this.create == null) {
+      throw new IllegalArgumentException("initialSync needs the slot to be created");
+    }
+
+    this.checkpoints = b.checkpoints;
+
+    if (this.position == null && this.checkpoints != null) {
+      final long lsn = this.checkpoints.load(this.slotId);
+      if (lsn != 0) {
+        log.info("resuming slot {} from checkpoint {}", this.slotId, Long.toHexString(lsn));
+        this.position = WalPosition.fromLsn(lsn);
+      }
+    }
+
+    if (this.position != null) {
+      this.acknowledged.set(this.position.toLsn());
+    }
 
     if (b.username == null) {
       params.put("user", DEFAULT_USERNAME);
@@ -80,10 +126,58 @@ public class ReplicationConnection extends AbstractConnection {
 
   }
 
+  /**
+   * the WAL data as it arrives. only a single subscriber is allowed.
+   * 
+   * the connection stops reading from the socket while the subscriber has no outstanding demand, so the server is held
+   * up rather than the data piling up in memory. each {@link XLogData} holds on to the network buffer, so must be
+   * released once the subscriber is done with it. cancelling closes the connection.
+   * 
+   * data which arrives before subscribing is held until it is requested.
+   */
+
+  public Flowable<XLogData> stream() {
+    return Flowable.defer(() -> {
+      final Channel channel = this.connectFuture.channel();
+      final Handler handler = this.handler;
+      final PgDemand<XLogData> demand = new PgDemand<>();
+      return Flowable.<XLogData>create(emitter -> {
+        demand.onRequest(() -> channel.eventLoop().execute(handler::drain));
+        channel.eventLoop().execute(() -> handler.subscribe(emitter));
+      }, BackpressureStrategy.MISSING).lift(demand);
+    });
+  }
+
+  /**
+   * throughput and lag of this connection.
+   */
+
+  public ReplicationMetrics metrics() {
+    return this.metrics;
+  }
+
+  /**
+   * the consumer has processed (and durably stored, if needed) everything up to the given LSN. it is sent to the server
+   * in the next standby status update, after which it is free to discard the WAL before it.
+   * 
+   * positions lower than one already acknowledged are ignored. may be called from any thread.
+   * 
+   * with a {@link CheckpointStore} the position is saved to it, and only reported to the server once the store has made
+   * it durable.
+   */
+
+  public void acknowledge(long lsn) {
+    final long acked = this.acknowledged.accumulateAndGet(lsn, Math::max);
+    if (this.checkpoints != null) {
+      this.checkpoints.save(this.slotId, acked);
+    }
+  }
+
   private static enum HandlerState {
     Waiting,
     Identifying,
     Creating,
+    Syncing,
     Starting
   }
 
@@ -99,6 +193,21 @@ public class ReplicationConnection extends AbstractConnection {
     private ChannelHandlerContext ctx;
     private ScheduledFuture<?> future;
 
+    // received but not yet emitted, as the subscriber has no outstanding demand (or hasn't subscribed yet).
+    private final ArrayDeque<XLogData> backlog = new ArrayDeque<>();
+    private FlowableEmitter<XLogData> emitter;
+
+    // we turned off autoRead as the backlog isn't being drained.
+    private boolean paused;
+
+    // the slot we created, with its exported snapshot.
+    private SlotSnapshot snapshot;
+
+    // the connection has gone, the stream terminates once the backlog has been emitted.
+    private boolean closed;
+    private Throwable failure;
+    private boolean terminated;
+
     // note that any packets which contain byte buffers are NOT retained after we return, so need to copy if needed.
 
     @Override
@@ -107,6 +216,11 @@ public class ReplicationConnection extends AbstractConnection {
       if (msg instanceof CommandComplete) {
         this.nextStage();
       }
+      else if (msg instanceof DataRow && state == HandlerState.Creating) {
+        // slot_name, consistent_point, snapshot_name, output_plugin
+        final DataRow row = (DataRow) msg;
+        this.snapshot = new SlotSnapshot(row.string(0), WalPosition.fromString(row.string(1)), row.string(2));
+      }
       else if (msg instanceof CopyData) {
 
         final ByteBuf copydata = ((CopyData) msg).getData();
@@ -121,7 +235,7 @@ public class ReplicationConnection extends AbstractConnection {
             final long currentEnd = copydata.readLong();
             final long txtime = copydata.readLong();
 
-            log.debug("DATA: {}, {}, {}", startingPoint, currentEnd, txtime);
+            metrics.received(startingPoint, currentEnd, txtime, copydata.readableBytes());
 
             // A single WAL record is never split across two XLogData messages. When a WAL record crosses a WAL page
             // boundary, and
@@ -129,14 +243,27 @@ public class ReplicationConnection extends AbstractConnection {
             // words, the first
             // main WAL record and its continuation records can be sent in different XLogData messages.
 
-            XLogData data = new XLogData(startingPoint, currentEnd, txtime, copydata.slice());
+            this.outputWrittenLsn = Math.max(this.outputWrittenLsn, startingPoint);
+
+            if (this.terminated) {
+              // the subscriber has gone, the connection is closing.
+              break;
+            }
+
+            this.backlog.add(new XLogData(startingPoint, currentEnd, txtime, copydata.retainedSlice()));
+
+            this.drain();
+
+            if (!this.paused && !this.backlog.isEmpty()) {
+              this.paused = true;
+              ctx.channel().config().setAutoRead(false);
+            }
 
             break;
 
           case 'k': // keepalive
 
             this.processKeepalive(copydata);
-            log.debug("KEEPALIVE");
             break;
 
           default:
@@ -146,12 +273,84 @@ public class ReplicationConnection extends AbstractConnection {
         }
 
       }
+      else if (msg instanceof ErrorResponse) {
+        log.warn("replication failed: {}", ((ErrorResponse) msg).toServerErrorMessage());
+        this.failure = new ErrorResult(null, 0, ((ErrorResponse) msg).toServerErrorMessage().toString(), null,
+            ((ErrorResponse) msg).toServerErrorMessage(), null);
+        ctx.close();
+      }
       else {
         System.err.println(msg);
       }
 
     }
 
+    void subscribe(FlowableEmitter<XLogData> emitter) {
+
+      if (this.emitter != null) {
+        emitter.onError(new IllegalStateException("replication stream already subscribed"));
+        return;
+      }
+
+      this.emitter = emitter;
+      this.drain();
+
+    }
+
+    /**
+     * emit as much of the backlog as there is demand for, and read more once it has been drained.
+     */
+
+    void drain() {
+
+      final FlowableEmitter<XLogData> emitter = this.emitter;
+
+      if (emitter == null || this.terminated) {
+        return;
+      }
+
+      if (emitter.isCancelled()) {
+        this.cancelled();
+        return;
+      }
+
+      while (!this.backlog.isEmpty() && emitter.requested() > 0) {
+        final long start = System.nanoTime();
+        emitter.onNext(this.backlog.poll());
+        metrics.consumer(System.nanoTime() - start);
+      }
+
+      if (!this.backlog.isEmpty()) {
+        return;
+      }
+
+      if (this.closed) {
+        this.terminated = true;
+        emitter.tryOnError(this.failure != null ? this.failure : new IllegalStateException("replication connection closed"));
+      }
+      else if (this.paused && emitter.requested() > 0) {
+        this.paused = false;
+        this.ctx.channel().config().setAutoRead(true);
+      }
+
+    }
+
+    private void cancelled() {
+
+      this.terminated = true;
+
+      XLogData data;
+
+      while ((data = this.backlog.poll()) != null) {
+        data.release();
+      }
+
+      if (this.ctx != null) {
+        this.ctx.close();
+      }
+
+    }
+
     /**
      * The previous command completed, do the next thing.
      */
@@ -172,9 +371,15 @@ public class ReplicationConnection extends AbstractConnection {
             break;
           }
         case Creating:
+          if (initialSync != null) {
+            state = HandlerState.Syncing;
+            sync();
+            break;
+          }
           state = HandlerState.Starting;
           sendStart();
           break;
+        case Syncing:
         case Starting:
           // hmmp, that's odd...
           throw new RuntimeException("Unexpected next stage for state");
@@ -190,9 +395,53 @@ public class ReplicationConnection extends AbstractConnection {
     void sendCreate() {
       StringBuilder sb = new StringBuilder();
       sb.append("CREATE_REPLICATION_SLOT ").append(slotId).append(" LOGICAL ").append(create);
+      if (initialSync != null) {
+        sb.append(" EXPORT_SNAPSHOT");
+      }
       ctx.writeAndFlush(new Query(sb.toString()));
     }
 
+    /**
+     * run the initial sync with the exported snapshot, which stays valid as long as we don't send anything else. then
+     * stream from the consistent point.
+     */
+
+    private void sync() {
+
+      final SlotSnapshot snapshot = this.snapshot;
+
+      if (snapshot == null || snapshot.getSnapshotName() == null) {
+        this.fail(new IllegalStateException("CREATE_REPLICATION_SLOT didn't export a snapshot"));
+        return;
+      }
+
+      log.info("running initial sync of slot {} with snapshot {}, consistent at {}", slotId, snapshot.getSnapshotName(), snapshot.getConsistentPoint());
+
+      // only acknowledged once the copy is complete: saved any earlier, a restart after a crash part way through would
+      // stream from here as if it had finished.
+      position = snapshot.getConsistentPoint();
+
+      initialSync.apply(snapshot).subscribe(
+          () -> this.ctx.executor().execute(() -> {
+            if (!this.closed) {
+              log.info("initial sync of slot {} complete", slotId);
+              acknowledge(position.toLsn());
+              state = HandlerState.Starting;
+              sendStart();
+            }
+          }),
+          err -> this.ctx.executor().execute(() -> this.fail(err)));
+
+    }
+
+    private void fail(Throwable cause) {
+      log.warn("replication failed", cause);
+      if (this.failure == null) {
+        this.failure = cause;
+      }
+      this.ctx.close();
+    }
+
     void sendStart() {
 
       StringBuilder sb = new StringBuilder();
@@ -206,6 +455,20 @@ public class ReplicationConnection extends AbstractConnection {
         sb.append("0/0");
       }
 
+      if (!options.isEmpty()) {
+        sb.append(" (");
+        boolean first = true;
+        for (Map.Entry<String, String> e : options.entrySet()) {
+          if (!first) {
+            sb.append(", ");
+          }
+          first = false;
+          sb.append('"').append(e.getKey().replace("\"", "\"\"")).append("\" '");
+          sb.append(e.getValue().replace("'", "''")).append('\'');
+        }
+        sb.append(')');
+      }
+
       ctx.writeAndFlush(new Query(sb.toString()));
 
     }
@@ -215,14 +478,15 @@ public class ReplicationConnection extends AbstractConnection {
       final long currentEnd = ptr.readLong();
       final long serverTimeMicros = ptr.readLong();
 
-      this.outputWrittenLsn = currentEnd;
+      this.outputWrittenLsn = Math.max(this.outputWrittenLsn, currentEnd);
+
+      metrics.keepalive(currentEnd, serverTimeMicros);
 
       final byte reply = ptr.readByte();
 
-      log.info(String.format("Current Time: %s, Server Time: %s, Reply? %s",
-          Long.toHexString(currentEnd),
-          Long.toString(serverTimeMicros),
-          Boolean.toString(reply != 0)));
+      if (log.isTraceEnabled()) {
+        log.trace("keepalive end={} server time={} reply={}", WalPosition.toString(currentEnd), serverTimeMicros, reply != 0);
+      }
 
       if (reply == 1) {
         this.sendKeepalive();
@@ -232,21 +496,33 @@ public class ReplicationConnection extends AbstractConnection {
 
     /**
      * While in CopyBoth mode, we need to send periodic keepalives.
+     * 
+     * we report everything we've received as written, but only what the consumer has acknowledged as flushed and
+     * applied - the server keeps the WAL after the flushed position for us, so we can resume from it after a crash.
      */
 
     private void sendKeepalive() {
 
-      final long position = this.outputWrittenLsn;
+      if (this.ctx == null || state != HandlerState.Starting || this.closed) {
+        return;
+      }
+
+      final long flushed = checkpoints == null ? acknowledged.get() : checkpoints.durable(slotId);
+      final long written = Math.max(this.outputWrittenLsn, flushed);
 
-      log.debug("Sending Keepalive position={}", Long.toHexString(position));
+      metrics.reported(flushed);
+
+      if (log.isTraceEnabled()) {
+        log.trace("sending status written={} flushed={}", WalPosition.toString(written), WalPosition.toString(flushed));
+      }
 
       // send feedback
       final ByteBuf xkp = this.ctx.alloc().buffer();
 
       xkp.writeByte('r');
-      xkp.writeLong(position);
-      xkp.writeLong(position);
-      xkp.writeLong(0);
+      xkp.writeLong(written);
+      xkp.writeLong(flushed);
+      xkp.writeLong(flushed);
       xkp.writeLong(System.currentTimeMillis() * 1000); // micros since epoch
       xkp.writeByte(0);
 
@@ -254,6 +530,7 @@ public class ReplicationConnection extends AbstractConnection {
       xcd.writeByte('d');
       xcd.writeInt(xkp.readableBytes() + 4);
       xcd.writeBytes(xkp);
+      xkp.release();
       ctx.writeAndFlush(xcd);
 
     }
@@ -272,38 +549,59 @@ public class ReplicationConnection extends AbstractConnection {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-      this.future = ctx.executor().scheduleWithFixedDelay(this::sendKeepalive, 5, 5, TimeUnit.SECONDS);
+      this.future = ctx.executor().scheduleWithFixedDelay(() -> {
+        metrics.tick();
+        this.sendKeepalive();
+      }, 5, 5, TimeUnit.SECONDS);
       super.channelActive(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
       this.future.cancel(true);
+      this.closed = true;
+      this.drain();
       super.channelInactive(ctx);
     }
 
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+      log.warn("replication connection failed", cause);
+      if (this.failure == null) {
+        this.failure = cause;
+      }
+      ctx.close();
+    }
+
   }
 
   void connect(String host, int port) {
 
+    final SocketAddress address = NettyTransport.address(host, port);
+
     final Bootstrap b = new Bootstrap();
 
+    this.handler = new Handler();
+
     b.group(group)
-        .channel(NioSocketChannel.class)
-        .option(ChannelOption.TCP_NODELAY, true)
-        .handler(new ChannelInitializer<SocketChannel>() {
+        .channel(NettyTransport.channelType(group, address))
+        .handler(new ChannelInitializer<Channel>() {
           @Override
-          public void initChannel(final SocketChannel ch) throws Exception {
+          public void initChannel(final Channel ch) throws Exception {
             final ChannelPipeline p = ch.pipeline();
             p.addLast(new PostgreSQLDecoder());
             p.addLast(new PostgreSQLEncoder());
             p.addLast(new PostgreSQLClientNegotiation(ReplicationConnection.this.params, null));
-            p.addLast(new Handler());
+            p.addLast(ReplicationConnection.this.handler);
           }
         });
 
+    if (!NettyTransport.isDomainSocket(host)) {
+      b.option(ChannelOption.TCP_NODELAY, true);
+    }
+
     // attempt to connect.
-    this.connectFuture = b.connect(host, port);
+    this.connectFuture = b.connect(address);
 
   }
 
@@ -1,20 +1,26 @@
 package io.zrz.jpgsql.proto.replication;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.reactivex.Completable;
 import io.zrz.jpgsql.proto.WalPosition;
+import io.zrz.jpgsql.proto.netty.NettyTransport;
 
 public class ReplicationConnectionBuilder
 {
-  
-  private static final EventLoopGroup DEFAULT_EVENT_LOOP_GROUP = new NioEventLoopGroup();
 
-  EventLoopGroup group = DEFAULT_EVENT_LOOP_GROUP;
+  EventLoopGroup group = NettyTransport.nioGroup();
   String username;
   String database;
   String slotId;
   WalPosition position;
   String create;
+  CheckpointStore checkpoints;
+  Map<String, String> options = new LinkedHashMap<>();
+  Function<SlotSnapshot, Completable> initialSync;
 
   public ReplicationConnectionBuilder group(EventLoopGroup group)
   {
@@ -22,6 +28,16 @@ public class ReplicationConnectionBuilder
     return this;
   }
 
+  /**
+   * use the shared native epoll event loop group instead of NIO. needed to connect over a unix socket, linux only.
+   */
+
+  public ReplicationConnectionBuilder epoll()
+  {
+    this.group = NettyTransport.epollGroup();
+    return this;
+  }
+
   public ReplicationConnectionBuilder username(String username)
   {
     this.username = username;
@@ -52,6 +68,43 @@ public class ReplicationConnectionBuilder
     return this;
   }
 
+  /**
+   * an option passed to the output plugin by START_REPLICATION, e.g for pgoutput "proto_version" and
+   * "publication_names", or "streaming" to have large transactions sent before they commit.
+   */
+
+  public ReplicationConnectionBuilder option(String name, String value)
+  {
+    this.options.put(name, value);
+    return this;
+  }
+
+  /**
+   * when the slot is created, export its snapshot and run the initial sync with it (see {@link InitialSync}) before
+   * streaming from the slot's consistent point. if the sync fails, the stream fails with the error.
+   */
+
+  public ReplicationConnectionBuilder initialSync(Function<SlotSnapshot, Completable> initialSync)
+  {
+    this.initialSync = initialSync;
+    return this;
+  }
+
+  /**
+   * where the acknowledged position is kept. if no position is given, the connection resumes from the one in the store.
+   */
+
+  public ReplicationConnectionBuilder checkpoints(CheckpointStore checkpoints)
+  {
+    this.checkpoints = checkpoints;
+    return this;
+  }
+
+  /**
+   * @param host
+   *          the hostname, or a directory starting with '/' containing the server's unix socket.
+   */
+
   public ReplicationConnection newConnection(String host, int port)
   {
     ReplicationConnection conn = new ReplicationConnection(this);
@@ -0,0 +1,222 @@
+package io.zrz.jpgsql.proto.replication;
+
+import java.time.Duration;
+
+/**
+ * counters for a single {@link ReplicationConnection}, updated by its event loop and readable from any thread.
+ *
+ * LSNs are the 64 bit value (see {@link io.zrz.jpgsql.proto.WalPosition#toString(long)} to format one). the rates are
+ * over the most recent interval, which ends at each keepalive tick (every 5 seconds).
+ *
+ * lag in time relies on the server's clock: the offset between the clocks is estimated from each keepalive, assuming
+ * it arrives straight away, so is only as good as the network latency.
+ */
+
+public final class ReplicationMetrics
+{
+
+  // 2000-01-01T00:00:00Z in unix micros, which the server's times are relative to.
+  private static final long PG_EPOCH_MICROS = 946_684_800_000_000L;
+
+  // all written by a single thread, so volatile is enough.
+  private volatile long messages;
+  private volatile long bytes;
+  private volatile long receivedLsn;
+  private volatile long serverEndLsn;
+  private volatile long flushedLsn;
+  private volatile long lastSendTime;
+  private volatile long clockOffsetMicros;
+  private volatile long consumerNanos;
+  private volatile long consumerCalls;
+
+  private volatile double messageRate;
+  private volatile double byteRate;
+
+  private long tickNanos = System.nanoTime();
+  private long tickMessages;
+  private long tickBytes;
+
+  void received(final long lsn, final long serverEnd, final long sendTime, final int size)
+  {
+    this.messages++;
+    this.bytes += size;
+    this.receivedLsn = Math.max(this.receivedLsn, lsn);
+    this.serverEndLsn = Math.max(this.serverEndLsn, serverEnd);
+    this.lastSendTime = sendTime;
+  }
+
+  void keepalive(final long serverEnd, final long serverTime)
+  {
+    this.serverEndLsn = Math.max(this.serverEndLsn, serverEnd);
+    this.clockOffsetMicros = nowMicros() - (serverTime + PG_EPOCH_MICROS);
+    if (this.receivedLsn >= this.serverEndLsn) {
+      // nothing more to send, so we're as up to date as the server is.
+      this.lastSendTime = serverTime;
+    }
+  }
+
+  void reported(final long flushed)
+  {
+    this.flushedLsn = flushed;
+  }
+
+  void consumer(final long nanos)
+  {
+    this.consumerNanos += nanos;
+    this.consumerCalls++;
+  }
+
+  void tick()
+  {
+
+    final long now = System.nanoTime();
+    final double seconds = (now - this.tickNanos) / 1e9;
+
+    if (seconds > 0) {
+      this.messageRate = (this.messages - this.tickMessages) / seconds;
+      this.byteRate = (this.bytes - this.tickBytes) / seconds;
+    }
+
+    this.tickNanos = now;
+    this.tickMessages = this.messages;
+    this.tickBytes = this.bytes;
+
+  }
+
+  /**
+   * XLogData messages received.
+   */
+
+  public long messages()
+  {
+    return this.messages;
+  }
+
+  /**
+   * bytes of XLogData payload received.
+   */
+
+  public long bytes()
+  {
+    return this.bytes;
+  }
+
+  public double messagesPerSecond()
+  {
+    return this.messageRate;
+  }
+
+  public double bytesPerSecond()
+  {
+    return this.byteRate;
+  }
+
+  /**
+   * the highest LSN received.
+   */
+
+  public long receivedLsn()
+  {
+    return this.receivedLsn;
+  }
+
+  /**
+   * the end of WAL on the server, as of the last message from it.
+   */
+
+  public long serverEndLsn()
+  {
+    return this.serverEndLsn;
+  }
+
+  /**
+   * the LSN last reported to the server as flushed, which it retains WAL from.
+   */
+
+  public long flushedLsn()
+  {
+    return this.flushedLsn;
+  }
+
+  /**
+   * bytes of WAL the server has which we haven't received.
+   */
+
+  public long receiveLagBytes()
+  {
+    return Math.max(0, this.serverEndLsn - this.receivedLsn);
+  }
+
+  /**
+   * bytes of WAL the server is retaining for us.
+   */
+
+  public long flushLagBytes()
+  {
+    return this.flushedLsn == 0 ? 0 : Math.max(0, this.serverEndLsn - this.flushedLsn);
+  }
+
+  /**
+   * how long ago the server sent the most recent data we've received, in server time. a keepalive which arrives once
+   * we've received up to the server's end of WAL counts as data sent at that time, so an idle stream which is caught up
+   * reads zero rather than the time since the last change. grows when data is slow to arrive, or keepalives stop.
+   */
+
+  public Duration lag()
+  {
+
+    final long sent = this.lastSendTime;
+
+    if (sent == 0) {
+      return Duration.ZERO;
+    }
+
+    final long serverNow = nowMicros() - this.clockOffsetMicros - PG_EPOCH_MICROS;
+
+    return Duration.ofNanos(Math.max(0, serverNow - sent) * 1000);
+
+  }
+
+  /**
+   * how far the server's clock is behind ours.
+   */
+
+  public Duration clockOffset()
+  {
+    return Duration.ofNanos(this.clockOffsetMicros * 1000);
+  }
+
+  /**
+   * total time spent in the subscriber's onNext.
+   */
+
+  public Duration consumerTime()
+  {
+    return Duration.ofNanos(this.consumerNanos);
+  }
+
+  /**
+   * average time spent in the subscriber's onNext.
+   */
+
+  public Duration consumerTimeAverage()
+  {
+    final long calls = this.consumerCalls;
+    return calls == 0 ? Duration.ZERO : Duration.ofNanos(this.consumerNanos / calls);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "replication { received:" + this.messages + "/" + this.bytes + "b"
+        + " rate:" + (long) this.messageRate + "/s " + (long) this.byteRate + "b/s"
+        + " lag:" + this.receiveLagBytes() + "b/" + this.flushLagBytes() + "b " + this.lag().toMillis() + "ms"
+        + " consumer:" + this.consumerTimeAverage().toNanos() + "ns }";
+  }
+
+  private static long nowMicros()
+  {
+    return System.currentTimeMillis() * 1000;
+  }
+
+}
@@ -0,0 +1,23 @@
+package io.zrz.jpgsql.proto.replication;
+
+import io.zrz.jpgsql.proto.WalPosition;
+import lombok.Value;
+
+/**
+ * a newly created slot, and the snapshot exported with it. the snapshot sees exactly the data from before the
+ * consistent point, so a copy made with it followed by streaming the slot from the consistent point loses or repeats
+ * nothing.
+ *
+ * the snapshot can only be imported while the replication connection waits, so streaming starts once the initial sync
+ * completes.
+ */
+
+@Value
+public class SlotSnapshot
+{
+
+  private final String slotName;
+  private final WalPosition consistentPoint;
+  private final String snapshotName;
+
+}
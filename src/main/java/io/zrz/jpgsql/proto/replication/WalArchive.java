@@ -0,0 +1,623 @@
+package io.zrz.jpgsql.proto.replication;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableTransformer;
+import io.reactivex.schedulers.Schedulers;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * an append only log of {@link XLogData} on local disk, so several consumers can read one replication stream, each at
+ * its own pace and from any position still retained - rather than each needing its own slot on the server.
+ *
+ * the log is a directory of segment files, each named by the LSN of its first record and memory mapped. records are
+ * (length, CRC, LSN, server end, txtime, payload), and the length is written last, so a cursor in the same process
+ * never sees a partial record. that doesn't hold on disk: after an OS crash the pages of a segment can have reached it
+ * in any order, so on reopening the records are checked against their CRCs, and everything from the first which fails
+ * (or goes back in LSN) is dropped. each segment keeps a sparse in-memory index of LSN to offset, so seeking only scans
+ * a short run of records.
+ *
+ * records must be appended in LSN order. one writer, any number of {@link Cursor}s on other threads.
+ */
+
+@Slf4j
+public final class WalArchive implements AutoCloseable
+{
+
+  private static final int HEADER_SIZE = 32;
+
+  // index every n'th record.
+  private static final int INDEX_INTERVAL = 64;
+
+  private static final String SUFFIX = ".wal";
+
+  private static final class Segment
+  {
+
+    private final long base;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    // end of the last complete record, published to readers.
+    private volatile int limit;
+
+    // recovery stopped at a damaged record.
+    private boolean torn;
+
+    // no more records will be added.
+    private volatile boolean sealed;
+
+    // the segment after this one, set before it is sealed. cursors follow this rather than the map, so carry on through
+    // segments which have since been removed.
+    private volatile Segment next;
+
+    // sparse index, guarded by this.
+    private long[] lsns = new long[16];
+    private int[] offsets = new int[16];
+    private int indexed;
+
+    // only accessed by the appender.
+    private int records;
+
+    private Segment(final long base, final Path path, final int size) throws IOException
+    {
+      this.base = base;
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, this.channel.size()));
+    }
+
+    /**
+     * find the end of the records in an existing segment, and rebuild the index. returns the last LSN, or the one it
+     * carries on after if there are no records.
+     *
+     * a record which is cut short, fails its CRC or goes back in LSN ends the segment. it and anything after it is
+     * zeroed, so nothing left over can be mistaken for a record once more are appended.
+     */
+
+    private long recover(final long after, final List<ByteBuffer> tail)
+    {
+
+      int pos = 0;
+      long last = after;
+
+      while (pos + HEADER_SIZE <= this.buffer.capacity()) {
+
+        final int len = this.buffer.getInt(pos);
+
+        if (len == 0) {
+          break;
+        }
+
+        if (len < 0
+            || pos + HEADER_SIZE + len > this.buffer.capacity()
+            || this.buffer.getInt(pos + 4) != this.checksum(pos, len)
+            || this.buffer.getLong(pos + 8) < last) {
+          log.warn("{} is damaged at offset {}, dropping the rest of the archive", this.path, pos);
+          this.torn = true;
+          for (int i = pos; i < this.buffer.capacity(); ++i) {
+            this.buffer.put(i, (byte) 0);
+          }
+          this.buffer.force();
+          break;
+        }
+
+        final long lsn = this.buffer.getLong(pos + 8);
+        if (lsn != last) {
+          tail.clear();
+        }
+        tail.add(this.payload(pos, len));
+        last = lsn;
+        this.index(last, pos);
+        pos += HEADER_SIZE + len;
+
+      }
+
+      this.limit = pos;
+
+      return last;
+
+    }
+
+    /**
+     * the CRC of a record, covering everything after the CRC itself.
+     */
+
+    private int checksum(final int pos, final int len)
+    {
+      final ByteBuffer buf = this.buffer.duplicate();
+      buf.position(pos + 8);
+      buf.limit(pos + HEADER_SIZE + len);
+      final CRC32 crc = new CRC32();
+      crc.update(buf);
+      return (int) crc.getValue();
+    }
+
+    private boolean fits(final int len)
+    {
+      return this.limit + HEADER_SIZE + len <= this.buffer.capacity();
+    }
+
+    private ByteBuffer payload(final int pos, final int len)
+    {
+      final ByteBuffer buf = this.buffer.duplicate();
+      buf.position(pos + HEADER_SIZE);
+      buf.limit(pos + HEADER_SIZE + len);
+      return buf.slice();
+    }
+
+    /**
+     * write the record after the last one, returning a view of its payload.
+     */
+
+    private ByteBuffer append(final XLogData data)
+    {
+
+      final ByteBuf payload = data.getByteBuf();
+      final int len = payload.readableBytes();
+      final int pos = this.limit;
+
+      final ByteBuffer out = this.buffer.duplicate();
+      out.limit(pos + HEADER_SIZE + len);
+      out.position(pos + 8);
+      out.putLong(data.getStartingPoint());
+      out.putLong(data.getCurrentEnd());
+      out.putLong(data.getTxTime());
+      payload.getBytes(payload.readerIndex(), out);
+
+      this.buffer.putInt(pos + 4, this.checksum(pos, len));
+
+      // the length goes last: until it is there, the record doesn't exist.
+      this.buffer.putInt(pos, len);
+
+      this.index(data.getStartingPoint(), pos);
+
+      this.limit = pos + HEADER_SIZE + len;
+
+      return this.payload(pos, len);
+
+    }
+
+    private void index(final long lsn, final int offset)
+    {
+
+      if (this.records++ % INDEX_INTERVAL != 0) {
+        return;
+      }
+
+      synchronized (this) {
+
+        final int n = this.indexed;
+
+        if (n == this.lsns.length) {
+          this.lsns = Arrays.copyOf(this.lsns, n * 2);
+          this.offsets = Arrays.copyOf(this.offsets, n * 2);
+        }
+
+        this.lsns[n] = lsn;
+        this.offsets[n] = offset;
+        this.indexed = n + 1;
+
+      }
+
+    }
+
+    /**
+     * an offset to start scanning from for the first record at or after the LSN.
+     */
+
+    private synchronized int seek(final long lsn)
+    {
+
+      int lo = 0;
+      int hi = this.indexed - 1;
+      int found = 0;
+
+      while (lo <= hi) {
+        final int mid = (lo + hi) >>> 1;
+        if (this.lsns[mid] < lsn) {
+          found = this.offsets[mid];
+          lo = mid + 1;
+        }
+        else {
+          hi = mid - 1;
+        }
+      }
+
+      return found;
+
+    }
+
+    private void close()
+    {
+      try {
+        this.channel.close();
+      }
+      catch (final IOException ex) {
+        log.warn("failed to close {}", this.path, ex);
+      }
+    }
+
+    private void delete()
+    {
+      this.close();
+      try {
+        Files.deleteIfExists(this.path);
+      }
+      catch (final IOException ex) {
+        log.warn("failed to remove {}", this.path, ex);
+      }
+    }
+
+  }
+
+  /**
+   * reads the archive from a position, independently of any other cursor. not thread safe.
+   */
+
+  public final class Cursor
+  {
+
+    private Segment segment;
+    private int position;
+
+    private Cursor(final long lsn)
+    {
+
+      final Map.Entry<Long, Segment> entry = WalArchive.this.segments.floorEntry(lsn);
+
+      this.segment = entry == null ? WalArchive.this.first() : entry.getValue();
+
+      if (this.segment != null) {
+        this.position = this.segment.seek(lsn);
+        // skip forward to the first record at or after the position.
+        while (this.position < this.segment.limit && this.segment.buffer.getLong(this.position + 8) < lsn) {
+          this.position += HEADER_SIZE + this.segment.buffer.getInt(this.position);
+        }
+      }
+
+    }
+
+    /**
+     * the next record, or null if there isn't one yet. the payload is a view of the mapped segment, so isn't copied -
+     * and stays valid even once the segment has been removed.
+     */
+
+    public XLogData poll()
+    {
+
+      while (true) {
+
+        if (this.segment == null) {
+          this.segment = WalArchive.this.first();
+          if (this.segment == null) {
+            return null;
+          }
+        }
+
+        // read sealed before the limit, so a sealed segment's limit is final.
+        final boolean sealed = this.segment.sealed;
+
+        if (this.position < this.segment.limit) {
+
+          final ByteBuffer buf = this.segment.buffer;
+          final int len = buf.getInt(this.position);
+
+          final long lsn = buf.getLong(this.position + 8);
+          final long end = buf.getLong(this.position + 16);
+          final long txtime = buf.getLong(this.position + 24);
+
+          final ByteBuffer payload = this.segment.payload(this.position, len);
+
+          this.position += HEADER_SIZE + len;
+
+          return new XLogData(lsn, end, txtime, Unpooled.wrappedBuffer(payload));
+
+        }
+
+        if (!sealed) {
+          return null;
+        }
+
+        final Segment next = this.segment.next;
+
+        if (next == null) {
+          return null;
+        }
+
+        this.segment = next;
+        this.position = 0;
+
+      }
+
+    }
+
+    /**
+     * the next record, waiting up to the timeout for one to be appended. null if none was.
+     */
+
+    public XLogData poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+      synchronized (WalArchive.this) {
+
+        XLogData data;
+
+        while ((data = this.poll()) == null) {
+          final long remaining = deadline - System.nanoTime();
+          if (remaining <= 0 || WalArchive.this.closed) {
+            return null;
+          }
+          TimeUnit.NANOSECONDS.timedWait(WalArchive.this, remaining);
+        }
+
+        return data;
+
+      }
+
+    }
+
+  }
+
+  private final Path directory;
+  private final int segmentSize;
+  private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+  private Segment active;
+  private long last;
+
+  // the payloads of the records at the last LSN, to spot them being sent again.
+  private final List<ByteBuffer> tail = new ArrayList<>();
+  private volatile boolean closed;
+
+  /**
+   * open (or create) the archive in a directory, continuing after the records already in it.
+   *
+   * @param segmentSize
+   *          the size of each segment file. a record larger than this gets a segment to itself.
+   */
+
+  public WalArchive(final Path directory, final int segmentSize)
+  {
+
+    Preconditions.checkArgument(segmentSize > HEADER_SIZE, "segmentSize too small");
+
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+
+    try {
+
+      Files.createDirectories(directory);
+
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+        for (final Path file : files) {
+          final String name = file.getFileName().toString();
+          final long base = Long.parseUnsignedLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+          this.segments.put(base, new Segment(base, file, 0));
+        }
+      }
+
+      Segment previous = null;
+
+      for (final Iterator<Segment> it = this.segments.values().iterator(); it.hasNext();) {
+        final Segment segment = it.next();
+        if (previous != null && previous.torn) {
+          // the log has a hole in it, so nothing after can be used.
+          it.remove();
+          segment.delete();
+          continue;
+        }
+        segment.sealed = true;
+        this.last = segment.recover(this.last, this.tail);
+        if (previous != null) {
+          previous.next = segment;
+        }
+        previous = segment;
+      }
+
+      if (!this.segments.isEmpty()) {
+        this.active = this.segments.lastEntry().getValue();
+        this.active.sealed = false;
+      }
+
+    }
+    catch (final IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+
+  }
+
+  /**
+   * the LSN of the last record, or 0 if empty. a stream resuming after it won't add records already here.
+   */
+
+  public long lastLsn()
+  {
+    return this.last;
+  }
+
+  /**
+   * add a record. records before the last one (e.g resent after reconnecting) are ignored. several records can start at
+   * the same LSN (a BEGIN, RELATION and the first change, say), so one at the last LSN is only ignored if its payload
+   * matches a record already archived at that LSN. the caller still owns the data.
+   */
+
+  public synchronized void append(final XLogData data)
+  {
+
+    Preconditions.checkState(!this.closed, "archive closed");
+
+    final long lsn = data.getStartingPoint();
+
+    if (lsn < this.last) {
+      return;
+    }
+
+    final ByteBuf payload = data.getByteBuf();
+
+    if (lsn == this.last && this.tail.contains(payload.nioBuffer(payload.readerIndex(), payload.readableBytes()))) {
+      return;
+    }
+
+    final int len = payload.readableBytes();
+
+    try {
+
+      if (this.active == null || !this.active.fits(len)) {
+        this.roll(lsn, len);
+      }
+
+    }
+    catch (final IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+
+    if (lsn != this.last) {
+      this.tail.clear();
+    }
+
+    this.tail.add(this.active.append(data));
+
+    this.last = lsn;
+
+    this.notifyAll();
+
+  }
+
+  private void roll(final long lsn, final int len) throws IOException
+  {
+
+    final Segment next = new Segment(
+        lsn,
+        this.directory.resolve(String.format("%016X", lsn) + SUFFIX),
+        Math.max(this.segmentSize, HEADER_SIZE + len));
+
+    if (this.active != null) {
+      this.active.buffer.force();
+      this.active.next = next;
+      this.active.sealed = true;
+    }
+
+    this.segments.put(lsn, next);
+    this.active = next;
+
+  }
+
+  /**
+   * append each record as it passes through. the records are unchanged, and still need releasing downstream.
+   */
+
+  public FlowableTransformer<XLogData, XLogData> archiving()
+  {
+    return upstream -> upstream.doOnNext(this::append);
+  }
+
+  /**
+   * a cursor at the first retained record at or after the LSN.
+   */
+
+  public Cursor cursor(final long lsn)
+  {
+    return new Cursor(lsn);
+  }
+
+  /**
+   * the records from the LSN onwards, waiting for more to be appended (on an io thread) once caught up. runs until
+   * cancelled or the archive is closed.
+   */
+
+  public Flowable<XLogData> tail(final long lsn)
+  {
+    return Flowable.<XLogData, Cursor>generate(
+        () -> this.cursor(lsn),
+        (cursor, emitter) -> {
+          XLogData data = null;
+          while (data == null && !this.closed) {
+            data = cursor.poll(1, TimeUnit.SECONDS);
+          }
+          if (data == null) {
+            emitter.onComplete();
+          }
+          else {
+            emitter.onNext(data);
+          }
+        })
+        .subscribeOn(Schedulers.io());
+  }
+
+  /**
+   * remove the segments which only have records before the LSN. cursors reading them carry on unaffected.
+   */
+
+  public synchronized void retain(final long lsn)
+  {
+
+    Map.Entry<Long, Segment> entry;
+
+    while ((entry = this.segments.firstEntry()) != null && entry.getValue() != this.active) {
+
+      final Map.Entry<Long, Segment> next = this.segments.higherEntry(entry.getKey());
+
+      if (next == null || next.getKey() > lsn) {
+        break;
+      }
+
+      this.segments.remove(entry.getKey());
+      entry.getValue().delete();
+
+    }
+
+  }
+
+  /**
+   * force everything appended so far to disk.
+   */
+
+  public void flush()
+  {
+    final Segment active = this.active;
+    if (active != null) {
+      active.buffer.force();
+    }
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    this.closed = true;
+    this.flush();
+    this.segments.values().forEach(Segment::close);
+    this.notifyAll();
+  }
+
+  private Segment first()
+  {
+    final Map.Entry<Long, Segment> first = this.segments.firstEntry();
+    return first == null ? null : first.getValue();
+  }
+
+}
@@ -3,6 +3,12 @@ package io.zrz.jpgsql.proto.replication;
 import io.netty.buffer.ByteBuf;
 import lombok.ToString;
 
+/**
+ * a chunk of WAL data from the replication stream.
+ *
+ * the payload is a slice of the network buffer, not a copy. it must be released once consumed.
+ */
+
 @ToString
 public class XLogData
 {
@@ -40,4 +46,13 @@ public class XLogData
     return this.byteBuf;
   }
 
+  /**
+   * release the payload, once the consumer has finished with it.
+   */
+
+  public boolean release()
+  {
+    return this.byteBuf.release();
+  }
+
 }
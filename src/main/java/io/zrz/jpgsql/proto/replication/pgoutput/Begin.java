@@ -0,0 +1,20 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * start of a transaction. everything up to the {@link Commit} belongs to it.
+ */
+
+@Value
+public class Begin implements PgOutputMessage {
+
+  // the LSN of the commit record.
+  private final long finalLsn;
+
+  // microseconds since 2000-01-01, see PgOutputDecoder.timestamp().
+  private final long commitTime;
+
+  private final int xid;
+
+}
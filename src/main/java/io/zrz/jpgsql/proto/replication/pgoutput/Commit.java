@@ -0,0 +1,22 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * end of a transaction.
+ */
+
+@Value
+public class Commit implements PgOutputMessage {
+
+  private final int flags;
+
+  // the LSN of the commit record.
+  private final long commitLsn;
+
+  // the end of the commit record, which is the position to acknowledge once the transaction has been applied.
+  private final long endLsn;
+
+  private final long commitTime;
+
+}
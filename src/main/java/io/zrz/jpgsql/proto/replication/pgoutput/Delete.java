@@ -0,0 +1,18 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * a deleted row, identified by its replica identity columns (or all of them if REPLICA IDENTITY FULL).
+ */
+
+@Value
+public class Delete implements PgOutputMessage {
+
+  private final Relation relation;
+  private final TupleData old;
+
+  // old only has the replica identity columns.
+  private final boolean keyOnly;
+
+}
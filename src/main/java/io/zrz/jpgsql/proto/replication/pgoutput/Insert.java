@@ -0,0 +1,11 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+@Value
+public class Insert implements PgOutputMessage {
+
+  private final Relation relation;
+  private final TupleData tuple;
+
+}
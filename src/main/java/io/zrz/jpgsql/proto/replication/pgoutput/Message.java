@@ -0,0 +1,27 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import io.netty.buffer.ByteBuf;
+import lombok.Value;
+
+/**
+ * a message written with pg_logical_emit_message(), only sent with the 'messages' option on. a transactional one is
+ * sent within its transaction, otherwise it is sent straight away, outside of any.
+ *
+ * the content is a slice of the payload, so is only valid until the XLogData it came from is released.
+ */
+
+@Value
+public class Message implements PgOutputMessage {
+
+  public static final int TRANSACTIONAL = 1;
+
+  private final int flags;
+  private final long lsn;
+  private final String prefix;
+  private final ByteBuf content;
+
+  public boolean isTransactional() {
+    return (this.flags & TRANSACTIONAL) != 0;
+  }
+
+}
@@ -0,0 +1,15 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * the transaction was replicated to the server from elsewhere.
+ */
+
+@Value
+public class Origin implements PgOutputMessage {
+
+  private final long lsn;
+  private final String name;
+
+}
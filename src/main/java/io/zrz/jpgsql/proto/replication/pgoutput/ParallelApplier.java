@@ -0,0 +1,419 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.function.LongConsumer;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.schedulers.Schedulers;
+import io.zrz.jpgsql.proto.replication.ReplicationConnection;
+import io.zrz.jpgsql.proto.replication.XLogData;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * applies the changes from a replication stream using a pool of workers, while keeping the changes to each row in
+ * order.
+ *
+ * each change is routed to a worker by its relation and the values of its replica identity columns, so changes to the
+ * same row always go to the same worker, and are applied in the order they were made. changes to different rows may be
+ * applied in any order. an update which changes the key (so would be routed to two workers), or a truncate, waits for
+ * everything before it to be applied, and is then applied on its own.
+ *
+ * a table with REPLICA IDENTITY FULL has no key to route by - every column is part of the identity, so nearly every
+ * update would change it - so all of its changes go to the same worker. they are applied in order, in parallel with
+ * the changes to other tables.
+ *
+ * the end LSN of each transaction is acknowledged once it, and every change before it, has been applied - so on a
+ * restart the stream resumes from the first transaction not completely applied. a change may therefore be applied
+ * more than once, the handler needs to be idempotent.
+ *
+ * with streaming on (protocol version 2), the changes of a large transaction arrive before it is known whether it will
+ * commit, so they can't be applied directly: put {@link PgOutputStreams#assemble(java.nio.file.Path, long)} in front.
+ * a stream message reaching the applier fails it.
+ */
+
+@Slf4j
+public final class ParallelApplier {
+
+  /**
+   * applies an {@link Insert}, {@link Update}, {@link Delete} or {@link Truncate}. called from the worker threads; the
+   * tuples are only valid until it returns.
+   */
+
+  @FunctionalInterface
+  public interface ChangeHandler {
+
+    void apply(PgOutputMessage change) throws Exception;
+
+  }
+
+  private static final Task STOP = new Task(null, null);
+
+  private static final class Task {
+
+    private final PgOutputMessage change;
+    private final XLogData data;
+
+    private Task(final PgOutputMessage change, final XLogData data) {
+      this.change = change;
+      this.data = data;
+    }
+
+  }
+
+  /**
+   * a transaction end which can be acknowledged once each worker has completed the number of changes it had been given
+   * when the commit was seen.
+   */
+
+  private static final class Checkpoint {
+
+    private final long lsn;
+    private final long[] dispatched;
+
+    private Checkpoint(final long lsn, final long[] dispatched) {
+      this.lsn = lsn;
+      this.dispatched = dispatched;
+    }
+
+  }
+
+  private final class Worker implements Runnable {
+
+    private final BlockingQueue<Task> queue;
+
+    // changes handed to this worker, only accessed by the dispatcher.
+    private long dispatched;
+
+    // changes this worker has finished with.
+    private volatile long completed;
+
+    private Worker(final int depth) {
+      this.queue = new ArrayBlockingQueue<>(depth);
+    }
+
+    @Override
+    public void run() {
+      try {
+        Task task;
+        while ((task = this.queue.take()) != STOP) {
+          ParallelApplier.this.run(task);
+          this.completed++;
+          ParallelApplier.this.advance();
+        }
+      }
+      catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+  }
+
+  private final PgOutputDecoder decoder;
+  private final ChangeHandler handler;
+  private final LongConsumer acknowledge;
+  private final int parallelism;
+  private final int queueDepth;
+
+  // guarded by this.
+  private final ArrayDeque<Checkpoint> checkpoints = new ArrayDeque<>();
+
+  private Worker[] workers;
+  private volatile Throwable failure;
+  private volatile boolean drained;
+
+  /**
+   * @param parallelism
+   *          the number of worker threads.
+   * @param queueDepth
+   *          the number of changes which can be waiting for each worker, after which the stream is paused.
+   * @param acknowledge
+   *          called with the end LSN of each transaction once it has been applied, e.g
+   *          {@link ReplicationConnection#acknowledge(long)}.
+   */
+
+  public ParallelApplier(final PgOutputDecoder decoder, final int parallelism, final int queueDepth, final ChangeHandler handler,
+      final LongConsumer acknowledge) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    Preconditions.checkArgument(queueDepth > 0, "queueDepth must be positive");
+    this.decoder = decoder;
+    this.parallelism = parallelism;
+    this.queueDepth = queueDepth;
+    this.handler = handler;
+    this.acknowledge = acknowledge;
+  }
+
+  /**
+   * apply the stream. completes once the stream does, and everything in it has been applied. fails with the first
+   * error from the handler, after which nothing more is applied or acknowledged. can only be used once.
+   */
+
+  public Completable apply(final Flowable<XLogData> stream) {
+    return Completable.defer(() -> {
+
+      Preconditions.checkState(this.workers == null, "already applying");
+
+      this.workers = new Worker[this.parallelism];
+
+      for (int i = 0; i < this.parallelism; ++i) {
+        this.workers[i] = new Worker(this.queueDepth);
+        final Thread t = new Thread(this.workers[i], "apply-" + i);
+        t.setDaemon(true);
+        t.start();
+      }
+
+      // the dispatcher blocks when a worker's queue is full, so can't be on the event loop.
+      return stream
+          .observeOn(Schedulers.io(), false, this.queueDepth)
+          .doOnNext(this::dispatch)
+          .ignoreElements()
+          .andThen(Completable.fromAction(this::drain))
+          .doFinally(this::stop);
+
+    });
+  }
+
+  private void dispatch(final XLogData data) throws Exception {
+
+    final Throwable failure = this.failure;
+
+    if (failure != null) {
+      data.release();
+      throw failure instanceof Exception ? (Exception) failure : new RuntimeException(failure);
+    }
+
+    final PgOutputMessage msg;
+
+    try {
+      msg = this.decoder.decode(data);
+    }
+    catch (final RuntimeException ex) {
+      data.release();
+      throw ex;
+    }
+
+    if (msg instanceof StreamStart || msg instanceof StreamStop || msg instanceof StreamCommit || msg instanceof StreamAbort) {
+      data.release();
+      throw new IllegalStateException("streamed transactions can't be applied directly, assemble them with PgOutputStreams first");
+    }
+
+    if (msg instanceof Insert) {
+      final Insert insert = (Insert) msg;
+      this.submit(this.worker(insert.getRelation(), insert.getTuple()), msg, data);
+    }
+    else if (msg instanceof Update) {
+
+      final Update update = (Update) msg;
+
+      final int target = this.worker(update.getRelation(), update.getTuple());
+
+      if (update.getOld() != null && this.worker(update.getRelation(), update.getOld()) != target) {
+        this.barrier(msg, data);
+      }
+      else {
+        this.submit(target, msg, data);
+      }
+
+    }
+    else if (msg instanceof Delete) {
+      final Delete delete = (Delete) msg;
+      this.submit(this.worker(delete.getRelation(), delete.getOld()), msg, data);
+    }
+    else if (msg instanceof Truncate) {
+      this.barrier(msg, data);
+    }
+    else {
+
+      if (msg instanceof Commit) {
+        this.checkpoint(((Commit) msg).getEndLsn());
+      }
+
+      data.release();
+
+    }
+
+  }
+
+  private void submit(final int worker, final PgOutputMessage change, final XLogData data) throws InterruptedException {
+    final Worker w = this.workers[worker];
+    w.dispatched++;
+    w.queue.put(new Task(change, data));
+  }
+
+  /**
+   * wait for everything dispatched so far to be applied, then apply the change on this thread.
+   */
+
+  private void barrier(final PgOutputMessage change, final XLogData data) throws InterruptedException {
+    this.await();
+    this.run(new Task(change, data));
+  }
+
+  private void checkpoint(final long lsn) {
+
+    final long[] dispatched = new long[this.workers.length];
+
+    for (int i = 0; i < dispatched.length; ++i) {
+      dispatched[i] = this.workers[i].dispatched;
+    }
+
+    synchronized (this) {
+      this.checkpoints.add(new Checkpoint(lsn, dispatched));
+    }
+
+    this.advance();
+
+  }
+
+  /**
+   * acknowledge the transactions which have been completely applied.
+   */
+
+  private void advance() {
+
+    synchronized (this) {
+
+      long lsn = 0;
+      Checkpoint next;
+
+      while ((next = this.checkpoints.peek()) != null && this.applied(next.dispatched)) {
+        lsn = this.checkpoints.poll().lsn;
+      }
+
+      // inside the lock, so acknowledgements are never reordered.
+      if (lsn != 0 && this.failure == null) {
+        this.acknowledge.accept(lsn);
+      }
+
+      this.notifyAll();
+
+    }
+
+  }
+
+  private boolean applied(final long[] dispatched) {
+    for (int i = 0; i < dispatched.length; ++i) {
+      if (this.workers[i].completed < dispatched[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void await() throws InterruptedException {
+
+    final long[] dispatched = new long[this.workers.length];
+
+    for (int i = 0; i < dispatched.length; ++i) {
+      dispatched[i] = this.workers[i].dispatched;
+    }
+
+    synchronized (this) {
+      while (!this.applied(dispatched)) {
+        this.wait();
+      }
+    }
+
+  }
+
+  private void drain() throws Exception {
+
+    this.await();
+
+    this.advance();
+
+    this.drained = true;
+
+    final Throwable failure = this.failure;
+
+    if (failure != null) {
+      throw failure instanceof Exception ? (Exception) failure : new RuntimeException(failure);
+    }
+
+  }
+
+  /**
+   * stop the workers. if we didn't get to the end of the stream, anything still queued is released without being
+   * applied.
+   */
+
+  private void stop() {
+
+    if (!this.drained && this.failure == null) {
+      this.failure = new CancellationException("apply stopped");
+    }
+
+    boolean interrupted = false;
+
+    for (final Worker worker : this.workers) {
+      while (true) {
+        try {
+          worker.queue.put(STOP);
+          break;
+        }
+        catch (final InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+  }
+
+  private void run(final Task task) {
+
+    try {
+      if (this.failure == null) {
+        this.handler.apply(task.change);
+      }
+    }
+    catch (final Throwable ex) {
+      log.warn("failed to apply {}", task.change, ex);
+      if (this.failure == null) {
+        this.failure = ex;
+      }
+    }
+    finally {
+      task.data.release();
+    }
+
+  }
+
+  /**
+   * the worker for a row, from the relation and the value of each of its replica identity columns. a relation without
+   * any, or with REPLICA IDENTITY FULL, is always applied by the same worker.
+   */
+
+  private int worker(final Relation relation, final TupleData tuple) {
+
+    int hash = relation.getOid();
+
+    if (relation.getReplicaIdentity() == 'f') {
+      return (hash & Integer.MAX_VALUE) % this.workers.length;
+    }
+
+    final List<Relation.Column> columns = relation.getColumns();
+
+    for (int i = 0; i < columns.size() && i < tuple.columns(); ++i) {
+      if (columns.get(i).isKey()) {
+        final ByteBuf value = tuple.slice(i);
+        hash = (31 * hash) + (value == null ? 0 : ByteBufUtil.hashCode(value));
+      }
+    }
+
+    return (hash & Integer.MAX_VALUE) % this.workers.length;
+
+  }
+
+}
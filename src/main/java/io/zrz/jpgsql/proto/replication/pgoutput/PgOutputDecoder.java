@@ -0,0 +1,318 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import io.netty.buffer.ByteBuf;
+import io.zrz.jpgsql.proto.replication.XLogData;
+
+/**
+ * decodes the payload of each {@link XLogData} from a slot using the pgoutput plugin (protocol version 1 or 2).
+ *
+ * the server describes each table with a {@link Relation} message before the first change to it, and changes only
+ * carry the relation OID - so an instance must see every message of a stream, in order, and can't be shared between
+ * streams.
+ *
+ * changes to relations which the filter doesn't accept are skipped without reading the tuples, and
+ * {@link #decode(ByteBuf)} returns null for them. nothing is copied: tuples are slices of the payload, so are only
+ * valid until the XLogData is released.
+ *
+ * with protocol version 2 and streaming on, changes in a {@link StreamStart} block belong to an in-progress
+ * transaction, and are decoded the same as any others. {@link PgOutputStreams} holds them back until the transaction
+ * commits instead.
+ */
+
+public final class PgOutputDecoder {
+
+  // 2000-01-01T00:00:00Z, which pgoutput timestamps are relative to.
+  private static final long PG_EPOCH_SECONDS = 946_684_800L;
+
+  private static final class Entry {
+
+    private final Relation relation;
+    private final boolean subscribed;
+
+    private Entry(final Relation relation, final boolean subscribed) {
+      this.relation = relation;
+      this.subscribed = subscribed;
+    }
+
+  }
+
+  private final Predicate<Relation> filter;
+  private final Map<Integer, Entry> relations = new HashMap<>();
+  private final Map<Integer, Type> types = new HashMap<>();
+
+  // between a StreamStart and StreamStop, where each message has the xid after the type.
+  private boolean streaming;
+
+  // changes tend to come in runs against the same table, so saves the lookup (and boxing the OID).
+  private Entry last;
+
+  public PgOutputDecoder() {
+    this(relation -> true);
+  }
+
+  /**
+   * @param filter
+   *          the relations to decode changes for.
+   */
+
+  public PgOutputDecoder(final Predicate<Relation> filter) {
+    this.filter = filter;
+  }
+
+  /**
+   * convert a pgoutput timestamp to an instant.
+   */
+
+  public static Instant timestamp(final long micros) {
+    return Instant.ofEpochSecond(PG_EPOCH_SECONDS + Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1000);
+  }
+
+  /**
+   * the most recent description of the relation, or null if it hasn't been seen.
+   */
+
+  public Relation relation(final int oid) {
+    final Entry entry = this.relations.get(oid);
+    return entry == null ? null : entry.relation;
+  }
+
+  /**
+   * the most recent description of a non built-in type, or null if it hasn't been seen.
+   */
+
+  public Type type(final int oid) {
+    return this.types.get(oid);
+  }
+
+  public PgOutputMessage decode(final XLogData data) {
+    return this.decode(data.getByteBuf());
+  }
+
+  /**
+   * decode the message at the reader index of the buffer, which is left unchanged. returns null if the message is a
+   * change to a relation which isn't subscribed to.
+   */
+
+  public PgOutputMessage decode(final ByteBuf buf) {
+
+    final ByteBuf in = buf.duplicate();
+
+    final byte type = in.readByte();
+
+    if (this.streaming && hasXid(type)) {
+      in.skipBytes(4);
+    }
+
+    switch (type) {
+
+      case 'S':
+        this.streaming = true;
+        return new StreamStart(in.readInt(), in.readByte() == 1);
+
+      case 'E':
+        this.streaming = false;
+        return StreamStop.INSTANCE;
+
+      case 'c':
+        return new StreamCommit(in.readInt(), in.readByte(), in.readLong(), in.readLong(), in.readLong());
+
+      case 'A':
+        return new StreamAbort(in.readInt(), in.readInt());
+
+      case 'B':
+        return new Begin(in.readLong(), in.readLong(), in.readInt());
+
+      case 'C':
+        return new Commit(in.readByte(), in.readLong(), in.readLong(), in.readLong());
+
+      case 'O':
+        return new Origin(in.readLong(), readString(in));
+
+      case 'R':
+        return this.relation(in);
+
+      case 'Y': {
+        final Type t = new Type(in.readInt(), readString(in), readString(in));
+        this.types.put(t.getOid(), t);
+        return t;
+      }
+
+      case 'I': {
+        final Entry entry = this.entry(in.readInt());
+        if (!entry.subscribed) {
+          return null;
+        }
+        expect(in, 'N');
+        return new Insert(entry.relation, TupleData.read(in));
+      }
+
+      case 'U': {
+
+        final Entry entry = this.entry(in.readInt());
+
+        if (!entry.subscribed) {
+          return null;
+        }
+
+        TupleData old = null;
+        final byte kind = in.getByte(in.readerIndex());
+        final boolean keyOnly = kind == 'K';
+
+        if (kind == 'K' || kind == 'O') {
+          in.skipBytes(1);
+          old = TupleData.read(in);
+        }
+
+        expect(in, 'N');
+
+        return new Update(entry.relation, old, keyOnly, TupleData.read(in));
+
+      }
+
+      case 'D': {
+
+        final Entry entry = this.entry(in.readInt());
+
+        if (!entry.subscribed) {
+          return null;
+        }
+
+        final byte kind = in.readByte();
+
+        if (kind != 'K' && kind != 'O') {
+          throw new IllegalStateException(String.format("expected 'K' or 'O', got '%c'", (char) kind));
+        }
+
+        return new Delete(entry.relation, TupleData.read(in), kind == 'K');
+
+      }
+
+      case 'T': {
+
+        final int count = in.readInt();
+        final int options = in.readByte();
+
+        final List<Relation> truncated = new ArrayList<>(count);
+
+        for (int i = 0; i < count; ++i) {
+          final Entry entry = this.entry(in.readInt());
+          if (entry.subscribed) {
+            truncated.add(entry.relation);
+          }
+        }
+
+        if (truncated.isEmpty()) {
+          return null;
+        }
+
+        return new Truncate(options, Collections.unmodifiableList(truncated));
+
+      }
+
+      case 'M': {
+        final int flags = in.readByte();
+        final long lsn = in.readLong();
+        final String prefix = readString(in);
+        return new Message(flags, lsn, prefix, in.readSlice(in.readInt()));
+      }
+
+      default:
+        throw new IllegalStateException(String.format("unknown pgoutput message '%c'", (char) type));
+
+    }
+
+  }
+
+  /**
+   * the messages which have the xid of the (sub)transaction after the type when streamed. an Origin doesn't, even when
+   * it follows a StreamStart.
+   */
+
+  static boolean hasXid(final byte type) {
+    switch (type) {
+      case 'R':
+      case 'Y':
+      case 'I':
+      case 'U':
+      case 'D':
+      case 'T':
+      case 'M':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private Relation relation(final ByteBuf in) {
+
+    final int oid = in.readInt();
+    final String namespace = readString(in);
+    final String name = readString(in);
+    final char identity = (char) in.readByte();
+    final int count = in.readUnsignedShort();
+
+    final List<Relation.Column> columns = new ArrayList<>(count);
+
+    for (int i = 0; i < count; ++i) {
+      final boolean key = (in.readByte() & 1) != 0;
+      columns.add(new Relation.Column(key, readString(in), in.readInt(), in.readInt()));
+    }
+
+    final Relation relation = new Relation(oid, namespace, name, identity, Collections.unmodifiableList(columns));
+
+    final Entry entry = new Entry(relation, this.filter.test(relation));
+
+    this.relations.put(oid, entry);
+    this.last = entry;
+
+    return relation;
+
+  }
+
+  private Entry entry(final int oid) {
+
+    final Entry last = this.last;
+
+    if (last != null && last.relation.getOid() == oid) {
+      return last;
+    }
+
+    final Entry entry = this.relations.get(oid);
+
+    if (entry == null) {
+      throw new IllegalStateException(String.format("change to relation %d before it was described", oid));
+    }
+
+    this.last = entry;
+
+    return entry;
+
+  }
+
+  private static void expect(final ByteBuf in, final char expected) {
+    final byte kind = in.readByte();
+    if (kind != expected) {
+      throw new IllegalStateException(String.format("expected '%c', got '%c'", expected, (char) kind));
+    }
+  }
+
+  private static String readString(final ByteBuf in) {
+    final int len = in.bytesBefore((byte) 0);
+    if (len == -1) {
+      throw new IllegalStateException("unterminated string");
+    }
+    final String value = in.toString(in.readerIndex(), len, StandardCharsets.UTF_8);
+    in.skipBytes(len + 1);
+    return value;
+  }
+
+}
@@ -0,0 +1,9 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+/**
+ * a message from the pgoutput plugin.
+ */
+
+public interface PgOutputMessage {
+
+}
@@ -0,0 +1,164 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.nio.file.Path;
+
+import com.google.common.base.Preconditions;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+import io.reactivex.FlowableTransformer;
+import io.zrz.jpgsql.proto.replication.ReplicationConnectionBuilder;
+import io.zrz.jpgsql.proto.replication.XLogData;
+
+/**
+ * turns a pgoutput stream using protocol version 2 with streaming on into the equivalent version 1 stream.
+ *
+ * with streaming, the server sends the changes of a large transaction in blocks while it is still in progress, rather
+ * than holding them all back until it commits. these changes are held in a {@link TransactionSpool} - in heap up to
+ * memoryLimit bytes across all transactions, then spilled to files in the directory - and discarded if the transaction
+ * (or a subtransaction) aborts. once it commits they are emitted as a normal transaction, between a Begin and Commit,
+ * so the output can be consumed by {@link PgOutputDecoder} or {@link ParallelApplier} as if streaming wasn't on.
+ *
+ * Relation and Type messages in a streamed block are emitted straight away as well, and again when replaying, so the
+ * relation cache is correct for each change.
+ *
+ * enable streaming with {@link ReplicationConnectionBuilder#option(String, String)}: proto_version '2' and streaming
+ * 'on'.
+ */
+
+public final class PgOutputStreams {
+
+  private final TransactionSpool spool;
+
+  // between a StreamStart and StreamStop.
+  private boolean streaming;
+
+  // the top level transaction of the current block.
+  private int xid;
+
+  private PgOutputStreams(final TransactionSpool spool) {
+    this.spool = spool;
+  }
+
+  /**
+   * @param directory
+   *          where transactions which don't fit in heap are spilled to.
+   * @param memoryLimit
+   *          bytes of streamed changes held in heap before spilling.
+   */
+
+  public static FlowableTransformer<XLogData, XLogData> assemble(final Path directory, final long memoryLimit) {
+    Preconditions.checkArgument(memoryLimit >= 0, "memoryLimit must not be negative");
+    return upstream -> Flowable.defer(() -> {
+      final PgOutputStreams streams = new PgOutputStreams(new TransactionSpool(directory, memoryLimit));
+      // concatMap only maps the next message once the previous one's output has completed, so never concurrently.
+      return upstream
+          .concatMap(streams::process)
+          .doFinally(streams.spool::close);
+    });
+  }
+
+  private Flowable<XLogData> process(final XLogData data) {
+
+    final ByteBuf buf = data.getByteBuf();
+    final int start = buf.readerIndex();
+    final byte type = buf.getByte(start);
+
+    switch (type) {
+
+      case 'S':
+        this.streaming = true;
+        this.xid = buf.getInt(start + 1);
+        data.release();
+        return Flowable.empty();
+
+      case 'E':
+        this.streaming = false;
+        data.release();
+        return Flowable.empty();
+
+      case 'A':
+        this.spool.abort(buf.getInt(start + 1), buf.getInt(start + 5));
+        data.release();
+        return Flowable.empty();
+
+      case 'c': {
+        final int xid = buf.getInt(start + 1);
+        final int flags = buf.getByte(start + 5);
+        final long commitLsn = buf.getLong(start + 6);
+        final long endLsn = buf.getLong(start + 14);
+        final long commitTime = buf.getLong(start + 22);
+        data.release();
+        return this.replay(data, xid, flags, commitLsn, endLsn, commitTime);
+      }
+
+      default:
+        break;
+
+    }
+
+    // an Origin has no xid: it is sent after the StreamStart of the first block, so belongs to the top level transaction.
+    final boolean origin = type == 'O';
+
+    if (!this.streaming || !(origin || PgOutputDecoder.hasXid(type))) {
+      return Flowable.just(data);
+    }
+
+    try {
+
+      final int header = origin ? 1 : 5;
+
+      final ByteBuf body = buf.slice(start + header, buf.readableBytes() - header);
+
+      this.spool.add(this.xid, origin ? this.xid : buf.getInt(start + 1), type, body);
+
+      if (type == 'R' || type == 'Y') {
+        final ByteBuf stripped = Unpooled.wrappedBuffer(Unpooled.wrappedBuffer(new byte[] { type }), body.retain());
+        return Flowable.just(new XLogData(data.getStartingPoint(), data.getCurrentEnd(), data.getTxTime(), stripped));
+      }
+
+      return Flowable.empty();
+
+    }
+    finally {
+      data.release();
+    }
+
+  }
+
+  /**
+   * a Begin, what was held for the transaction, and a Commit.
+   */
+
+  private Flowable<XLogData> replay(final XLogData data, final int xid, final int flags, final long commitLsn, final long endLsn,
+      final long commitTime) {
+
+    final ByteBuf begin = Unpooled.buffer(21);
+    begin.writeByte('B').writeLong(commitLsn).writeLong(commitTime).writeInt(xid);
+
+    final ByteBuf commit = Unpooled.buffer(26);
+    commit.writeByte('C').writeByte(flags).writeLong(commitLsn).writeLong(endLsn).writeLong(commitTime);
+
+    final Flowable<XLogData> head = Flowable.just(this.wrap(data, begin));
+    final Flowable<XLogData> tail = Flowable.defer(() -> Flowable.just(this.wrap(data, commit)));
+
+    final TransactionSpool.Transaction txn = this.spool.commit(xid);
+
+    if (txn == null) {
+      return Flowable.concat(head, tail);
+    }
+
+    return Flowable.concat(
+        head,
+        Flowable.fromIterable(txn::messages).map(msg -> this.wrap(data, msg)),
+        tail)
+        .doFinally(txn::close);
+
+  }
+
+  private XLogData wrap(final XLogData data, final ByteBuf payload) {
+    return new XLogData(data.getStartingPoint(), data.getCurrentEnd(), data.getTxTime(), payload);
+  }
+
+}
@@ -0,0 +1,34 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.util.List;
+
+import lombok.Value;
+
+/**
+ * describes a table. sent before the first change to it in each session, and again after its definition changes.
+ */
+
+@Value
+public class Relation implements PgOutputMessage {
+
+  @Value
+  public static class Column {
+
+    // part of the replica identity, so present in the old tuple of an update or delete.
+    private final boolean key;
+    private final String name;
+    private final int typeOid;
+    private final int typeModifier;
+
+  }
+
+  private final int oid;
+  private final String namespace;
+  private final String name;
+
+  // 'd' (primary key), 'n' (nothing), 'f' (all columns) or 'i' (index).
+  private final char replicaIdentity;
+
+  private final List<Column> columns;
+
+}
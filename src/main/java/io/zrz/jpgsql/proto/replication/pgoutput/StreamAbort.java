@@ -0,0 +1,16 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * a streamed transaction (when subXid is the same as xid) or one of its subtransactions aborted, so the changes
+ * streamed for it should be discarded.
+ */
+
+@Value
+public class StreamAbort implements PgOutputMessage {
+
+  private final int xid;
+  private final int subXid;
+
+}
@@ -0,0 +1,18 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * a streamed transaction committed, so everything streamed for it (less any aborted subtransactions) should be applied.
+ */
+
+@Value
+public class StreamCommit implements PgOutputMessage {
+
+  private final int xid;
+  private final int flags;
+  private final long commitLsn;
+  private final long endLsn;
+  private final long commitTime;
+
+}
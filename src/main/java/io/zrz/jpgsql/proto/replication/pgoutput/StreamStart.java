@@ -0,0 +1,18 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * the start of a block of changes from an in-progress transaction (protocol version 2, with streaming on). each change
+ * up to the {@link StreamStop} belongs to it, or one of its subtransactions.
+ */
+
+@Value
+public class StreamStart implements PgOutputMessage {
+
+  private final int xid;
+
+  // the first block for this transaction.
+  private final boolean first;
+
+}
@@ -0,0 +1,19 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+/**
+ * the end of a block of streamed changes.
+ */
+
+public final class StreamStop implements PgOutputMessage {
+
+  static final StreamStop INSTANCE = new StreamStop();
+
+  private StreamStop() {
+  }
+
+  @Override
+  public String toString() {
+    return "StreamStop";
+  }
+
+}
@@ -0,0 +1,307 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * holds the messages of in-progress transactions until they commit or abort.
+ *
+ * messages are copied into a heap buffer per transaction. once the total held in heap would pass the memory limit, the
+ * transaction being added to is spilled: its buffer is written to a temp file, and everything after it appended to
+ * the file. a spilled transaction is read back through memory mapped windows of the file, so replaying it doesn't
+ * copy again or need the whole thing in heap.
+ *
+ * each message is framed as (length, subtransaction xid, type, body). aborting a subtransaction only records its xid, and
+ * its messages are skipped when replaying.
+ *
+ * not thread safe.
+ */
+
+@Slf4j
+final class TransactionSpool implements AutoCloseable {
+
+  // the size of each window mapped when replaying a spilled transaction.
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private static final int HEADER_SIZE = 8;
+
+  final class Transaction implements AutoCloseable {
+
+    private final int xid;
+    private final Set<Integer> aborted = new HashSet<>();
+
+    private ByteBuf heap = Unpooled.buffer();
+    private Path path;
+    private FileChannel file;
+    private long spilled;
+
+    private Transaction(final int xid) {
+      this.xid = xid;
+    }
+
+    private void add(final int subXid, final byte type, final ByteBuf body) throws IOException {
+
+      final int len = body.readableBytes() + 1;
+
+      if (this.file == null && TransactionSpool.this.memory + len + HEADER_SIZE > TransactionSpool.this.memoryLimit) {
+        this.spill();
+      }
+
+      if (this.file == null) {
+        this.heap.writeInt(len);
+        this.heap.writeInt(subXid);
+        this.heap.writeByte(type);
+        this.heap.writeBytes(body, body.readerIndex(), len - 1);
+        TransactionSpool.this.memory += len + HEADER_SIZE;
+        return;
+      }
+
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 1);
+      header.putInt(len).putInt(subXid).put(type).flip();
+
+      this.write(header);
+
+      for (final ByteBuffer chunk : body.nioBuffers(body.readerIndex(), len - 1)) {
+        this.write(chunk);
+      }
+
+    }
+
+    private void write(final ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        this.spilled += this.file.write(buf);
+      }
+    }
+
+    private void spill() throws IOException {
+
+      this.path = Files.createTempFile(TransactionSpool.this.directory, "xact-" + Integer.toUnsignedString(this.xid) + "-", ".spool");
+      this.file = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+      log.info("spilling transaction {} to {} ({} bytes held)", Integer.toUnsignedString(this.xid), this.path, this.heap.readableBytes());
+
+      TransactionSpool.this.memory -= this.heap.readableBytes();
+
+      this.write(this.heap.nioBuffer());
+
+      this.heap.release();
+      this.heap = null;
+
+    }
+
+    /**
+     * the messages which weren't aborted, in the order they were added. each must be released, and stays valid after the
+     * transaction is closed until it is.
+     */
+
+    Iterator<ByteBuf> messages() {
+      return this.file == null ? new HeapIterator(this.heap.duplicate()) : new FileIterator();
+    }
+
+    /**
+     * discard everything held for the transaction.
+     */
+
+    @Override
+    public void close() {
+
+      TransactionSpool.this.transactions.remove(this.xid, this);
+
+      if (this.heap != null) {
+        TransactionSpool.this.memory -= this.heap.readableBytes();
+        this.heap.release();
+        this.heap = null;
+      }
+
+      if (this.file != null) {
+        try {
+          this.file.close();
+          // any mappings still referenced remain valid after the file is gone.
+          Files.deleteIfExists(this.path);
+        }
+        catch (final IOException ex) {
+          log.warn("failed to remove spool file {}", this.path, ex);
+        }
+        this.file = null;
+      }
+
+    }
+
+    private final class HeapIterator implements Iterator<ByteBuf> {
+
+      private final ByteBuf in;
+      private ByteBuf next;
+
+      private HeapIterator(final ByteBuf in) {
+        this.in = in;
+      }
+
+      @Override
+      public boolean hasNext() {
+        while (this.next == null && this.in.isReadable()) {
+          final int len = this.in.readInt();
+          final int subXid = this.in.readInt();
+          if (Transaction.this.aborted.contains(subXid)) {
+            this.in.skipBytes(len);
+          }
+          else {
+            this.next = this.in.readRetainedSlice(len);
+          }
+        }
+        return this.next != null;
+      }
+
+      @Override
+      public ByteBuf next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final ByteBuf msg = this.next;
+        this.next = null;
+        return msg;
+      }
+
+    }
+
+    private final class FileIterator implements Iterator<ByteBuf> {
+
+      // the file offset of the start of the window.
+      private long base;
+      private MappedByteBuffer window;
+      private long position;
+      private ByteBuf next;
+
+      @Override
+      public boolean hasNext() {
+        try {
+          while (this.next == null && this.position < Transaction.this.spilled) {
+            final ByteBuffer header = this.map(this.position, HEADER_SIZE);
+            final int len = header.getInt();
+            final int subXid = header.getInt();
+            if (!Transaction.this.aborted.contains(subXid)) {
+              this.next = Unpooled.wrappedBuffer(this.map(this.position + HEADER_SIZE, len));
+            }
+            this.position += HEADER_SIZE + len;
+          }
+          return this.next != null;
+        }
+        catch (final IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+      }
+
+      @Override
+      public ByteBuf next() {
+        if (!this.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final ByteBuf msg = this.next;
+        this.next = null;
+        return msg;
+      }
+
+      /**
+       * a view of the given range of the file, mapping a new window if the current one doesn't cover it.
+       */
+
+      private ByteBuffer map(final long offset, final int len) throws IOException {
+
+        if (this.window == null || offset < this.base || offset + len > this.base + this.window.capacity()) {
+          final long size = Math.min(Transaction.this.spilled - offset, Math.max(WINDOW_SIZE, len));
+          this.window = Transaction.this.file.map(FileChannel.MapMode.READ_ONLY, offset, size);
+          this.base = offset;
+        }
+
+        final ByteBuffer view = this.window.duplicate();
+        view.position((int) (offset - this.base));
+        view.limit((int) (offset - this.base) + len);
+        return view.slice();
+
+      }
+
+    }
+
+  }
+
+  private final Path directory;
+  private final long memoryLimit;
+  private final Map<Integer, Transaction> transactions = new HashMap<>();
+
+  // bytes held in heap across all transactions.
+  private long memory;
+
+  TransactionSpool(final Path directory, final long memoryLimit) {
+    this.directory = directory;
+    this.memoryLimit = memoryLimit;
+  }
+
+  /**
+   * hold a message for the transaction, copying it.
+   */
+
+  void add(final int xid, final int subXid, final byte type, final ByteBuf body) {
+    try {
+      this.transactions.computeIfAbsent(xid, Transaction::new).add(subXid, type, body);
+    }
+    catch (final IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * discard a transaction, or the messages of one of its subtransactions.
+   */
+
+  void abort(final int xid, final int subXid) {
+
+    final Transaction txn = this.transactions.get(xid);
+
+    if (txn == null) {
+      return;
+    }
+
+    if (xid == subXid) {
+      txn.close();
+    }
+    else {
+      txn.aborted.add(subXid);
+    }
+
+  }
+
+  /**
+   * remove the transaction, to be replayed and then closed. null if nothing was held for it.
+   */
+
+  Transaction commit(final int xid) {
+    return this.transactions.remove(xid);
+  }
+
+  long memory() {
+    return this.memory;
+  }
+
+  @Override
+  public void close() {
+    for (final Transaction txn : this.transactions.values().toArray(new Transaction[0])) {
+      txn.close();
+    }
+  }
+
+}
@@ -0,0 +1,16 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.util.List;
+
+import lombok.Value;
+
+@Value
+public class Truncate implements PgOutputMessage {
+
+  public static final int CASCADE = 1;
+  public static final int RESTART_IDENTITY = 2;
+
+  private final int options;
+  private final List<Relation> relations;
+
+}
@@ -0,0 +1,141 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * the column values of a row.
+ *
+ * like a DataRow, this is a slice of the message along with an index of the offset and length of each column, so
+ * nothing is decoded until a column is accessed. the slice isn't retained, so is only valid until the XLogData it came
+ * from is released.
+ */
+
+public final class TupleData {
+
+  public static final byte NULL = 'n';
+  public static final byte UNCHANGED = 'u';
+  public static final byte TEXT = 't';
+  public static final byte BINARY = 'b';
+
+  private final ByteBuf data;
+
+  // the kind of each column.
+  private final byte[] kinds;
+
+  // pairs of (offset, length) for each column, relative to the reader index of data.
+  private final int[] index;
+
+  TupleData(final ByteBuf data, final byte[] kinds, final int[] index) {
+    this.data = data;
+    this.kinds = kinds;
+    this.index = index;
+  }
+
+  /**
+   * parse the tuple at the reader index, leaving it after the tuple.
+   */
+
+  static TupleData read(final ByteBuf in) {
+
+    final int start = in.readerIndex();
+    final int count = in.readUnsignedShort();
+
+    final byte[] kinds = new byte[count];
+    final int[] index = new int[count * 2];
+
+    for (int i = 0; i < count; ++i) {
+
+      final byte kind = in.readByte();
+
+      kinds[i] = kind;
+
+      switch (kind) {
+        case NULL:
+        case UNCHANGED:
+          index[(i * 2) + 1] = -1;
+          break;
+        case TEXT:
+        case BINARY:
+          final int len = in.readInt();
+          index[i * 2] = in.readerIndex() - start;
+          index[(i * 2) + 1] = len;
+          in.skipBytes(len);
+          break;
+        default:
+          throw new IllegalStateException(String.format("unknown tuple column kind '%c'", (char) kind));
+      }
+
+    }
+
+    return new TupleData(in.slice(start, in.readerIndex() - start), kinds, index);
+
+  }
+
+  /**
+   * the number of columns, which is all of the relation's columns (even for a key only tuple).
+   */
+
+  public int columns() {
+    return this.kinds.length;
+  }
+
+  /**
+   * one of {@link #NULL}, {@link #UNCHANGED}, {@link #TEXT} or {@link #BINARY}.
+   */
+
+  public byte kind(final int col) {
+    return this.kinds[col];
+  }
+
+  public boolean isNull(final int col) {
+    return this.kinds[col] == NULL;
+  }
+
+  /**
+   * an unchanged TOASTed value, which the server doesn't send. the consumer needs to keep the value it already has.
+   */
+
+  public boolean isUnchanged(final int col) {
+    return this.kinds[col] == UNCHANGED;
+  }
+
+  /**
+   * the length of the column value in bytes, or -1 if it is NULL or unchanged.
+   */
+
+  public int length(final int col) {
+    return this.index[(col * 2) + 1];
+  }
+
+  /**
+   * a slice of the column value, sharing the message buffer. null if the value is NULL or unchanged.
+   */
+
+  public ByteBuf slice(final int col) {
+    final int len = this.length(col);
+    if (len == -1) {
+      return null;
+    }
+    return this.data.slice(this.data.readerIndex() + this.index[col * 2], len);
+  }
+
+  /**
+   * the column value decoded as UTF-8 text, or null.
+   */
+
+  public String string(final int col) {
+    final int len = this.length(col);
+    if (len == -1) {
+      return null;
+    }
+    return this.data.toString(this.data.readerIndex() + this.index[col * 2], len, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return "TupleData(" + this.columns() + ")";
+  }
+
+}
@@ -0,0 +1,16 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * describes a non built-in type used by a following {@link Relation}.
+ */
+
+@Value
+public class Type implements PgOutputMessage {
+
+  private final int oid;
+  private final String namespace;
+  private final String name;
+
+}
@@ -0,0 +1,21 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import lombok.Value;
+
+/**
+ * an updated row. the old values are only sent if the replica identity changed (just the key columns), or the table
+ * has REPLICA IDENTITY FULL (all of them) - otherwise old is null.
+ */
+
+@Value
+public class Update implements PgOutputMessage {
+
+  private final Relation relation;
+  private final TupleData old;
+
+  // old only has the replica identity columns.
+  private final boolean keyOnly;
+
+  private final TupleData tuple;
+
+}
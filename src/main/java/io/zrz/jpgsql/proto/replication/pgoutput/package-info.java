@@ -0,0 +1,9 @@
+/**
+ * decoding of the messages produced by the pgoutput logical decoding plugin, as carried by
+ * {@link io.zrz.jpgsql.proto.replication.XLogData}.
+ *
+ * @author theo
+ *
+ */
+
+package io.zrz.jpgsql.proto.replication.pgoutput;
@@ -1,8 +1,9 @@
 package io.zrz.jpgsql.proto.wire;
 
-import java.util.ArrayList;
 import java.util.List;
 
+import com.google.common.collect.ImmutableList;
+
 import lombok.Value;
 //
 //Byte1('B')
@@ -50,9 +51,52 @@ public class Bind implements PostgreSQLPacket {
   private String destinationPortal;
   private String sourcePreparedStatement;
 
-  private List<Integer> parameterFormats = new ArrayList<>();
-  private List<Integer> parameterValues = new ArrayList<>();
-  private List<Integer> resultFormats = new ArrayList<>();
+  private List<Integer> parameterFormats;
+
+  /**
+   * the encoded parameter values, a null entry is sent as a NULL parameter.
+   */
+
+  private List<byte[]> parameterValues;
+  private List<Integer> resultFormats;
+
+  /**
+   * if set, the parameter values are encoded directly from this when the message is written, and the format and value
+   * lists are ignored.
+   */
+
+  private BindParameters parameters;
+
+  public Bind(final String destinationPortal, final String sourcePreparedStatement) {
+    this(destinationPortal, sourcePreparedStatement, ImmutableList.of(), ImmutableList.of(), ImmutableList.of());
+  }
+
+  public Bind(
+      final String destinationPortal,
+      final String sourcePreparedStatement,
+      final List<Integer> parameterFormats,
+      final List<byte[]> parameterValues,
+      final List<Integer> resultFormats) {
+    this.destinationPortal = destinationPortal;
+    this.sourcePreparedStatement = sourcePreparedStatement;
+    this.parameterFormats = parameterFormats;
+    this.parameterValues = parameterValues;
+    this.resultFormats = resultFormats;
+    this.parameters = null;
+  }
+
+  public Bind(
+      final String destinationPortal,
+      final String sourcePreparedStatement,
+      final BindParameters parameters,
+      final List<Integer> resultFormats) {
+    this.destinationPortal = destinationPortal;
+    this.sourcePreparedStatement = sourcePreparedStatement;
+    this.parameterFormats = ImmutableList.of();
+    this.parameterValues = ImmutableList.of();
+    this.resultFormats = resultFormats;
+    this.parameters = parameters;
+  }
 
   @Override
   public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
@@ -0,0 +1,24 @@
+package io.zrz.jpgsql.proto.wire;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * parameter values for a {@link Bind} which are encoded straight into the outbound buffer when the message is
+ * written, rather than being converted to arrays up front. all values are sent in binary format.
+ */
+
+public interface BindParameters {
+
+  /**
+   * the number of parameter values.
+   */
+
+  int count();
+
+  /**
+   * write a single value in binary format, including the Int32 length prefix (-1 for NULL).
+   */
+
+  void write(int index, ByteBuf out);
+
+}
@@ -0,0 +1,22 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * sent on a new connection in place of a StartupMessage, asking the backend identified by the key from
+ * {@link BackendKeyData} to abandon whatever it is currently running. the server closes the connection without
+ * responding.
+ */
+
+@Value
+public class CancelRequest implements PostgreSQLPacket {
+
+  private final int processId;
+  private final int secretKey;
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitCancelRequest(this);
+  }
+
+}
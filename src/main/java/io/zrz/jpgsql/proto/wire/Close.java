@@ -0,0 +1,31 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * Close a prepared statement ('S') or portal ('P'), releasing its resources on the backend.
+ */
+
+@Value
+public class Close implements PostgreSQLPacket {
+
+  public static final byte STATEMENT = 'S';
+  public static final byte PORTAL = 'P';
+
+  private final byte type;
+  private final String name;
+
+  public static Close portal(final String name) {
+    return new Close(PORTAL, name);
+  }
+
+  public static Close statement(final String name) {
+    return new Close(STATEMENT, name);
+  }
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitClose(this);
+  }
+
+}
@@ -0,0 +1,13 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+//
+final @Value public class CloseComplete implements PostgreSQLPacket {
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitCloseComplete(this);
+  }
+
+}
@@ -8,6 +8,46 @@ public class CommandComplete implements PostgreSQLPacket
   
   private final String commandTag;
 
+  /**
+   * the number of rows affected, taken from the last word of the tag (e.g "INSERT 0 5"). 0 if the command doesn't
+   * report one.
+   */
+
+  public int getUpdateCount()
+  {
+    final int idx = commandTag.lastIndexOf(' ');
+    if (idx == -1)
+    {
+      return 0;
+    }
+    try
+    {
+      return Integer.parseInt(commandTag.substring(idx + 1));
+    }
+    catch (final NumberFormatException ex)
+    {
+      return 0;
+    }
+  }
+
+  /**
+   * the OID of the inserted row for a single row INSERT into a table with OIDs, otherwise 0.
+   */
+
+  public long getInsertOid()
+  {
+    if (!commandTag.startsWith("INSERT "))
+    {
+      return 0;
+    }
+    final int end = commandTag.indexOf(' ', 7);
+    if (end == -1)
+    {
+      return 0;
+    }
+    return Long.parseLong(commandTag.substring(7, end));
+  }
+
   @Override
   public <T> T apply(PostgreSQLPacketVisitor<T> visitor)
   {
@@ -1,13 +1,26 @@
 package io.zrz.jpgsql.proto.wire;
 
 import io.netty.buffer.ByteBuf;
-import lombok.Value;
+import io.netty.buffer.DefaultByteBufHolder;
 
-@Value
-public class CopyData implements PostgreSQLPacket
+/**
+ * a chunk of COPY data.
+ *
+ * the packet owns the buffer, so it is released by netty once it has been consumed (inbound) or encoded (outbound).
+ */
+
+public class CopyData extends DefaultByteBufHolder implements PostgreSQLPacket
 {
 
-  private ByteBuf data;
+  public CopyData(final ByteBuf data)
+  {
+    super(data);
+  }
+
+  public ByteBuf getData()
+  {
+    return this.content();
+  }
 
   @Override
   public <T> T apply(PostgreSQLPacketVisitor<T> visitor)
@@ -15,4 +28,10 @@ public class CopyData implements PostgreSQLPacket
     return visitor.visitCopyData(this);
   }
 
+  @Override
+  public String toString()
+  {
+    return "CopyData(" + this.content().readableBytes() + ")";
+  }
+
 }
@@ -0,0 +1,19 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * aborts a COPY FROM STDIN, with the given message reported back in the resulting error.
+ */
+
+@Value
+public class CopyFail implements PostgreSQLPacket {
+
+  private final String message;
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitCopyFail(this);
+  }
+
+}
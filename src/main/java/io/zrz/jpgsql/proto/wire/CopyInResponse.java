@@ -0,0 +1,24 @@
+package io.zrz.jpgsql.proto.wire;
+
+import java.util.List;
+
+import io.zrz.jpgsql.proto.wire.CopyBothResponse.Format;
+import lombok.Value;
+
+/**
+ * the backend is ready to receive COPY FROM STDIN data.
+ */
+
+@Value
+public class CopyInResponse implements PostgreSQLPacket {
+
+  private final Format format;
+
+  private final List<Integer> columns;
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitCopyInResponse(this);
+  }
+
+}
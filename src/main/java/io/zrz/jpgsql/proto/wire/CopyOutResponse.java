@@ -0,0 +1,24 @@
+package io.zrz.jpgsql.proto.wire;
+
+import java.util.List;
+
+import io.zrz.jpgsql.proto.wire.CopyBothResponse.Format;
+import lombok.Value;
+
+/**
+ * the backend is about to send COPY TO STDOUT data.
+ */
+
+@Value
+public class CopyOutResponse implements PostgreSQLPacket {
+
+  private final Format format;
+
+  private final List<Integer> columns;
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitCopyOutResponse(this);
+  }
+
+}
@@ -1,13 +1,97 @@
 package io.zrz.jpgsql.proto.wire;
 
-import java.util.List;
+import java.nio.charset.StandardCharsets;
 
-import lombok.Value;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
 
-@Value
-public class DataRow implements PostgreSQLPacket {
+/**
+ * a single row of results.
+ *
+ * the row keeps a retained slice of the inbound buffer along with an index of the offset and length of each column, so
+ * nothing is decoded until a column is accessed. the packet owns the buffer, so it is released by netty once it has
+ * been consumed - anything needed after that must be copied out.
+ */
 
-  private final List<String> data;
+public class DataRow extends DefaultByteBufHolder implements PostgreSQLPacket {
+
+  /**
+   * pairs of (offset, length) for each column, relative to the reader index of the content. a length of -1 is a SQL
+   * NULL.
+   */
+
+  private final int[] index;
+
+  public DataRow(final ByteBuf data, final int[] index) {
+    super(data);
+    this.index = index;
+  }
+
+  /**
+   * the number of columns in this row.
+   */
+
+  public int columns() {
+    return this.index.length / 2;
+  }
+
+  public boolean isNull(final int col) {
+    return this.index[(col * 2) + 1] == -1;
+  }
+
+  /**
+   * the length of the column value in bytes, or -1 if it is NULL.
+   */
+
+  public int length(final int col) {
+    return this.index[(col * 2) + 1];
+  }
+
+  /**
+   * the absolute offset of the column value within {@link #content()}.
+   */
+
+  public int offset(final int col) {
+    return this.content().readerIndex() + this.index[col * 2];
+  }
+
+  /**
+   * a slice of the column value, sharing the row's buffer (so not retained). null if the value is NULL.
+   */
+
+  public ByteBuf slice(final int col) {
+    final int len = this.length(col);
+    if (len == -1) {
+      return null;
+    }
+    return this.content().slice(this.offset(col), len);
+  }
+
+  /**
+   * a copy of the column value, or null.
+   */
+
+  public byte[] bytes(final int col) {
+    final int len = this.length(col);
+    if (len == -1) {
+      return null;
+    }
+    final byte[] out = new byte[len];
+    this.content().getBytes(this.offset(col), out);
+    return out;
+  }
+
+  /**
+   * the column value decoded as UTF-8 text, or null.
+   */
+
+  public String string(final int col) {
+    final int len = this.length(col);
+    if (len == -1) {
+      return null;
+    }
+    return this.content().toString(this.offset(col), len, StandardCharsets.UTF_8);
+  }
 
   @Override
   public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
@@ -16,9 +100,7 @@ public class DataRow implements PostgreSQLPacket {
 
   @Override
   public String toString() {
-
-    return "DataRow(" + data.size() + ")";
-
+    return "DataRow(" + this.columns() + ")";
   }
 
 }
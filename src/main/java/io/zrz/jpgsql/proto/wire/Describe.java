@@ -0,0 +1,31 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * Describe a prepared statement ('S') or portal ('P').
+ */
+
+@Value
+public class Describe implements PostgreSQLPacket {
+
+  public static final byte STATEMENT = 'S';
+  public static final byte PORTAL = 'P';
+
+  private final byte type;
+  private final String name;
+
+  public static Describe portal(final String name) {
+    return new Describe(PORTAL, name);
+  }
+
+  public static Describe statement(final String name) {
+    return new Describe(STATEMENT, name);
+  }
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitDescribe(this);
+  }
+
+}
@@ -0,0 +1,16 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * sent in place of CommandComplete when the query string was empty.
+ */
+
+final @Value public class EmptyQueryResponse implements PostgreSQLPacket {
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitEmptyQueryResponse(this);
+  }
+
+}
@@ -2,6 +2,8 @@ package io.zrz.jpgsql.proto.wire;
 
 import java.util.List;
 
+import org.postgresql.util.ServerErrorMessage;
+
 import lombok.Singular;
 import lombok.ToString;
 import lombok.Value;
@@ -11,9 +13,22 @@ import lombok.Value;
 public class ErrorResponse implements PostgreSQLPacket
 {
 
+  /**
+   * each field, prefixed with the single byte field type (e.g 'S', 'C', 'M').
+   */
+
   @Singular
   private final List<String> messages;
 
+  /**
+   * convert to the same representation the JDBC driver provides.
+   */
+
+  public ServerErrorMessage toServerErrorMessage()
+  {
+    return new ServerErrorMessage(String.join("\0", messages));
+  }
+
   @Override
   public <T> T apply(PostgreSQLPacketVisitor<T> visitor)
   {
@@ -0,0 +1,16 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * sent in response to a Describe when the statement or portal will not return rows.
+ */
+
+final @Value public class NoData implements PostgreSQLPacket {
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitNoData(this);
+  }
+
+}
@@ -2,6 +2,8 @@ package io.zrz.jpgsql.proto.wire;
 
 import java.util.List;
 
+import org.postgresql.util.ServerErrorMessage;
+
 import lombok.Getter;
 import lombok.ToString;
 
@@ -9,6 +11,10 @@ import lombok.ToString;
 public class NoticeResponse implements PostgreSQLPacket
 {
 
+  /**
+   * each field, prefixed with the single byte field type (e.g 'S', 'C', 'M').
+   */
+
   @Getter
   private List<String> messages;
 
@@ -17,6 +23,11 @@ public class NoticeResponse implements PostgreSQLPacket
     this.messages = messages;
   }
 
+  public ServerErrorMessage toServerErrorMessage()
+  {
+    return new ServerErrorMessage(String.join("\0", messages));
+  }
+
   @Override
   public <T> T apply(PostgreSQLPacketVisitor<T> visitor)
   {
@@ -0,0 +1,21 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * an asynchronous NOTIFY delivered to a connection which is listening on the channel.
+ */
+
+@Value
+public class NotificationResponse implements PostgreSQLPacket {
+
+  private final int processId;
+  private final String channel;
+  private final String payload;
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitNotificationResponse(this);
+  }
+
+}
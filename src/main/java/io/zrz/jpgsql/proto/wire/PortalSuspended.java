@@ -0,0 +1,16 @@
+package io.zrz.jpgsql.proto.wire;
+
+import lombok.Value;
+
+/**
+ * sent when an Execute reached its row limit before the portal was exhausted.
+ */
+
+final @Value public class PortalSuspended implements PostgreSQLPacket {
+
+  @Override
+  public <T> T apply(final PostgreSQLPacketVisitor<T> visitor) {
+    return visitor.visitPortalSuspended(this);
+  }
+
+}
@@ -54,4 +54,26 @@ public interface PostgreSQLPacketVisitor<T> {
 
   T visitSync(Sync sync);
 
+  T visitDescribe(Describe describe);
+
+  T visitNoData(NoData noData);
+
+  T visitEmptyQueryResponse(EmptyQueryResponse emptyQueryResponse);
+
+  T visitPortalSuspended(PortalSuspended portalSuspended);
+
+  T visitNotificationResponse(NotificationResponse notificationResponse);
+
+  T visitCopyInResponse(CopyInResponse copyInResponse);
+
+  T visitCopyOutResponse(CopyOutResponse copyOutResponse);
+
+  T visitCopyFail(CopyFail copyFail);
+
+  T visitClose(Close close);
+
+  T visitCloseComplete(CloseComplete closeComplete);
+
+  T visitCancelRequest(CancelRequest cancelRequest);
+
 }
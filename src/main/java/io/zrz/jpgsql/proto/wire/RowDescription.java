@@ -12,6 +12,12 @@ public class RowDescription implements PostgreSQLPacket
   public static final class Entry
   {
     private String name;
+    private int tableOid;
+    private int column;
+    private int typeOid;
+    private int typeLength;
+    private int typeModifier;
+    private int format;
   }
 
   private final List<Entry> rows;
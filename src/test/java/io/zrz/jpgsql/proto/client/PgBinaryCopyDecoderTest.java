@@ -0,0 +1,141 @@
+package io.zrz.jpgsql.proto.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.postgresql.core.Oid;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.reactivex.Flowable;
+import io.zrz.jpgsql.client.RowBuffer;
+import io.zrz.jpgsql.client.opj.PgResultMeta;
+import io.zrz.jpgsql.client.opj.PgThreadPooledClient;
+
+public class PgBinaryCopyDecoderTest {
+
+  private static final PgResultMeta FIELDS = PgBinaryCopyDecoder.fields(Arrays.asList("id", "name"), new int[] { Oid.INT4, Oid.TEXT });
+
+  private static ByteBuf tuple(final ByteBuf out, final int id, final String name) {
+    out.writeShort(2).writeInt(4).writeInt(id);
+    if (name == null) {
+      return out.writeInt(-1);
+    }
+    final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    return out.writeInt(bytes.length).writeBytes(bytes);
+  }
+
+  /**
+   * the COPY output for rows 0 to count-1, each named by its id, except every third which is null.
+   */
+
+  private static byte[] copy(final int count) {
+    final ByteBuf out = Unpooled.buffer().writeBytes(PgThreadPooledClient.BINARY_PREAMBLE);
+    for (int i = 0; i < count; ++i) {
+      tuple(out, i, i % 3 == 0 ? null : "row " + i);
+    }
+    out.writeShort(-1);
+    final byte[] bytes = new byte[out.readableBytes()];
+    out.readBytes(bytes).release();
+    return bytes;
+  }
+
+  /**
+   * the data as buffers of the given size.
+   */
+
+  private static List<ByteBuf> chunks(final byte[] data, final int size) {
+    final List<ByteBuf> chunks = new ArrayList<>();
+    for (int i = 0; i < data.length; i += size) {
+      chunks.add(Unpooled.copiedBuffer(data, i, Math.min(size, data.length - i)));
+    }
+    return chunks;
+  }
+
+  private static List<RowBuffer> decode(final List<ByteBuf> chunks, final int batchSize) {
+    return PgBinaryCopyDecoder.decode(Flowable.fromIterable(chunks), FIELDS, batchSize).toList().blockingGet();
+  }
+
+  private static void check(final List<RowBuffer> batches, final int count, final int batchSize) {
+
+    int row = 0;
+
+    for (int b = 0; b < batches.size(); ++b) {
+
+      final RowBuffer batch = batches.get(b);
+
+      assertEquals(b == batches.size() - 1, !batch.maybeMore());
+
+      for (int r = 0; r < batch.count(); ++r, ++row) {
+        assertEquals(row, batch.intval(r, 0));
+        assertEquals(row % 3 == 0 ? null : "row " + row, batch.strval(r, 1));
+      }
+
+    }
+
+    assertEquals(count, row);
+    assertEquals(count / batchSize + 1, batches.size());
+
+  }
+
+  @Test
+  public void wholeBuffer() {
+    check(decode(chunks(copy(10), Integer.MAX_VALUE), 4), 10, 4);
+  }
+
+  @Test
+  public void tuplesSplitAcrossBuffers() {
+    final byte[] data = copy(10);
+    for (final int size : new int[] { 1, 2, 3, 5, 7, 13, 19, 20 }) {
+      final List<ByteBuf> chunks = chunks(data, size);
+      check(decode(chunks, 3), 10, 3);
+      // every input buffer is released once consumed.
+      for (final ByteBuf chunk : chunks) {
+        assertEquals(0, chunk.refCnt());
+      }
+    }
+  }
+
+  @Test
+  public void noRows() {
+    final List<RowBuffer> batches = decode(chunks(copy(0), 1), 10);
+    assertEquals(1, batches.size());
+    assertTrue(batches.get(0).empty());
+    assertFalse(batches.get(0).maybeMore());
+  }
+
+  @Test
+  public void nullValue() {
+    final List<RowBuffer> batches = decode(chunks(copy(1), 4), 10);
+    assertNull(batches.get(0).strval(0, 1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void missingTrailer() {
+    final byte[] data = copy(2);
+    decode(chunks(Arrays.copyOf(data, data.length - 2), 8), 10);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void badSignature() {
+    final byte[] data = copy(2);
+    data[0] = 'X';
+    decode(chunks(data, 8), 10);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void dataAfterTrailer() {
+    final List<ByteBuf> chunks = chunks(copy(2), 1024);
+    chunks.add(Unpooled.wrappedBuffer(new byte[] { 0, 0 }));
+    decode(chunks, 10);
+  }
+
+}
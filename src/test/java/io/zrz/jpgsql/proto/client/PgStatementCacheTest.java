@@ -0,0 +1,134 @@
+package io.zrz.jpgsql.proto.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PgStatementCacheTest {
+
+  private static final List<Integer> NONE = Collections.emptyList();
+
+  /**
+   * acquire and confirm the Parse of a statement.
+   */
+
+  private static PgStatementCache.Entry prepare(final PgStatementCache cache, final String sql) {
+    final PgStatementCache.Entry entry = cache.acquire(sql, NONE);
+    cache.prepared(entry);
+    return entry;
+  }
+
+  @Test
+  public void disabled() {
+    final PgStatementCache cache = new PgStatementCache(0);
+    assertNull(cache.acquire("SELECT 1", NONE));
+  }
+
+  @Test
+  public void reusedOncePrepared() {
+
+    final PgStatementCache cache = new PgStatementCache(4);
+
+    final PgStatementCache.Entry entry = cache.acquire("SELECT 1", NONE);
+    assertNotNull(entry);
+
+    // still being parsed, so the next one uses the unnamed statement.
+    assertNull(cache.acquire("SELECT 1", NONE));
+
+    cache.prepared(entry);
+
+    assertSame(entry, cache.acquire("SELECT 1", NONE));
+    assertEquals(1, cache.hits());
+    assertEquals(2, cache.misses());
+
+  }
+
+  @Test
+  public void keyedByParameterTypes() {
+    final PgStatementCache cache = new PgStatementCache(4);
+    final PgStatementCache.Entry int4 = prepare(cache, "SELECT $1");
+    final PgStatementCache.Entry text = cache.acquire("SELECT $1", Collections.singletonList(25));
+    assertNotNull(text);
+    assertNotEquals(int4.name, text.name);
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsed() {
+
+    final PgStatementCache cache = new PgStatementCache(2);
+
+    final PgStatementCache.Entry a = prepare(cache, "a");
+    final PgStatementCache.Entry b = prepare(cache, "b");
+
+    // using a makes b the least recently used.
+    assertSame(a, cache.acquire("a", NONE));
+
+    prepare(cache, "c");
+
+    assertEquals(1, cache.evictions());
+    assertEquals(b.name, cache.pollClosing());
+    assertNull(cache.pollClosing());
+
+    assertSame(a, cache.acquire("a", NONE));
+    assertNotNull(cache.acquire("b", NONE));
+
+  }
+
+  @Test
+  public void evictedWhileParsingIsClosedOncePrepared() {
+
+    final PgStatementCache cache = new PgStatementCache(1);
+
+    final PgStatementCache.Entry a = cache.acquire("a", NONE);
+    prepare(cache, "b");
+
+    // the Parse for a is still in flight, so there's nothing to close yet.
+    assertNull(cache.pollClosing());
+
+    cache.prepared(a);
+
+    assertEquals(a.name, cache.pollClosing());
+
+  }
+
+  @Test
+  public void invalidate() {
+
+    final PgStatementCache cache = new PgStatementCache(4);
+
+    final PgStatementCache.Entry failed = cache.acquire("bad", NONE);
+    cache.invalidate(failed);
+
+    // never prepared, so nothing to close.
+    assertNull(cache.pollClosing());
+
+    final PgStatementCache.Entry stale = prepare(cache, "stale");
+    cache.invalidate(stale);
+
+    assertEquals(stale.name, cache.pollClosing());
+
+    final PgStatementCache.Entry again = cache.acquire("stale", NONE);
+    assertNotSame(stale, again);
+
+    // only removed once.
+    cache.invalidate(stale);
+    assertNull(cache.pollClosing());
+
+  }
+
+  @Test
+  public void closeLater() {
+    final PgStatementCache cache = new PgStatementCache(4);
+    cache.closeLater("S_9");
+    assertEquals("S_9", cache.pollClosing());
+  }
+
+}
@@ -0,0 +1,132 @@
+package io.zrz.jpgsql.proto.replication;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedCheckpointStoreTest
+{
+
+  // sequence, lsn and check of each of the two records.
+  private static final int RECORD_SIZE = 24;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private MappedCheckpointStore open()
+  {
+    // long enough that it only syncs when asked to.
+    return new MappedCheckpointStore(this.folder.getRoot().toPath(), Duration.ofHours(1));
+  }
+
+  /**
+   * overwrite the LSN of the record at the offset, as a write torn part way through would.
+   */
+
+  private void tear(final String slotId, final int record) throws IOException
+  {
+    final Path file = this.folder.getRoot().toPath().resolve(slotId + ".checkpoint");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      final ByteBuffer garbage = ByteBuffer.allocate(8).putLong(0xdeadbeefL);
+      garbage.flip();
+      channel.write(garbage, record * RECORD_SIZE + 8);
+    }
+  }
+
+  @Test
+  public void empty()
+  {
+    try (MappedCheckpointStore store = this.open()) {
+      assertEquals(0, store.load("slot"));
+      assertEquals(0, store.durable("slot"));
+    }
+  }
+
+  @Test
+  public void savesAndReloads()
+  {
+
+    try (MappedCheckpointStore store = this.open()) {
+
+      store.save("a", 100);
+      store.save("a", 200);
+      store.save("a", 150);
+      store.save("b", 5);
+
+      assertEquals(200, store.load("a"));
+      assertEquals(0, store.durable("a"));
+
+      store.sync();
+
+      assertEquals(200, store.durable("a"));
+      assertEquals(5, store.durable("b"));
+
+    }
+
+    try (MappedCheckpointStore store = this.open()) {
+      assertEquals(200, store.load("a"));
+      assertEquals(200, store.durable("a"));
+      assertEquals(5, store.load("b"));
+    }
+
+  }
+
+  @Test
+  public void tornRecordFallsBackToThePreviousOne() throws IOException
+  {
+
+    try (MappedCheckpointStore store = this.open()) {
+      // the first save is sequence 1, in the second record. the next is sequence 2, in the first.
+      store.save("slot", 100);
+      store.save("slot", 200);
+    }
+
+    this.tear("slot", 0);
+
+    try (MappedCheckpointStore store = this.open()) {
+
+      assertEquals(100, store.load("slot"));
+
+      // the next save replaces the torn record, not the one we recovered from.
+      store.save("slot", 300);
+
+    }
+
+    this.tear("slot", 1);
+
+    try (MappedCheckpointStore store = this.open()) {
+      assertEquals(300, store.load("slot"));
+    }
+
+  }
+
+  @Test
+  public void bothRecordsTorn() throws IOException
+  {
+
+    try (MappedCheckpointStore store = this.open()) {
+      store.save("slot", 100);
+      store.save("slot", 200);
+    }
+
+    this.tear("slot", 0);
+    this.tear("slot", 1);
+
+    try (MappedCheckpointStore store = this.open()) {
+      assertEquals(0, store.load("slot"));
+      store.save("slot", 50);
+      assertEquals(50, store.load("slot"));
+    }
+
+  }
+
+}
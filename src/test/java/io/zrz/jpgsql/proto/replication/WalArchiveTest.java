@@ -0,0 +1,332 @@
+package io.zrz.jpgsql.proto.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.Unpooled;
+
+public class WalArchiveTest
+{
+
+  // a record is a 32 byte header and the payload, so this fits four of the payloads below.
+  private static final int SEGMENT_SIZE = 4 * (32 + 8);
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static XLogData record(final long lsn)
+  {
+    return new XLogData(lsn, lsn + 1, lsn * 10, Unpooled.copiedBuffer(String.format("%08d", lsn), StandardCharsets.UTF_8));
+  }
+
+  private static void append(final WalArchive archive, final long from, final long to)
+  {
+    for (long lsn = from; lsn <= to; ++lsn) {
+      final XLogData data = record(lsn);
+      archive.append(data);
+      data.release();
+    }
+  }
+
+  /**
+   * read the next record, checking it is the one appended with the LSN.
+   */
+
+  private static void expect(final WalArchive.Cursor cursor, final long lsn)
+  {
+    final XLogData data = cursor.poll();
+    assertEquals(lsn, data.getStartingPoint());
+    assertEquals(lsn + 1, data.getCurrentEnd());
+    assertEquals(lsn * 10, data.getTxTime());
+    assertEquals(String.format("%08d", lsn), data.getByteBuf().toString(StandardCharsets.UTF_8));
+    data.release();
+  }
+
+  private int segments()
+  {
+    final File[] files = this.folder.getRoot().listFiles();
+    return files == null ? 0 : files.length;
+  }
+
+  @Test
+  public void rollsSegments()
+  {
+
+    final Path dir = this.folder.getRoot().toPath();
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+      assertNull(cursor.poll());
+
+      append(archive, 1, 10);
+
+      assertEquals(3, this.segments());
+      assertEquals(10, archive.lastLsn());
+
+      // follows the records across the segments.
+      for (long lsn = 1; lsn <= 10; ++lsn) {
+        expect(cursor, lsn);
+      }
+
+      assertNull(cursor.poll());
+
+      append(archive, 11, 11);
+      expect(cursor, 11);
+
+    }
+
+  }
+
+  @Test
+  public void largeRecordGetsItsOwnSegment()
+  {
+
+    try (WalArchive archive = new WalArchive(this.folder.getRoot().toPath(), SEGMENT_SIZE)) {
+
+      append(archive, 1, 1);
+
+      final byte[] large = new byte[SEGMENT_SIZE * 2];
+      archive.append(new XLogData(2, 2, 2, Unpooled.wrappedBuffer(large)));
+
+      append(archive, 3, 3);
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+      expect(cursor, 1);
+      assertEquals(large.length, cursor.poll().getByteBuf().readableBytes());
+      expect(cursor, 3);
+
+    }
+
+  }
+
+  @Test
+  public void ignoresRecordsBeforeTheLast()
+  {
+
+    try (WalArchive archive = new WalArchive(this.folder.getRoot().toPath(), SEGMENT_SIZE)) {
+
+      append(archive, 5, 6);
+      append(archive, 1, 4);
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+      expect(cursor, 5);
+      expect(cursor, 6);
+      assertNull(cursor.poll());
+
+    }
+
+  }
+
+  @Test
+  public void ignoresRecordsSentAgain()
+  {
+
+    final Path dir = this.folder.getRoot().toPath();
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+
+      // a transaction's first few records all start at the same LSN.
+      archive.append(new XLogData(5, 5, 0, Unpooled.copiedBuffer("begin", StandardCharsets.UTF_8)));
+      archive.append(new XLogData(5, 5, 0, Unpooled.copiedBuffer("insert", StandardCharsets.UTF_8)));
+      append(archive, 6, 6);
+
+      // sent again after reconnecting, with a later server end.
+      archive.append(new XLogData(5, 9, 0, Unpooled.copiedBuffer("begin", StandardCharsets.UTF_8)));
+      archive.append(new XLogData(5, 9, 0, Unpooled.copiedBuffer("insert", StandardCharsets.UTF_8)));
+      append(archive, 6, 7);
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+      assertEquals("begin", cursor.poll().getByteBuf().toString(StandardCharsets.UTF_8));
+      assertEquals("insert", cursor.poll().getByteBuf().toString(StandardCharsets.UTF_8));
+      expect(cursor, 6);
+      expect(cursor, 7);
+      assertNull(cursor.poll());
+
+    }
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+
+      // and after reopening.
+      append(archive, 7, 8);
+
+      final WalArchive.Cursor cursor = archive.cursor(7);
+      expect(cursor, 7);
+      expect(cursor, 8);
+      assertNull(cursor.poll());
+
+    }
+
+  }
+
+  @Test
+  public void recoversOnReopen()
+  {
+
+    final Path dir = this.folder.getRoot().toPath();
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+      append(archive, 1, 6);
+    }
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+
+      assertEquals(6, archive.lastLsn());
+
+      // continues in the last segment, which had room for two more.
+      append(archive, 7, 9);
+      assertEquals(3, this.segments());
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+
+      for (long lsn = 1; lsn <= 9; ++lsn) {
+        expect(cursor, lsn);
+      }
+
+      assertNull(cursor.poll());
+
+    }
+
+  }
+
+  @Test
+  public void dropsEverythingFromADamagedRecord() throws IOException
+  {
+
+    final Path dir = this.folder.getRoot().toPath();
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+      append(archive, 1, 10);
+    }
+
+    // the second record of the second segment, which starts at 5.
+    try (RandomAccessFile file = new RandomAccessFile(dir.resolve(String.format("%016X.wal", 5)).toFile(), "rw")) {
+      file.seek(32 + 8 + 32);
+      file.write('x');
+    }
+
+    try (WalArchive archive = new WalArchive(dir, SEGMENT_SIZE)) {
+
+      assertEquals(5, archive.lastLsn());
+      assertEquals(2, this.segments());
+
+      append(archive, 6, 7);
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+
+      for (long lsn = 1; lsn <= 7; ++lsn) {
+        expect(cursor, lsn);
+      }
+
+      assertNull(cursor.poll());
+
+    }
+
+  }
+
+  @Test
+  public void cursorSeeks()
+  {
+
+    // enough records in one segment for the sparse index to have several entries.
+    try (WalArchive archive = new WalArchive(this.folder.getRoot().toPath(), 1000 * (32 + 8))) {
+
+      for (long lsn = 10; lsn <= 10_000; lsn += 10) {
+        final XLogData data = record(lsn);
+        archive.append(data);
+        data.release();
+      }
+
+      expect(archive.cursor(0), 10);
+      expect(archive.cursor(10), 10);
+      expect(archive.cursor(641), 650);
+      expect(archive.cursor(5000), 5000);
+      expect(archive.cursor(9999), 10_000);
+      assertNull(archive.cursor(10_001).poll());
+
+    }
+
+  }
+
+  @Test
+  public void cursorSeeksAcrossSegments()
+  {
+
+    try (WalArchive archive = new WalArchive(this.folder.getRoot().toPath(), SEGMENT_SIZE)) {
+
+      append(archive, 1, 12);
+
+      final WalArchive.Cursor cursor = archive.cursor(6);
+      for (long lsn = 6; lsn <= 12; ++lsn) {
+        expect(cursor, lsn);
+      }
+
+      // the first segment starts at 1, so an earlier LSN starts there.
+      expect(archive.cursor(0), 1);
+
+    }
+
+  }
+
+  @Test
+  public void retainRemovesOldSegments()
+  {
+
+    try (WalArchive archive = new WalArchive(this.folder.getRoot().toPath(), SEGMENT_SIZE)) {
+
+      append(archive, 1, 12);
+      assertEquals(3, this.segments());
+
+      final WalArchive.Cursor reading = archive.cursor(1);
+
+      // the second segment starts at 5, so the first is only removed once we're past it.
+      archive.retain(4);
+      assertEquals(3, this.segments());
+
+      archive.retain(9);
+      assertEquals(1, this.segments());
+
+      expect(archive.cursor(0), 9);
+
+      // an existing cursor carries on through the removed segments.
+      for (long lsn = 1; lsn <= 12; ++lsn) {
+        expect(reading, lsn);
+      }
+
+    }
+
+  }
+
+  @Test
+  public void pollWaitsForAnAppend() throws InterruptedException
+  {
+
+    try (WalArchive archive = new WalArchive(this.folder.getRoot().toPath(), SEGMENT_SIZE)) {
+
+      final WalArchive.Cursor cursor = archive.cursor(0);
+
+      final Thread writer = new Thread(() -> append(archive, 1, 1));
+      writer.start();
+
+      final XLogData data = cursor.poll(10, java.util.concurrent.TimeUnit.SECONDS);
+      writer.join();
+
+      assertTrue(data != null);
+      assertEquals(1, data.getStartingPoint());
+
+    }
+
+  }
+
+}
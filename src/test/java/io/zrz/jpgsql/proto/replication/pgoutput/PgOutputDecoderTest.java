@@ -0,0 +1,185 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class PgOutputDecoderTest {
+
+  static final int OID = 16384;
+
+  static ByteBuf string(final ByteBuf buf, final String value) {
+    buf.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    return buf.writeByte(0);
+  }
+
+  private static ByteBuf column(final ByteBuf buf, final String value) {
+    if (value == null) {
+      return buf.writeByte(TupleData.NULL);
+    }
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    return buf.writeByte(TupleData.TEXT).writeInt(bytes.length).writeBytes(bytes);
+  }
+
+  static ByteBuf tuple(final ByteBuf buf, final String... values) {
+    buf.writeShort(values.length);
+    for (final String value : values) {
+      column(buf, value);
+    }
+    return buf;
+  }
+
+  /**
+   * a message of the type, with the xid after it if given.
+   */
+
+  static ByteBuf message(final char type, final Integer xid) {
+    final ByteBuf buf = Unpooled.buffer().writeByte(type);
+    return xid == null ? buf : buf.writeInt(xid);
+  }
+
+  static ByteBuf relation(final Integer xid, final String name, final char identity) {
+    final ByteBuf buf = message('R', xid).writeInt(OID);
+    string(buf, "public");
+    string(buf, name);
+    buf.writeByte(identity).writeShort(2);
+    string(buf.writeByte(1), "id").writeInt(23).writeInt(-1);
+    string(buf.writeByte(0), "name").writeInt(25).writeInt(-1);
+    return buf;
+  }
+
+  @Test
+  public void begin() {
+    final Begin begin = (Begin) new PgOutputDecoder().decode(message('B', null).writeLong(100).writeLong(200).writeInt(7));
+    assertEquals(100, begin.getFinalLsn());
+    assertEquals(200, begin.getCommitTime());
+    assertEquals(7, begin.getXid());
+  }
+
+  @Test
+  public void commit() {
+    final Commit commit = (Commit) new PgOutputDecoder().decode(message('C', null).writeByte(0).writeLong(1).writeLong(2).writeLong(3));
+    assertEquals(1, commit.getCommitLsn());
+    assertEquals(2, commit.getEndLsn());
+    assertEquals(3, commit.getCommitTime());
+  }
+
+  @Test
+  public void relationThenChanges() {
+
+    final PgOutputDecoder decoder = new PgOutputDecoder();
+
+    final Relation relation = (Relation) decoder.decode(relation(null, "things", 'd'));
+    assertEquals("things", relation.getName());
+    assertEquals('d', relation.getReplicaIdentity());
+    assertTrue(relation.getColumns().get(0).isKey());
+    assertFalse(relation.getColumns().get(1).isKey());
+    assertEquals(relation, decoder.relation(OID));
+
+    final Insert insert = (Insert) decoder.decode(tuple(message('I', null).writeInt(OID).writeByte('N'), "1", "one"));
+    assertEquals(relation, insert.getRelation());
+    assertEquals("1", insert.getTuple().string(0));
+    assertEquals("one", insert.getTuple().string(1));
+
+    final Update update = (Update) decoder.decode(tuple(tuple(message('U', null).writeInt(OID).writeByte('K'), "1", null).writeByte('N'), "2", "two"));
+    assertTrue(update.isKeyOnly());
+    assertEquals("1", update.getOld().string(0));
+    assertTrue(update.getOld().isNull(1));
+    assertEquals("2", update.getTuple().string(0));
+
+    final Update plain = (Update) decoder.decode(tuple(message('U', null).writeInt(OID).writeByte('N'), "2", "three"));
+    assertNull(plain.getOld());
+    assertEquals("three", plain.getTuple().string(1));
+
+    final Delete delete = (Delete) decoder.decode(tuple(message('D', null).writeInt(OID).writeByte('O'), "2", "three"));
+    assertFalse(delete.isKeyOnly());
+    assertEquals("three", delete.getOld().string(1));
+
+    final Truncate truncate = (Truncate) decoder.decode(message('T', null).writeInt(1).writeByte(Truncate.CASCADE).writeInt(OID));
+    assertEquals(Truncate.CASCADE, truncate.getOptions());
+    assertEquals(relation, truncate.getRelations().get(0));
+
+  }
+
+  @Test
+  public void unsubscribedChangesAreSkipped() {
+    final PgOutputDecoder decoder = new PgOutputDecoder(relation -> !relation.getName().equals("things"));
+    decoder.decode(relation(null, "things", 'd'));
+    assertNull(decoder.decode(tuple(message('I', null).writeInt(OID).writeByte('N'), "1", "one")));
+    assertNull(decoder.decode(message('T', null).writeInt(1).writeByte(0).writeInt(OID)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void changeBeforeRelation() {
+    new PgOutputDecoder().decode(tuple(message('I', null).writeInt(OID).writeByte('N'), "1", "one"));
+  }
+
+  @Test
+  public void message() {
+
+    final ByteBuf buf = string(message('M', null).writeByte(Message.TRANSACTIONAL).writeLong(42), "audit");
+    buf.writeInt(5).writeBytes("hello".getBytes(StandardCharsets.UTF_8));
+
+    final Message msg = (Message) new PgOutputDecoder().decode(buf);
+
+    assertTrue(msg.isTransactional());
+    assertEquals(42, msg.getLsn());
+    assertEquals("audit", msg.getPrefix());
+    assertEquals("hello", msg.getContent().toString(StandardCharsets.UTF_8));
+
+  }
+
+  @Test
+  public void streamedMessagesSkipTheXid() {
+
+    final PgOutputDecoder decoder = new PgOutputDecoder();
+
+    final StreamStart start = (StreamStart) decoder.decode(message('S', null).writeInt(900).writeByte(1));
+    assertEquals(900, start.getXid());
+    assertTrue(start.isFirst());
+
+    // an Origin follows the StreamStart of the first block, without an xid.
+    final Origin origin = (Origin) decoder.decode(string(message('O', null).writeLong(77), "upstream"));
+    assertEquals(77, origin.getLsn());
+    assertEquals("upstream", origin.getName());
+
+    decoder.decode(relation(901, "things", 'f'));
+    assertEquals('f', decoder.relation(OID).getReplicaIdentity());
+
+    final Insert insert = (Insert) decoder.decode(tuple(message('I', 901).writeInt(OID).writeByte('N'), "1", "one"));
+    assertEquals("one", insert.getTuple().string(1));
+
+    final ByteBuf buf = string(message('M', 901).writeByte(Message.TRANSACTIONAL).writeLong(42), "audit").writeInt(0);
+    assertEquals("audit", ((Message) decoder.decode(buf)).getPrefix());
+
+    decoder.decode(message('E', null));
+
+    // no longer in a block, so the next change has no xid.
+    final Insert after = (Insert) decoder.decode(tuple(message('I', null).writeInt(OID).writeByte('N'), "2", "two"));
+    assertEquals("two", after.getTuple().string(1));
+
+    final StreamCommit commit = (StreamCommit) decoder.decode(message('c', null).writeInt(900).writeByte(0).writeLong(1).writeLong(2).writeLong(3));
+    assertEquals(900, commit.getXid());
+    assertEquals(2, commit.getEndLsn());
+
+    final StreamAbort abort = (StreamAbort) decoder.decode(message('A', null).writeInt(900).writeInt(901));
+    assertEquals(901, abort.getSubXid());
+
+  }
+
+  @Test
+  public void decodeLeavesTheBufferUnchanged() {
+    final ByteBuf buf = message('B', null).writeLong(1).writeLong(2).writeInt(3);
+    new PgOutputDecoder().decode(buf);
+    assertEquals(0, buf.readerIndex());
+  }
+
+}
@@ -0,0 +1,115 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import static io.zrz.jpgsql.proto.replication.pgoutput.PgOutputDecoderTest.message;
+import static io.zrz.jpgsql.proto.replication.pgoutput.PgOutputDecoderTest.relation;
+import static io.zrz.jpgsql.proto.replication.pgoutput.PgOutputDecoderTest.string;
+import static io.zrz.jpgsql.proto.replication.pgoutput.PgOutputDecoderTest.tuple;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.ByteBuf;
+import io.reactivex.Flowable;
+import io.zrz.jpgsql.proto.replication.XLogData;
+
+public class PgOutputStreamsTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static XLogData data(final ByteBuf payload) {
+    return new XLogData(1, 1, 1, payload);
+  }
+
+  // the second column of each insert, read before its payload is released.
+  private final List<String> inserted = new ArrayList<>();
+
+  /**
+   * run the messages through PgOutputStreams, and decode what comes out.
+   */
+
+  private List<PgOutputMessage> assemble(final long memoryLimit, final ByteBuf... messages) {
+
+    final List<XLogData> in = new ArrayList<>();
+
+    for (final ByteBuf msg : messages) {
+      in.add(data(msg));
+    }
+
+    final PgOutputDecoder decoder = new PgOutputDecoder();
+    final List<PgOutputMessage> out = new ArrayList<>();
+
+    Flowable.fromIterable(in)
+        .compose(PgOutputStreams.assemble(this.folder.getRoot().toPath(), memoryLimit))
+        .blockingForEach(data -> {
+          try {
+            final PgOutputMessage msg = decoder.decode(data);
+            if (msg instanceof Insert) {
+              this.inserted.add(((Insert) msg).getTuple().string(1));
+            }
+            out.add(msg);
+          }
+          finally {
+            data.release();
+          }
+        });
+
+    return out;
+
+  }
+
+  @Test
+  public void originIsSpooledWithTheTransaction() {
+
+    for (final long limit : new long[] { 1024 * 1024, 0 }) {
+
+      final List<PgOutputMessage> out = this.assemble(limit,
+          message('S', null).writeInt(900).writeByte(1),
+          string(message('O', null).writeLong(77), "upstream"),
+          relation(900, "things", 'd'),
+          tuple(message('I', 901).writeInt(PgOutputDecoderTest.OID).writeByte('N'), "1", "one"),
+          message('E', null),
+          message('c', null).writeInt(900).writeByte(0).writeLong(10).writeLong(20).writeLong(30));
+
+      // the relation straight away, then the transaction replayed on commit.
+      assertEquals(6, out.size());
+      assertTrue(out.get(0) instanceof Relation);
+
+      final Begin begin = (Begin) out.get(1);
+      assertEquals(900, begin.getXid());
+      assertEquals(10, begin.getFinalLsn());
+
+      final Origin origin = (Origin) out.get(2);
+      assertEquals(77, origin.getLsn());
+      assertEquals("upstream", origin.getName());
+
+      assertTrue(out.get(3) instanceof Relation);
+      assertTrue(out.get(4) instanceof Insert);
+      assertEquals("one", this.inserted.remove(0));
+
+      assertEquals(20, ((Commit) out.get(5)).getEndLsn());
+
+    }
+
+  }
+
+  @Test
+  public void originOutsideAStreamPassesThrough() {
+
+    final List<PgOutputMessage> out = this.assemble(1024,
+        message('B', null).writeLong(10).writeLong(30).writeInt(5),
+        string(message('O', null).writeLong(77), "upstream"),
+        message('C', null).writeByte(0).writeLong(10).writeLong(20).writeLong(30));
+
+    assertEquals(3, out.size());
+    assertEquals("upstream", ((Origin) out.get(1)).getName());
+
+  }
+
+}
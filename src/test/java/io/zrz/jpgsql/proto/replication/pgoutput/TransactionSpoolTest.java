@@ -0,0 +1,183 @@
+package io.zrz.jpgsql.proto.replication.pgoutput;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class TransactionSpoolTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private static void add(final TransactionSpool spool, final int xid, final int subXid, final String body) {
+    final ByteBuf buf = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
+    spool.add(xid, subXid, (byte) 'I', buf);
+    buf.release();
+  }
+
+  /**
+   * the bodies replayed for the transaction, checking each has the type in front.
+   */
+
+  private static List<String> replay(final TransactionSpool.Transaction txn) {
+    final List<String> bodies = new ArrayList<>();
+    for (final Iterator<ByteBuf> it = txn.messages(); it.hasNext();) {
+      final ByteBuf msg = it.next();
+      assertEquals('I', msg.readByte());
+      bodies.add(msg.toString(StandardCharsets.UTF_8));
+      msg.release();
+    }
+    return bodies;
+  }
+
+  private int spoolFiles() {
+    final File[] files = this.folder.getRoot().listFiles();
+    return files == null ? 0 : files.length;
+  }
+
+  @Test
+  public void heldInHeap() {
+
+    try (TransactionSpool spool = new TransactionSpool(this.folder.getRoot().toPath(), 1024)) {
+
+      add(spool, 1, 1, "a");
+      add(spool, 1, 1, "b");
+
+      // length, subxid, type and body.
+      assertEquals(2 * (4 + 4 + 1 + 1), spool.memory());
+
+      try (TransactionSpool.Transaction txn = spool.commit(1)) {
+        assertEquals(0, this.spoolFiles());
+        assertEquals(2, replay(txn).size());
+      }
+
+      assertEquals(0, spool.memory());
+      assertNull(spool.commit(1));
+
+    }
+
+  }
+
+  @Test
+  public void spillsPastTheMemoryLimit() {
+
+    try (TransactionSpool spool = new TransactionSpool(this.folder.getRoot().toPath(), 32)) {
+
+      final List<String> expected = new ArrayList<>();
+
+      for (int i = 0; i < 10; ++i) {
+        expected.add("row " + i);
+        add(spool, 1, 1, "row " + i);
+      }
+
+      assertEquals(1, this.spoolFiles());
+      assertEquals(0, spool.memory());
+
+      try (TransactionSpool.Transaction txn = spool.commit(1)) {
+        assertEquals(expected, replay(txn));
+      }
+
+      assertEquals(0, this.spoolFiles());
+
+    }
+
+  }
+
+  @Test
+  public void onlyTheTransactionBeingAddedToSpills() {
+
+    try (TransactionSpool spool = new TransactionSpool(this.folder.getRoot().toPath(), 24)) {
+
+      add(spool, 1, 1, "small");
+      add(spool, 2, 2, "pushes it over");
+
+      assertEquals(1, this.spoolFiles());
+      assertEquals(4 + 4 + 1 + 5, spool.memory());
+
+      try (TransactionSpool.Transaction txn = spool.commit(2)) {
+        assertEquals(1, replay(txn).size());
+      }
+
+      try (TransactionSpool.Transaction txn = spool.commit(1)) {
+        assertEquals("small", replay(txn).get(0));
+      }
+
+    }
+
+  }
+
+  @Test
+  public void abortedSubtransactionsAreSkipped() {
+
+    for (final long limit : new long[] { 1024, 0 }) {
+
+      try (TransactionSpool spool = new TransactionSpool(this.folder.getRoot().toPath(), limit)) {
+
+        add(spool, 1, 1, "top");
+        add(spool, 1, 2, "aborted");
+        add(spool, 1, 3, "kept");
+        add(spool, 1, 2, "aborted too");
+        spool.abort(1, 2);
+
+        try (TransactionSpool.Transaction txn = spool.commit(1)) {
+          final List<String> bodies = replay(txn);
+          assertEquals(2, bodies.size());
+          assertEquals("top", bodies.get(0));
+          assertEquals("kept", bodies.get(1));
+        }
+
+      }
+
+    }
+
+  }
+
+  @Test
+  public void abortDiscardsTheTransaction() {
+
+    try (TransactionSpool spool = new TransactionSpool(this.folder.getRoot().toPath(), 0)) {
+
+      add(spool, 1, 1, "gone");
+      assertEquals(1, this.spoolFiles());
+
+      spool.abort(1, 1);
+
+      assertNull(spool.commit(1));
+      assertEquals(0, this.spoolFiles());
+
+    }
+
+  }
+
+  @Test
+  public void messagesOutliveTheTransaction() {
+
+    try (TransactionSpool spool = new TransactionSpool(this.folder.getRoot().toPath(), 1024)) {
+
+      add(spool, 1, 1, "still here");
+
+      final TransactionSpool.Transaction txn = spool.commit(1);
+      final ByteBuf msg = txn.messages().next();
+      txn.close();
+
+      msg.skipBytes(1);
+      assertEquals("still here", msg.toString(StandardCharsets.UTF_8));
+      msg.release();
+
+    }
+
+  }
+
+}